@@ -1,54 +1,242 @@
 #include <stdio.h>
 #include <stdlib.h>
 #include <string.h>
+#include <stdint.h>
+#include <errno.h>
+#include <arpa/inet.h>
 #include <sys/types.h>
 #include <unistd.h>
 
-int main(int argc, char** argv) {
-  
+//
+// Exclusions: dump of these files (/proc/XXX/mem, ...) is forbidden
+//
+
+static const char *exclusions[] = {"mem","fd","kcore"};
+
+//
+// Maximum size of a file dumped in framed mode
+//
+
+#define MAX_FRAME_SIZE (64 * 1024 * 1024)
+
+//
+// Build the absolute path of a file under /proc, return 0 if it can be dumped,
+// the (negative) exit code of the single file mode otherwise.
+//
+
+static int resolve(const char *path, char *fname, size_t size) {
+  if (snprintf(fname, size, "/proc/%s", path) >= (int) size) {
+    return -5;
+  }
+
+  if (NULL != strstr(fname, "..")) {
+    return -5;
+  }
+
+  for(int i = 0; i < sizeof(exclusions) / sizeof(exclusions[0]); i++) {
+    // Path ends with by the current exclusion (/proc/{pid}/mem)
+    int diff = strlen(fname)-strlen(exclusions[i]);
+    if ((diff >= 0) && (0 == strcmp(&fname[diff], exclusions[i]))) {
+      return -4;
+    }
+
+    // The current exclusion is a directory in the path (/proc/{pid}/fd/0)
+    char exclusionPattern[32];
+    snprintf(exclusionPattern, sizeof exclusionPattern, "/%s/", exclusions[i]);
+    if (NULL != strstr(fname, exclusionPattern)) {
+      return -3;
+    }
+  }
+
+  return 0;
+}
+
+static void writeHeader(int32_t length) {
+  uint32_t header = htonl((uint32_t) length);
+  fwrite(&header, sizeof header, 1, stdout);
+}
+
+//
+// Dump a file as a frame, i.e. its length as a 32 bits big endian integer followed by its content.
+// If the file cannot be dumped, the frame only contains the (negative) exit code of the single file mode.
+//
+
+static void dumpFrame(const char *path) {
+  static char *content = NULL;
+  static size_t capacity = 0;
+
+  char fname[4096];
+
+  int rc = resolve(path, fname, sizeof fname);
+
+  if (0 != rc) {
+    writeHeader(rc);
+    return;
+  }
+
+  FILE *fp = fopen(fname, "r");
+
+  if (NULL == fp) {
+    writeHeader(-2);
+    return;
+  }
+
   //
-  // Exclusions: dump of these files (/proc/XXX/mem, ...) is forbidden
+  // The size of the files of /proc is not known in advance, read the whole file before writing the frame
   //
 
-  const char *exclusions[] = {"mem","fd","kcore"};
+  size_t len = 0;
+
+  while (1) {
+    if (len == capacity) {
+      size_t newcapacity = 0 == capacity ? 8192 : capacity * 2;
+      char *newcontent = NULL;
+      if (newcapacity <= MAX_FRAME_SIZE) {
+        newcontent = realloc(content, newcapacity);
+      }
+      if (NULL == newcontent) {
+        fclose(fp);
+        writeHeader(-1);
+        return;
+      }
+      content = newcontent;
+      capacity = newcapacity;
+    }
+
+    size_t nread = fread(content + len, 1, capacity - len, fp);
+
+    if (0 == nread) {
+      break;
+    }
+
+    len += nread;
+  }
+
+  if (ferror(fp)) {
+    fclose(fp);
+    writeHeader(-1);
+    return;
+  }
+
+  fclose(fp);
+
+  writeHeader((int32_t) len);
+  fwrite(content, 1, len, stdout);
+}
+
+//
+// Serve mode, dump the files whose paths are read from stdin, one per line, until stdin is closed.
+// Frames are flushed whenever no more requests are readily available.
+//
 
-  if (argc != 2) {
-    
-    printf("Usage: %s [/proc]/XX/fileToDump\n", argv[0]);
-    printf("Note: Only files under /proc can be dumped\n");
-    printf("Sample: to dump /proc/net/ip_conntrack, use %s net/ip_conntrack - do not provide /proc at the beginning\n", argv[0]);
+static void serve() {
+  char in[8192];
+  size_t inlen = 0;
+  size_t inpos = 0;
+
+  char path[4096];
+  size_t len = 0;
+  int overflow = 0;
+
+  while (1) {
+    if (inpos == inlen) {
+      fflush(stdout);
+
+      ssize_t nread = read(0, in, sizeof in);
+
+      if (nread < 0 && EINTR == errno) {
+        continue;
+      } else if (nread <= 0) {
+        break;
+      }
+
+      inlen = nread;
+      inpos = 0;
+    }
+
+    char c = in[inpos++];
+
+    if ('\n' == c) {
+      if (overflow) {
+        writeHeader(-5);
+      } else {
+        path[len] = '\0';
+        dumpFrame(path);
+      }
+      len = 0;
+      overflow = 0;
+    } else if (len < sizeof path - 1) {
+      path[len++] = c;
+    } else {
+      overflow = 1;
+    }
+  }
+
+  fflush(stdout);
+}
+
+static void usage(char *name) {
+  printf("Usage: %s [/proc]/XX/fileToDump\n", name);
+  printf("       %s -f [/proc]/XX/fileToDump...\n", name);
+  printf("       %s -s\n", name);
+  printf("Note: Only files under /proc can be dumped\n");
+  printf("Sample: to dump /proc/net/ip_conntrack, use %s net/ip_conntrack - do not provide /proc at the beginning\n", name);
+  printf("With -f, each file is dumped as a frame made of its length as a 32 bits big endian integer followed by its content,\n");
+  printf("the length is negative (see exit codes below) if the file could not be dumped.\n");
+  printf("With -s, the paths of the files are read from stdin, one per line, and each file is dumped as a frame.\n");
+  printf("Exit codes: -1 read error, -2 cannot open, -3 and -4 forbidden, -5 invalid path\n");
+}
+
+int main(int argc, char** argv) {
+
+  if (2 == argc && 0 == strcmp("-s", argv[1])) {
+
+    //
+    // Serve mode, a single long lived process dumps the files of many collection cycles
+    //
+
+    // Elevate our privileges
+    setuid(0);
+
+    serve();
+
+    exit(ferror(stdout) ? -1 : 0);
+
+  } else if (argc >= 2 && 0 == strcmp("-f", argv[1])) {
+
+    //
+    // Framed mode, dump all the files with a single invocation
+    //
+
+    // Elevate our privileges
+    setuid(0);
+
+    for (int i = 2; i < argc; i++) {
+      dumpFrame(argv[i]);
+    }
+
+    fflush(stdout);
+    exit(ferror(stdout) ? -1 : 0);
+
+  } else if (argc != 2) {
+
+    usage(argv[0]);
     exit(-5);
 
   } else {
 
-    char *fname = malloc(7 + strlen(argv[1]));
-    strcat(fname, "/proc/");
-    strcat(fname, argv[1]);
+    char fname[4096];
+
+    int rc = resolve(argv[1], fname, sizeof fname);
 
-    if (NULL != strstr(fname, "..")) {
+    if (-5 == rc) {
       printf(".. is forbidden (%s)\n", argv[1]);
       exit(-5);
+    } else if (0 != rc) {
+      printf("Dump of /proc/%s is forbidden\n", argv[1]);
+      exit(rc);
     }
 
-    for(int i = 0; i < sizeof(exclusions) / sizeof(exclusions[0]); i++) {
-      // Path ends with by the current exclusion (/proc/{pid}/mem)
-      int diff = strlen(fname)-strlen(exclusions[i]);
-      if ((diff >= 0) && (0 == strcmp(&fname[diff], exclusions[i]))) {
-        printf("Dump of /proc/%s is forbidden\n", argv[1]);
-        exit(-4);
-      }
-
-      // The current exclusion is a directory in the path (/proc/{pid}/fd/0)
-      char *exclusionPattern = malloc(3 + strlen(exclusions[i]));
-      strcat(exclusionPattern, "/");
-      strcat(exclusionPattern, exclusions[i]);
-      strcat(exclusionPattern, "/");
-      if (NULL != strstr(fname, exclusionPattern)) {
-        printf("Dump of /proc/%s is forbidden\n", argv[1]);
-        exit(-3);
-      }
-    }
-    
     // Elevate our privileges
     setuid(0);
 
@@ -61,7 +249,7 @@ int main(int argc, char** argv) {
       int nread = 0;
       while ((nread = fread(buf, 1, sizeof buf, fp)) > 0) {
         fwrite(buf, 1, nread, stdout);
-      } 
+      }
       if (ferror(fp)) {
          exit(-1);
       }
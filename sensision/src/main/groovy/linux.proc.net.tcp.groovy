@@ -171,8 +171,8 @@ try {
         if ((ip & 0xff) == 127
           || (ip & 0xff) == 10
           || (ip & 0xff) == 0
-          || ((ip & 0xff) == 172 && ((dstip >> 8) & 0xff) > 16)
-          || ((ip & 0xff) == 192 && ((dstip >> 8) & 0xff) == 168)) {
+          || ((ip & 0xff) == 172 && ((ip >> 8) & 0xff) >= 16 && ((ip >> 8) & 0xff) <= 31)
+          || ((ip & 0xff) == 192 && ((ip >> 8) & 0xff) == 168)) {
           internal = true;
         }
       }
@@ -0,0 +1,529 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import io.warp10.sensision.Sensision.Value;
+
+/**
+ * Streaming aggregation of the values routed by the QueueManager.
+ *
+ * Each rule selects classes with a regular expression and aggregates their numerical values
+ * over fixed windows, optionally converting counters to rates per second and removing labels
+ * so the series which only differ by those labels are rolled up together. A single value per
+ * function is emitted for each window and resulting series, timestamped at the start of the window.
+ *
+ * Sketches (see SensisionSketch) of the selected classes are merged over the same windows, a single
+ * merged sketch is emitted for each window and resulting series, functions and rate do not apply to them.
+ * Sketches with different accuracies cannot be merged, they are emitted separately.
+ *
+ * Rules are configured with properties sensision.qm.aggregate.NAME.xxx, see AGGREGATE_PREFIX.
+ * A value is aggregated by the first rule, in name order, whose selector matches its class.
+ */
+class Aggregator {
+
+  /**
+   * Prefix of the aggregation rules properties, followed by the rule name and one of the
+   * following suffixes.
+   */
+  public static final String AGGREGATE_PREFIX = "sensision.qm.aggregate.";
+
+  /**
+   * Regular expression selecting the classes aggregated by the rule
+   */
+  public static final String SELECTOR_SUFFIX = ".selector";
+
+  /**
+   * Duration of the windows, in ms
+   */
+  public static final String WINDOW_SUFFIX = ".window";
+
+  /**
+   * Comma separated list of functions among min, max, mean, sum, last and count
+   */
+  public static final String FUNCTIONS_SUFFIX = ".functions";
+
+  /**
+   * Should the values be considered as counters and converted to rates per second before being aggregated
+   */
+  public static final String RATE_SUFFIX = ".rate";
+
+  /**
+   * Comma separated list of labels to remove from the series, rolling up the series which only differ by them
+   */
+  public static final String DROP_SUFFIX = ".drop";
+
+  /**
+   * How long (in ms) after the end of a window values may still be received for it
+   */
+  public static final String DELAY_SUFFIX = ".delay";
+
+  private static final String DEFAULT_WINDOW = "60000";
+  private static final String DEFAULT_FUNCTIONS = "mean";
+  private static final String DEFAULT_DELAY = "10000";
+
+  /**
+   * How long (in ms) the state of a series is kept after its last update
+   */
+  private static final long STATE_TTL = 3600000L;
+
+  private static final Set<String> FUNCTIONS = new HashSet<String>();
+
+  static {
+    FUNCTIONS.add("min");
+    FUNCTIONS.add("max");
+    FUNCTIONS.add("mean");
+    FUNCTIONS.add("sum");
+    FUNCTIONS.add("last");
+    FUNCTIONS.add("count");
+  }
+
+  private static final class Rule {
+    private String name;
+    private Pattern selector;
+    private long window;
+    private long delay;
+    private String[] functions;
+    private boolean rate;
+    private Set<String> drop = new HashSet<String>();
+    private Map<String,String> labels = new HashMap<String,String>();
+    private long in = 0L;
+    private long out = 0L;
+    private long late = 0L;
+  }
+
+  /**
+   * Incremental state of a window of a resulting series
+   */
+  private static final class Accumulator {
+    private Rule rule;
+    private String series;
+    private String key;
+    private String cls;
+    private Map<String,String> labels;
+    /**
+     * Merged sketch, null if the window aggregates numerical values
+     */
+    private SensisionSketch sketch;
+    private Float latitude;
+    private Float longitude;
+    private Long elevation;
+    private long start;
+    private long count = 0L;
+    private double sum = 0.0D;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private double last;
+    private long lastts = Long.MIN_VALUE;
+    private boolean integral = true;
+
+    private void add(long ts, double value, boolean integral) {
+      this.count++;
+      this.sum += value;
+      this.min = Math.min(this.min, value);
+      this.max = Math.max(this.max, value);
+      if (ts >= this.lastts) {
+        this.last = value;
+        this.lastts = ts;
+      }
+      this.integral &= integral;
+    }
+  }
+
+  /**
+   * Last value of a counter
+   */
+  private static final class Counter {
+    private long ts;
+    private double value;
+  }
+
+  private final List<Rule> rules = new ArrayList<Rule>();
+
+  /**
+   * Open windows by series
+   */
+  private final Map<String,Accumulator> accumulators = new LinkedHashMap<String,Accumulator>();
+
+  /**
+   * Start of the last window emitted for each series, values for older windows are dropped
+   */
+  private final Map<String,Long> emitted = new HashMap<String,Long>();
+
+  /**
+   * Last value of each counter, by input series
+   */
+  private final Map<String,Counter> counters = new HashMap<String,Counter>();
+
+  /**
+   * Windows removed by the last flush, restored by rollback
+   */
+  private final List<Accumulator> flushed = new ArrayList<Accumulator>();
+
+  /**
+   * Start of the last window emitted for the series updated by the last flush, before the flush, null if there was none
+   */
+  private final Map<String,Long> flushedEmitted = new HashMap<String,Long>();
+
+  Aggregator(Properties properties) {
+    // Rules are tried in the order of their names
+    Set<String> names = new TreeSet<String>();
+
+    for (Object key: properties.keySet()) {
+      String k = key.toString();
+      if (k.startsWith(AGGREGATE_PREFIX) && k.endsWith(SELECTOR_SUFFIX)) {
+        names.add(k.substring(AGGREGATE_PREFIX.length(), k.length() - SELECTOR_SUFFIX.length()));
+      }
+    }
+
+    for (String name: names) {
+      String prefix = AGGREGATE_PREFIX + name;
+
+      Rule rule = new Rule();
+      rule.name = name;
+      rule.selector = Pattern.compile(properties.getProperty(prefix + SELECTOR_SUFFIX));
+      rule.window = Long.parseLong(properties.getProperty(prefix + WINDOW_SUFFIX, DEFAULT_WINDOW)) * Sensision.TIME_UNITS_PER_MS;
+      rule.delay = Long.parseLong(properties.getProperty(prefix + DELAY_SUFFIX, DEFAULT_DELAY)) * Sensision.TIME_UNITS_PER_MS;
+      rule.functions = properties.getProperty(prefix + FUNCTIONS_SUFFIX, DEFAULT_FUNCTIONS).split(",");
+      rule.rate = "true".equals(properties.getProperty(prefix + RATE_SUFFIX));
+      rule.labels.put(SensisionConstants.SENSISION_LABEL_RULE, name);
+
+      if (rule.window <= 0L) {
+        throw new RuntimeException("Invalid window for aggregation rule '" + name + "'.");
+      }
+
+      for (int i = 0; i < rule.functions.length; i++) {
+        rule.functions[i] = rule.functions[i].trim();
+        if (!FUNCTIONS.contains(rule.functions[i])) {
+          throw new RuntimeException("Invalid function '" + rule.functions[i] + "' for aggregation rule '" + name + "'.");
+        }
+      }
+
+      if (null != properties.getProperty(prefix + DROP_SUFFIX)) {
+        for (String label: properties.getProperty(prefix + DROP_SUFFIX).split(",")) {
+          if (!"".equals(label.trim())) {
+            rule.drop.add(label.trim());
+          }
+        }
+      }
+
+      this.rules.add(rule);
+    }
+  }
+
+  boolean isEmpty() {
+    return this.rules.isEmpty();
+  }
+
+  /**
+   * Return the rule aggregating a value, null if it should be routed as is
+   */
+  private Rule getRule(Value value) {
+    if (Value.TYPE.LONG != value.type && Value.TYPE.DOUBLE != value.type && !isSketch(value)) {
+      return null;
+    }
+
+    for (Rule rule: this.rules) {
+      if (rule.selector.matcher(value.cls).matches()) {
+        return rule;
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Check whether a value would be consumed by a rule, without modifying the state of the aggregator
+   */
+  synchronized boolean accepts(Value value) {
+    if (null == getRule(value)) {
+      return false;
+    }
+
+    // Invalid sketches are routed as is
+    return !isSketch(value) || null != SensisionSketch.parse((String) value.value);
+  }
+
+  private static boolean isSketch(Value value) {
+    return Value.TYPE.STRING == value.type && ((String) value.value).startsWith(SensisionSketch.PREFIX);
+  }
+
+  /**
+   * Offer a value to the aggregation rules
+   *
+   * @return true if the value was consumed by a rule, false if it should be routed as is
+   */
+  synchronized boolean offer(Value value, long now) {
+    Rule rule = getRule(value);
+
+    if (null == rule) {
+      return false;
+    }
+
+    long ts = Long.MIN_VALUE == value.timestamp ? now : value.timestamp;
+
+    if (isSketch(value)) {
+      return offerSketch(rule, value, ts);
+    }
+
+    rule.in++;
+
+    double v = ((Number) value.value).doubleValue();
+    boolean integral = Value.TYPE.LONG == value.type;
+
+    if (rule.rate) {
+      String input = value.cls + new TreeMap<String,String>(value.labels);
+      Counter counter = this.counters.get(input);
+
+      if (null == counter) {
+        counter = new Counter();
+        counter.ts = ts;
+        counter.value = v;
+        this.counters.put(input, counter);
+        return true;
+      }
+
+      long dt = ts - counter.ts;
+
+      if (dt <= 0L) {
+        // Duplicate or out of order sample
+        return true;
+      }
+
+      double delta = v - counter.value;
+
+      counter.ts = ts;
+      counter.value = v;
+
+      // Counter reset
+      if (delta < 0.0D) {
+        return true;
+      }
+
+      v = delta * 1000.0D * Sensision.TIME_UNITS_PER_MS / dt;
+      integral = false;
+    }
+
+    Accumulator acc = getAccumulator(rule, value, ts, "");
+
+    if (null != acc) {
+      acc.add(ts, v, integral);
+    }
+
+    return true;
+  }
+
+  private boolean offerSketch(Rule rule, Value value, long ts) {
+    SensisionSketch sketch = SensisionSketch.parse((String) value.value);
+
+    if (null == sketch) {
+      return false;
+    }
+
+    rule.in++;
+
+    // Sketches with different accuracies are kept in distinct windows as they cannot be merged
+    Accumulator acc = getAccumulator(rule, value, ts, " " + sketch.getAccuracy());
+
+    if (null == acc) {
+      return true;
+    }
+
+    if (null == acc.sketch) {
+      acc.sketch = sketch;
+    } else {
+      acc.sketch.merge(sketch);
+    }
+
+    return true;
+  }
+
+  /**
+   * Return the window of the resulting series a value falls in, creating it if needed
+   *
+   * @param qualifier Appended to the series to separate the windows of values which cannot be aggregated together
+   * @return the window or null if it was already emitted, the value is then late
+   */
+  private Accumulator getAccumulator(Rule rule, Value value, long ts, String qualifier) {
+    Map<String,String> labels = new TreeMap<String,String>(value.labels);
+    labels.keySet().removeAll(rule.drop);
+
+    String series = rule.name + " " + value.cls + labels + qualifier;
+    long start = ts - Math.floorMod(ts, rule.window);
+
+    Long last = this.emitted.get(series);
+
+    if (null != last && start <= last) {
+      rule.late++;
+      return null;
+    }
+
+    String key = series + " " + start;
+
+    Accumulator acc = this.accumulators.get(key);
+
+    if (null == acc) {
+      acc = new Accumulator();
+      acc.rule = rule;
+      acc.series = series;
+      acc.key = key;
+      acc.cls = value.cls;
+      acc.labels = labels;
+      acc.start = start;
+      this.accumulators.put(key, acc);
+    }
+
+    acc.latitude = value.latitude;
+    acc.longitude = value.longitude;
+    acc.elevation = value.elevation;
+
+    return acc;
+  }
+
+  /**
+   * Return the values of the windows which can no longer receive values. The windows
+   * are removed until the next flush, rollback restores them if their values could
+   * not be queued.
+   *
+   * @param now Current time, in time units
+   * @param all Should all windows be closed
+   */
+  synchronized List<Value> flush(long now, boolean all) {
+    List<Value> values = new ArrayList<Value>();
+
+    this.flushed.clear();
+    this.flushedEmitted.clear();
+
+    Iterator<Map.Entry<String,Accumulator>> iter = this.accumulators.entrySet().iterator();
+
+    while (iter.hasNext()) {
+      Accumulator acc = iter.next().getValue();
+
+      if (!all && now < acc.start + acc.rule.window + acc.rule.delay) {
+        continue;
+      }
+
+      iter.remove();
+      this.flushed.add(acc);
+
+      Long last = this.emitted.get(acc.series);
+      if (!this.flushedEmitted.containsKey(acc.series)) {
+        this.flushedEmitted.put(acc.series, last);
+      }
+      if (null == last || last < acc.start) {
+        this.emitted.put(acc.series, acc.start);
+      }
+
+      if (null != acc.sketch) {
+        values.add(new Value(acc.cls, acc.labels, acc.start, acc.latitude, acc.longitude, acc.elevation, acc.sketch.toString()));
+        acc.rule.out++;
+        continue;
+      }
+
+      for (String function: acc.rule.functions) {
+        String cls = 1 == acc.rule.functions.length ? acc.cls : acc.cls + ":" + function;
+        values.add(new Value(cls, acc.labels, acc.start, acc.latitude, acc.longitude, acc.elevation, result(acc, function)));
+        acc.rule.out++;
+      }
+    }
+
+    for (Rule rule: this.rules) {
+      Sensision.set(SensisionConstants.SENSISION_CLASS_QM_AGGREGATION_IN, rule.labels, rule.in);
+      Sensision.set(SensisionConstants.SENSISION_CLASS_QM_AGGREGATION_OUT, rule.labels, rule.out);
+      Sensision.set(SensisionConstants.SENSISION_CLASS_QM_AGGREGATION_LATE, rule.labels, rule.late);
+    }
+
+    //
+    // Forget the series and counters which were not updated for a while
+    //
+
+    Iterator<Map.Entry<String,Long>> emittedIter = this.emitted.entrySet().iterator();
+    while (emittedIter.hasNext()) {
+      if (now - emittedIter.next().getValue() > STATE_TTL * Sensision.TIME_UNITS_PER_MS) {
+        emittedIter.remove();
+      }
+    }
+
+    Iterator<Map.Entry<String,Counter>> counterIter = this.counters.entrySet().iterator();
+    while (counterIter.hasNext()) {
+      if (now - counterIter.next().getValue().ts > STATE_TTL * Sensision.TIME_UNITS_PER_MS) {
+        counterIter.remove();
+      }
+    }
+
+    return values;
+  }
+
+  /**
+   * Restore the windows removed by the last flush
+   */
+  synchronized void rollback() {
+    for (Accumulator acc: this.flushed) {
+      this.accumulators.put(acc.key, acc);
+      acc.rule.out -= null != acc.sketch ? 1 : acc.rule.functions.length;
+    }
+
+    for (Map.Entry<String,Long> entry: this.flushedEmitted.entrySet()) {
+      if (null == entry.getValue()) {
+        this.emitted.remove(entry.getKey());
+      } else {
+        this.emitted.put(entry.getKey(), entry.getValue());
+      }
+    }
+
+    this.flushed.clear();
+    this.flushedEmitted.clear();
+  }
+
+  private static Object result(Accumulator acc, String function) {
+    if ("count".equals(function)) {
+      return acc.count;
+    } else if ("mean".equals(function)) {
+      return acc.sum / acc.count;
+    }
+
+    double result;
+
+    if ("min".equals(function)) {
+      result = acc.min;
+    } else if ("max".equals(function)) {
+      result = acc.max;
+    } else if ("sum".equals(function)) {
+      result = acc.sum;
+    } else {
+      result = acc.last;
+    }
+
+    if (acc.integral) {
+      return (long) result;
+    } else {
+      return result;
+    }
+  }
+}
@@ -0,0 +1,291 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the data submitted by concurrent requests into the queue directory,
+ * grouping the data received within a short delay into a single file so a single
+ * fsync and rename make a whole batch durable.
+ *
+ * Submitters are notified once their data is durable (or failed to be).
+ */
+class GroupCommitter extends Thread {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(GroupCommitter.class);
+
+  /**
+   * Notified once submitted data was committed
+   */
+  interface Callback {
+    /**
+     * Called before the data is written, the data is dropped if this returns false,
+     * for example because the request it was received in was already answered.
+     * Neither committed nor failed are called for dropped data.
+     */
+    boolean claim();
+    void committed();
+    void failed(IOException ioe);
+  }
+
+  private static final class Pending {
+    /**
+     * Queue the data is destined to, null for a '.metrics' file handled by the QueueManager
+     */
+    private final String queue;
+    private final ByteArrayOutputStream data;
+    private final Callback callback;
+
+    private Pending(String queue, ByteArrayOutputStream data, Callback callback) {
+      this.queue = queue;
+      this.data = data;
+      this.callback = callback;
+    }
+  }
+
+  private final LinkedBlockingQueue<Pending> pending = new LinkedBlockingQueue<Pending>();
+
+  /**
+   * Maximum time (in ms) to wait for more data before committing a batch
+   */
+  private final long delay;
+
+  /**
+   * Number of bytes above which a batch is committed without waiting
+   */
+  private final long maxbytes;
+
+  /**
+   * Should files be fsynced before they are renamed
+   */
+  private final boolean fsync;
+
+  private final String uuid = UUID.randomUUID().toString();
+
+  /**
+   * Sequence number of the files, now/uuid is not unique as several batches may be committed
+   * within the same ms
+   */
+  private final AtomicLong seq = new AtomicLong(0L);
+
+  GroupCommitter(String name, long delay, long maxbytes, boolean fsync) {
+    this.delay = delay;
+    this.maxbytes = maxbytes;
+    this.fsync = fsync;
+
+    this.setDaemon(true);
+    this.setName("[Sensision GroupCommitter " + name + "]");
+    this.start();
+  }
+
+  /**
+   * Submit data to commit.
+   *
+   * @param queue Name of the queue the data should be written to, null to write a '.metrics' file for the QueueManager
+   * @param data Data to write
+   * @param callback Callback to notify once the data is committed
+   */
+  void submit(String queue, ByteArrayOutputStream data, Callback callback) {
+    this.pending.add(new Pending(queue, data, callback));
+  }
+
+  @Override
+  public void run() {
+    List<Pending> batch = new ArrayList<Pending>();
+
+    while(true) {
+      batch.clear();
+
+      try {
+        Pending first = this.pending.take();
+        batch.add(first);
+
+        long bytes = first.data.size();
+        long deadline = System.nanoTime() + this.delay * 1000000L;
+
+        //
+        // Gather the data submitted until the deadline or the size threshold
+        //
+
+        while (bytes < this.maxbytes) {
+          long wait = deadline - System.nanoTime();
+
+          Pending next = wait > 0 ? this.pending.poll(wait, TimeUnit.NANOSECONDS) : this.pending.poll();
+
+          if (null == next) {
+            break;
+          }
+
+          batch.add(next);
+          bytes += next.data.size();
+        }
+      } catch (InterruptedException ie) {
+        continue;
+      }
+
+      commit(batch);
+    }
+  }
+
+  private void commit(List<Pending> batch) {
+    //
+    // Group data per destination queue
+    //
+
+    Map<String,List<Pending>> byQueue = new LinkedHashMap<String,List<Pending>>();
+
+    for (Pending p: batch) {
+      try {
+        if (!p.callback.claim()) {
+          continue;
+        }
+      } catch (Throwable t) {
+        LOGGER.error("Caught exception in commit callback.", t);
+        continue;
+      }
+
+      List<Pending> list = byQueue.get(p.queue);
+      if (null == list) {
+        list = new ArrayList<Pending>();
+        byQueue.put(p.queue, list);
+      }
+      list.add(p);
+    }
+
+    long now = System.currentTimeMillis();
+
+    for (Entry<String,List<Pending>> entry: byQueue.entrySet()) {
+      String filename = getFilename(now, entry.getKey());
+
+      File tmp = new File(Sensision.getQueueDir(), filename + ".new");
+      File target = new File(Sensision.getQueueDir(), filename);
+
+      IOException error = null;
+
+      FileOutputStream out = null;
+
+      try {
+        out = new FileOutputStream(tmp);
+
+        for (Pending p: entry.getValue()) {
+          p.data.writeTo(out);
+        }
+
+        if (this.fsync) {
+          out.getChannel().force(true);
+        }
+
+        out.close();
+        out = null;
+
+        if (!tmp.renameTo(target)) {
+          throw new IOException("Unable to rename " + tmp + " to " + target);
+        }
+      } catch (IOException ioe) {
+        LOGGER.error("Error while committing data to " + target, ioe);
+        error = ioe;
+        tmp.delete();
+      } finally {
+        if (null != out) {
+          try { out.close(); } catch (IOException ioe) {}
+        }
+      }
+
+      //
+      // Make the renames durable before acknowledging
+      //
+
+      if (null == error && this.fsync) {
+        try {
+          syncDirectory(Sensision.getQueueDir());
+        } catch (IOException ioe) {
+          LOGGER.error("Error while syncing queue directory.", ioe);
+          error = ioe;
+        }
+      }
+
+      for (Pending p: entry.getValue()) {
+        try {
+          if (null == error) {
+            p.callback.committed();
+          } else {
+            p.callback.failed(error);
+          }
+        } catch (Throwable t) {
+          LOGGER.error("Caught exception in commit callback.", t);
+        }
+      }
+    }
+  }
+
+  private String getFilename(long now, String queue) {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append(Long.toHexString(Long.MAX_VALUE - now));
+    sb.append(".");
+
+    if (null == queue) {
+      sb.append(Long.toHexString(Long.MAX_VALUE - now));
+      sb.append(".");
+      sb.append(this.uuid);
+      sb.append(".");
+      sb.append(Long.toHexString(this.seq.getAndIncrement()));
+      sb.append(Sensision.SENSISION_METRICS_SUFFIX);
+    } else {
+      // Same layout as the files produced by the QueueManager
+      sb.append(this.uuid);
+      sb.append(".");
+      sb.append(Long.toHexString(this.seq.getAndIncrement()));
+      sb.append(".");
+      sb.append(queue);
+      sb.append(Sensision.SENSISION_QUEUED_SUFFIX);
+    }
+
+    return sb.toString();
+  }
+
+  private static void syncDirectory(File dir) throws IOException {
+    FileChannel channel = null;
+
+    try {
+      channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+      channel.force(true);
+    } finally {
+      if (null != channel) {
+        channel.close();
+      }
+    }
+  }
+}
@@ -19,24 +19,27 @@ package io.warp10.sensision;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileOutputStream;
-import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.net.URLEncoder;
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
@@ -53,9 +56,23 @@ public class HttpPoller extends Thread {
   private static final String DEFAULT_HTTPPOLLER_SCANPERIOD = "60000";
   private static final String DEFAULT_HTTPPOLLER_FORCEDHINT = "0";
   private static final String DEFAULT_HTTPPOLLER_TIMEOUT = "5000";
+  private static final String DEFAULT_HTTPPOLLER_SPREAD = "true";
+  private static final String DEFAULT_HTTPPOLLER_JITTER = "0";
+  private static final String DEFAULT_HTTPPOLLER_PASSTHROUGH = "false";
+  private static final String DEFAULT_HTTPPOLLER_DELTA = "false";
+  private static final String DEFAULT_HTTPPOLLER_FORMAT = "text";
+  private static final String DEFAULT_HTTPPOLLER_FULLREFRESH = "600000";
+  private static final String DEFAULT_HTTPPOLLER_LONGPOLL = "0";
+  private static final String DEFAULT_HTTPPOLLER_LONGPOLL_MAXTARGETS = "64";
 
   /**
-   * How long to sleep between two pollables scan
+   * Suffix of the files containing the events retrieved by long-polling
+   */
+  private static final String EVENTS_SUFFIX = ".events";
+
+  /**
+   * Half the time (in ms) an idle polling thread is kept alive. Polls are scheduled on the timing
+   * wheel and targets are rescanned every scanPeriod, it does not pace the polls.
    */
   private final long sleep;
 
@@ -74,17 +91,66 @@ public class HttpPoller extends Thread {
   /**
    * Map of ports to registration file
    */
-  private Map<Integer, File> ports;
+  private final Map<Integer, File> ports = new ConcurrentHashMap<Integer, File>();
 
   /**
    * Map of ports to last event
    */
-  private Map<Integer, Long> lastevents = new HashMap<Integer, Long>();
+  private final Map<Integer, Long> lastevents = new ConcurrentHashMap<Integer, Long>();
+
+  /**
+   * Map of ports to the UUID of the instance the last event was retrieved from
+   */
+  private final Map<Integer, String> uuids = new ConcurrentHashMap<Integer, String>();
+
+  /**
+   * Instance and generation of the metrics last retrieved from each port, when in delta mode
+   */
+  private final Map<Integer, Generation> generations = new ConcurrentHashMap<Integer, Generation>();
+
+  private static final class Generation {
+    /**
+     * UUID of the polled instance
+     */
+    String uuid;
+
+    /**
+     * Generation of the last retrieved metrics
+     */
+    long generation;
+
+    /**
+     * Timestamp of the last full retrieval of the metrics
+     */
+    long lastfull;
+  }
 
   /**
    * Polling periodicity of each port
    */
-  private Map<Integer, Long> periodicities;
+  private final Map<Integer, Long> periodicities = new ConcurrentHashMap<Integer, Long>();
+
+  /**
+   * Scheduled polls of each port
+   */
+  private final Map<Integer, TimingWheel.Timeout> schedules = new ConcurrentHashMap<Integer, TimingWheel.Timeout>();
+
+  /**
+   * Ports currently being polled
+   */
+  private final Set<Integer> inflight = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+  private final TimingWheel wheel;
+
+  /**
+   * Should polls of the targets be spread across their period
+   */
+  private final boolean spread;
+
+  /**
+   * Maximum random delay (in ms) added to each poll
+   */
+  private final long jitter;
 
   /**
    * Should we display which urls Sensision Service should poll
@@ -96,7 +162,51 @@ public class HttpPoller extends Thread {
    */
   private final int connectTimeout;
 
+  /**
+   * Should we request the metrics in the binary format
+   */
+  private final boolean binary;
+
+  /**
+   * Should we only retrieve the metrics modified since the last poll
+   */
+  private final boolean delta;
+
+  /**
+   * How often (in ms) to retrieve all the metrics when in delta mode
+   */
+  private final long fullrefresh;
+
+  /**
+   * QueueManager to which scraped metrics are streamed in pass-through mode, null otherwise
+   */
+  private final QueueManager qm;
+
+  /**
+   * How long (in ms) to wait for new events of a target, 0 if events are only retrieved when polling the metrics
+   */
+  private final long longpoll;
+
+  /**
+   * Executor running the long-polling loops, one thread per target up to the configured
+   * maximum number of targets
+   */
+  private final ExecutorService listeners;
+
+  /**
+   * Ports whose events are retrieved by a long-polling loop
+   */
+  private final Set<Integer> streaming = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
   public HttpPoller(Properties config) {
+    this(config, null);
+  }
+
+  /**
+   * @param config Configuration
+   * @param qm QueueManager to which the metrics should be streamed if pass-through mode is enabled
+   */
+  public HttpPoller(Properties config, QueueManager qm) {
 
     this.sleep = Long.valueOf(config.getProperty(Sensision.SENSISION_HTTPPOLLER_SLEEP, DEFAULT_HTTPPOLLER_SLEEP));
     this.scanPeriod = Long.valueOf(config.getProperty(Sensision.SENSISION_HTTPPOLLER_SCANPERIOD, DEFAULT_HTTPPOLLER_SCANPERIOD));
@@ -104,6 +214,16 @@ public class HttpPoller extends Thread {
     this.executor = new ThreadPoolExecutor(2, 16, 2 * sleep, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(1024));
     this.urlDebug = Boolean.valueOf(config.getProperty(Sensision.SENSISION_URLDEBUG, Sensision.DEFAULT_SENSISION_URLDEBUG));
     this.connectTimeout = Integer.valueOf(config.getProperty(Sensision.SENSISION_HTTPPOLLER_TIMEOUT, DEFAULT_HTTPPOLLER_TIMEOUT));
+    this.wheel = TimingWheel.getInstance(config);
+    this.binary = "binary".equals(config.getProperty(Sensision.SENSISION_HTTPPOLLER_FORMAT, DEFAULT_HTTPPOLLER_FORMAT));
+    this.delta = Boolean.valueOf(config.getProperty(Sensision.SENSISION_HTTPPOLLER_DELTA, DEFAULT_HTTPPOLLER_DELTA));
+    this.fullrefresh = Long.valueOf(config.getProperty(Sensision.SENSISION_HTTPPOLLER_FULLREFRESH, DEFAULT_HTTPPOLLER_FULLREFRESH));
+    this.qm = Boolean.valueOf(config.getProperty(Sensision.SENSISION_HTTPPOLLER_PASSTHROUGH, DEFAULT_HTTPPOLLER_PASSTHROUGH)) ? qm : null;
+    this.spread = Boolean.valueOf(config.getProperty(Sensision.SENSISION_HTTPPOLLER_SPREAD, DEFAULT_HTTPPOLLER_SPREAD));
+    this.jitter = Long.valueOf(config.getProperty(Sensision.SENSISION_HTTPPOLLER_JITTER, DEFAULT_HTTPPOLLER_JITTER));
+    this.longpoll = Long.valueOf(config.getProperty(Sensision.SENSISION_HTTPPOLLER_LONGPOLL, DEFAULT_HTTPPOLLER_LONGPOLL));
+    int maxtargets = Integer.valueOf(config.getProperty(Sensision.SENSISION_HTTPPOLLER_LONGPOLL_MAXTARGETS, DEFAULT_HTTPPOLLER_LONGPOLL_MAXTARGETS));
+    this.listeners = this.longpoll > 0L && maxtargets > 0 ? new ThreadPoolExecutor(0, maxtargets, 60000L, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>()) : null;
 
     this.setDaemon(true);
     this.setName("[Sensision HttpPoller]");
@@ -114,247 +234,429 @@ public class HttpPoller extends Thread {
   public void run() {
 
     //
-    // Map of port to next scheduled run
+    // Polls are scheduled on the timing wheel, we only need to periodically
+    // rescan the targets directory.
     //
 
-    final Map<Integer,Long> nextpoll = new HashMap<Integer,Long>();
+    while(true) {
+      getTargets();
+
+      try {
+        Thread.sleep(this.scanPeriod);
+      } catch (InterruptedException ie) {
+      }
+    }
+  }
+
+  /**
+   * Submit a poll of the given port to the executor. Called by the timing wheel.
+   */
+  private void schedulePoll(final int port) {
 
     //
-    // Priority queue of pollables ports
+    // Skip this run if the previous poll of the port is still ongoing
     //
 
-    PriorityQueue<Integer> pollables = new PriorityQueue<Integer>(1, new Comparator<Integer>() {
-      @Override
-      public int compare(Integer o1, Integer o2) {
-        long nextrun1 = null != nextpoll.get(o1) ? nextpoll.get(o1) : Long.MAX_VALUE;
-        long nextrun2 = null != nextpoll.get(o2) ? nextpoll.get(o2) : Long.MAX_VALUE;
-        if (nextrun1 < nextrun2) {
-          return -1;
-        } else if (nextrun1 > nextrun2) {
-          return 1;
-        } else {
-          return 0;
+    if (!this.inflight.add(port)) {
+      return;
+    }
+
+    try {
+      this.executor.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() throws Exception {
+          try {
+            return poll(port);
+          } finally {
+            inflight.remove(port);
+          }
         }
-      }
-    });
+      });
+    } catch (RejectedExecutionException ree) {
+      this.inflight.remove(port);
+    }
+  }
 
-    long lastscan = 0L;
+  private boolean poll(final int tcpport) throws IOException {
+    //
+    // Call endpoint
+    //
 
-    while(true) {
-      long now = System.currentTimeMillis();
+    //
+    // In delta mode, only request the metrics modified since the last poll, unless a full
+    // refresh is due
+    //
 
-      if (System.currentTimeMillis() - lastscan > this.scanPeriod) {
-        getTargets();
-        lastscan = System.currentTimeMillis();
-      }
+    long now = System.currentTimeMillis();
+    Generation gen = this.delta ? this.generations.get(tcpport) : null;
+    boolean full = null == gen || now - gen.lastfull >= this.fullrefresh;
 
-      long sleepuntil = lastscan + this.scanPeriod;
+    URL url;
 
-      //
-      // Find port to poll next, class them
-      //
+    if (full) {
+      url = new URL("http://127.0.0.1:" + tcpport + "/metrics");
+    } else {
+      url = new URL("http://127.0.0.1:" + tcpport + "/metrics?" + SensisionMetricsServer.SENSISION_SERVER_SINCE_PARAM + "=" + gen.generation
+          + "&" + SensisionMetricsServer.SENSISION_SERVER_UUID_PARAM + "=" + URLEncoder.encode(gen.uuid, "UTF-8"));
+    }
 
-      pollables.clear();
+    if (urlDebug) {
+      System.out.println("Get metrics from " + url);
+    }
 
-      Set<Integer> knownPorts = new HashSet<Integer>();
+    HttpURLConnection conn = null;
 
-      synchronized(ports) {
-        knownPorts.addAll(ports.keySet());
+    try {
+      conn = (HttpURLConnection) url.openConnection();
+      conn.setConnectTimeout(connectTimeout);
+      conn.setReadTimeout(2 * connectTimeout);
+      if (this.binary) {
+        // Targets which do not support the binary format will respond in text
+        conn.setRequestProperty("Accept", SensisionBinaryFormat.CONTENT_TYPE + ", text/plain");
       }
+    } catch (IOException ioe) {
+      return false;
+    }
 
-      for (int port: knownPorts) {
+    File outfile = null;
+    OutputStream os = null;
+    boolean hasContent = false;
+    String newname = null;
 
+    try {
+      InputStream is = conn.getInputStream();
+
+      if (200 != conn.getResponseCode()) {
+        is.close();
+        return false;
+      }
+
+      String uuid = conn.getHeaderField(Sensision.HTTP_HEADER_UUID);
+      String generation = conn.getHeaderField(Sensision.HTTP_HEADER_GENERATION);
+
+      if (null != this.qm) {
         //
-        // If port has no scheduled poll yet or should be polled immediately, select it
+        // Stream the metrics directly to the QueueManager
         //
 
-        Long schedule = nextpoll.remove(port);
+        route(is);
+      } else {
+        String ts = conn.getHeaderField(Sensision.HTTP_HEADER_TIMESTAMP);
 
-        if (null == schedule || schedule < now) {
-          pollables.add(port);
-        } else if (null != schedule) {
-          nextpoll.put(port, schedule);
-          // Update sleepuntil so we don't sleep past the next scheduled poll
-          if (schedule < sleepuntil) {
-            sleepuntil = schedule;
-          }
-        }
-      }
+        //
+        // Create outfile
+        //
 
-      while(pollables.size() > 0) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(Long.toHexString(Long.MAX_VALUE - now));
+        sb.append(".");
+        sb.append(ts);
+        sb.append(".");
+        sb.append(uuid);
+        sb.append(Sensision.SENSISION_METRICS_SUFFIX);
 
-        final int port = pollables.poll();
-        // Set next run now. This will be overwritten at the end of execution
-        // of the script (from inside the Runnable)
-        nextpoll.put(port, System.currentTimeMillis() + periodicities.get(port));
+        newname = sb.toString();
 
-        final int tcpport = port;
+        outfile = new File(Sensision.getQueueDir(), sb.toString() + ".new");
+        os = new FileOutputStream(outfile);
 
-        this.executor.submit(new Callable<Boolean>() {
-          @Override
-          public Boolean call() throws Exception {
-            //
-            // Call endpoint
-            //
+        hasContent |= copy(is, os);
+      }
 
-            URL url = new URL("http://127.0.0.1:" + tcpport + "/metrics");
+      //
+      // Record the generation of the metrics we retrieved. If the target instance
+      // changed, the server will have ignored 'since' and sent all its metrics.
+      //
 
-            if (urlDebug) {
-              System.out.println("Get metrics from " + url);
-            }
+      if (this.delta && null != generation && null != uuid && this.ports.containsKey(tcpport)) {
+        try {
+          Generation newgen = new Generation();
+          newgen.uuid = uuid;
+          newgen.generation = Long.parseLong(generation);
+          newgen.lastfull = full || !uuid.equals(gen.uuid) ? now : gen.lastfull;
+          this.generations.put(tcpport, newgen);
+        } catch (NumberFormatException nfe) {
+          this.generations.remove(tcpport);
+        }
+      }
 
-            HttpURLConnection conn = null;
+      //
+      // Retrieve events, unless a long-polling loop already does
+      //
 
-            try {
-              conn = (HttpURLConnection) url.openConnection();
-              conn.setConnectTimeout(connectTimeout);
-              conn.setReadTimeout(2 * connectTimeout);
-            } catch (IOException ioe) {
-              return false;
-            }
+      if (this.streaming.contains(tcpport)) {
+        return true;
+      }
 
-            File outfile = null;
-            boolean hasContent = false;
-            String newname = null;
+      Long lastevent = lastevents.get(tcpport);
+      String eventsuuid = uuids.get(tcpport);
 
-            try {
-              InputStream is = conn.getInputStream();
+      if (null != lastevent) {
+        // Send the UUID of the instance the cursor was obtained from, so a restarted target ignores it
+        url = new URL("http://127.0.0.1:" + tcpport + "/events?" + SensisionMetricsServer.SENSISION_SERVER_LASTEVENT_PARAM + "=" + lastevent
+            + (null != eventsuuid ? "&" + SensisionMetricsServer.SENSISION_SERVER_UUID_PARAM + "=" + URLEncoder.encode(eventsuuid, "UTF-8") : ""));
+      } else {
+        url = new URL("http://127.0.0.1:" + tcpport + "/events");
+      }
 
-              if (200 != conn.getResponseCode()) {
-                is.close();
-                return false;
-              }
+      conn.disconnect();
+      conn = null;
 
-              String uuid = conn.getHeaderField(Sensision.HTTP_HEADER_UUID);
-              String ts = conn.getHeaderField(Sensision.HTTP_HEADER_TIMESTAMP);
+      try {
+        conn = (HttpURLConnection) url.openConnection();
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(2 * connectTimeout);
+      } catch (IOException ioe) {
+        return false;
+      }
 
-              //BufferedReader br = new BufferedReader(new InputStreamReader(is));
+      is = conn.getInputStream();
 
-              //
-              // Create outfile
-              //
+      if (200 != conn.getResponseCode()) {
+        is.close();
+        return false;
+      }
+
+      String newlastevent = conn.getHeaderField(Sensision.HTTP_HEADER_LASTEVENT);
+      String newuuid = conn.getHeaderField(Sensision.HTTP_HEADER_UUID);
+
+      if (null != this.qm) {
+        route(is);
+      } else {
+        // Events are appended to the metrics file
+        hasContent |= copy(is, os);
+      }
+
+      if (null != newlastevent && this.ports.containsKey(tcpport)) {
+        try {
+          lastevents.put(tcpport, Long.parseLong(newlastevent));
+          if (null != newuuid) {
+            uuids.put(tcpport, newuuid);
+          } else {
+            uuids.remove(tcpport);
+          }
+        } catch (NumberFormatException nfe) {
+        }
+      }
+    } catch (IOException ioe) {
+      //
+      // If we encountered a ConnectException, remove the target file as it is surely stale.
+      // If for an unknown reason this was not the case, the target file would be recreated
+      // in a short while anyway.
+      //
+      if (ioe instanceof ConnectException) {
+        File target = ports.get(tcpport);
+        if (null != target) {
+          target.delete();
+        }
+        removeTarget(tcpport);
+      }
+    } finally {
+      if (null != conn) {
+        conn.disconnect();
+      }
 
-              StringBuilder sb = new StringBuilder();
-              long now = System.currentTimeMillis();
-              sb.append(Long.toHexString(Long.MAX_VALUE - now));
-              sb.append(".");
-              sb.append(ts);
-              sb.append(".");
-              sb.append(uuid);
-              sb.append(Sensision.SENSISION_METRICS_SUFFIX);
+      if (null != os) {
+        try { os.close(); } catch (IOException ioe) {}
+      }
 
-              newname = sb.toString();
+      if (hasContent && null != outfile) {
+        // Atomically rename outfile to remove the ".new" suffix
+        outfile.renameTo(new File(Sensision.getQueueDir(), newname));
+      } else if (null != outfile) {
+        outfile.delete();
+      }
+    }
 
-              outfile = new File(Sensision.getQueueDir(), sb.toString() + ".new");
-              OutputStream os = new FileOutputStream(outfile);
-              byte[] buf = new byte[8192];
+    return true;
+  }
 
-              while(true) {
-                int len = is.read(buf);
+  /**
+   * Start a long-polling loop retrieving the events of a target as soon as they are emitted.
+   */
+  private void listen(final int port) {
+    if (!this.streaming.add(port)) {
+      return;
+    }
 
-                if (len < 0) {
+    try {
+      this.listeners.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            while (ports.containsKey(port)) {
+              try {
+                if (!awaitEvents(port)) {
+                  // The target does not support long-polling, its events will be retrieved with its metrics
+                  break;
+                }
+              } catch (ConnectException ce) {
+                // The target is gone, the next poll will remove it
+                break;
+              } catch (IOException ioe) {
+                try {
+                  Thread.sleep(connectTimeout);
+                } catch (InterruptedException ie) {
                   break;
                 }
-
-                os.write(buf, 0, len);
-                hasContent = true;
               }
+            }
+          } finally {
+            streaming.remove(port);
+          }
+        }
+      });
+    } catch (RejectedExecutionException ree) {
+      // All the long-polling threads are busy, the events of the target are retrieved with its
+      // metrics until a thread is available at a later scan
+      this.streaming.remove(port);
+    }
+  }
 
-              is.close();
-              os.close();
+  /**
+   * Wait for the events following the last one retrieved from a target and store them.
+   *
+   * @return false if the target did not return a cursor
+   */
+  private boolean awaitEvents(final int tcpport) throws IOException {
+    Long lastevent = this.lastevents.get(tcpport);
+
+    StringBuilder sb = new StringBuilder();
+    sb.append("http://127.0.0.1:");
+    sb.append(tcpport);
+    sb.append("/events?");
+    sb.append(SensisionMetricsServer.SENSISION_SERVER_PEEK_PARAM);
+    sb.append("&");
+    sb.append(SensisionMetricsServer.SENSISION_SERVER_WAIT_PARAM);
+    sb.append("=");
+    sb.append(this.longpoll);
+
+    if (null != lastevent) {
+      sb.append("&");
+      sb.append(SensisionMetricsServer.SENSISION_SERVER_LASTEVENT_PARAM);
+      sb.append("=");
+      sb.append(lastevent);
+    }
 
-              //
-              // Retrieve events
-              //
+    String uuid = this.uuids.get(tcpport);
 
-              if (lastevents.containsKey(tcpport)) {
-                url = new URL("http://127.0.0.1:" + tcpport + "/events?" + SensisionMetricsServer.SENSISION_SERVER_LASTEVENT_PARAM + "=" + lastevents.get(tcpport));
-              } else {
-                url = new URL("http://127.0.0.1:" + tcpport + "/events");
-              }
+    if (null != uuid) {
+      sb.append("&");
+      sb.append(SensisionMetricsServer.SENSISION_SERVER_UUID_PARAM);
+      sb.append("=");
+      sb.append(URLEncoder.encode(uuid, "UTF-8"));
+    }
 
-              conn = null;
+    URL url = new URL(sb.toString());
 
-              try {
-                conn = (HttpURLConnection) url.openConnection();
-                conn.setConnectTimeout(connectTimeout);
-                conn.setReadTimeout(2 * connectTimeout);
-              } catch (IOException ioe) {
-                return false;
-              }
+    if (urlDebug) {
+      System.out.println("Wait for events from " + url);
+    }
 
-              is = conn.getInputStream();
+    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+    conn.setConnectTimeout(connectTimeout);
+    conn.setReadTimeout((int) Math.min(Integer.MAX_VALUE, this.longpoll + 2L * connectTimeout));
 
-              if (200 != conn.getResponseCode()) {
-                is.close();
-                return false;
-              }
+    File outfile = null;
+    OutputStream os = null;
+    boolean hasContent = false;
+    String newname = null;
 
-              String lastevent = conn.getHeaderField(Sensision.HTTP_HEADER_LASTEVENT);
+    try {
+      InputStream is = conn.getInputStream();
 
-              os = new FileOutputStream(outfile, true);
+      if (200 != conn.getResponseCode()) {
+        is.close();
+        return false;
+      }
 
-              while(true) {
-                int len = is.read(buf);
+      String newlastevent = conn.getHeaderField(Sensision.HTTP_HEADER_LASTEVENT);
 
-                if (len < 0) {
-                  break;
-                }
+      if (null == newlastevent) {
+        is.close();
+        return false;
+      }
 
-                os.write(buf, 0, len);
-                hasContent = true;
-              }
+      String newuuid = conn.getHeaderField(Sensision.HTTP_HEADER_UUID);
 
-              is.close();
-              os.close();
+      if (null != this.qm) {
+        route(is);
+      } else {
+        sb.setLength(0);
+        sb.append(Long.toHexString(Long.MAX_VALUE - System.currentTimeMillis()));
+        sb.append(".");
+        sb.append(conn.getHeaderField(Sensision.HTTP_HEADER_TIMESTAMP));
+        sb.append(".");
+        sb.append(newuuid);
+        sb.append(EVENTS_SUFFIX);
+        sb.append(Sensision.SENSISION_METRICS_SUFFIX);
 
-              if (null != lastevent) {
-                try {
-                  lastevents.put(tcpport, Long.parseLong(lastevent));
-                } catch (NumberFormatException nfe) {
-                }
-              }
-            } catch (IOException ioe) {
-              //
-              // If we encountered a ConnectException, remove the target file as it is surely stale.
-              // If for an unknown reason this was not the case, the target file would be recreated
-              // in a short while anyway.
-              //
-              if (ioe instanceof ConnectException) {
-                synchronized(ports) {
-                  ports.get(tcpport).delete();
-                  ports.remove(tcpport);
-                }
-                periodicities.remove(tcpport);
-              }
-            } finally {
-              conn.disconnect();
-              // Update next scheduled poll
-              if (periodicities.containsKey(port)) {
-                nextpoll.put(port, System.currentTimeMillis() + periodicities.get(port));
-              }
+        newname = sb.toString();
 
-              if (hasContent && null != outfile) {
-                // Atomically rename outfile to remove the ".new" suffix
-                outfile.renameTo(new File(Sensision.getQueueDir(), newname));
-              } else if (null != outfile) {
-                outfile.delete();
-              }
-            }
+        outfile = new File(Sensision.getQueueDir(), newname + ".new");
+        os = new FileOutputStream(outfile);
 
-            return true;
+        hasContent = copy(is, os);
+      }
+
+      if (this.ports.containsKey(tcpport)) {
+        try {
+          this.lastevents.put(tcpport, Long.parseLong(newlastevent));
+          if (null != newuuid) {
+            this.uuids.put(tcpport, newuuid);
           }
-        });
+        } catch (NumberFormatException nfe) {
+        }
       }
+    } finally {
+      conn.disconnect();
 
-      try {
-        long sleeptime = sleepuntil - System.currentTimeMillis();
-        if (sleeptime > 0) {
-          Thread.sleep(sleeptime);
+      if (null != os) {
+        try { os.close(); } catch (IOException ioe) {}
+      }
+
+      if (hasContent && null != outfile) {
+        outfile.renameTo(new File(Sensision.getQueueDir(), newname));
+      } else if (null != outfile) {
+        outfile.delete();
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Copy a stream to the output file, closing the input stream.
+   *
+   * @return true if some content was copied
+   */
+  private static boolean copy(InputStream is, OutputStream os) throws IOException {
+    boolean hasContent = false;
+    byte[] buf = new byte[8192];
+
+    try {
+      while(true) {
+        int len = is.read(buf);
+
+        if (len < 0) {
+          break;
         }
-      } catch (InterruptedException ie) {
+
+        os.write(buf, 0, len);
+        hasContent = true;
       }
+    } finally {
+      is.close();
     }
+
+    return hasContent;
+  }
+
+  /**
+   * Route the metrics read from a stream directly to the QueueManager, closing the stream.
+   */
+  private void route(InputStream is) throws IOException {
+    this.qm.route(is);
   }
 
   private void getTargets() {
@@ -415,23 +717,71 @@ public class HttpPoller extends Thread {
       }
     }
 
-    this.ports = newports;
-    this.periodicities = newperiodicities;
+    //
+    // Stop polling the ports which are no longer registered
+    //
+
+    for (int port: new HashSet<Integer>(this.ports.keySet())) {
+      if (!newports.containsKey(port)) {
+        removeTarget(port);
+      }
+    }
 
     //
-    // Remove orphaned lastevents
+    // Schedule the polls of the new ports or of those whose periodicity changed
     //
 
-    Set<Integer> orphaned = new HashSet<Integer>();
+    for (Entry<Integer,File> entry: newports.entrySet()) {
+      final int port = entry.getKey();
+      long periodicity = newperiodicities.get(port);
+
+      this.ports.put(port, entry.getValue());
+
+      if (null != this.listeners) {
+        listen(port);
+      }
+
+      Long previous = this.periodicities.put(port, periodicity);
+      TimingWheel.Timeout schedule = this.schedules.get(port);
 
-    for (int port: this.lastevents.keySet()) {
-      if (!this.ports.containsKey(port)) {
-        orphaned.add(port);
+      if (null != schedule && null != previous && previous == periodicity) {
+        continue;
       }
+
+      if (null != schedule) {
+        schedule.cancel();
+      }
+
+      //
+      // When spreading, each target is polled at a fixed phase within its period
+      // derived from its port, otherwise a new target is polled immediately.
+      //
+
+      long delay = this.spread ? TimingWheel.phase("http:" + port, periodicity) : 0L;
+
+      this.schedules.put(port, this.wheel.schedule(new Runnable() {
+        @Override
+        public void run() {
+          schedulePoll(port);
+        }
+      }, delay, periodicity, Math.min(this.jitter, periodicity)));
     }
+  }
+
+  /**
+   * Forget about a target and stop polling it
+   */
+  private void removeTarget(int port) {
+    this.ports.remove(port);
+    this.periodicities.remove(port);
+    this.lastevents.remove(port);
+    this.uuids.remove(port);
+    this.generations.remove(port);
+
+    TimingWheel.Timeout schedule = this.schedules.remove(port);
 
-    for (int port: orphaned) {
-      this.lastevents.remove(port);
+    if (null != schedule) {
+      schedule.cancel();
     }
   }
 }
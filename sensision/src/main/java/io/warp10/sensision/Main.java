@@ -76,11 +76,15 @@ public class Main {
     
     for (String token: tokens) {
       if ("http".equals(token)) {
-        pollers.add(new HttpPoller(props));
+        pollers.add(new HttpPoller(props, qm));
       } else if ("file".equals(token)) {
         pollers.add(new FilePoller(props));
       } else if ("proxy".equals(token)) {
         pollers.add(new ProxyPoller(props));
+      } else if ("jmx".equals(token)) {
+        pollers.add(new RemoteJMXPoller(props, qm));
+      } else if ("proc".equals(token)) {
+        pollers.add(new ProcPoller(props, qm));
       }
     }
     
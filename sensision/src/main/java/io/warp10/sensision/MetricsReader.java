@@ -0,0 +1,111 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import com.google.common.base.Charsets;
+
+import io.warp10.sensision.Sensision.Value;
+
+/**
+ * Read metrics from a stream in either the text or the binary format.
+ *
+ * A stream starting with the magic number of the binary format is read as binary up to
+ * its END record, whatever follows (typically events) is read as text.
+ * Invalid text lines are skipped.
+ */
+class MetricsReader implements Closeable {
+
+  private final InputStream in;
+
+  private SensisionBinaryFormat.Reader binary = null;
+
+  private BufferedReader text = null;
+
+  public MetricsReader(InputStream in) throws IOException {
+    this.in = new BufferedInputStream(in);
+
+    //
+    // Sniff the magic number of the binary format
+    //
+
+    byte[] magic = new byte[SensisionBinaryFormat.MAGIC.length];
+
+    this.in.mark(magic.length);
+
+    int len = 0;
+
+    while (len < magic.length) {
+      int n = this.in.read(magic, len, magic.length - len);
+      if (n < 0) {
+        break;
+      }
+      len += n;
+    }
+
+    this.in.reset();
+
+    if (SensisionBinaryFormat.isBinary(magic, len)) {
+      this.binary = new SensisionBinaryFormat.Reader(this.in);
+    }
+  }
+
+  /**
+   * Return the next metric or null if the end of the stream was reached
+   */
+  public Value next() throws IOException {
+    if (null != this.binary) {
+      Value value = this.binary.read();
+
+      if (null != value) {
+        return value;
+      }
+
+      this.binary = null;
+    }
+
+    if (null == this.text) {
+      this.text = new BufferedReader(new InputStreamReader(this.in, Charsets.UTF_8));
+    }
+
+    while(true) {
+      String line = this.text.readLine();
+
+      if (null == line) {
+        return null;
+      }
+
+      Value value = Sensision.parseMetric(line);
+
+      // Skip invalid metrics
+      if (null != value) {
+        return value;
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    this.in.close();
+  }
+}
@@ -0,0 +1,390 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import io.warp10.sensision.Sensision.Value;
+
+/**
+ * Collectors of the metrics of the core /proc sources, producing the same metrics as the
+ * linux.proc.*.groovy scripts.
+ *
+ * Files are parsed with a ProcReader whose buffer is reused across runs, and the label maps of the
+ * produced values are cached from one run to the next, so a run mostly allocates the values themselves.
+ * Instances are not thread safe.
+ */
+class ProcCollector {
+
+  static final String STAT = "stat";
+  static final String MEMINFO = "meminfo";
+  static final String LOADAVG = "loadavg";
+  static final String DISKSTATS = "diskstats";
+  static final String NETDEV = "net.dev";
+
+  /**
+   * Names of the available collectors
+   */
+  static final Set<String> COLLECTORS = Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList(STAT, MEMINFO, LOADAVG, DISKSTATS, NETDEV)));
+
+  private static final String[] STAT_CPU_CLASSES = {
+    "linux.proc.stat.userhz.user",
+    "linux.proc.stat.userhz.nice",
+    "linux.proc.stat.userhz.system",
+    "linux.proc.stat.userhz.idle",
+    "linux.proc.stat.userhz.iowait",
+    "linux.proc.stat.userhz.irq",
+    "linux.proc.stat.userhz.softirq",
+  };
+
+  private static final String STAT_INTERRUPTS_CLASS = "linux.proc.stat.interrupts";
+  private static final String STAT_SOFTIRQS_CLASS = "linux.proc.stat.softirqs";
+  private static final String STAT_CTXT_CLASS = "linux.proc.stat.ctxt";
+  private static final String STAT_BTIME_CLASS = "linux.proc.stat.btime";
+  private static final String STAT_PROCESSES_CLASS = "linux.proc.stat.processes";
+
+  private static final String MEMINFO_CLASS_PREFIX = "linux.proc.meminfo.";
+
+  private static final String LOADAVG_1_CLASS = "linux.proc.loadavg.1";
+  private static final String LOADAVG_5_CLASS = "linux.proc.loadavg.5";
+  private static final String LOADAVG_15_CLASS = "linux.proc.loadavg.15";
+  private static final String LOADAVG_RUNNING_CLASS = "linux.proc.loadavg.running";
+  private static final String LOADAVG_TOTAL_CLASS = "linux.proc.loadavg.total";
+  private static final String LOADAVG_HIGHESTPID_CLASS = "linux.proc.loadavg.highestpid";
+
+  private static final String[] DISKSTATS_CLASSES = {
+    "linux.proc.diskstats.reads.completed",
+    "linux.proc.diskstats.reads.merged",
+    "linux.proc.diskstats.reads.sectors",
+    "linux.proc.diskstats.reads.ms",
+    "linux.proc.diskstats.writes.completed",
+    "linux.proc.diskstats.writes.merged",
+    "linux.proc.diskstats.writes.sectors",
+    "linux.proc.diskstats.writes.ms",
+    "linux.proc.diskstats.io.inprogress",
+    "linux.proc.diskstats.io.ms",
+    "linux.proc.diskstats.io.ms.weighted",
+  };
+
+  private static final String[] NETDEV_CLASSES = {
+    "linux.proc.net.dev.receive.bytes",
+    "linux.proc.net.dev.receive.packets",
+    "linux.proc.net.dev.receive.errs",
+    "linux.proc.net.dev.receive.drops",
+    "linux.proc.net.dev.receive.fifo",
+    "linux.proc.net.dev.receive.frame",
+    "linux.proc.net.dev.receive.compressed",
+    "linux.proc.net.dev.receive.multicast",
+    "linux.proc.net.dev.transmit.bytes",
+    "linux.proc.net.dev.transmit.packets",
+    "linux.proc.net.dev.transmit.errs",
+    "linux.proc.net.dev.transmit.drops",
+    "linux.proc.net.dev.transmit.fifo",
+    "linux.proc.net.dev.transmit.colls",
+    "linux.proc.net.dev.transmit.carrier",
+    "linux.proc.net.dev.transmit.compressed",
+  };
+
+  /**
+   * Label maps of the values, by key. The maps which were not used during
+   * a run are forgotten at the end of the next one.
+   */
+  private static final class LabelCache {
+    private Map<String,Map<String,String>> current = new HashMap<String,Map<String,String>>();
+    private Map<String,Map<String,String>> previous = new HashMap<String,Map<String,String>>();
+
+    private Map<String,String> get(String key) {
+      Map<String,String> labels = this.current.get(key);
+
+      if (null == labels) {
+        labels = this.previous.remove(key);
+        if (null != labels) {
+          this.current.put(key, labels);
+        }
+      }
+
+      return labels;
+    }
+
+    private Map<String,String> put(String key, Map<String,String> labels) {
+      labels = Collections.unmodifiableMap(labels);
+      this.current.put(key, labels);
+      return labels;
+    }
+
+    private void rotate() {
+      Map<String,Map<String,String>> previous = this.previous;
+      previous.clear();
+      this.previous = this.current;
+      this.current = previous;
+    }
+  }
+
+  private final File root;
+
+  private final ProcReader reader = new ProcReader();
+
+  private final LabelCache cpuLabels = new LabelCache();
+
+  private final LabelCache diskLabels = new LabelCache();
+
+  private final LabelCache ifaceLabels = new LabelCache();
+
+  /**
+   * Labels of the interrupts, by irq number plus one, the first one being for all the interrupts
+   */
+  private final List<Map<String,String>> irqLabels = new ArrayList<Map<String,String>>();
+
+  /**
+   * Class names of the memory metrics, by name in /proc/meminfo
+   */
+  private final Map<String,String> meminfoClasses = new HashMap<String,String>();
+
+  /**
+   * @param root Root of the proc filesystem, usually /proc
+   */
+  ProcCollector(File root) {
+    this.root = root;
+  }
+
+  /**
+   * Run a collector, adding the values it produced to a list
+   *
+   * @param collector Name of the collector, one of COLLECTORS
+   * @param now Timestamp of the values, in time units
+   * @param values List to which the values are added
+   */
+  void collect(String collector, long now, List<Value> values) throws IOException {
+    if (STAT.equals(collector)) {
+      collectStat(now, values);
+    } else if (MEMINFO.equals(collector)) {
+      collectMeminfo(now, values);
+    } else if (LOADAVG.equals(collector)) {
+      collectLoadavg(now, values);
+    } else if (DISKSTATS.equals(collector)) {
+      collectDiskstats(now, values);
+    } else if (NETDEV.equals(collector)) {
+      collectNetDev(now, values);
+    } else {
+      throw new IOException("Unknown collector '" + collector + "'.");
+    }
+  }
+
+  /**
+   * Forget the cached labels which were not used since the previous call
+   */
+  void rotate() {
+    this.cpuLabels.rotate();
+    this.diskLabels.rotate();
+    this.ifaceLabels.rotate();
+  }
+
+  private void collectStat(long now, List<Value> values) throws IOException {
+    this.reader.load(new File(this.root, "stat"));
+
+    while (!this.reader.eof()) {
+      String key = this.reader.token();
+
+      if (null == key) {
+        // Empty line
+      } else if (key.startsWith("cpu")) {
+        Map<String,String> labels = this.cpuLabels.get(key);
+
+        if (null == labels) {
+          labels = new HashMap<String,String>();
+          labels.put("cpu", key);
+          labels = this.cpuLabels.put(key, labels);
+        }
+
+        for (String cls: STAT_CPU_CLASSES) {
+          values.add(new Value(cls, labels, now, null, null, null, this.reader.parseLong()));
+        }
+      } else if ("intr".equals(key)) {
+        collectInterrupts(STAT_INTERRUPTS_CLASS, now, values);
+      } else if ("softirq".equals(key)) {
+        collectInterrupts(STAT_SOFTIRQS_CLASS, now, values);
+      } else if ("ctxt".equals(key)) {
+        values.add(new Value(STAT_CTXT_CLASS, Sensision.EMPTY_LABELS, now, null, null, null, this.reader.parseLong()));
+      } else if ("btime".equals(key)) {
+        values.add(new Value(STAT_BTIME_CLASS, Sensision.EMPTY_LABELS, now, null, null, null, this.reader.parseLong()));
+      } else if ("processes".equals(key)) {
+        values.add(new Value(STAT_PROCESSES_CLASS, Sensision.EMPTY_LABELS, now, null, null, null, this.reader.parseLong()));
+      }
+
+      this.reader.nextLine();
+    }
+  }
+
+  /**
+   * Collect a line of interrupt counts, the total followed by the count of each irq
+   */
+  private void collectInterrupts(String cls, long now, List<Value> values) {
+    values.add(new Value(cls, irqLabels(-1), now, null, null, null, this.reader.parseLong()));
+
+    int irq = 0;
+
+    while (true) {
+      this.reader.skipSpaces();
+
+      if (this.reader.eol()) {
+        break;
+      }
+
+      long count = this.reader.parseLong();
+
+      // Only emit a metric for the interrupts which occurred
+      if (count > 0L) {
+        values.add(new Value(cls, irqLabels(irq), now, null, null, null, count));
+      }
+
+      irq++;
+    }
+  }
+
+  private Map<String,String> irqLabels(int irq) {
+    while (this.irqLabels.size() <= irq + 1) {
+      Map<String,String> labels = new HashMap<String,String>();
+      labels.put("irq", 0 == this.irqLabels.size() ? "all" : Integer.toString(this.irqLabels.size() - 1));
+      this.irqLabels.add(Collections.unmodifiableMap(labels));
+    }
+
+    return this.irqLabels.get(irq + 1);
+  }
+
+  private void collectMeminfo(long now, List<Value> values) throws IOException {
+    this.reader.load(new File(this.root, "meminfo"));
+
+    while (!this.reader.eof()) {
+      String name = this.reader.token(':');
+
+      if (null != name && this.reader.skip(':')) {
+        long value = this.reader.parseLong();
+
+        // kB in /proc/meminfo means 1024 bytes
+        if (this.reader.match("kB")) {
+          value = value * 1024L;
+        }
+
+        String cls = this.meminfoClasses.get(name);
+
+        if (null == cls) {
+          cls = MEMINFO_CLASS_PREFIX + name;
+          this.meminfoClasses.put(name, cls);
+        }
+
+        values.add(new Value(cls, Sensision.EMPTY_LABELS, now, null, null, null, value));
+      }
+
+      this.reader.nextLine();
+    }
+  }
+
+  private void collectLoadavg(long now, List<Value> values) throws IOException {
+    this.reader.load(new File(this.root, "loadavg"));
+
+    values.add(new Value(LOADAVG_1_CLASS, Sensision.EMPTY_LABELS, now, null, null, null, this.reader.parseDouble()));
+    values.add(new Value(LOADAVG_5_CLASS, Sensision.EMPTY_LABELS, now, null, null, null, this.reader.parseDouble()));
+    values.add(new Value(LOADAVG_15_CLASS, Sensision.EMPTY_LABELS, now, null, null, null, this.reader.parseDouble()));
+
+    long running = this.reader.parseLong();
+
+    if (!this.reader.skip('/')) {
+      throw new IOException("Malformed loadavg.");
+    }
+
+    long total = this.reader.parseLong();
+
+    values.add(new Value(LOADAVG_RUNNING_CLASS, Sensision.EMPTY_LABELS, now, null, null, null, running));
+    values.add(new Value(LOADAVG_TOTAL_CLASS, Sensision.EMPTY_LABELS, now, null, null, null, total));
+    values.add(new Value(LOADAVG_HIGHESTPID_CLASS, Sensision.EMPTY_LABELS, now, null, null, null, this.reader.parseLong()));
+  }
+
+  private void collectDiskstats(long now, List<Value> values) throws IOException {
+    this.reader.load(new File(this.root, "diskstats"));
+
+    while (!this.reader.eof()) {
+      //
+      // See Documentation/iostats.txt in the kernel sources, Linux 2.4 has 15 fields,
+      // the number of fields of 2.6+ depends on the version, 14, 18 or 20 so far.
+      //
+
+      int tokens = this.reader.countTokens();
+
+      if (tokens >= 14) {
+        String major = this.reader.token();
+        String minor = this.reader.token();
+
+        if (15 == tokens) {
+          // Number of blocks
+          this.reader.skipTokens(1);
+        }
+
+        String name = this.reader.token();
+
+        Map<String,String> labels = this.diskLabels.get(name);
+
+        if (null == labels || !major.equals(labels.get("major")) || !minor.equals(labels.get("minor"))) {
+          labels = new HashMap<String,String>();
+          labels.put("major", major);
+          labels.put("minor", minor);
+          labels.put("device", name);
+          labels = this.diskLabels.put(name, labels);
+        }
+
+        for (String cls: DISKSTATS_CLASSES) {
+          values.add(new Value(cls, labels, now, null, null, null, this.reader.parseLong()));
+        }
+      }
+
+      this.reader.nextLine();
+    }
+  }
+
+  private void collectNetDev(long now, List<Value> values) throws IOException {
+    this.reader.load(new File(this.root, "net/dev"));
+
+    while (!this.reader.eof()) {
+      // Interface lines start with the name of the interface followed by ':', the others are headers
+      String iface = this.reader.token(':');
+
+      if (null != iface && this.reader.skip(':')) {
+        Map<String,String> labels = this.ifaceLabels.get(iface);
+
+        if (null == labels) {
+          labels = new HashMap<String,String>();
+          labels.put("iface", iface);
+          labels = this.ifaceLabels.put(iface, labels);
+        }
+
+        for (String cls: NETDEV_CLASSES) {
+          values.add(new Value(cls, labels, now, null, null, null, this.reader.parseLong()));
+        }
+      }
+
+      this.reader.nextLine();
+    }
+  }
+}
@@ -0,0 +1,201 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.ProcessBuilder.Redirect;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Client of the procDump helper, which dumps the files of /proc only readable by root.
+ *
+ * The helper is started once in serve mode ('-s') and kept running, it reads the paths of the files
+ * to dump from its stdin, one per line, and writes the content of each file to its stdout as a frame
+ * made of its length as a 32 bits big endian integer followed by its content, a negative length
+ * meaning the file could not be dumped. Frames are returned in the order of the requests.
+ *
+ * Requests are pipelined, but the paths written and not yet answered are bounded so the helper can
+ * always consume them, otherwise both processes could block writing to a full pipe. Calls from
+ * several threads are serialized, each one being served by the same helper. The helper is restarted
+ * after an error.
+ */
+final class ProcDump {
+
+  /**
+   * Maximum number of bytes of requests sent and not yet answered, below the capacity of a pipe
+   */
+  private static final int MAX_INFLIGHT_BYTES = 32768;
+
+  /**
+   * Request sent in place of the paths which cannot be represented on a single line,
+   * the helper rejects it as an invalid path.
+   */
+  private static final byte[] INVALID_REQUEST = "..\n".getBytes(StandardCharsets.UTF_8);
+
+  private final String command;
+
+  private Process proc = null;
+
+  private OutputStream out = null;
+
+  private DataInputStream in = null;
+
+  /**
+   * @param command Path to the procDump binary
+   */
+  ProcDump(String command) {
+    this.command = command;
+  }
+
+  /**
+   * @return true if the procDump binary can be executed
+   */
+  boolean isAvailable() {
+    return new File(this.command).canExecute();
+  }
+
+  /**
+   * Dump files of /proc
+   *
+   * @param paths Paths of the files, relative to /proc
+   * @return the content of each file, null for the files which could not be dumped
+   */
+  synchronized List<byte[]> dump(List<String> paths) throws IOException {
+    List<byte[]> contents = new ArrayList<byte[]>(paths.size());
+
+    if (paths.isEmpty()) {
+      return contents;
+    }
+
+    if (null == this.proc || !this.proc.isAlive()) {
+      start();
+    }
+
+    try {
+      // Sizes of the requests which were sent and not yet answered
+      Deque<Integer> inflight = new ArrayDeque<Integer>();
+      int inflightBytes = 0;
+      int sent = 0;
+
+      while (contents.size() < paths.size()) {
+        //
+        // Send as many requests as the helper is guaranteed to be able to read
+        //
+
+        boolean flush = false;
+
+        while (sent < paths.size()) {
+          byte[] request = request(paths.get(sent));
+
+          if (!inflight.isEmpty() && inflightBytes + request.length > MAX_INFLIGHT_BYTES) {
+            break;
+          }
+
+          this.out.write(request);
+          inflight.addLast(request.length);
+          inflightBytes += request.length;
+          sent++;
+          flush = true;
+        }
+
+        if (flush) {
+          this.out.flush();
+        }
+
+        contents.add(readFrame(this.in));
+        inflightBytes -= inflight.removeFirst();
+      }
+    } catch (IOException ioe) {
+      // The stream is out of sync, the helper will be restarted on the next call
+      close();
+      throw ioe;
+    }
+
+    return contents;
+  }
+
+  private static byte[] request(String path) {
+    if (path.indexOf('\n') >= 0 || path.indexOf('\0') >= 0) {
+      return INVALID_REQUEST;
+    }
+
+    return (path + "\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+  private void start() throws IOException {
+    close();
+
+    ProcessBuilder builder = new ProcessBuilder(this.command, "-s");
+    builder.redirectError(Redirect.INHERIT);
+
+    this.proc = builder.start();
+    this.out = new BufferedOutputStream(this.proc.getOutputStream());
+    this.in = new DataInputStream(new BufferedInputStream(this.proc.getInputStream()));
+  }
+
+  /**
+   * Stop the helper, it is restarted on the next call to dump
+   */
+  synchronized void close() {
+    if (null == this.proc) {
+      return;
+    }
+
+    // Closing stdin makes the helper exit
+    try {
+      this.out.close();
+    } catch (IOException ioe) {
+    }
+
+    try {
+      this.in.close();
+    } catch (IOException ioe) {
+    }
+
+    this.proc.destroy();
+    this.proc = null;
+    this.out = null;
+    this.in = null;
+  }
+
+  /**
+   * Read a frame written by procDump
+   *
+   * @return the content of the frame, null if the file could not be dumped
+   */
+  static byte[] readFrame(DataInputStream in) throws IOException {
+    int length = in.readInt();
+
+    if (length < 0) {
+      return null;
+    }
+
+    byte[] content = new byte[length];
+    in.readFully(content);
+
+    return content;
+  }
+}
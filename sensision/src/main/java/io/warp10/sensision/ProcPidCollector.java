@@ -0,0 +1,495 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import io.warp10.sensision.Sensision.Value;
+
+/**
+ * Collector of the metrics of the processes, producing the same metrics as linux.proc.pid.groovy.
+ *
+ * The static attributes of each process (start time, labels, SENSISIONID tag) are cached, keyed by
+ * pid, start time and command name, so a process is identified again if its pid is reused or if it
+ * executes another program. Each run only reads /proc/[pid]/stat, and the environments of the new
+ * processes are fetched in a single batch per run from the long lived procDump helper.
+ *
+ * Instances are not thread safe.
+ */
+class ProcPidCollector {
+
+  static final String PID = "pid";
+
+  private static final String DEFAULT_PID_VERBOSE = "false";
+  private static final String DEFAULT_PID_SENSISIONIDONLY = "false";
+  private static final String DEFAULT_PID_SENSISIONIDKEY = "SENSISIONID";
+  private static final String DEFAULT_PID_AGE = "900000";
+  private static final String DEFAULT_PID_BOOTQUIET = "0";
+  private static final String DEFAULT_PID_EXCLUDEDPGRP = "0,1";
+  private static final String DEFAULT_PID_CLKTCK = "100";
+
+  /**
+   * Number of fields of /proc/[pid]/stat we parse, up to rss
+   */
+  private static final int STAT_SIZE = 24;
+
+  private static final int STAT_PPID = 3;
+  private static final int STAT_PGRP = 4;
+  private static final int STAT_SESSION = 5;
+  private static final int STAT_TTY_NR = 6;
+  private static final int STAT_STARTTIME = 21;
+
+  private static final String STATE_CLASS = "linux.proc.pid.state";
+  private static final String STARTTIME_CLASS = "linux.proc.pid.starttime";
+
+  /**
+   * Fields of /proc/[pid]/stat emitted as is before the start time
+   */
+  private static final int[] STAT_FIELDS = { 8, 9, 10, 11, 12, 13, 14, 15, 16, 18, 19 };
+
+  private static final String[] STAT_CLASSES = {
+    "linux.proc.pid.flags",
+    "linux.proc.pid.minflt",
+    "linux.proc.pid.cminflt",
+    "linux.proc.pid.majflt",
+    "linux.proc.pid.cmajflt",
+    "linux.proc.pid.utime",
+    "linux.proc.pid.stime",
+    "linux.proc.pid.cutime",
+    "linux.proc.pid.cstime",
+    "linux.proc.pid.nice",
+    "linux.proc.pid.nthreads",
+  };
+
+  /**
+   * Fields of /proc/[pid]/stat emitted as is after the start time
+   */
+  private static final int[] STAT_FIELDS_AFTER = { 22, 23 };
+
+  private static final String[] STAT_CLASSES_AFTER = {
+    "linux.proc.pid.vsize",
+    "linux.proc.pid.rss",
+  };
+
+  /**
+   * Values of the state field, by state character
+   */
+  private static final String[] STATES = new String[128];
+
+  static {
+    for (int i = 0; i < STATES.length; i++) {
+      STATES[i] = String.valueOf((char) i);
+    }
+  }
+
+  private static final class ProcessState {
+    private final String pid;
+
+    /**
+     * Start time, in clock ticks after boot
+     */
+    private final long start;
+
+    private final String comm;
+
+    /**
+     * Start time, in ms since the epoch
+     */
+    private long starttime;
+
+    /**
+     * Does the process match the name filter
+     */
+    private boolean selected;
+
+    /**
+     * Was the SENSISIONID tag of the process resolved, always true if it is not needed
+     */
+    private boolean resolved;
+
+    /**
+     * Value of the pid label, null if the process has no SENSISIONID tag but one is required
+     */
+    private String id;
+
+    private Map<String,String> labels;
+
+    /**
+     * Values of ppid, pgrp, session and tty_nr in the labels, in verbose mode
+     */
+    private final long[] labelled = new long[STAT_TTY_NR - STAT_PPID + 1];
+
+    private final long[] stat = new long[STAT_SIZE];
+
+    private char state;
+
+    /**
+     * Should the metrics of the process be reported during the current run
+     */
+    private boolean eligible;
+
+    /**
+     * Last run during which the process was seen
+     */
+    private long generation;
+
+    private ProcessState(String pid, long start, String comm) {
+      this.pid = pid;
+      this.start = start;
+      this.comm = comm;
+    }
+  }
+
+  private final File root;
+
+  private final ProcReader reader = new ProcReader();
+
+  private final ProcDump procDump;
+
+  private final Pattern names;
+
+  private final boolean verbose;
+
+  private final boolean sensisionIdOnly;
+
+  private final byte[] sensisionIdKey;
+
+  private final long age;
+
+  private final long bootQuiet;
+
+  private final long[] excludedPgrp;
+
+  private final long clkTck;
+
+  private final Map<String,ProcessState> processes = new HashMap<String,ProcessState>();
+
+  private final long[] stat = new long[STAT_SIZE];
+
+  private long generation = 0L;
+
+  private final Map<String,String> selfLabels = new HashMap<String,String>();
+
+  /**
+   * @param root Root of the proc filesystem, usually /proc
+   * @param config Configuration
+   */
+  ProcPidCollector(File root, Properties config) {
+    this.root = root;
+
+    String names = config.getProperty(Sensision.SENSISION_PROCPOLLER_PID_NAMES);
+    this.names = null == names ? null : Pattern.compile(names);
+
+    this.verbose = "true".equals(config.getProperty(Sensision.SENSISION_PROCPOLLER_PID_VERBOSE, DEFAULT_PID_VERBOSE));
+    this.sensisionIdOnly = "true".equals(config.getProperty(Sensision.SENSISION_PROCPOLLER_PID_SENSISIONIDONLY, DEFAULT_PID_SENSISIONIDONLY));
+    this.sensisionIdKey = (config.getProperty(Sensision.SENSISION_PROCPOLLER_PID_SENSISIONIDKEY, DEFAULT_PID_SENSISIONIDKEY) + "=").getBytes(StandardCharsets.UTF_8);
+    this.age = Long.valueOf(config.getProperty(Sensision.SENSISION_PROCPOLLER_PID_AGE, DEFAULT_PID_AGE));
+    this.bootQuiet = Long.valueOf(config.getProperty(Sensision.SENSISION_PROCPOLLER_PID_BOOTQUIET, DEFAULT_PID_BOOTQUIET));
+    this.clkTck = Long.valueOf(config.getProperty(Sensision.SENSISION_PROCPOLLER_PID_CLKTCK, DEFAULT_PID_CLKTCK));
+
+    if (this.clkTck <= 0L) {
+      throw new RuntimeException("Invalid number of clock ticks per second " + this.clkTck + ".");
+    }
+
+    String[] pgrps = config.getProperty(Sensision.SENSISION_PROCPOLLER_PID_EXCLUDEDPGRP, DEFAULT_PID_EXCLUDEDPGRP).split(",");
+    List<Long> excluded = new ArrayList<Long>();
+    for (String pgrp: pgrps) {
+      if (!"".equals(pgrp.trim())) {
+        excluded.add(Long.valueOf(pgrp.trim()));
+      }
+    }
+    this.excludedPgrp = new long[excluded.size()];
+    for (int i = 0; i < this.excludedPgrp.length; i++) {
+      this.excludedPgrp[i] = excluded.get(i);
+    }
+
+    String procDump = config.getProperty(Sensision.SENSISION_PROCPOLLER_PID_PROCDUMP);
+    if (null == procDump) {
+      procDump = new File(new File(Sensision.getHomeDir(), "bin"), "procDump").getAbsolutePath();
+    }
+    this.procDump = new ProcDump(procDump);
+
+    this.selfLabels.put(SensisionConstants.SENSISION_LABEL_COLLECTOR, PID);
+  }
+
+  /**
+   * Collect the metrics of the processes
+   *
+   * @param now Timestamp of the values, in time units
+   * @param values List to which the values are added
+   */
+  void collect(long now, List<Value> values) throws IOException {
+    long nowms = now / Sensision.TIME_UNITS_PER_MS;
+
+    this.reader.load(new File(this.root, "uptime"));
+    double uptime = this.reader.parseDouble() * 1000.0D;
+
+    String[] entries = this.root.list();
+
+    if (null == entries) {
+      throw new IOException("Cannot list " + this.root + ".");
+    }
+
+    this.generation++;
+
+    List<ProcessState> unresolved = new ArrayList<ProcessState>();
+
+    for (String entry: entries) {
+      if (!isPid(entry)) {
+        continue;
+      }
+
+      ProcessState process = update(entry, nowms, uptime);
+
+      if (null != process && process.eligible && !process.resolved) {
+        unresolved.add(process);
+      }
+    }
+
+    resolve(unresolved);
+
+    //
+    // Emit the metrics of the eligible processes and forget those which exited
+    //
+
+    Iterator<ProcessState> iter = this.processes.values().iterator();
+
+    while (iter.hasNext()) {
+      ProcessState process = iter.next();
+
+      if (process.generation != this.generation) {
+        iter.remove();
+        continue;
+      }
+
+      if (process.eligible && process.resolved && null != process.id) {
+        emit(process, now, values);
+      }
+    }
+  }
+
+  private static boolean isPid(String entry) {
+    for (int i = 0; i < entry.length(); i++) {
+      char c = entry.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    return entry.length() > 0;
+  }
+
+  /**
+   * Read /proc/[pid]/stat and update the state of the process
+   *
+   * @return the state of the process, null if it exited or its stat could not be parsed
+   */
+  private ProcessState update(String pid, long nowms, double uptime) {
+    String comm;
+    char state;
+
+    try {
+      this.reader.load(new File(new File(this.root, pid), "stat"));
+      this.stat[0] = this.reader.parseLong();
+      comm = this.reader.enclosed('(', ')');
+
+      if (null == comm) {
+        return null;
+      }
+
+      state = this.reader.character();
+
+      for (int i = STAT_PPID; i < STAT_SIZE; i++) {
+        this.stat[i] = this.reader.parseLong();
+      }
+    } catch (IOException ioe) {
+      // The process exited
+      return null;
+    } catch (NumberFormatException nfe) {
+      return null;
+    }
+
+    ProcessState process = this.processes.get(pid);
+
+    if (null == process || process.start != this.stat[STAT_STARTTIME] || !process.comm.equals(comm)) {
+      process = new ProcessState(pid, this.stat[STAT_STARTTIME], comm);
+      process.starttime = (long) (nowms - uptime + process.start * 1000.0D / this.clkTck);
+      process.selected = null == this.names || this.names.matcher(comm).matches();
+      process.resolved = !this.sensisionIdOnly;
+      process.id = this.sensisionIdOnly ? null : pid;
+      this.processes.put(pid, process);
+    }
+
+    process.generation = this.generation;
+    process.state = state;
+    System.arraycopy(this.stat, 0, process.stat, 0, STAT_SIZE);
+
+    boolean eligible = process.selected;
+
+    // Skip the young processes, those started during the quiet period after boot, and some process groups
+    if (nowms - process.starttime < this.age || process.start * 1000L / this.clkTck < this.bootQuiet) {
+      eligible = false;
+    }
+
+    for (long pgrp: this.excludedPgrp) {
+      if (pgrp == this.stat[STAT_PGRP]) {
+        eligible = false;
+      }
+    }
+
+    process.eligible = eligible;
+
+    return process;
+  }
+
+  /**
+   * Retrieve the SENSISIONID tag of processes from their environment, which is only readable by
+   * the owner of the process, in a single batch sent to the procDump helper if it is available.
+   */
+  private void resolve(List<ProcessState> processes) {
+    if (processes.isEmpty()) {
+      return;
+    }
+
+    List<byte[]> environs;
+
+    if (this.procDump.isAvailable()) {
+      List<String> paths = new ArrayList<String>(processes.size());
+
+      for (ProcessState process: processes) {
+        paths.add(process.pid + "/environ");
+      }
+
+      try {
+        environs = this.procDump.dump(paths);
+      } catch (IOException ioe) {
+        // The processes will be resolved during the next run
+        Sensision.update(SensisionConstants.SENSISION_CLASS_PROCPOLLER_ERRORS, this.selfLabels, 1);
+        return;
+      }
+    } else {
+      environs = new ArrayList<byte[]>(processes.size());
+
+      for (ProcessState process: processes) {
+        try {
+          environs.add(Files.readAllBytes(new File(new File(this.root, process.pid), "environ").toPath()));
+        } catch (IOException ioe) {
+          environs.add(null);
+        }
+      }
+    }
+
+    for (int i = 0; i < processes.size(); i++) {
+      ProcessState process = processes.get(i);
+      process.id = null == environs.get(i) ? null : tag(environs.get(i));
+      process.resolved = true;
+    }
+  }
+
+  /**
+   * Extract the value of the SENSISIONID variable from an environment, null if it is not set
+   */
+  private String tag(byte[] environ) {
+    String tag = null;
+    int start = 0;
+
+    while (start < environ.length) {
+      int end = start;
+      while (end < environ.length && 0 != environ[end]) {
+        end++;
+      }
+
+      if (startsWith(environ, start, end, this.sensisionIdKey)) {
+        tag = new String(environ, start + this.sensisionIdKey.length, end - start - this.sensisionIdKey.length, StandardCharsets.UTF_8);
+      }
+
+      start = end + 1;
+    }
+
+    return tag;
+  }
+
+  private static boolean startsWith(byte[] data, int start, int end, byte[] prefix) {
+    if (end - start < prefix.length) {
+      return false;
+    }
+
+    for (int i = 0; i < prefix.length; i++) {
+      if (prefix[i] != data[start + i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Check whether the verbose labels of a process are up to date
+   */
+  private static boolean labelled(ProcessState process) {
+    for (int i = 0; i < process.labelled.length; i++) {
+      if (process.labelled[i] != process.stat[STAT_PPID + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void emit(ProcessState process, long now, List<Value> values) {
+    long[] stat = process.stat;
+
+    if (null == process.labels || (this.verbose && !labelled(process))) {
+      Map<String,String> labels = new HashMap<String,String>();
+      labels.put("name", process.comm);
+      labels.put("pid", process.id);
+
+      if (this.verbose) {
+        labels.put("ppid", Long.toString(stat[STAT_PPID]));
+        labels.put("pgrp", Long.toString(stat[STAT_PGRP]));
+        labels.put("session", Long.toString(stat[STAT_SESSION]));
+        labels.put("tty_nr", Long.toString(stat[STAT_TTY_NR]));
+        System.arraycopy(stat, STAT_PPID, process.labelled, 0, process.labelled.length);
+      }
+
+      process.labels = Collections.unmodifiableMap(labels);
+    }
+
+    Map<String,String> labels = process.labels;
+
+    values.add(new Value(STATE_CLASS, labels, now, null, null, null, process.state < STATES.length ? STATES[process.state] : String.valueOf(process.state)));
+
+    for (int i = 0; i < STAT_FIELDS.length; i++) {
+      values.add(new Value(STAT_CLASSES[i], labels, now, null, null, null, stat[STAT_FIELDS[i]]));
+    }
+
+    values.add(new Value(STARTTIME_CLASS, labels, now, null, null, null, process.starttime));
+
+    for (int i = 0; i < STAT_FIELDS_AFTER.length; i++) {
+      values.add(new Value(STAT_CLASSES_AFTER[i], labels, now, null, null, null, stat[STAT_FIELDS_AFTER[i]]));
+    }
+  }
+}
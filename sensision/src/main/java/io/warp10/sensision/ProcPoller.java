@@ -0,0 +1,260 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.warp10.sensision.Sensision.Value;
+
+/**
+ * Poller which periodically collects the metrics of the core /proc sources, of the processes and
+ * of the TCP sockets in the Sensision process itself, instead of running the equivalent linux.proc.*.groovy scripts.
+ *
+ * The collected values are routed directly to the QueueManager, or written to a '.metrics' file
+ * in the queue directory when there is none. Runs are scheduled on the shared timing wheel and
+ * executed by a dedicated thread, a run is skipped if the previous one is still ongoing.
+ */
+public class ProcPoller {
+
+  private static final String DEFAULT_PROCPOLLER_ROOT = "/proc";
+  private static final String DEFAULT_PROCPOLLER_PERIOD = "60000";
+  private static final String DEFAULT_PROCPOLLER_JITTER = "0";
+
+  private final ProcCollector collector;
+
+  /**
+   * Collector of the processes metrics, null if it is not enabled
+   */
+  private final ProcPidCollector pidCollector;
+
+  /**
+   * Collector of the TCP sockets metrics, null if it is not enabled
+   */
+  private final ProcTcpCollector tcpCollector;
+
+  private final String[] collectors;
+
+  /**
+   * Labels of the self metrics of each collector
+   */
+  private final Map<String,Map<String,String>> selfLabels = new HashMap<String,Map<String,String>>();
+
+  /**
+   * QueueManager to which the values are routed, null to write them to the queue directory
+   */
+  private final QueueManager qm;
+
+  private final ExecutorService executor;
+
+  private final AtomicBoolean running = new AtomicBoolean(false);
+
+  /**
+   * Values of the current run, the list is reused from one run to the next
+   */
+  private final List<Value> values = new ArrayList<Value>();
+
+  public ProcPoller(Properties config) {
+    this(config, null);
+  }
+
+  /**
+   * @param config Configuration
+   * @param qm QueueManager to which the collected values should be routed
+   */
+  public ProcPoller(Properties config, QueueManager qm) {
+    File root = new File(config.getProperty(Sensision.SENSISION_PROCPOLLER_ROOT, DEFAULT_PROCPOLLER_ROOT));
+
+    this.collector = new ProcCollector(root);
+
+    Set<String> valid = new LinkedHashSet<String>(ProcCollector.COLLECTORS);
+    valid.add(ProcPidCollector.PID);
+    valid.add(ProcTcpCollector.NET_TCP);
+
+    String collectors = config.getProperty(Sensision.SENSISION_PROCPOLLER_COLLECTORS);
+
+    if (null == collectors) {
+      this.collectors = valid.toArray(new String[0]);
+    } else {
+      this.collectors = collectors.split(",");
+    }
+
+    boolean pid = false;
+    boolean tcp = false;
+
+    for (int i = 0; i < this.collectors.length; i++) {
+      this.collectors[i] = this.collectors[i].trim();
+
+      if (!valid.contains(this.collectors[i])) {
+        throw new RuntimeException("Invalid /proc collector '" + this.collectors[i] + "', valid collectors are " + valid + ".");
+      }
+
+      pid |= ProcPidCollector.PID.equals(this.collectors[i]);
+      tcp |= ProcTcpCollector.NET_TCP.equals(this.collectors[i]);
+
+      Map<String,String> labels = new HashMap<String,String>();
+      labels.put(SensisionConstants.SENSISION_LABEL_COLLECTOR, this.collectors[i]);
+      this.selfLabels.put(this.collectors[i], labels);
+    }
+
+    this.pidCollector = pid ? new ProcPidCollector(root, config) : null;
+    this.tcpCollector = tcp ? new ProcTcpCollector(root, config) : null;
+    this.qm = qm;
+
+    long period = Long.valueOf(config.getProperty(Sensision.SENSISION_PROCPOLLER_PERIOD, DEFAULT_PROCPOLLER_PERIOD));
+    long jitter = Long.valueOf(config.getProperty(Sensision.SENSISION_PROCPOLLER_JITTER, DEFAULT_PROCPOLLER_JITTER));
+
+    if (period <= 0L) {
+      throw new RuntimeException("Invalid /proc polling period " + period + ".");
+    }
+
+    this.executor = new ThreadPoolExecutor(1, 1, 60000L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(1));
+
+    TimingWheel.getInstance(config).schedule(new Runnable() {
+      @Override
+      public void run() {
+        schedulePoll();
+      }
+    }, 0L, period, Math.min(jitter, period));
+  }
+
+  /**
+   * Submit a run of the collectors to the executor. Called by the timing wheel.
+   */
+  private void schedulePoll() {
+
+    //
+    // Skip this run if the previous one is still ongoing
+    //
+
+    if (!this.running.compareAndSet(false, true)) {
+      return;
+    }
+
+    try {
+      this.executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            poll();
+          } finally {
+            running.set(false);
+          }
+        }
+      });
+    } catch (RejectedExecutionException ree) {
+      this.running.set(false);
+    }
+  }
+
+  private void poll() {
+    long now = System.currentTimeMillis();
+
+    this.values.clear();
+
+    for (String name: this.collectors) {
+      long nano = System.nanoTime();
+      int size = this.values.size();
+
+      try {
+        if (ProcPidCollector.PID.equals(name)) {
+          this.pidCollector.collect(now * Sensision.TIME_UNITS_PER_MS, this.values);
+        } else if (ProcTcpCollector.NET_TCP.equals(name)) {
+          this.tcpCollector.collect(now * Sensision.TIME_UNITS_PER_MS, this.values);
+        } else {
+          this.collector.collect(name, now * Sensision.TIME_UNITS_PER_MS, this.values);
+        }
+        Sensision.update(SensisionConstants.SENSISION_CLASS_PROCPOLLER_RUNS, this.selfLabels.get(name), 1);
+      } catch (Exception e) {
+        // Drop the values of a partially parsed source
+        this.values.subList(size, this.values.size()).clear();
+        Sensision.update(SensisionConstants.SENSISION_CLASS_PROCPOLLER_ERRORS, this.selfLabels.get(name), 1);
+      } finally {
+        Sensision.update(SensisionConstants.SENSISION_CLASS_PROCPOLLER_TIME, this.selfLabels.get(name), (System.nanoTime() - nano) / 1000L);
+      }
+    }
+
+    this.collector.rotate();
+
+    try {
+      if (null != this.qm) {
+        this.qm.route(this.values);
+      } else {
+        write(now);
+      }
+    } catch (IOException ioe) {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_PROCPOLLER_ERRORS, Sensision.EMPTY_LABELS, 1);
+    } finally {
+      this.values.clear();
+    }
+  }
+
+  /**
+   * Write the values of the current run to a metrics file in the queue directory
+   */
+  private void write(long now) throws IOException {
+    if (this.values.isEmpty()) {
+      return;
+    }
+
+    StringBuilder sb = new StringBuilder();
+    sb.append(Long.toHexString(Long.MAX_VALUE - now));
+    sb.append(".");
+    sb.append(UUID.randomUUID().toString());
+    sb.append(Sensision.SENSISION_METRICS_SUFFIX);
+
+    String newname = sb.toString();
+
+    File outfile = new File(Sensision.getQueueDir(), newname + ".new");
+
+    PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(outfile), StandardCharsets.UTF_8));
+
+    try {
+      for (Value value: this.values) {
+        Sensision.dumpValue(pw, value, true, false, false);
+      }
+    } finally {
+      pw.close();
+    }
+
+    if (pw.checkError()) {
+      outfile.delete();
+      throw new IOException("Error while writing " + outfile + ".");
+    }
+
+    // Atomically rename outfile to remove the ".new" suffix
+    outfile.renameTo(new File(Sensision.getQueueDir(), newname));
+  }
+}
@@ -0,0 +1,442 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reader of the pseudo files of /proc.
+ *
+ * A file is either loaded entirely into a buffer which is reused from one file to the next, or
+ * streamed through it for the files which can be very large, it is then scanned line by line with
+ * a cursor. Numbers are parsed in place, only the tokens explicitly requested as strings are allocated.
+ * Instances are not thread safe.
+ */
+final class ProcReader {
+
+  private static final int INITIAL_SIZE = 16384;
+
+  private byte[] buf = new byte[INITIAL_SIZE];
+
+  /**
+   * Number of bytes loaded in the buffer
+   */
+  private int len = 0;
+
+  /**
+   * Position of the cursor
+   */
+  private int pos = 0;
+
+  /**
+   * Stream the content is read from in streaming mode, null once it was entirely read
+   */
+  private InputStream stream = null;
+
+  /**
+   * Is the cursor before the first line of the stream
+   */
+  private boolean first = false;
+
+  /**
+   * Load the content of a file, placing the cursor at its start
+   *
+   * The size of the files under /proc is not known in advance, so the file is read until EOF,
+   * growing the buffer as needed. Reading with a large buffer also lets the kernel produce a
+   * consistent snapshot of most files.
+   */
+  void load(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+
+    try {
+      load(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  void load(InputStream in) throws IOException {
+    close();
+
+    this.len = 0;
+    this.pos = 0;
+
+    while(true) {
+      if (this.len == this.buf.length) {
+        byte[] buf = new byte[this.buf.length << 1];
+        System.arraycopy(this.buf, 0, buf, 0, this.len);
+        this.buf = buf;
+      }
+
+      int n = in.read(this.buf, this.len, this.buf.length - this.len);
+
+      if (n < 0) {
+        break;
+      }
+
+      this.len += n;
+    }
+  }
+
+  /**
+   * Open a file in streaming mode, its lines are then read with readLine. The buffer only
+   * grows if a line does not fit in it, so the memory used does not depend on the size of the file.
+   */
+  void open(File file) throws IOException {
+    close();
+
+    this.stream = new FileInputStream(file);
+    this.len = 0;
+    this.pos = 0;
+    this.first = true;
+  }
+
+  /**
+   * In streaming mode, move the cursor to the start of the next line, reading from the stream
+   * until the whole line is in the buffer.
+   *
+   * @return false at the end of the stream
+   */
+  boolean readLine() throws IOException {
+    if (this.first) {
+      this.first = false;
+    } else {
+      nextLine();
+    }
+
+    int scan = this.pos;
+
+    while (true) {
+      for (; scan < this.len; scan++) {
+        if ('\n' == this.buf[scan]) {
+          return true;
+        }
+      }
+
+      if (null == this.stream) {
+        // Last line without a line terminator
+        return this.pos < this.len;
+      }
+
+      //
+      // Move the partial line to the start of the buffer and read more content after it
+      //
+
+      if (this.pos > 0) {
+        System.arraycopy(this.buf, this.pos, this.buf, 0, this.len - this.pos);
+        scan -= this.pos;
+        this.len -= this.pos;
+        this.pos = 0;
+      }
+
+      if (this.len == this.buf.length) {
+        byte[] buf = new byte[this.buf.length << 1];
+        System.arraycopy(this.buf, 0, buf, 0, this.len);
+        this.buf = buf;
+      }
+
+      int n = this.stream.read(this.buf, this.len, this.buf.length - this.len);
+
+      if (n < 0) {
+        close();
+      } else {
+        this.len += n;
+      }
+    }
+  }
+
+  /**
+   * Close the stream of the streaming mode
+   */
+  void close() throws IOException {
+    if (null != this.stream) {
+      InputStream stream = this.stream;
+      this.stream = null;
+      stream.close();
+    }
+  }
+
+  /**
+   * @return true if the cursor reached the end of the content
+   */
+  boolean eof() {
+    return this.pos >= this.len;
+  }
+
+  /**
+   * @return true if the cursor reached the end of the current line
+   */
+  boolean eol() {
+    return this.pos >= this.len || '\n' == this.buf[this.pos];
+  }
+
+  /**
+   * Move the cursor to the start of the next line
+   *
+   * @return false if there is no next line
+   */
+  boolean nextLine() {
+    while (this.pos < this.len && '\n' != this.buf[this.pos]) {
+      this.pos++;
+    }
+
+    if (this.pos < this.len) {
+      this.pos++;
+    }
+
+    return this.pos < this.len;
+  }
+
+  private static boolean isSpace(byte b) {
+    return ' ' == b || '\t' == b;
+  }
+
+  /**
+   * Skip the spaces and tabs at the cursor
+   */
+  void skipSpaces() {
+    while (this.pos < this.len && isSpace(this.buf[this.pos])) {
+      this.pos++;
+    }
+  }
+
+  /**
+   * Skip the given character if it is at the cursor, after the spaces
+   *
+   * @return true if the character was skipped
+   */
+  boolean skip(char c) {
+    skipSpaces();
+
+    if (this.pos < this.len && c == this.buf[this.pos]) {
+      this.pos++;
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Skip the next n tokens of the current line
+   */
+  void skipTokens(int n) {
+    for (int i = 0; i < n; i++) {
+      skipSpaces();
+      while (!eol() && !isSpace(this.buf[this.pos])) {
+        this.pos++;
+      }
+    }
+  }
+
+  /**
+   * Count the tokens from the cursor to the end of the current line, without moving the cursor
+   */
+  int countTokens() {
+    int count = 0;
+    boolean inToken = false;
+
+    for (int i = this.pos; i < this.len && '\n' != this.buf[i]; i++) {
+      if (isSpace(this.buf[i])) {
+        inToken = false;
+      } else if (!inToken) {
+        inToken = true;
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * Return the next token of the current line, null if there is none
+   */
+  String token() {
+    return token('\n');
+  }
+
+  /**
+   * Return the next token of the current line, ending at a space or at the given delimiter,
+   * the cursor is left on the delimiter.
+   */
+  String token(char delimiter) {
+    skipSpaces();
+
+    int start = this.pos;
+
+    while (!eol() && !isSpace(this.buf[this.pos]) && delimiter != this.buf[this.pos]) {
+      this.pos++;
+    }
+
+    if (start == this.pos) {
+      return null;
+    }
+
+    return new String(this.buf, start, this.pos - start, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Return the content of the current line between the next opening character and the last
+   * closing character, which may both appear in the content (like the command name in
+   * /proc/[pid]/stat), null if there is none. The cursor is left after the closing character.
+   */
+  String enclosed(char open, char close) {
+    if (!skip(open)) {
+      return null;
+    }
+
+    int start = this.pos;
+    int end = -1;
+
+    while (!eol()) {
+      if (close == this.buf[this.pos]) {
+        end = this.pos;
+      }
+      this.pos++;
+    }
+
+    if (end < 0) {
+      return null;
+    }
+
+    this.pos = end + 1;
+
+    return new String(this.buf, start, end - start, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Return the first character of the next token of the current line, moving the cursor past the token,
+   * '\0' if there is no token.
+   */
+  char character() {
+    skipSpaces();
+
+    if (eol()) {
+      return '\0';
+    }
+
+    char c = (char) (this.buf[this.pos] & 0xFF);
+
+    skipTokens(1);
+
+    return c;
+  }
+
+  /**
+   * Check whether the next token of the current line is the given ASCII string,
+   * moving the cursor past it if so.
+   */
+  boolean match(String token) {
+    skipSpaces();
+
+    int end = this.pos + token.length();
+
+    if (end > this.len || (end < this.len && !isSpace(this.buf[end]) && '\n' != this.buf[end])) {
+      return false;
+    }
+
+    for (int i = 0; i < token.length(); i++) {
+      if (token.charAt(i) != this.buf[this.pos + i]) {
+        return false;
+      }
+    }
+
+    this.pos = end;
+
+    return true;
+  }
+
+  /**
+   * Parse the next token of the current line as a decimal long
+   *
+   * @throws NumberFormatException if the token is not a number
+   */
+  long parseLong() {
+    skipSpaces();
+
+    boolean negative = false;
+
+    if (this.pos < this.len && '-' == this.buf[this.pos]) {
+      negative = true;
+      this.pos++;
+    }
+
+    int start = this.pos;
+    long value = 0L;
+
+    while (this.pos < this.len) {
+      int digit = this.buf[this.pos] - '0';
+      if (digit < 0 || digit > 9) {
+        break;
+      }
+      value = value * 10L + digit;
+      this.pos++;
+    }
+
+    if (start == this.pos) {
+      throw new NumberFormatException("Expected a number at offset " + start + ".");
+    }
+
+    return negative ? -value : value;
+  }
+
+  /**
+   * Parse the next token of the current line as a hexadecimal number, only the lowest 64 bits
+   * of longer numbers are returned.
+   *
+   * @throws NumberFormatException if the token is not a number
+   */
+  long parseHex() {
+    skipSpaces();
+
+    int start = this.pos;
+    long value = 0L;
+
+    while (this.pos < this.len) {
+      int digit = Character.digit(this.buf[this.pos], 16);
+      if (digit < 0) {
+        break;
+      }
+      value = (value << 4) | digit;
+      this.pos++;
+    }
+
+    if (start == this.pos) {
+      throw new NumberFormatException("Expected a hexadecimal number at offset " + start + ".");
+    }
+
+    return value;
+  }
+
+  /**
+   * Parse the next token of the current line as a double
+   *
+   * @throws NumberFormatException if the token is not a number
+   */
+  double parseDouble() {
+    String token = token();
+
+    if (null == token) {
+      throw new NumberFormatException("Expected a number at offset " + this.pos + ".");
+    }
+
+    return Double.parseDouble(token);
+  }
+}
@@ -0,0 +1,369 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import io.warp10.sensision.Sensision.Value;
+
+/**
+ * Collector of the number of TCP sockets, producing the same metrics as linux.proc.net.tcp.groovy.
+ *
+ * /proc/net/tcp and /proc/net/tcp6 are streamed through the buffer of a ProcReader and their fields
+ * are decoded in place. The port and the uid of each socket are mapped to the index of a configured
+ * service and user, so the sockets are counted in an array of primitive counters whose size only
+ * depends on the configuration. Neither the memory used nor the number of series produced depend
+ * on the number of sockets.
+ *
+ * Instances are not thread safe.
+ */
+class ProcTcpCollector {
+
+  static final String NET_TCP = "net.tcp";
+
+  private static final String CLASS = "linux.proc.net.tcp";
+
+  private static final String DEFAULT_NET_TCP_SERVICES = "22:ssh,25:smtp,80:http,443:https,2181:zookeeper,9000:hdfs-namenode,9092:kafka,50020:hdfs-datanode,60020:hbase-regionserver";
+  private static final String DEFAULT_NET_TCP_USERS = "hbase,hdfs,kafka,mapred,sshd,zk";
+  private static final String DEFAULT_NET_TCP_PASSWD = "/etc/passwd";
+
+  private static final String OTHER = "other";
+
+  private static final String[] FILES = { "tcp", "tcp6" };
+
+  /**
+   * Names of the states of a socket, by state code minus one
+   */
+  private static final String[] STATES = {
+    "established",
+    "syn_sent",
+    "syn_recv",
+    "fin_wait1",
+    "fin_wait2",
+    "time_wait",
+    "close",
+    "close_wait",
+    "last_ack",
+    "listen",
+    "closing",
+  };
+
+  private static final String[] ENDPOINTS = { "internal", "external" };
+
+  private final File root;
+
+  private final File passwd;
+
+  private final ProcReader reader = new ProcReader();
+
+  /**
+   * Names of the services, 'other' first
+   */
+  private final String[] services;
+
+  /**
+   * Index of the service of each port, 0 for the other ports
+   */
+  private final byte[] portServices = new byte[65536];
+
+  /**
+   * Names of the users, 'other' first
+   */
+  private final String[] users;
+
+  /**
+   * Uids of the configured users found in the passwd file, and their indices
+   */
+  private long[] uids = new long[0];
+  private int[] uidUsers = new int[0];
+
+  /**
+   * Modification time of the passwd file when it was last read
+   */
+  private long passwdModified = Long.MIN_VALUE;
+
+  /**
+   * Number of sockets, by service, user, endpoint and state
+   */
+  private final long[] counters;
+
+  /**
+   * Labels of each counter, created when first needed
+   */
+  private final List<Map<String,String>> labels;
+
+  /**
+   * @param root Root of the proc filesystem, usually /proc
+   * @param config Configuration
+   */
+  ProcTcpCollector(File root, Properties config) {
+    this.root = root;
+    this.passwd = new File(config.getProperty(Sensision.SENSISION_PROCPOLLER_NET_TCP_PASSWD, DEFAULT_NET_TCP_PASSWD));
+
+    List<String> services = new ArrayList<String>();
+    services.add(OTHER);
+
+    for (String service: config.getProperty(Sensision.SENSISION_PROCPOLLER_NET_TCP_SERVICES, DEFAULT_NET_TCP_SERVICES).split(",")) {
+      if ("".equals(service.trim())) {
+        continue;
+      }
+
+      String[] tokens = service.trim().split(":");
+
+      if (2 != tokens.length) {
+        throw new RuntimeException("Invalid TCP service '" + service.trim() + "', expected port:name.");
+      }
+
+      int port = Integer.parseInt(tokens[0].trim());
+
+      if (port < 0 || port >= this.portServices.length) {
+        throw new RuntimeException("Invalid TCP port " + port + ".");
+      }
+
+      int index = services.indexOf(tokens[1].trim());
+
+      if (index < 0) {
+        index = services.size();
+        services.add(tokens[1].trim());
+      }
+
+      if (index > Byte.MAX_VALUE) {
+        throw new RuntimeException("Too many TCP services, at most " + Byte.MAX_VALUE + " can be configured.");
+      }
+
+      this.portServices[port] = (byte) index;
+    }
+
+    this.services = services.toArray(new String[0]);
+
+    List<String> users = new ArrayList<String>();
+    users.add(OTHER);
+
+    for (String user: config.getProperty(Sensision.SENSISION_PROCPOLLER_NET_TCP_USERS, DEFAULT_NET_TCP_USERS).split(",")) {
+      if (!"".equals(user.trim()) && !users.contains(user.trim())) {
+        users.add(user.trim());
+      }
+    }
+
+    this.users = users.toArray(new String[0]);
+
+    this.counters = new long[this.services.length * this.users.length * ENDPOINTS.length * STATES.length];
+    this.labels = new ArrayList<Map<String,String>>(Collections.<Map<String,String>>nCopies(this.counters.length, null));
+  }
+
+  /**
+   * Count the TCP sockets
+   *
+   * @param now Timestamp of the values, in time units
+   * @param values List to which the values are added
+   */
+  void collect(long now, List<Value> values) throws IOException {
+    readPasswd();
+
+    Arrays.fill(this.counters, 0L);
+
+    for (String name: FILES) {
+      File file = new File(new File(this.root, "net"), name);
+
+      // tcp6 does not exist when IPv6 is disabled
+      if (!file.exists()) {
+        continue;
+      }
+
+      this.reader.open(file);
+
+      try {
+        count();
+      } finally {
+        this.reader.close();
+      }
+    }
+
+    //
+    // Emit the non zero counters
+    //
+
+    for (int i = 0; i < this.counters.length; i++) {
+      if (0L == this.counters[i]) {
+        continue;
+      }
+
+      Map<String,String> labels = this.labels.get(i);
+
+      if (null == labels) {
+        labels = labels(i);
+        this.labels.set(i, labels);
+      }
+
+      values.add(new Value(CLASS, labels, now, null, null, null, this.counters[i]));
+    }
+  }
+
+  private void count() throws IOException {
+    int uidUser = 0;
+    long lastUid = -1L;
+
+    while (this.reader.readLine()) {
+      // Skip the header line
+      if (this.reader.match("sl")) {
+        continue;
+      }
+
+      // Empty line
+      if (this.reader.eol()) {
+        continue;
+      }
+
+      this.reader.skipTokens(1);
+
+      //
+      // Only the lowest four bytes of the addresses are decoded, their bytes being reversed
+      // they are the IPv4 address for both tcp and the IPv4 mapped addresses of tcp6
+      //
+
+      int srcip = (int) this.reader.parseHex();
+      this.reader.skip(':');
+      int srcport = (int) this.reader.parseHex();
+      int dstip = (int) this.reader.parseHex();
+      this.reader.skip(':');
+      int dstport = (int) this.reader.parseHex();
+      int state = (int) this.reader.parseHex();
+
+      // tx_queue:rx_queue tr:tm->when retrnsmt
+      this.reader.skipTokens(3);
+
+      long uid = this.reader.parseLong();
+
+      if (state < 1 || state > STATES.length) {
+        continue;
+      }
+
+      //
+      // Use the service of the source port then fall back to the one of the destination port
+      //
+
+      int service = this.portServices[srcport & 0xFFFF];
+
+      if (0 == service) {
+        service = this.portServices[dstport & 0xFFFF];
+      }
+
+      // Consecutive sockets usually belong to the same user
+      if (uid != lastUid) {
+        lastUid = uid;
+        uidUser = 0;
+        for (int i = 0; i < this.uids.length; i++) {
+          if (uid == this.uids[i]) {
+            uidUser = this.uidUsers[i];
+            break;
+          }
+        }
+      }
+
+      int endpoint = isInternal(srcip) || isInternal(dstip) ? 0 : 1;
+
+      this.counters[((service * this.users.length + uidUser) * ENDPOINTS.length + endpoint) * STATES.length + state - 1]++;
+    }
+  }
+
+  /**
+   * Check whether an IPv4 address, whose bytes are reversed, is a loopback, RFC1918 or unspecified address
+   */
+  static boolean isInternal(int ip) {
+    int a = ip & 0xFF;
+    int b = (ip >>> 8) & 0xFF;
+
+    return 127 == a
+        || 10 == a
+        || 0 == a
+        || (172 == a && b >= 16 && b <= 31)
+        || (192 == a && 168 == b);
+  }
+
+  private Map<String,String> labels(int index) {
+    Map<String,String> labels = new HashMap<String,String>();
+
+    labels.put("state", STATES[index % STATES.length]);
+    index /= STATES.length;
+    labels.put("endpoint", ENDPOINTS[index % ENDPOINTS.length]);
+    index /= ENDPOINTS.length;
+    labels.put("user", this.users[index % this.users.length]);
+    index /= this.users.length;
+    labels.put("service", this.services[index]);
+
+    return Collections.unmodifiableMap(labels);
+  }
+
+  /**
+   * Resolve the uids of the configured users, the passwd file is only read again when it was modified
+   */
+  private void readPasswd() throws IOException {
+    long modified = this.passwd.lastModified();
+
+    if (modified == this.passwdModified) {
+      return;
+    }
+
+    // The last entry of a uid wins, like in the script
+    Map<Long,Integer> uidUsers = new HashMap<Long,Integer>();
+
+    if (this.passwd.exists()) {
+      for (String line: Files.readAllLines(this.passwd.toPath(), StandardCharsets.ISO_8859_1)) {
+        String[] tokens = line.split(":");
+
+        if (tokens.length < 3) {
+          continue;
+        }
+
+        try {
+          int user = Arrays.asList(this.users).indexOf(tokens[0]);
+          uidUsers.put(Long.valueOf(tokens[2]), user > 0 ? user : 0);
+        } catch (NumberFormatException nfe) {
+          continue;
+        }
+      }
+    }
+
+    List<Long> uids = new ArrayList<Long>();
+
+    for (Map.Entry<Long,Integer> entry: uidUsers.entrySet()) {
+      if (entry.getValue() > 0) {
+        uids.add(entry.getKey());
+      }
+    }
+
+    this.uids = new long[uids.size()];
+    this.uidUsers = new int[uids.size()];
+
+    for (int i = 0; i < this.uids.length; i++) {
+      this.uids[i] = uids.get(i);
+      this.uidUsers[i] = uidUsers.get(uids.get(i));
+    }
+
+    this.passwdModified = modified;
+  }
+}
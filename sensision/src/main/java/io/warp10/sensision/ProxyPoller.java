@@ -16,30 +16,52 @@
 
 package io.warp10.sensision;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Properties;
-import java.util.UUID;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
-import org.eclipse.jetty.server.bio.SocketConnector;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import com.google.common.base.Charsets;
 
 /**
  * Pseudo poller which acts as the Cityzen Data platform and queues
  * received metrics as if they had been polled.
  *
+ * Request bodies are read asynchronously and validated line by line as they
+ * are received. Valid requests are handed to a GroupCommitter and only acknowledged
+ * once their data is durable in the queue directory. When too much data is
+ * buffered or the queue directory backlog is too large, requests are rejected
+ * with a 503 and a Retry-After header.
+ *
+ * Tokens can be associated with tenants. Data received for a tenant with a queue
+ * is written directly to '.queued' files of this queue, bypassing the QueueManager,
+ * other data is written to '.metrics' files. Tenants can be limited in rate and in
+ * the number of bytes they have in flight, requests exceeding those limits are
+ * rejected with a 429 and a Retry-After header.
  */
 public class ProxyPoller extends Thread {
   
@@ -48,28 +70,150 @@ public class ProxyPoller extends Thread {
 
   private static final String SENSISION_PROXYPOLLER_HOST = "sensision.poller.proxy.host";
   
-  private static final String DEFAULT_PROXYPOLLER_ACCEPTORS = "0";
+  // -1 lets Jetty pick a value depending on the number of cores
+  private static final String DEFAULT_PROXYPOLLER_ACCEPTORS = "-1";
   private static final String SENSISION_PROXYPOLLER_ACCEPTORS = "sensision.poller.proxy.acceptors";
 
-  private static final String DEFAULT_PROXYPOLLER_SELECTORS = "0";
+  private static final String DEFAULT_PROXYPOLLER_SELECTORS = "-1";
   private static final String SENSISION_PROXYPOLLER_SELECTORS = "sensision.poller.proxy.selectors";
+
+  private static final String DEFAULT_PROXYPOLLER_MAXTHREADS = "200";
+  private static final String SENSISION_PROXYPOLLER_MAXTHREADS = "sensision.poller.proxy.maxthreads";
+
+  private static final String DEFAULT_PROXYPOLLER_IDLE_TIMEOUT = "30000";
+  private static final String SENSISION_PROXYPOLLER_IDLE_TIMEOUT = "sensision.poller.proxy.idletimeout";
   
   private static final String SENSISION_PROXYPOLLER_TOKENS = "sensision.poller.proxy.tokens";
 
+  /**
+   * Tenant configuration prefix, the rest of the parameter name is the name of the
+   * tenant followed by one of the TENANT_* suffixes.
+   */
+  private static final String SENSISION_PROXYPOLLER_TENANT_PREFIX = "sensision.poller.proxy.tenant.";
+
+  /**
+   * Comma separated list of tokens of the tenant
+   */
+  private static final String TENANT_TOKENS = ".tokens";
+
+  /**
+   * Queue the data of the tenant is written to, if unset the data is routed by the QueueManager
+   */
+  private static final String TENANT_QUEUE = ".queue";
+
+  /**
+   * Number of bytes per second the tenant may send
+   */
+  private static final String TENANT_RATE = ".rate";
+
+  /**
+   * Number of bytes the tenant may send in a burst, defaults to the rate
+   */
+  private static final String TENANT_BURST = ".burst";
+
+  /**
+   * Maximum number of bytes of the tenant buffered or being committed
+   */
+  private static final String TENANT_QUOTA = ".quota";
+
+  /**
+   * Should committed files be fsynced
+   */
+  private static final String DEFAULT_PROXYPOLLER_FSYNC = "true";
+  private static final String SENSISION_PROXYPOLLER_FSYNC = "sensision.poller.proxy.fsync";
+
+  /**
+   * Maximum delay (in ms) to wait for other requests before committing data
+   */
+  private static final String DEFAULT_PROXYPOLLER_COMMIT_DELAY = "10";
+  private static final String SENSISION_PROXYPOLLER_COMMIT_DELAY = "sensision.poller.proxy.commit.delay";
+
+  /**
+   * Number of bytes above which data is committed without waiting for the delay to expire
+   */
+  private static final String DEFAULT_PROXYPOLLER_COMMIT_SIZE = "4194304";
+  private static final String SENSISION_PROXYPOLLER_COMMIT_SIZE = "sensision.poller.proxy.commit.size";
+
+  /**
+   * Maximum number of bytes buffered in memory across all requests
+   */
+  private static final String DEFAULT_PROXYPOLLER_HIGHWATER = "67108864";
+  private static final String SENSISION_PROXYPOLLER_HIGHWATER = "sensision.poller.proxy.highwater";
+
+  /**
+   * Maximum number of '.metrics' files waiting in the queue directory, 0 for no limit
+   */
+  private static final String DEFAULT_PROXYPOLLER_MAXBACKLOG = "0";
+  private static final String SENSISION_PROXYPOLLER_MAXBACKLOG = "sensision.poller.proxy.maxbacklog";
+
+  /**
+   * Maximum size of a request body, after decompression
+   */
+  private static final String DEFAULT_PROXYPOLLER_MAXBODY = "16777216";
+  private static final String SENSISION_PROXYPOLLER_MAXBODY = "sensision.poller.proxy.maxbody";
+
+  /**
+   * Maximum length of a line
+   */
+  private static final String DEFAULT_PROXYPOLLER_MAXLINE = "1048576";
+  private static final String SENSISION_PROXYPOLLER_MAXLINE = "sensision.poller.proxy.maxline";
+
+  /**
+   * Delay (in s) advertised in the Retry-After header of rejected requests
+   */
+  private static final String DEFAULT_PROXYPOLLER_RETRYAFTER = "1";
+  private static final String SENSISION_PROXYPOLLER_RETRYAFTER = "sensision.poller.proxy.retryafter";
+
+  /**
+   * Maximum time (in ms) a request may take, including the commit of its data
+   */
+  private static final String DEFAULT_PROXYPOLLER_TIMEOUT = "60000";
+  private static final String SENSISION_PROXYPOLLER_TIMEOUT = "sensision.poller.proxy.timeout";
+
+  /**
+   * How often (in ms) to count the files in the queue directory
+   */
+  private static final long BACKLOG_CHECK_INTERVAL = 1000L;
+
+  private static final int SC_TOO_MANY_REQUESTS = 429;
+
   private final Server server;
   
-  private final String uuid;
-  
   private final String[] tokens;
+
+  /**
+   * Tenants per token
+   */
+  private final Map<String,Tenant> tenants = new HashMap<String,Tenant>();
+
+  private final GroupCommitter committer;
+
+  /**
+   * Number of bytes currently buffered in memory
+   */
+  private final AtomicLong buffered = new AtomicLong(0L);
+
+  private final long highwater;
+
+  private final long maxbacklog;
+
+  private final long maxbody;
+
+  private final int maxline;
+
+  private final String retryAfter;
+
+  private final long timeout;
+
+  /**
+   * Last known number of '.metrics' files in the queue directory
+   */
+  private volatile long backlog = 0L;
+
+  private final AtomicLong lastBacklogCheck = new AtomicLong(0L);
   
   public ProxyPoller(Properties config) {
   
-    //
-    // Generate a UUID for this instance of ProxyPoller
-    //
-    
-    this.uuid = UUID.randomUUID().toString();
-    
     //
     // Extract port
     //
@@ -77,6 +221,8 @@ public class ProxyPoller extends Thread {
     int port = Integer.valueOf(config.getProperty(SENSISION_PROXYPOLLER_PORT, DEFAULT_PROXYPOLLER_PORT));
     int acceptors = Integer.valueOf(config.getProperty(SENSISION_PROXYPOLLER_ACCEPTORS, DEFAULT_PROXYPOLLER_ACCEPTORS));
     int selectors = Integer.valueOf(config.getProperty(SENSISION_PROXYPOLLER_SELECTORS, DEFAULT_PROXYPOLLER_SELECTORS));
+    int maxthreads = Integer.valueOf(config.getProperty(SENSISION_PROXYPOLLER_MAXTHREADS, DEFAULT_PROXYPOLLER_MAXTHREADS));
+    long idleTimeout = Long.valueOf(config.getProperty(SENSISION_PROXYPOLLER_IDLE_TIMEOUT, DEFAULT_PROXYPOLLER_IDLE_TIMEOUT));
     
     if (config.containsKey(SENSISION_PROXYPOLLER_TOKENS)) {
       this.tokens = config.getProperty(SENSISION_PROXYPOLLER_TOKENS).split(",");
@@ -84,21 +230,39 @@ public class ProxyPoller extends Thread {
     } else {
       this.tokens = null;
     }
-    
+
+    configureTenants(config);
+
+    this.highwater = Long.valueOf(config.getProperty(SENSISION_PROXYPOLLER_HIGHWATER, DEFAULT_PROXYPOLLER_HIGHWATER));
+    this.maxbacklog = Long.valueOf(config.getProperty(SENSISION_PROXYPOLLER_MAXBACKLOG, DEFAULT_PROXYPOLLER_MAXBACKLOG));
+    this.maxbody = Long.valueOf(config.getProperty(SENSISION_PROXYPOLLER_MAXBODY, DEFAULT_PROXYPOLLER_MAXBODY));
+    this.maxline = Integer.valueOf(config.getProperty(SENSISION_PROXYPOLLER_MAXLINE, DEFAULT_PROXYPOLLER_MAXLINE));
+    this.retryAfter = config.getProperty(SENSISION_PROXYPOLLER_RETRYAFTER, DEFAULT_PROXYPOLLER_RETRYAFTER);
+    this.timeout = Long.valueOf(config.getProperty(SENSISION_PROXYPOLLER_TIMEOUT, DEFAULT_PROXYPOLLER_TIMEOUT));
+
+    long commitDelay = Long.valueOf(config.getProperty(SENSISION_PROXYPOLLER_COMMIT_DELAY, DEFAULT_PROXYPOLLER_COMMIT_DELAY));
+    long commitSize = Long.valueOf(config.getProperty(SENSISION_PROXYPOLLER_COMMIT_SIZE, DEFAULT_PROXYPOLLER_COMMIT_SIZE));
+    boolean fsync = "true".equals(config.getProperty(SENSISION_PROXYPOLLER_FSYNC, DEFAULT_PROXYPOLLER_FSYNC));
+
+    this.committer = new GroupCommitter("ProxyPoller " + port, commitDelay, commitSize, fsync);
+
     //
     // Start Jetty server
     //
     
-    server = new Server();
-    SocketConnector connector = new SocketConnector();
+    QueuedThreadPool pool = new QueuedThreadPool(maxthreads);
+    pool.setDaemon(true);
+    pool.setName("Sensision ProxyPoller");
+
+    server = new Server(pool);
+    ServerConnector connector = new ServerConnector(server, acceptors, selectors);
     if (config.containsKey(SENSISION_PROXYPOLLER_HOST)) {
       connector.setHost(config.getProperty(SENSISION_PROXYPOLLER_HOST));
     }
-    connector.setAcceptors(acceptors);
-    // (Jetty 9) ServerConnector connector = new ServerConnector(this.server, acceptors, selectors);
     connector.setPort(port);
+    connector.setIdleTimeout(idleTimeout);
     connector.setName("SensisionProxyPoller");
-    
+
     server.setConnectors(new Connector[] { connector });
 
     final ProxyPoller self = this;
@@ -130,52 +294,522 @@ public class ProxyPoller extends Thread {
     // Check if the provided token is among the list of authorized ones
     //
     
-    if (null != this.tokens) {
-      if (null == token || Arrays.binarySearch(this.tokens, token) < 0) {
+    Tenant tenant = null == token ? null : this.tenants.get(token);
+
+    if (null == tenant && (null != this.tokens || !this.tenants.isEmpty())) {
+      if (null == token || null == this.tokens || Arrays.binarySearch(this.tokens, token) < 0) {
         response.setStatus(HttpServletResponse.SC_FORBIDDEN);
         return;
       }
     }
-    
-    String contentType = request.getHeader("Content-Type");
-    
-    InputStream in = request.getInputStream();
-    
-    if ("application/gzip".equals(contentType)) {
-      in = new GZIPInputStream(in);
+
+    //
+    // Enforce the limits of the tenant
+    //
+
+    if (null != tenant) {
+      long delay = null == tenant.bucket ? 0L : tenant.bucket.getDelay();
+
+      if (delay > 0L || (tenant.quota > 0L && tenant.inflight.get() >= tenant.quota)) {
+        response.setHeader("Retry-After", delay > 0L ? Long.toString((delay + 999L) / 1000L) : this.retryAfter);
+        response.setStatus(SC_TOO_MANY_REQUESTS);
+        tenant.rejected();
+        return;
+      }
     }
-    
-    StringBuilder sb = new StringBuilder();
+
+    //
+    // Reject the request upfront if we are already lagging behind
+    //
+
+    if (this.buffered.get() >= this.highwater || isBacklogged()) {
+      response.setHeader("Retry-After", this.retryAfter);
+      response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
+
+    boolean gzip = "application/gzip".equals(request.getHeader("Content-Type")) || "gzip".equalsIgnoreCase(request.getHeader("Content-Encoding"));
+
+    AsyncContext context = request.startAsync();
+    context.setTimeout(this.timeout);
+
+    ServletInputStream in = request.getInputStream();
+
+    Ingest ingest = new Ingest(context, in, gzip, tenant);
+    context.addListener(ingest);
+    in.setReadListener(ingest);
+  }
+
+  private void configureTenants(Properties config) {
+    Map<String,Tenant> byName = new LinkedHashMap<String,Tenant>();
+
+    for (Object key: config.keySet()) {
+      String name = key.toString();
+
+      if (!name.startsWith(SENSISION_PROXYPOLLER_TENANT_PREFIX) || !name.endsWith(TENANT_TOKENS)) {
+        continue;
+      }
+
+      String tenant = name.substring(SENSISION_PROXYPOLLER_TENANT_PREFIX.length(), name.length() - TENANT_TOKENS.length());
+
+      if ("".equals(tenant) || !"".equals(tenant.replaceAll("[a-zA-Z0-9_-]", ""))) {
+        throw new RuntimeException("Invalid tenant name at property '" + name + "'.");
+      }
+
+      String prefix = SENSISION_PROXYPOLLER_TENANT_PREFIX + tenant;
+
+      String queue = config.getProperty(prefix + TENANT_QUEUE);
+
+      if (null != queue && ("".equals(queue) || !"".equals(queue.replaceAll("[a-zA-Z0-9_-]", "")))) {
+        throw new RuntimeException("Invalid queue name at property '" + prefix + TENANT_QUEUE + "'.");
+      }
+
+      if (null != queue && !isConfiguredQueue(config, queue)) {
+        throw new RuntimeException("Unknown queue '" + queue + "' at property '" + prefix + TENANT_QUEUE + "', it is neither a QueueManager nor a forwarded queue.");
+      }
+
+      SensisionTokenBucket bucket = null;
+
+      if (config.containsKey(prefix + TENANT_RATE)) {
+        double rate = Double.valueOf(config.getProperty(prefix + TENANT_RATE));
+        double burst = Double.valueOf(config.getProperty(prefix + TENANT_BURST, Double.toString(rate)));
+        bucket = new SensisionTokenBucket(rate, burst);
+      }
+
+      long quota = Long.valueOf(config.getProperty(prefix + TENANT_QUOTA, "0"));
+
+      byName.put(tenant, new Tenant(tenant, queue, bucket, quota));
+    }
+
+    for (Entry<String,Tenant> entry: byName.entrySet()) {
+      for (String token: config.getProperty(SENSISION_PROXYPOLLER_TENANT_PREFIX + entry.getKey() + TENANT_TOKENS).split(",")) {
+        token = token.trim();
+
+        if ("".equals(token)) {
+          continue;
+        }
+
+        if (this.tenants.containsKey(token)) {
+          throw new RuntimeException("Token of tenant '" + entry.getKey() + "' is already associated with tenant '" + this.tenants.get(token).name + "'.");
+        }
+
+        this.tenants.put(token, entry.getValue());
+      }
+    }
+  }
+
+  /**
+   * Check whether a queue is one the QueueManager routes values to or one which is forwarded
+   */
+  private static boolean isConfiguredQueue(Properties config, String queue) {
+    if (config.containsKey(QueueManager.SELECTOR_PREFIX + queue) || queue.equals(config.getProperty(QueueManager.SENSISION_QM_DEFAULT))) {
+      return true;
+    }
+
+    if (null != config.getProperty(QueueForwarder.QF_QUEUES)) {
+      for (String forwarded: config.getProperty(QueueForwarder.QF_QUEUES).split(",")) {
+        if (queue.equals(forwarded.trim())) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * Check if the number of files waiting in the queue directory exceeds the backlog limit.
+   * The files are counted at most once every BACKLOG_CHECK_INTERVAL ms.
+   */
+  private boolean isBacklogged() {
+    if (this.maxbacklog <= 0) {
+      return false;
+    }
+
     long now = System.currentTimeMillis();
-    sb.append(Long.toHexString(Long.MAX_VALUE - now));
-    sb.append(".");
-    sb.append(Long.toHexString(Long.MAX_VALUE - now));
-    sb.append(".");
-    sb.append(this.uuid);
-    sb.append(Sensision.SENSISION_METRICS_SUFFIX);
-    
-    File outfile = new File(Sensision.getQueueDir(), sb.toString() + ".new");
-    OutputStream out = new FileOutputStream(outfile);
-    
-    byte[] buf = new byte[8192];
+    long last = this.lastBacklogCheck.get();
+
+    if (now - last >= BACKLOG_CHECK_INTERVAL && this.lastBacklogCheck.compareAndSet(last, now)) {
+      String[] files = Sensision.getQueueDir().list(new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+          return name.endsWith(Sensision.SENSISION_METRICS_SUFFIX);
+        }
+      });
+
+      this.backlog = null == files ? 0L : files.length;
+    }
+
+    return this.backlog >= this.maxbacklog;
+  }
+
+  private static final class Tenant {
+    private final String name;
+
+    /**
+     * Queue the data of the tenant is written to, null to let the QueueManager route it
+     */
+    private final String queue;
+
+    /**
+     * Rate limit in bytes, null if the tenant is not rate limited
+     */
+    private final SensisionTokenBucket bucket;
+
+    /**
+     * Maximum number of bytes in flight, 0 for no limit
+     */
+    private final long quota;
+
+    /**
+     * Number of bytes currently buffered or being committed
+     */
+    private final AtomicLong inflight = new AtomicLong(0L);
+
+    private final Map<String,String> labels = new HashMap<String,String>();
 
-    while(true) {
-      int len = in.read(buf);
-      
-      if (len < 0) {
-        break;
+    private Tenant(String name, String queue, SensisionTokenBucket bucket, long quota) {
+      this.name = name;
+      this.queue = queue;
+      this.bucket = bucket;
+      this.quota = quota;
+      this.labels.put(SensisionConstants.SENSISION_LABEL_TENANT, name);
+    }
+
+    private void rejected() {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_PROXY_REJECTED, this.labels, 1);
+    }
+  }
+
+  /**
+   * Reads a request body without blocking, validating its lines as they are received
+   * and submitting the valid data to the GroupCommitter.
+   */
+  private class Ingest implements ReadListener, AsyncListener, StreamingGunzip.Sink, GroupCommitter.Callback {
+
+    private final AsyncContext context;
+
+    private final ServletInputStream in;
+
+    private final StreamingGunzip gunzip;
+
+    private final Tenant tenant;
+
+    private final byte[] buf = new byte[8192];
+
+    /**
+     * Validated lines
+     */
+    private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+    /**
+     * Current (incomplete) line
+     */
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+    /**
+     * Number of bytes accounted for in 'buffered'
+     */
+    private long accounted = 0L;
+
+    /**
+     * Number of uncompressed bytes received
+     */
+    private long received = 0L;
+
+    private long lineno = 0L;
+
+    /**
+     * Set once the committer started writing the data, the response is then the outcome of the commit.
+     * Guarded by this.
+     */
+    private boolean claimed = false;
+
+    /**
+     * Set once the response was sent, or is about to be. Only modified while holding this.
+     */
+    private final AtomicBoolean done = new AtomicBoolean(false);
+
+    private Ingest(AsyncContext context, ServletInputStream in, boolean gzip, Tenant tenant) {
+      this.context = context;
+      this.in = in;
+      this.gunzip = gzip ? new StreamingGunzip(this) : null;
+      this.tenant = tenant;
+    }
+
+    @Override
+    public void onDataAvailable() throws IOException {
+      try {
+        while (!this.done.get() && this.in.isReady()) {
+          int len = this.in.read(this.buf);
+
+          if (len < 0) {
+            break;
+          }
+
+          if (null != this.gunzip) {
+            this.gunzip.feed(this.buf, 0, len);
+          } else {
+            write(this.buf, 0, len);
+          }
+        }
+      } catch (RejectException re) {
+        complete(re.status, re.getMessage());
+      } catch (IOException ioe) {
+        complete(HttpServletResponse.SC_BAD_REQUEST, ioe.getMessage());
       }
-      
-      out.write(buf, 0, len);
     }
-    
-    out.close();
-    
-    // Rename file to strip ".new" suffix
-    
-    outfile.renameTo(new File(Sensision.getQueueDir(), sb.toString()));
-    
-    response.setStatus(HttpServletResponse.SC_OK);
+
+    @Override
+    public void onAllDataRead() throws IOException {
+      if (this.done.get()) {
+        return;
+      }
+
+      try {
+        if (null != this.gunzip) {
+          this.gunzip.finish();
+        }
+
+        // Handle a last line without a trailing newline
+        if (this.line.size() > 0) {
+          endOfLine();
+        }
+      } catch (RejectException re) {
+        complete(re.status, re.getMessage());
+        return;
+      } catch (IOException ioe) {
+        complete(HttpServletResponse.SC_BAD_REQUEST, ioe.getMessage());
+        return;
+      }
+
+      if (0 == this.data.size()) {
+        complete(HttpServletResponse.SC_OK, null);
+        return;
+      }
+
+      committer.submit(null == this.tenant ? null : this.tenant.queue, this.data, this);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+      complete(HttpServletResponse.SC_BAD_REQUEST, null);
+    }
+
+    /**
+     * Receives the (decompressed) body and splits it into lines
+     */
+    @Override
+    public void write(byte[] buf, int off, int len) throws IOException {
+      this.received += len;
+
+      if (this.received > maxbody) {
+        throw new RejectException(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Request body exceeds " + maxbody + " bytes.");
+      }
+
+      int end = off + len;
+      int start = off;
+
+      for (int i = off; i < end; i++) {
+        if ('\n' == buf[i]) {
+          appendToLine(buf, start, i - start);
+          endOfLine();
+          start = i + 1;
+        }
+      }
+
+      if (start < end) {
+        appendToLine(buf, start, end - start);
+      }
+    }
+
+    private void appendToLine(byte[] buf, int off, int len) throws IOException {
+      if (this.line.size() + len > maxline) {
+        throw new RejectException(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, "Line " + (this.lineno + 1) + " exceeds " + maxline + " bytes.");
+      }
+      this.line.write(buf, off, len);
+    }
+
+    private void endOfLine() throws IOException {
+      this.lineno++;
+
+      String str = new String(this.line.toByteArray(), Charsets.UTF_8);
+      this.line.reset();
+
+      if (str.endsWith("\r")) {
+        str = str.substring(0, str.length() - 1);
+      }
+
+      if (str.isEmpty()) {
+        return;
+      }
+
+      if (null == Sensision.parseMetric(str)) {
+        throw new RejectException(HttpServletResponse.SC_BAD_REQUEST, "Invalid metric at line " + this.lineno + ".");
+      }
+
+      byte[] bytes = str.getBytes(Charsets.UTF_8);
+
+      //
+      // Account for the buffered data, give up if we exceed the high water mark
+      //
+
+      if (account(bytes.length + 1) > highwater) {
+        throw new RejectException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, null);
+      }
+
+      if (null != this.tenant && this.tenant.quota > 0L && this.tenant.inflight.get() > this.tenant.quota) {
+        throw new RejectException(SC_TOO_MANY_REQUESTS, "Quota of " + this.tenant.quota + " bytes exceeded.");
+      }
+
+      this.data.write(bytes);
+      this.data.write('\n');
+    }
+
+    @Override
+    public synchronized boolean claim() {
+      // The request was already answered, e.g. with a 503 after a timeout, the client will send the data again
+      if (this.done.get()) {
+        return false;
+      }
+
+      this.claimed = true;
+
+      return true;
+    }
+
+    @Override
+    public void committed() {
+      if (null != this.tenant) {
+        Sensision.update(SensisionConstants.SENSISION_CLASS_PROXY_BYTES, this.tenant.labels, this.data.size());
+      }
+      release();
+      complete(HttpServletResponse.SC_OK, null);
+    }
+
+    @Override
+    public void failed(IOException ioe) {
+      release();
+      complete(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, null);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+      synchronized (this) {
+        //
+        // If the data is being committed, a 503 would make the client send it again,
+        // wait for the outcome of the commit instead
+        //
+
+        while (this.claimed && !this.done.get()) {
+          try {
+            this.wait();
+          } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+
+        complete(HttpServletResponse.SC_SERVICE_UNAVAILABLE, null);
+      }
+    }
+
+    @Override
+    public void onError(AsyncEvent event) throws IOException {
+      complete(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, null);
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException {}
+
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException {}
+
+    private synchronized long account(int len) throws IOException {
+      // Do not account for data once the response was sent
+      if (this.done.get()) {
+        throw new RejectException(HttpServletResponse.SC_SERVICE_UNAVAILABLE, null);
+      }
+      this.accounted += len;
+
+      if (null != this.tenant) {
+        // Rate limited tenants may go into debt, their next requests will be delayed
+        if (null != this.tenant.bucket) {
+          this.tenant.bucket.consume(len);
+        }
+        this.tenant.inflight.addAndGet(len);
+      }
+
+      return buffered.addAndGet(len);
+    }
+
+    private synchronized void release() {
+      buffered.addAndGet(-this.accounted);
+      if (null != this.tenant) {
+        this.tenant.inflight.addAndGet(-this.accounted);
+      }
+      this.accounted = 0L;
+    }
+
+    /**
+     * Send the response, only the first call has an effect
+     */
+    private void complete(int status, String message) {
+      synchronized (this) {
+        if (!this.done.compareAndSet(false, true)) {
+          return;
+        }
+
+        this.notifyAll();
+
+        // Data claimed by the committer is released once committed
+        if (!this.claimed) {
+          release();
+        }
+      }
+
+      if (null != this.tenant && SC_TOO_MANY_REQUESTS == status) {
+        this.tenant.rejected();
+      }
+
+      if (null != this.gunzip) {
+        this.gunzip.end();
+      }
+
+      try {
+        HttpServletResponse response = (HttpServletResponse) this.context.getResponse();
+
+        response.setStatus(status);
+
+        if (HttpServletResponse.SC_SERVICE_UNAVAILABLE == status || SC_TOO_MANY_REQUESTS == status) {
+          response.setHeader("Retry-After", retryAfter);
+        }
+
+        if (null != message) {
+          response.setContentType("text/plain");
+          response.setCharacterEncoding("UTF-8");
+          response.getWriter().println(message);
+        }
+
+        this.context.complete();
+      } catch (Throwable t) {
+        // The request may have already timed out
+      }
+    }
+  }
+
+  /**
+   * Thrown to abort the processing of a request with a given status
+   */
+  private static class RejectException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    private RejectException(int status, String message) {
+      super(message);
+      this.status = status;
+    }
   }
   
   @Override
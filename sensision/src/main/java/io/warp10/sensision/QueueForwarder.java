@@ -21,7 +21,7 @@ import io.warp10.sensision.Sensision.Value;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
@@ -268,25 +268,15 @@ public class QueueForwarder extends Thread {
 
               batchfiles.add(file);
 
-              BufferedReader br = new BufferedReader(new FileReader(file));
+              // Queue files may be in the text or binary format
+              MetricsReader reader = new MetricsReader(new FileInputStream(file));
               batchsize++;
 
               while(true) {
-                String line = br.readLine();
+                Value value = reader.next();
 
-                if (null == line) {
-                  break;
-                }
-
-                //
-                // Attempt to parse metric
-                //
-
-                Value value = Sensision.parseMetric(line);
-
-                // Skip invalid metrics
                 if (null == value) {
-                  continue;
+                  break;
                 }
 
                 //
@@ -297,7 +287,7 @@ public class QueueForwarder extends Thread {
                 Sensision.dumpValue(spw, value, true, false, false);
 
                 spw.flush();
-                line = baos.toString("UTF-8");
+                String line = baos.toString("UTF-8");
                 baos.reset();
 
                 //
@@ -311,7 +301,7 @@ public class QueueForwarder extends Thread {
                 }
               }
 
-              br.close();
+              reader.close();
             }
 
             pw.close();
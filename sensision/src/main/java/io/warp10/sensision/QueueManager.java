@@ -16,10 +16,14 @@
 
 package io.warp10.sensision;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.ConnectException;
 import java.nio.file.DirectoryStream;
@@ -40,6 +44,7 @@ import java.util.regex.Pattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.MinMaxPriorityQueue;
 
 import io.warp10.sensision.Sensision.Value;
@@ -55,11 +60,17 @@ public class QueueManager extends Thread {
 
   public static final String SENSISION_QM_DEFAULT = "sensision.qm.default";
 
+  /**
+   * Format of the queue files, 'text' or 'binary'
+   */
+  public static final String SENSISION_QM_FORMAT = "sensision.qm.format";
+
   /**
    * Queue selector prefix. The rest of the parameter name is the name of the
    * target queue. The value is a selector.
    */
   public static final String SELECTOR_PREFIX = "sensision.qm.selector.";
+
   public static final String PENDING_SUFFIX = ".pending";
 
   /**
@@ -88,6 +99,23 @@ public class QueueManager extends Thread {
 
   private final String defaultQueue;
 
+  /**
+   * Should the queue files be written in the binary format
+   */
+  private final boolean binary;
+
+  /**
+   * Aggregation stage applied to the routed values, null if no aggregation rule is configured
+   */
+  private final Aggregator aggregator;
+
+  /**
+   * Router for the values routed directly by the pollers, committed at each run
+   */
+  private Router passthrough = null;
+
+  private final Object passthroughLock = new Object();
+
   public QueueManager(Properties properties) throws Exception {
     this.queueDir = Sensision.getQueueDir();
     this.topn = Integer.valueOf(properties.getProperty(HTTP_TOPN));
@@ -121,6 +149,19 @@ public class QueueManager extends Thread {
 
     this.defaultQueue = properties.getProperty(SENSISION_QM_DEFAULT);
 
+    String format = properties.getProperty(SENSISION_QM_FORMAT, "text");
+
+    if ("binary".equals(format)) {
+      this.binary = true;
+    } else if ("text".equals(format)) {
+      this.binary = false;
+    } else {
+      throw new RuntimeException("Invalid format '" + format + "' at property '" + SENSISION_QM_FORMAT + "'.");
+    }
+
+    Aggregator aggregator = new Aggregator(properties);
+    this.aggregator = aggregator.isEmpty() ? null : aggregator;
+
     if (queues.isEmpty() && null == defaultQueue) {
       LOGGER.warn("No default queue defined, some metrics may be lost.");
     }
@@ -133,21 +174,16 @@ public class QueueManager extends Thread {
   @Override
   public void run() {
 
-    Map<String,PrintWriter> openQueueWriters = new HashMap<String,PrintWriter>();
-    List<String> openQueueFiles = new ArrayList<String>();
-
     while(true) {
 
-      openQueueWriters.clear();
-
       int idx = 0;
 
-      boolean error = false;
-
       DirectoryStream<Path> files = null;
 
       List<File> currentFiles = new ArrayList<File>();
 
+      Router router = null;
+
       try {
         //
         // Retrieve a list of files to transmit
@@ -177,13 +213,7 @@ public class QueueManager extends Thread {
 
         iterator = topfiles.iterator();
 
-        long now = System.currentTimeMillis();
-
-        //
-        // Generate a UUID for this queue manager run (now/uuid must be a unique combination)
-        //
-
-        String uuid = UUID.randomUUID().toString();
+        router = new Router();
 
         while (null != files && idx < this.topn && iterator.hasNext()) {
           //
@@ -194,154 +224,331 @@ public class QueueManager extends Thread {
           idx++;
           currentFiles.add(file);
 
-          BufferedReader br = new BufferedReader(new FileReader(file));
+          MetricsReader reader = new MetricsReader(new FileInputStream(file));
 
-          while(true) {
-            String line = br.readLine();
+          try {
+            while(true) {
+              Value value = reader.next();
+
+              if (null == value) {
+                break;
+              }
 
-            if (null == line) {
-              break;
+              router.route(value);
             }
+          } finally {
+            reader.close();
+          }
+        }
 
-            //
-            // Attempt to parse metric
-            //
+        router.commit();
+        router = null;
 
-            Value value = Sensision.parseMetric(line);
+        //
+        // Remove ventilated files
+        //
 
-            // Skip invalid metrics
-            if (null == value) {
-              continue;
-            }
+        for (File file: currentFiles) {
+          file.delete();
+        }
+      } catch (IOException ioe) {
+        LOGGER.error("Caught IO exception in 'run'", ioe);
+        if (ioe instanceof ConnectException) {
+          break;
+        }
+      } catch (Exception e) {
+        LOGGER.error("Caught exception in 'run'", e);
+      } finally {
 
-            //
-            // Loop over the queues to determine where this metric should be sent
-            //
+        if (null != files) {
+          try { files.close(); } catch (IOException ioe) {}
+        }
 
-            boolean queued = false;
+        if (null != router) {
+          router.abort();
+        }
+      }
 
-            for (Entry<String,Pattern> entry: queues.entrySet()) {
-              Matcher m = entry.getValue().matcher(value.cls);
+      //
+      // Commit the values which were routed directly by the pollers since the last run
+      //
 
-              if (!m.matches()) {
-                continue;
-              }
+      Router pending = null;
 
-              //
-              // Check if we have an open OutputStream for the current queue
-              //
+      synchronized(this.passthroughLock) {
+        pending = this.passthrough;
+        this.passthrough = null;
+      }
 
-              PrintWriter out = openQueueWriters.get(entry.getKey());
+      if (null != pending) {
+        try {
+          pending.commit();
+        } catch (IOException ioe) {
+          LOGGER.error("Caught IO exception while committing pass-through values", ioe);
+          pending.abort();
+        }
+      }
 
-              if (null == out) {
-                StringBuilder sb = new StringBuilder();
+      try {
+        Thread.sleep(this.period);
+      } catch(InterruptedException ie) {
+      }
+    }
+  }
 
-                sb.append(Long.toHexString(Long.MAX_VALUE - now));
-                sb.append(".");
-                sb.append(uuid);
-                sb.append(".");
-                sb.append(entry.getKey());
-                sb.append(Sensision.SENSISION_QUEUED_SUFFIX);
+  /**
+   * Route metrics in the Sensision text or binary format read from a stream directly to the queues,
+   * without going through a '.metrics' file in the queue directory.
+   *
+   * The routed values are made visible to the QueueForwarders at the next run of the
+   * QueueManager.
+   *
+   * The stream is read entirely before any value is routed, if it cannot be read none of its
+   * values are routed.
+   *
+   * @param in Stream to read metrics from, it is closed once read
+   * @return the number of routed values
+   */
+  public long route(InputStream in) throws IOException {
+    List<Value> values = new ArrayList<Value>();
 
-                openQueueFiles.add(sb.toString());
+    MetricsReader reader = new MetricsReader(in);
 
-                sb.append(PENDING_SUFFIX);
+    try {
+      while(true) {
+        Value value = reader.next();
 
-                out = new PrintWriter(new File(Sensision.getQueueDir(), sb.toString()));
-                openQueueWriters.put(entry.getKey(), out);
-              }
+        if (null == value) {
+          break;
+        }
 
-              //
-              // Output the value
-              //
+        values.add(value);
+      }
+    } finally {
+      reader.close();
+    }
 
-              Sensision.dumpValue(out, value, true, true, false);
+    return route(values);
+  }
 
-              queued = true;
-            }
+  /**
+   * Route values produced by a collector of the service directly to the queues, without going
+   * through their text representation.
+   *
+   * The routed values are made visible to the QueueForwarders at the next run of the
+   * QueueManager.
+   *
+   * @param values Values to route, default labels, location and elevation are applied when they are written
+   * @return the number of routed values
+   */
+  public long route(Iterable<Value> values) throws IOException {
+    long count = 0L;
 
-            if (!queued && null != defaultQueue) {
-              PrintWriter out = openQueueWriters.get(defaultQueue);
+    synchronized(this.passthroughLock) {
+      if (null == this.passthrough) {
+        this.passthrough = new Router();
+      }
 
-              if (null == out) {
-                StringBuilder sb = new StringBuilder();
+      for (Value value: values) {
+        this.passthrough.route(value);
+        count++;
+      }
+    }
 
-                sb.append(Long.toHexString(Long.MAX_VALUE - now));
-                sb.append(".");
-                sb.append(uuid);
-                sb.append(".");
-                sb.append(defaultQueue);
-                sb.append(Sensision.SENSISION_QUEUED_SUFFIX);
+    return count;
+  }
 
-                openQueueFiles.add(sb.toString());
+  /**
+   * Ventilates values in '.queued' files according to the queue selectors.
+   *
+   * Values are written to '.pending' files which are renamed when the router is
+   * committed or deleted if it is aborted.
+   */
+  private class Router {
 
-                sb.append(PENDING_SUFFIX);
+    /**
+     * now/uuid must be a unique combination
+     */
+    private final long now = System.currentTimeMillis();
+    private final String uuid = UUID.randomUUID().toString();
 
-                out = new PrintWriter(new File(Sensision.getQueueDir(), sb.toString()));
-                openQueueWriters.put(defaultQueue, out);
-              }
+    private final Map<String,PrintWriter> writers = new HashMap<String,PrintWriter>();
 
-              //
-              // Output the value
-              //
+    private final Map<String,SensisionBinaryFormat.Writer> binaryWriters = new HashMap<String,SensisionBinaryFormat.Writer>();
 
-              Sensision.dumpValue(out, value, true, true, false);
-            }
-          }
-          br.close();
+    private final Map<String,OutputStream> streams = new HashMap<String,OutputStream>();
+
+    private final List<String> files = new ArrayList<String>();
+
+    /**
+     * Values consumed by the aggregator, they are only offered to it once the router is committed
+     * so the values of files which could not be routed are not aggregated twice
+     */
+    private final List<Value> aggregated = new ArrayList<Value>();
+
+    void route(Value value) throws IOException {
+      if (null != aggregator && aggregator.accepts(value)) {
+        this.aggregated.add(value);
+        return;
+      }
+
+      dispatch(value);
+    }
+
+    private void dispatch(Value value) throws IOException {
+      //
+      // Loop over the queues to determine where this metric should be sent
+      //
+
+      boolean queued = false;
+
+      for (Entry<String,Pattern> entry: queues.entrySet()) {
+        Matcher m = entry.getValue().matcher(value.cls);
+
+        if (!m.matches()) {
+          continue;
         }
-      } catch (IOException ioe) {
-        error = true;
-        LOGGER.error("Caught IO exception in 'run'", ioe);
-        if (ioe instanceof ConnectException) {
-          break;
+
+        output(entry.getKey(), value);
+
+        queued = true;
+      }
+
+      if (!queued && null != defaultQueue) {
+        output(defaultQueue, value);
+      }
+    }
+
+    private void output(String queue, Value value) throws IOException {
+      if (binary) {
+        SensisionBinaryFormat.Writer out = this.binaryWriters.get(queue);
+
+        if (null == out) {
+          out = new SensisionBinaryFormat.Writer(open(queue));
+          this.binaryWriters.put(queue, out);
         }
-      } catch (Exception e) {
-        error = true;
-        LOGGER.error("Caught exception in 'run'", e);
-      } finally {
 
-        if (null != files) {
-          try { files.close(); } catch (IOException ioe) {}
+        Sensision.dumpValue(out, value, true);
+      } else {
+        PrintWriter out = this.writers.get(queue);
+
+        if (null == out) {
+          out = new PrintWriter(new OutputStreamWriter(open(queue), Charsets.UTF_8));
+          this.writers.put(queue, out);
         }
 
+        Sensision.dumpValue(out, value, true, true, false);
+      }
+    }
+
+    /**
+     * Open the pending file for the given queue
+     */
+    private OutputStream open(String queue) throws IOException {
+      StringBuilder sb = new StringBuilder();
+
+      sb.append(Long.toHexString(Long.MAX_VALUE - now));
+      sb.append(".");
+      sb.append(uuid);
+      sb.append(".");
+      sb.append(queue);
+      sb.append(Sensision.SENSISION_QUEUED_SUFFIX);
+
+      this.files.add(sb.toString());
+
+      sb.append(PENDING_SUFFIX);
+
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(Sensision.getQueueDir(), sb.toString())));
+      this.streams.put(queue, out);
+
+      return out;
+    }
+
+    void commit() throws IOException {
+      long now = System.currentTimeMillis() * Sensision.TIME_UNITS_PER_MS;
+
+      boolean flushed = false;
+
+      try {
         //
-        // Close open queue files
+        // Queue the aggregates of the windows which are over
         //
 
-        for (PrintWriter pw: openQueueWriters.values()) {
-          pw.close();
+        if (null != aggregator) {
+          List<Value> aggregates = aggregator.flush(now, false);
+          flushed = true;
+
+          for (Value value: aggregates) {
+            dispatch(value);
+          }
         }
 
-        openQueueWriters.clear();
+        close();
 
-        if (!error) {
-          for (String filename: openQueueFiles) {
-            File file = new File(Sensision.getQueueDir(), filename + PENDING_SUFFIX);
-            file.renameTo(new File(Sensision.getQueueDir(), filename));
-          }
+        for (String filename: this.files) {
+          File file = new File(Sensision.getQueueDir(), filename + PENDING_SUFFIX);
+          file.renameTo(new File(Sensision.getQueueDir(), filename));
+        }
 
-          //
-          // Remove ventilated files
-          //
+        this.files.clear();
+      } catch (IOException ioe) {
+        // The flushed windows will be queued by the next commit
+        if (flushed) {
+          aggregator.rollback();
+        }
+        throw ioe;
+      }
 
-          for (File file: currentFiles) {
-            file.delete();
-          }
-        } else {
-          for (String filename: openQueueFiles) {
-            File file = new File(Sensision.getQueueDir(), filename + PENDING_SUFFIX);
-            file.delete();
-          }
+      //
+      // The routed values are now queued, the aggregated ones can be offered to the aggregator
+      //
+
+      if (null != aggregator) {
+        for (Value value: this.aggregated) {
+          aggregator.offer(value, now);
         }
+      }
+
+      this.aggregated.clear();
+    }
+
+    void abort() {
+      this.aggregated.clear();
 
-        openQueueFiles.clear();
+      close();
+
+      for (String filename: this.files) {
+        File file = new File(Sensision.getQueueDir(), filename + PENDING_SUFFIX);
+        file.delete();
       }
 
-      try {
-        Thread.sleep(this.period);
-      } catch(InterruptedException ie) {
+      this.files.clear();
+    }
+
+    private void close() {
+      for (PrintWriter pw: this.writers.values()) {
+        pw.flush();
+      }
+
+      for (SensisionBinaryFormat.Writer writer: this.binaryWriters.values()) {
+        try {
+          writer.close();
+        } catch (IOException ioe) {
+          LOGGER.error("Error while closing queue file.", ioe);
+        }
       }
+
+      for (OutputStream out: this.streams.values()) {
+        try {
+          out.close();
+        } catch (IOException ioe) {
+          LOGGER.error("Error while closing queue file.", ioe);
+        }
+      }
+
+      this.writers.clear();
+      this.binaryWriters.clear();
+      this.streams.clear();
     }
   }
 }
@@ -0,0 +1,500 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.management.MBeanServerConnection;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+/**
+ * Poller which collects the MBeans of other JVMs, without requiring the Sensision JMX agent in them.
+ *
+ * JVMs are reached either through JMX service URLs or, for the local JVMs whose display name matches
+ * a regular expression, through the Attach API which returns the address of their local connector.
+ * Each JVM is polled periodically on the shared timing wheel, using the walk, filters and cached plans
+ * of SensisionJMXPoller, by an executor whose size bounds the number of concurrent polls.
+ */
+public class RemoteJMXPoller extends Thread {
+
+  private static final String DEFAULT_JMXPOLLER_PERIOD = "60000";
+  private static final String DEFAULT_JMXPOLLER_SCANPERIOD = "60000";
+  private static final String DEFAULT_JMXPOLLER_NTHREADS = "4";
+  private static final String DEFAULT_JMXPOLLER_SPREAD = "false";
+  private static final String DEFAULT_JMXPOLLER_JITTER = "0";
+  private static final String DEFAULT_JMXPOLLER_PASSTHROUGH = "false";
+
+  private static final String VIRTUALMACHINE_CLASS = "com.sun.tools.attach.VirtualMachine";
+  private static final String VIRTUALMACHINEDESCRIPTOR_CLASS = "com.sun.tools.attach.VirtualMachineDescriptor";
+
+  /**
+   * Agent property containing the address of the local JMX connector of a JVM
+   */
+  private static final String LOCAL_CONNECTOR_ADDRESS = "com.sun.management.jmxremote.localConnectorAddress";
+
+  private static final String LABEL_TARGET = "jmx.target";
+  private static final String LABEL_PID = "jmx.pid";
+
+  private static final class Target {
+    /**
+     * JMX service URL, null for the JVMs reached through the Attach API
+     */
+    private String url;
+
+    /**
+     * Process id of the JVMs reached through the Attach API
+     */
+    private String pid;
+
+    /**
+     * Labels added to the metrics of the target
+     */
+    private Map<String,String> labels = new LinkedHashMap<String,String>();
+
+    /**
+     * Labels of the self metrics of the target
+     */
+    private Map<String,String> selfLabels = new HashMap<String,String>();
+
+    private JMXConnector connector;
+
+    private SensisionJMXPoller poller;
+
+    /**
+     * UUID identifying the current connection to the target
+     */
+    private String uuid;
+
+    /**
+     * Time (in ms) of the current connection to the target
+     */
+    private long connected;
+  }
+
+  /**
+   * Targets by id
+   */
+  private final Map<String,Target> targets = new ConcurrentHashMap<String,Target>();
+
+  /**
+   * Scheduled polls of each target
+   */
+  private final Map<String,TimingWheel.Timeout> schedules = new ConcurrentHashMap<String,TimingWheel.Timeout>();
+
+  /**
+   * Targets currently being polled
+   */
+  private final Set<String> inflight = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+  private final TimingWheel wheel;
+
+  private final ExecutorService executor;
+
+  /**
+   * JMX service URLs of the static targets
+   */
+  private final List<String> urls = new ArrayList<String>();
+
+  /**
+   * Pattern of the display names of the local JVMs to attach to, null if disabled
+   */
+  private final Pattern attach;
+
+  /**
+   * Process id of this JVM, which cannot attach to itself
+   */
+  private final String self;
+
+  private final long period;
+
+  private final long scanPeriod;
+
+  private final boolean spread;
+
+  private final long jitter;
+
+  /**
+   * Filters of the MBeans and metrics, with the syntax of the agent arguments
+   */
+  private final String filters;
+
+  /**
+   * Specific sampling intervals of the MBeans
+   */
+  private final String intervals;
+
+  /**
+   * QueueManager to which metrics are streamed in pass-through mode, null otherwise
+   */
+  private final QueueManager qm;
+
+  public RemoteJMXPoller(Properties config) {
+    this(config, null);
+  }
+
+  /**
+   * @param config Configuration
+   * @param qm QueueManager to which the metrics should be streamed if pass-through mode is enabled
+   */
+  public RemoteJMXPoller(Properties config, QueueManager qm) {
+    if (null != config.getProperty(Sensision.SENSISION_JMXPOLLER_URLS)) {
+      for (String url: config.getProperty(Sensision.SENSISION_JMXPOLLER_URLS).split(",")) {
+        if (!"".equals(url.trim())) {
+          this.urls.add(url.trim());
+        }
+      }
+    }
+
+    if (null != config.getProperty(Sensision.SENSISION_JMXPOLLER_ATTACH)) {
+      this.attach = Pattern.compile(config.getProperty(Sensision.SENSISION_JMXPOLLER_ATTACH));
+    } else {
+      this.attach = null;
+    }
+
+    this.self = ManagementFactory.getRuntimeMXBean().getName().replaceAll("@.*", "");
+    this.period = Long.valueOf(config.getProperty(Sensision.SENSISION_JMXPOLLER_PERIOD, DEFAULT_JMXPOLLER_PERIOD));
+    this.scanPeriod = Long.valueOf(config.getProperty(Sensision.SENSISION_JMXPOLLER_SCANPERIOD, DEFAULT_JMXPOLLER_SCANPERIOD));
+    this.spread = Boolean.valueOf(config.getProperty(Sensision.SENSISION_JMXPOLLER_SPREAD, DEFAULT_JMXPOLLER_SPREAD));
+    this.jitter = Long.valueOf(config.getProperty(Sensision.SENSISION_JMXPOLLER_JITTER, DEFAULT_JMXPOLLER_JITTER));
+    this.filters = config.getProperty(Sensision.SENSISION_JMXPOLLER_FILTERS);
+    this.intervals = config.getProperty(Sensision.SENSISION_JMXPOLLER_INTERVALS);
+    this.qm = Boolean.valueOf(config.getProperty(Sensision.SENSISION_JMXPOLLER_PASSTHROUGH, DEFAULT_JMXPOLLER_PASSTHROUGH)) ? qm : null;
+
+    if (this.period <= 0L) {
+      throw new RuntimeException("Invalid JMX polling period " + this.period + ".");
+    }
+
+    int nthreads = Integer.valueOf(config.getProperty(Sensision.SENSISION_JMXPOLLER_NTHREADS, DEFAULT_JMXPOLLER_NTHREADS));
+    this.executor = new ThreadPoolExecutor(nthreads, nthreads, 60000L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(1024));
+    this.wheel = TimingWheel.getInstance(config);
+
+    this.setDaemon(true);
+    this.setName("[Sensision RemoteJMXPoller]");
+    this.start();
+  }
+
+  @Override
+  public void run() {
+
+    //
+    // Polls are scheduled on the timing wheel, we only need to periodically
+    // look for new JVMs.
+    //
+
+    while(true) {
+      getTargets();
+
+      try {
+        Thread.sleep(this.scanPeriod);
+      } catch (InterruptedException ie) {
+      }
+    }
+  }
+
+  private void getTargets() {
+    Map<String,Target> newtargets = new HashMap<String,Target>();
+
+    for (String url: this.urls) {
+      Target target = new Target();
+      target.url = url;
+      target.labels.put(LABEL_TARGET, url);
+      newtargets.put(url, target);
+    }
+
+    if (null != this.attach) {
+      for (Entry<String,String> vm: listVirtualMachines().entrySet()) {
+        String pid = vm.getKey();
+        String name = vm.getValue();
+
+        if (this.self.equals(pid) || !this.attach.matcher(name).matches()) {
+          continue;
+        }
+
+        Target target = new Target();
+        target.pid = pid;
+        // The display name is the main class or jar followed by the arguments
+        target.labels.put(LABEL_TARGET, name.trim().replaceAll("\\s.*", ""));
+        target.labels.put(LABEL_PID, pid);
+        newtargets.put("pid:" + pid, target);
+      }
+    }
+
+    //
+    // Stop polling the targets which disappeared
+    //
+
+    for (String id: new ArrayList<String>(this.targets.keySet())) {
+      if (!newtargets.containsKey(id)) {
+        Target target = this.targets.remove(id);
+        TimingWheel.Timeout schedule = this.schedules.remove(id);
+        if (null != schedule) {
+          schedule.cancel();
+        }
+        if (!this.inflight.contains(id)) {
+          disconnect(target);
+        }
+      }
+    }
+
+    //
+    // Schedule the new targets, each one at a fixed phase within the period when spreading
+    //
+
+    for (Entry<String,Target> entry: newtargets.entrySet()) {
+      final String id = entry.getKey();
+
+      if (this.targets.containsKey(id)) {
+        continue;
+      }
+
+      entry.getValue().selfLabels.put(SensisionConstants.SENSISION_LABEL_TARGET, id);
+      this.targets.put(id, entry.getValue());
+
+      long delay = this.spread ? TimingWheel.phase("jmx:" + id, this.period) : 0L;
+
+      this.schedules.put(id, this.wheel.schedule(new Runnable() {
+        @Override
+        public void run() {
+          schedulePoll(id);
+        }
+      }, delay, this.period, Math.min(this.jitter, this.period)));
+    }
+
+    Sensision.set(SensisionConstants.SENSISION_CLASS_JMXPOLLER_TARGETS, Sensision.EMPTY_LABELS, this.targets.size());
+  }
+
+  /**
+   * Submit a poll of the given target to the executor. Called by the timing wheel.
+   */
+  private void schedulePoll(final String id) {
+
+    //
+    // Skip this run if the previous poll of the target is still ongoing
+    //
+
+    if (!this.inflight.add(id)) {
+      return;
+    }
+
+    try {
+      this.executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Target target = targets.get(id);
+            if (null != target) {
+              poll(target);
+            }
+          } finally {
+            inflight.remove(id);
+          }
+        }
+      });
+    } catch (RejectedExecutionException ree) {
+      this.inflight.remove(id);
+    }
+  }
+
+  private void poll(Target target) {
+    long nano = System.nanoTime();
+
+    try {
+      if (null == target.poller) {
+        connect(target);
+      }
+
+      long now = System.currentTimeMillis();
+
+      target.poller.sample(now);
+
+      if (null != this.qm) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        target.poller.render(pw, false);
+        pw.close();
+        this.qm.route(new ByteArrayInputStream(out.toByteArray()));
+      } else {
+        write(target, now);
+      }
+
+      Sensision.update(SensisionConstants.SENSISION_CLASS_JMXPOLLER_POLLS, target.selfLabels, 1);
+    } catch (Exception e) {
+      // The connection will be reestablished on the next poll
+      disconnect(target);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_JMXPOLLER_ERRORS, target.selfLabels, 1);
+    } finally {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_JMXPOLLER_TIME, target.selfLabels, (System.nanoTime() - nano) / 1000L);
+    }
+
+    // The target may have disappeared while it was being polled
+    if (!this.targets.containsKey(target.selfLabels.get(SensisionConstants.SENSISION_LABEL_TARGET))) {
+      disconnect(target);
+    }
+  }
+
+  private void connect(Target target) throws Exception {
+    String url = null != target.url ? target.url : getConnectorAddress(target.pid);
+
+    if (null == url) {
+      throw new IOException("No JMX connector for JVM " + target.pid + ".");
+    }
+
+    final JMXConnector connector = JMXConnectorFactory.connect(new JMXServiceURL(url));
+
+    try {
+      final MBeanServerConnection connection = connector.getMBeanServerConnection();
+      final Collection<MBeanServerConnection> servers = Collections.singleton(connection);
+
+      target.poller = new SensisionJMXPoller(this.filters, 0L, this.intervals, target.labels) {
+        @Override
+        protected Collection<? extends MBeanServerConnection> getServers() {
+          return servers;
+        }
+      };
+      target.connector = connector;
+      target.uuid = UUID.randomUUID().toString();
+      target.connected = System.currentTimeMillis();
+    } catch (IOException ioe) {
+      connector.close();
+      throw ioe;
+    }
+  }
+
+  private static void disconnect(Target target) {
+    if (null != target.poller) {
+      target.poller.close();
+      target.poller = null;
+    }
+
+    if (null != target.connector) {
+      try {
+        target.connector.close();
+      } catch (IOException ioe) {
+      }
+      target.connector = null;
+    }
+  }
+
+  /**
+   * Write the last samples of a target to a metrics file in the queue directory
+   */
+  private static void write(Target target, long now) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    sb.append(Long.toHexString(Long.MAX_VALUE - now));
+    sb.append(".");
+    sb.append(Long.toHexString(Long.MAX_VALUE - target.connected));
+    sb.append(".");
+    sb.append(target.uuid);
+    sb.append(Sensision.SENSISION_METRICS_SUFFIX);
+
+    String newname = sb.toString();
+
+    File outfile = new File(Sensision.getQueueDir(), newname + ".new");
+
+    PrintWriter pw = new PrintWriter(new OutputStreamWriter(new FileOutputStream(outfile), StandardCharsets.UTF_8));
+
+    try {
+      target.poller.render(pw, false);
+    } finally {
+      pw.close();
+    }
+
+    if (pw.checkError() || 0 == outfile.length()) {
+      outfile.delete();
+    } else {
+      // Atomically rename outfile to remove the ".new" suffix
+      outfile.renameTo(new File(Sensision.getQueueDir(), newname));
+    }
+  }
+
+  /**
+   * List the local JVMs through the Attach API, which is accessed by reflection
+   * since it is not available in all runtimes.
+   *
+   * @return a map of process id to display name
+   */
+  private static Map<String,String> listVirtualMachines() {
+    Map<String,String> vms = new HashMap<String,String>();
+
+    try {
+      Class<?> vmClass = Class.forName(VIRTUALMACHINE_CLASS);
+      Class<?> descriptorClass = Class.forName(VIRTUALMACHINEDESCRIPTOR_CLASS);
+
+      List<?> descriptors = (List<?>) vmClass.getMethod("list").invoke(null);
+
+      for (Object descriptor: descriptors) {
+        String id = (String) descriptorClass.getMethod("id").invoke(descriptor);
+        String name = (String) descriptorClass.getMethod("displayName").invoke(descriptor);
+        vms.put(id, null == name ? "" : name);
+      }
+    } catch (Exception e) {
+      // Attach API unavailable
+    }
+
+    return vms;
+  }
+
+  /**
+   * Attach to a local JVM and return the address of its local JMX connector, starting it if needed
+   */
+  private static String getConnectorAddress(String pid) throws Exception {
+    Class<?> vmClass = Class.forName(VIRTUALMACHINE_CLASS);
+
+    Object vm = vmClass.getMethod("attach", String.class).invoke(null, pid);
+
+    try {
+      Properties props = (Properties) vmClass.getMethod("getAgentProperties").invoke(vm);
+      String address = props.getProperty(LOCAL_CONNECTOR_ADDRESS);
+
+      if (null == address) {
+        address = (String) vmClass.getMethod("startLocalManagementAgent").invoke(vm);
+      }
+
+      return address;
+    } finally {
+      vmClass.getMethod("detach").invoke(vm);
+    }
+  }
+}
@@ -17,33 +17,41 @@
 package io.warp10.sensision;
 
 import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyCodeSource;
 import groovy.lang.GroovySystem;
-import groovy.util.GroovyScriptEngine;
+import groovy.lang.Script;
 
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.List;
+import java.util.Collections;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Periodically run scripts residing in subdirectories
  * of the given root.
+ *
+ * Each script is compiled once into a cache shared by all the threads, keyed by its path and
+ * checked against its modification time when the root is scanned. A script which changed is
+ * compiled again on its next run, in a class loader of its own so the classes of the previous
+ * version can be unloaded.
  */
 public class ScriptRunner extends Thread {
   
@@ -52,16 +60,93 @@ public class ScriptRunner extends Thread {
   private static final String DEFAULT_ROOT = "/var/run/sensision/scripts";
   private static final String DEFAULT_NTHREADS = "1";
   private static final String DEFAULT_SCANPERIOD = "60000";
+  private static final String DEFAULT_SPREAD = "true";
+  private static final String DEFAULT_JITTER = "0";
+
+  /**
+   * Delay before retrying to submit a script which was rejected by the executor
+   */
+  private static final long RETRY_DELAY = 50L;
   
   private final ExecutorService executor;
   
-  private final List<GroovyScriptEngine> engines;
-  
   private final int nthreads;
   
   private final long scanperiod;
   
   private final String root;
+
+  private final TimingWheel wheel;
+
+  /**
+   * Should runs of the scripts be spread across their period
+   */
+  private final boolean spread;
+
+  /**
+   * Maximum random delay (in ms) added to each run
+   */
+  private final long jitter;
+
+  /**
+   * Periodicity of scripts
+   */
+  private final Map<String,Long> scripts = new ConcurrentHashMap<String,Long>();
+
+  /**
+   * Scheduled runs of each script
+   */
+  private final Map<String,TimingWheel.Timeout> schedules = new ConcurrentHashMap<String,TimingWheel.Timeout>();
+
+  /**
+   * Scripts currently running
+   */
+  private final Set<String> inflight = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+  /**
+   * Compiled scripts, by path
+   */
+  private final Map<String,CompiledScript> compiled = new ConcurrentHashMap<String,CompiledScript>();
+
+  /**
+   * Lock serializing the compilations
+   */
+  private final Object compileLock = new Object();
+
+  /**
+   * Result of the compilation of a version of a script
+   */
+  private static final class CompiledScript {
+    private final long modified;
+    private final long length;
+
+    /**
+     * Class loader the script was compiled in, null if the compilation failed
+     */
+    private final GroovyClassLoader loader;
+
+    private final Class<?> cls;
+
+    /**
+     * Error which occurred while compiling the script, null if it was compiled
+     */
+    private final Throwable error;
+
+    private CompiledScript(long modified, long length, GroovyClassLoader loader, Class<?> cls, Throwable error) {
+      this.modified = modified;
+      this.length = length;
+      this.loader = loader;
+      this.cls = cls;
+      this.error = error;
+    }
+
+    /**
+     * @return true if the script file was modified since this version was compiled
+     */
+    private boolean isStale(File file) {
+      return file.lastModified() != this.modified || file.length() != this.length;
+    }
+  }
   
   /**
    * @param root Root directory where scripts reside.
@@ -73,17 +158,10 @@ public class ScriptRunner extends Thread {
     this.nthreads = Integer.valueOf(config.getProperty(Sensision.SENSISION_SCRIPTRUNNER_NTHREADS, DEFAULT_NTHREADS));
     this.scanperiod = Long.valueOf(config.getProperty(Sensision.SENSISION_SCRIPTRUNNER_SCANPERIOD, DEFAULT_SCANPERIOD));
     this.executor = new ThreadPoolExecutor(1, nthreads, 30000L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(1024));
-    
-    //
-    // Allocate GroovyScriptEngines
-    //
-    
-    this.engines = new ArrayList<GroovyScriptEngine>();
-    
-    for (int i = 0; i < nthreads; i++) {
-      this.engines.add(new GroovyScriptEngine("file://" + root));
-    }
-  
+    this.wheel = TimingWheel.getInstance(config);
+    this.spread = Boolean.valueOf(config.getProperty(Sensision.SENSISION_SCRIPTRUNNER_SPREAD, DEFAULT_SPREAD));
+    this.jitter = Long.valueOf(config.getProperty(Sensision.SENSISION_SCRIPTRUNNER_JITTER, DEFAULT_JITTER));
+
     this.setDaemon(true);
     this.setName("[Sensision ScriptRunner]");
     this.start();
@@ -91,121 +169,133 @@ public class ScriptRunner extends Thread {
   
   @Override
   public void run() {
-    
-    long lastscan = System.currentTimeMillis() - 2 * scanperiod;
-    
-    //
-    // Periodicity of scripts
-    //
-    
-    final Map<String,Long> scripts = new HashMap<String,Long>();
-    
+
     //
-    // Map of script path to next scheduled run
+    // Scripts are scheduled on the timing wheel, we only need to periodically
+    // rescan the root directory.
     //
-    
-    final Map<String,Long> nextrun = new HashMap<String,Long>();
-    
-    PriorityQueue<String> runnables = new PriorityQueue<String>(1, new Comparator<String>() {
-      @Override
-      public int compare(String o1, String o2) {
-        long nextrun1 = null != nextrun.get(o1) ? nextrun.get(o1) : Long.MAX_VALUE;
-        long nextrun2 = null != nextrun.get(o2) ? nextrun.get(o2) : Long.MAX_VALUE;
-        if (nextrun1 < nextrun2) {
-          return -1;
-        } else if (nextrun1 > nextrun2) {
-          return 1;
-        } else {
-          return 0;
-        }
-      }
-    });
-    
+
     while(true) {
-      long now = System.currentTimeMillis();
-      
-      if (now - lastscan > this.scanperiod) {
-        Map<String,Long> newscripts = scanRoot(this.root);
-        scripts.clear();
-        scripts.putAll(newscripts);
-        lastscan = now;
+      Map<String,Long> newscripts = scanRoot(this.root);
+
+      //
+      // Stop running the scripts which disappeared
+      //
+
+      for (String script: new ArrayList<String>(this.scripts.keySet())) {
+        if (!newscripts.containsKey(script)) {
+          this.scripts.remove(script);
+          TimingWheel.Timeout schedule = this.schedules.remove(script);
+          if (null != schedule) {
+            schedule.cancel();
+          }
+        }
       }
 
       //
-      // Find script to run next
+      // Forget the compiled versions of the scripts which disappeared or were modified,
+      // they will be compiled again on their next run
       //
-    
-      runnables.clear();
-      
-      for (String script: scripts.keySet()) {
-        //
-        // If script has no scheduled run yet or should run immediately, select it
-        //
-        
-        Long schedule = nextrun.remove(script);
-        
-        if (null == schedule || schedule < now) {
-          runnables.add(script);
-        } else if (null != schedule) {
-          nextrun.put(script, schedule);
+
+      for (Entry<String,CompiledScript> entry: this.compiled.entrySet()) {
+        if (!newscripts.containsKey(entry.getKey()) || entry.getValue().isStale(new File(entry.getKey()))) {
+          if (this.compiled.remove(entry.getKey(), entry.getValue())) {
+            unload(entry.getValue());
+          }
         }
       }
-      
-      while (runnables.size() > 0) {
-        final String script = runnables.poll();
-        // Set next run now. This will be overwritten at the end of execution
-        // of the script (from inside the Runnable)
-        nextrun.put(script, System.currentTimeMillis() + scripts.get(script));
-        try {
-          this.executor.submit(new Runnable() {            
-            @Override
-            public void run() {
-                
-              //
-              // Get a GroovyScriptEngine to run script in
-              //
-                
-              GroovyScriptEngine engine = borrowEngine();            
-              
-              try {              
-                Binding binding = new Binding();
-                binding.setVariable("sensision_home", root);
-                engine.run(script, binding);
-              } catch (Throwable t) {
-                LOGGER.error("Caught exception while running '" + script + "'", t);
-              } finally {
-                //
-                // Return GroovyScriptEngine to the pool
-                //
-                  
-                returnEngine(engine);
-                  
-                //
-                // Schedule the next run
-                //
-              
-                Long period = scripts.get(script);
-                
-                if (null != period) {
-                  nextrun.put(script, System.currentTimeMillis() + period);
-                }
-              }
-            }
-          });                  
-        } catch (RejectedExecutionException ree) {
-          // Reschedule script immediately
-          nextrun.put(script, System.currentTimeMillis());
+
+      //
+      // Schedule the new scripts or those whose periodicity changed
+      //
+
+      for (Entry<String,Long> entry: newscripts.entrySet()) {
+        final String script = entry.getKey();
+        long period = entry.getValue();
+
+        Long previous = this.scripts.put(script, period);
+        TimingWheel.Timeout schedule = this.schedules.get(script);
+
+        if (null != schedule && null != previous && previous == period) {
+          continue;
+        }
+
+        if (null != schedule) {
+          schedule.cancel();
         }
+
+        //
+        // When spreading, each script runs at a fixed phase within its period
+        // derived from its path, otherwise a new script is run immediately.
+        //
+
+        long delay = this.spread ? TimingWheel.phase(script, period) : 0L;
+
+        this.schedules.put(script, this.wheel.schedule(new Runnable() {
+          @Override
+          public void run() {
+            submit(script);
+          }
+        }, delay, period, Math.min(this.jitter, period)));
       }
-      
+
       try {
-        Thread.sleep(50L);
-      } catch (InterruptedException ie) {        
+        Thread.sleep(this.scanperiod);
+      } catch (InterruptedException ie) {
       }
     }
   }
-  
-  
+
+  /**
+   * Submit a run of the given script to the executor. Called by the timing wheel.
+   */
+  private void submit(final String script) {
+
+    //
+    // Skip this run if the previous one is still ongoing
+    //
+
+    if (!this.inflight.add(script)) {
+      return;
+    }
+
+    try {
+      this.executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            Binding binding = new Binding();
+            binding.setVariable("sensision_home", root);
+            Script instance = InvokerHelper.createScript(compile(script), binding);
+            instance.run();
+          } catch (Throwable t) {
+            LOGGER.error("Caught exception while running '" + script + "'", t);
+          } finally {
+            inflight.remove(script);
+          }
+        }
+      });
+    } catch (RejectedExecutionException ree) {
+      this.inflight.remove(script);
+
+      //
+      // Retry shortly if the script is still scheduled
+      //
+
+      if (this.schedules.containsKey(script)) {
+        this.wheel.schedule(new Runnable() {
+          @Override
+          public void run() {
+            if (schedules.containsKey(script)) {
+              submit(script);
+            }
+          }
+        }, RETRY_DELAY);
+      }
+    }
+  }
+
+
   /**
    * Scan a directory and return a map keyed by
    * script path and whose values are run periodicities in ms.
@@ -265,15 +355,72 @@ public class ScriptRunner extends Thread {
     return scripts;
   }
   
-  private final GroovyScriptEngine borrowEngine() {
-    synchronized (this.engines) {
-      return this.engines.remove(0);
+  /**
+   * Return the compiled class of a script, compiling it if it is not in the cache.
+   *
+   * @throws Throwable the error which occurred while compiling the current version of the script
+   */
+  private Class<?> compile(String script) throws Throwable {
+    CompiledScript compiled = this.compiled.get(script);
+
+    if (null == compiled) {
+      synchronized (this.compileLock) {
+        compiled = this.compiled.get(script);
+
+        if (null == compiled) {
+          File file = new File(script);
+
+          // Read the modification time first so a concurrent modification triggers a new compilation
+          long modified = file.lastModified();
+          long length = file.length();
+
+          GroovyClassLoader loader = new GroovyClassLoader(ScriptRunner.class.getClassLoader());
+          loader.addClasspath(this.root);
+
+          try {
+            GroovyCodeSource source = new GroovyCodeSource(file, "UTF-8");
+            source.setCachable(false);
+            compiled = new CompiledScript(modified, length, loader, loader.parseClass(source), null);
+          } catch (Throwable t) {
+            try {
+              loader.close();
+            } catch (IOException ioe) {
+            }
+            compiled = new CompiledScript(modified, length, null, null, t);
+          }
+
+          this.compiled.put(script, compiled);
+          Sensision.update(SensisionConstants.SENSISION_CLASS_SCRIPTRUNNER_COMPILATIONS, Sensision.EMPTY_LABELS, 1);
+        }
+      }
     }
+
+    if (null != compiled.error) {
+      throw compiled.error;
+    }
+
+    return compiled.cls;
   }
-  
-  private final void returnEngine(GroovyScriptEngine engine) {
-    synchronized(this.engines) {
-      this.engines.add(engine);
+
+  /**
+   * Release a compiled version of a script so its classes can be garbage collected
+   * once its ongoing runs complete.
+   */
+  private static void unload(CompiledScript compiled) {
+    if (null == compiled.loader) {
+      return;
+    }
+
+    // The meta classes would otherwise keep the classes reachable
+    for (Class<?> cls: compiled.loader.getLoadedClasses()) {
+      GroovySystem.getMetaClassRegistry().removeMetaClass(cls);
+    }
+
+    compiled.loader.clearCache();
+
+    try {
+      compiled.loader.close();
+    } catch (IOException ioe) {
     }
   }
 }
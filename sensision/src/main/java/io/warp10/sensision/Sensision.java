@@ -18,7 +18,6 @@ package io.warp10.sensision;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -28,7 +27,6 @@ import java.math.BigInteger;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -77,6 +75,11 @@ public class Sensision {
   public static final String HTTP_HEADER_UUID = "X-UUID";
   public static final String HTTP_HEADER_TIMESTAMP = "X-Timestamp";
   public static final String HTTP_HEADER_LASTEVENT = "X-Sensision-LastEvent";
+  /**
+   * Number of events which were no longer in the history when retrieving events
+   */
+  public static final String HTTP_HEADER_EVENTSLOST = "X-Sensision-EventsLost";
+  public static final String HTTP_HEADER_GENERATION = "X-Sensision-Generation";
 
   public static final String DEFAULT_SENSISION_HOME = "/var/run/sensision";
   private static final String SENSISION_TARGETS_SUBDIR = "targets";
@@ -115,6 +118,108 @@ public class Sensision {
    */
   public static final String SENSISION_EVENTS_DIR = "sensision.events.dir";
 
+  /**
+   * Number of events the ring buffer between Sensision.event callers and the events writer can hold.
+   * Events are dropped when the ring is full.
+   */
+  public static final String SENSISION_EVENTS_RING = "sensision.events.ring";
+
+  /**
+   * Maximum size (in bytes) of an encoded event, larger events are dropped
+   */
+  public static final String SENSISION_EVENTS_MAXSIZE = "sensision.events.maxsize";
+
+  /**
+   * Fsync policy of the events files, 'none', 'rotation' or 'batch'
+   */
+  public static final String SENSISION_EVENTS_FSYNC = "sensision.events.fsync";
+
+  /**
+   * Size (in bytes) above which the events file is rotated
+   */
+  public static final String SENSISION_EVENTS_ROTATE_SIZE = "sensision.events.rotate.size";
+
+  /**
+   * Age (in ms) above which the events file is rotated
+   */
+  public static final String SENSISION_EVENTS_ROTATE_AGE = "sensision.events.rotate.age";
+
+  /**
+   * Maximum total size (in bytes) of the events files in the events directory, the oldest files
+   * are deleted when it is exceeded
+   */
+  public static final String SENSISION_EVENTS_MAXDISK = "sensision.events.maxdisk";
+
+  /**
+   * Time (in ms) the events writer waits for new events when the ring is empty
+   */
+  public static final String SENSISION_EVENTS_LINGER = "sensision.events.linger";
+
+  /**
+   * Maximum number of events per second, events above this rate are dropped. 0 for no limit.
+   */
+  public static final String SENSISION_EVENTS_RATE = "sensision.events.rate";
+
+  /**
+   * Number of events which can be emitted at once above the rate limit, defaults to the rate
+   */
+  public static final String SENSISION_EVENTS_BURST = "sensision.events.burst";
+
+  /**
+   * Target number of events per second of each class, the events of classes emitting more are sampled. 0 to disable sampling.
+   */
+  public static final String SENSISION_EVENTS_SAMPLING_RATE = "sensision.events.sampling.rate";
+
+  /**
+   * Duration (in ms) of the windows over which the rate of each class is measured to adapt its sampling
+   */
+  public static final String SENSISION_EVENTS_SAMPLING_WINDOW = "sensision.events.sampling.window";
+
+  /**
+   * Maximum number of classes sampled individually, the classes above it share a common sampling
+   */
+  public static final String SENSISION_EVENTS_SAMPLING_CLASSES = "sensision.events.sampling.classes";
+
+  /**
+   * Number of bits of precision of the histograms, the relative error of their values is at most 2^-precision
+   */
+  public static final String SENSISION_HISTOGRAM_PRECISION = "sensision.histogram.precision";
+
+  /**
+   * Comma separated list of the quantiles dumped for each histogram
+   */
+  public static final String SENSISION_HISTOGRAM_QUANTILES = "sensision.histogram.quantiles";
+
+  /**
+   * Should the non empty buckets of the histograms be dumped
+   */
+  public static final String SENSISION_HISTOGRAM_BUCKETS = "sensision.histogram.buckets";
+
+  /**
+   * Relative accuracy of the quantiles of the sketches
+   */
+  public static final String SENSISION_SKETCH_ACCURACY = "sensision.sketch.accuracy";
+
+  /**
+   * Maximum number of buckets of the sketches
+   */
+  public static final String SENSISION_SKETCH_MAXBUCKETS = "sensision.sketch.maxbuckets";
+
+  /**
+   * Suffixes of the classes of the series a histogram or a sketch is dumped as
+   */
+  public static final String HISTOGRAM_COUNT_SUFFIX = ".count";
+  public static final String HISTOGRAM_SUM_SUFFIX = ".sum";
+  public static final String HISTOGRAM_MIN_SUFFIX = ".min";
+  public static final String HISTOGRAM_MAX_SUFFIX = ".max";
+  public static final String HISTOGRAM_BUCKET_SUFFIX = ".bucket";
+
+  /**
+   * Labels of the quantile and bucket series of a histogram
+   */
+  public static final String HISTOGRAM_QUANTILE_LABEL = "quantile";
+  public static final String HISTOGRAM_BUCKET_LABEL = "le";
+
   public static final String DEFAULT_SENSISION_POLLING_HINT = "60000";
 
   public static final String DEFAULT_SENSISION_URLDEBUG = "false";
@@ -130,13 +235,56 @@ public class Sensision {
   public static final String SENSISION_HTTPPOLLER_SCANPERIOD = "sensision.poller.http.scanperiod";
   public static final String SENSISION_HTTPPOLLER_FORCEDHINT = "sensision.poller.http.forcedhint";
   public static final String SENSISION_HTTPPOLLER_TIMEOUT = "sensision.poller.http.timeout";
+  public static final String SENSISION_HTTPPOLLER_SPREAD = "sensision.poller.http.spread";
+  public static final String SENSISION_HTTPPOLLER_JITTER = "sensision.poller.http.jitter";
+  public static final String SENSISION_HTTPPOLLER_PASSTHROUGH = "sensision.poller.http.passthrough";
+  public static final String SENSISION_HTTPPOLLER_DELTA = "sensision.poller.http.delta";
+  public static final String SENSISION_HTTPPOLLER_FORMAT = "sensision.poller.http.format";
+  public static final String SENSISION_HTTPPOLLER_FULLREFRESH = "sensision.poller.http.fullrefresh";
+  public static final String SENSISION_HTTPPOLLER_LONGPOLL = "sensision.poller.http.longpoll";
+  public static final String SENSISION_HTTPPOLLER_LONGPOLL_MAXTARGETS = "sensision.poller.http.longpoll.maxtargets";
+
+  public static final String SENSISION_JMXPOLLER_URLS = "sensision.poller.jmx.urls";
+  public static final String SENSISION_JMXPOLLER_ATTACH = "sensision.poller.jmx.attach";
+  public static final String SENSISION_JMXPOLLER_PERIOD = "sensision.poller.jmx.period";
+  public static final String SENSISION_JMXPOLLER_SCANPERIOD = "sensision.poller.jmx.scanperiod";
+  public static final String SENSISION_JMXPOLLER_NTHREADS = "sensision.poller.jmx.nthreads";
+  public static final String SENSISION_JMXPOLLER_SPREAD = "sensision.poller.jmx.spread";
+  public static final String SENSISION_JMXPOLLER_JITTER = "sensision.poller.jmx.jitter";
+  public static final String SENSISION_JMXPOLLER_FILTERS = "sensision.poller.jmx.filters";
+  public static final String SENSISION_JMXPOLLER_INTERVALS = "sensision.poller.jmx.intervals";
+  public static final String SENSISION_JMXPOLLER_PASSTHROUGH = "sensision.poller.jmx.passthrough";
+
+  public static final String SENSISION_PROCPOLLER_ROOT = "sensision.poller.proc.root";
+  public static final String SENSISION_PROCPOLLER_COLLECTORS = "sensision.poller.proc.collectors";
+  public static final String SENSISION_PROCPOLLER_PERIOD = "sensision.poller.proc.period";
+  public static final String SENSISION_PROCPOLLER_JITTER = "sensision.poller.proc.jitter";
+  public static final String SENSISION_PROCPOLLER_PID_NAMES = "sensision.poller.proc.pid.names";
+  public static final String SENSISION_PROCPOLLER_PID_VERBOSE = "sensision.poller.proc.pid.verbose";
+  public static final String SENSISION_PROCPOLLER_PID_SENSISIONIDONLY = "sensision.poller.proc.pid.sensisionidonly";
+  public static final String SENSISION_PROCPOLLER_PID_SENSISIONIDKEY = "sensision.poller.proc.pid.sensisionidkey";
+  public static final String SENSISION_PROCPOLLER_PID_PROCDUMP = "sensision.poller.proc.pid.procdump";
+  public static final String SENSISION_PROCPOLLER_PID_AGE = "sensision.poller.proc.pid.age";
+  public static final String SENSISION_PROCPOLLER_PID_BOOTQUIET = "sensision.poller.proc.pid.bootquiet";
+  public static final String SENSISION_PROCPOLLER_PID_EXCLUDEDPGRP = "sensision.poller.proc.pid.excludedpgrp";
+  public static final String SENSISION_PROCPOLLER_PID_CLKTCK = "sensision.poller.proc.pid.clktck";
+  public static final String SENSISION_PROCPOLLER_NET_TCP_SERVICES = "sensision.poller.proc.net.tcp.services";
+  public static final String SENSISION_PROCPOLLER_NET_TCP_USERS = "sensision.poller.proc.net.tcp.users";
+  public static final String SENSISION_PROCPOLLER_NET_TCP_PASSWD = "sensision.poller.proc.net.tcp.passwd";
+
+  public static final String SENSISION_SCHEDULER_TICK = "sensision.scheduler.tick";
+  public static final String SENSISION_SCHEDULER_WHEELSIZE = "sensision.scheduler.wheelsize";
 
   public static final String SENSISION_SCRIPTRUNNER = "sensision.scriptrunner";
   public static final String SENSISION_SCRIPTRUNNER_ROOT = "sensision.scriptrunner.root";
   public static final String SENSISION_SCRIPTRUNNER_NTHREADS = "sensision.scriptrunner.nthreads";
   public static final String SENSISION_SCRIPTRUNNER_SCANPERIOD = "sensision.scriptrunner.scanperiod";
+  public static final String SENSISION_SCRIPTRUNNER_SPREAD = "sensision.scriptrunner.spread";
+  public static final String SENSISION_SCRIPTRUNNER_JITTER = "sensision.scriptrunner.jitter";
 
   public static final String SENSISION_JMX_POLLER = "sensision.jmx.poller";
+  public static final String SENSISION_JMX_INTERVAL = "sensision.jmx.interval";
+  public static final String SENSISION_JMX_INTERVAL_MBEANS = "sensision.jmx.interval.mbeans";
   public static final String SENSISION_POLLING_HINT = "sensision.polling.hint";
   public static final String SENSISION_POLLING_PERIOD = "sensision.polling.period";
   public static final String SENSISION_DUMP_PERIOD = "sensision.dump.period";
@@ -166,6 +314,16 @@ public class Sensision {
 
   static boolean useStringIntern = false;
 
+  static int histogramPrecision = 5;
+
+  static double[] histogramQuantiles = new double[] { 0.5D, 0.9D, 0.99D, 0.999D };
+
+  static boolean histogramBuckets = true;
+
+  static double sketchAccuracy = SensisionSketch.DEFAULT_ACCURACY;
+
+  static int sketchMaxBuckets = SensisionSketch.DEFAULT_MAXBUCKETS;
+
   /**
    * Number of time units per 'ms', defaults to 1000L.
    */
@@ -268,11 +426,73 @@ public class Sensision {
       useStringIntern = true;
     }
 
-    events = new String[Integer.parseInt(System.getProperty(Sensision.SENSISION_EVENTS_HISTORY, "0"))];
+    if (null != System.getProperty(Sensision.SENSISION_HISTOGRAM_PRECISION)) {
+      histogramPrecision = Integer.parseInt(System.getProperty(Sensision.SENSISION_HISTOGRAM_PRECISION));
+    }
+
+    if (null != System.getProperty(Sensision.SENSISION_HISTOGRAM_QUANTILES)) {
+      String[] tokens = System.getProperty(Sensision.SENSISION_HISTOGRAM_QUANTILES).split(",");
+      double[] quantiles = new double[tokens.length];
+      for (int i = 0; i < tokens.length; i++) {
+        quantiles[i] = Double.parseDouble(tokens[i].trim());
+      }
+      histogramQuantiles = quantiles;
+    }
+
+    if ("false".equals(System.getProperty(Sensision.SENSISION_HISTOGRAM_BUCKETS))) {
+      histogramBuckets = false;
+    }
+
+    if (null != System.getProperty(Sensision.SENSISION_SKETCH_ACCURACY)) {
+      sketchAccuracy = Double.parseDouble(System.getProperty(Sensision.SENSISION_SKETCH_ACCURACY));
+    }
+
+    if (null != System.getProperty(Sensision.SENSISION_SKETCH_MAXBUCKETS)) {
+      sketchMaxBuckets = Integer.parseInt(System.getProperty(Sensision.SENSISION_SKETCH_MAXBUCKETS));
+    }
+
+    int history = Integer.parseInt(System.getProperty(Sensision.SENSISION_EVENTS_HISTORY, "0"));
+
+    String dir = System.getProperty(Sensision.SENSISION_EVENTS_DIR);
+
+    eventsDir = dir;
 
-    eventsDir = System.getProperty(Sensision.SENSISION_EVENTS_DIR);
+    //
+    // Start the events pipeline if events are kept in the history or on disk
+    //
+
+    if (history > 0 || null != dir) {
+      SensisionEventRing ring = new SensisionEventRing(Integer.parseInt(System.getProperty(Sensision.SENSISION_EVENTS_RING, "1024")),
+          Integer.parseInt(System.getProperty(Sensision.SENSISION_EVENTS_MAXSIZE, "2048")));
+      eventRing = ring;
 
-    eventsSuffix = System.getProperty(Sensision.SENSISION_EVENTS_SUFFIX);
+      double rate = Double.parseDouble(System.getProperty(Sensision.SENSISION_EVENTS_RATE, "0"));
+      double classRate = Double.parseDouble(System.getProperty(Sensision.SENSISION_EVENTS_SAMPLING_RATE, "0"));
+
+      SensisionEventSampler sampler = null;
+
+      if (rate > 0.0D || classRate > 0.0D) {
+        sampler = new SensisionEventSampler(rate,
+            Double.parseDouble(System.getProperty(Sensision.SENSISION_EVENTS_BURST, "0")),
+            classRate,
+            Long.parseLong(System.getProperty(Sensision.SENSISION_EVENTS_SAMPLING_WINDOW, "1000")),
+            Integer.parseInt(System.getProperty(Sensision.SENSISION_EVENTS_SAMPLING_CLASSES, "1024")));
+      }
+
+      eventSampler = sampler;
+      eventWriter = new SensisionEventWriter(ring, sampler, history,
+          null == dir ? null : new File(dir),
+          System.getProperty(Sensision.SENSISION_EVENTS_SUFFIX),
+          System.getProperty(Sensision.SENSISION_EVENTS_FSYNC, SensisionEventWriter.FSYNC_ROTATION),
+          Long.parseLong(System.getProperty(Sensision.SENSISION_EVENTS_ROTATE_SIZE, "0")),
+          Long.parseLong(System.getProperty(Sensision.SENSISION_EVENTS_ROTATE_AGE, "0")),
+          Long.parseLong(System.getProperty(Sensision.SENSISION_EVENTS_MAXDISK, "0")),
+          Long.parseLong(System.getProperty(Sensision.SENSISION_EVENTS_LINGER, "10")));
+    } else {
+      eventRing = null;
+      eventSampler = null;
+      eventWriter = null;
+    }
 
     //
     // Register a shutdown hook to flush the current events file
@@ -305,31 +525,24 @@ public class Sensision {
   private static final MetricsCurator curator = new MetricsCurator();
 
   /**
-   * Current sequence number of event
-   */
-  private static final AtomicLong eventSequence = new AtomicLong(-1);
-
-  /**
-   * Circular array of events
+   * Ring buffer between the event producers and the events writer, null if events are not kept
    */
-  private static final String[] events;
+  private static final SensisionEventRing eventRing;
 
   /**
-   * Directory where events files should be created
+   * Sampling and rate limiting of the events, null if all events are kept
    */
-  private static final String eventsDir;
+  private static final SensisionEventSampler eventSampler;
 
   /**
-   * Current File where events are stored
+   * Thread writing events on disk and maintaining their history
    */
-  private static File eventsFile = null;
+  private static final SensisionEventWriter eventWriter;
 
   /**
-   * Current Writer where events are stored
+   * Directory where events files should be created
    */
-  private static PrintWriter eventsWriter = null;
-
-  private static final String eventsSuffix;
+  private static final String eventsDir;
 
   /**
    * Name of Sensision instance
@@ -341,12 +554,13 @@ public class Sensision {
     /**
      * Possible types for a metric value
      */
-    enum TYPE { LONG, DOUBLE, STRING, BOOLEAN };
+    enum TYPE { LONG, DOUBLE, STRING, BOOLEAN, HISTOGRAM, SKETCH };
 
     /**
-     * Actual type of value
+     * Actual type of value. Volatile as it is read without holding the lock (see record and dump),
+     * it is set after the value so a non null type guarantees the value is visible.
      */
-    TYPE type = null;
+    volatile TYPE type = null;
 
     /**
      * Class name
@@ -388,6 +602,11 @@ public class Sensision {
      */
     Long expire;
 
+    /**
+     * Generation at which the value was last modified
+     */
+    volatile long generation = 0L;
+
     protected Value() {}
     public Value(String name, Map<String,String> labels, long timestamp, Float latitude, Float longitude, Long elevation, Object value) {
       this.cls = name;
@@ -478,6 +697,11 @@ public class Sensision {
    */
   private static Map<String, Map<Map<String,String>, Value>> values = new ConcurrentHashMap<String, Map<Map<String,String>,Value>>();
 
+  /**
+   * Modification generation of the metrics, incremented each time a metric is set or updated.
+   */
+  private static final AtomicLong generation = new AtomicLong(0L);
+
   /**
    * Set the value, location and elevation of the given metric (class + labels).
    *
@@ -530,8 +754,8 @@ public class Sensision {
         throw new RuntimeException("Invalid value type for " + cls + labels + ", was " + container.type + ", is now LONG");
       }
       if (null == container.value) {
-        container.type = Value.TYPE.LONG;
         container.value = new AtomicLong(((Number) value).longValue());
+        container.type = Value.TYPE.LONG;
       } else {
         ((AtomicLong) container.value).set(((Number) value).longValue());
       }
@@ -540,8 +764,8 @@ public class Sensision {
         throw new RuntimeException("Invalid value type for " + cls + labels + ", was " + container.type + ", is now DOUBLE");
       }
       if (null == container.value) {
-        container.type = Value.TYPE.DOUBLE;
         container.value = new AtomicLong(Double.doubleToRawLongBits(((Number) value).doubleValue()));
+        container.type = Value.TYPE.DOUBLE;
       } else {
         ((AtomicLong) container.value).set(Double.doubleToRawLongBits(((Number) value).doubleValue()));
       }
@@ -549,18 +773,18 @@ public class Sensision {
       if (null != container.type && Value.TYPE.BOOLEAN != container.type) {
         throw new RuntimeException("Invalid value type for " + cls + labels + ", was " + container.type + ", is now BOOLEAN");
       }
-      if (null == container.value) {
+      container.value = (Boolean) value;
+      if (null == container.type) {
         container.type = Value.TYPE.BOOLEAN;
       }
-      container.value = (Boolean) value;
     } else if (value instanceof String) {
       if (null != container.type && Value.TYPE.STRING != container.type) {
         throw new RuntimeException("Invalid value type for " + cls + labels + ", was " + container.type + ", is now STRING");
       }
-      if (null == container.value) {
+      container.value = (String) value;
+      if (null == container.type) {
         container.type = Value.TYPE.STRING;
       }
-      container.value = (String) value;
     } else {
       throw new RuntimeException("Invalid value type (" + value.getClass() + ") for metric " + cls + labels);
     }
@@ -584,6 +808,8 @@ public class Sensision {
     } else {
       container.expire = null;
     }
+
+    container.generation = generation.incrementAndGet();
   }
 
   private static Map<String,String> labelsToMap(String... labels) {
@@ -683,11 +909,11 @@ public class Sensision {
       ((AtomicLong) container.value).set(Double.doubleToRawLongBits(((Number) delta).doubleValue() + Double.longBitsToDouble(((AtomicLong) container.value).get())));
     } else if (null == container.type) {
       if (delta instanceof Long || delta instanceof Integer || delta instanceof Short || delta instanceof Byte || delta instanceof BigInteger) {
-        container.type = Value.TYPE.LONG;
         container.value = new AtomicLong(((Number) delta).longValue());
+        container.type = Value.TYPE.LONG;
       } else if (delta instanceof Double || delta instanceof Float || delta instanceof BigDecimal) {
-        container.type = Value.TYPE.DOUBLE;
         container.value = new AtomicLong(Double.doubleToRawLongBits(((Number) delta).doubleValue()));
+        container.type = Value.TYPE.DOUBLE;
       }
     } else {
       throw new RuntimeException("Can only update metrics of type LONG or DOUBLE (" + cls + labels + ")");
@@ -710,6 +936,8 @@ public class Sensision {
     if (null != ttl) {
       container.expire = System.currentTimeMillis() + ttl;
     }
+
+    container.generation = generation.incrementAndGet();
   }
 
   public static final void update(String cls, Map<String,String> labels, Long ttl, Number delta) {
@@ -732,113 +960,155 @@ public class Sensision {
     update(cls, labelsToMap(labels), delta);
   }
 
-  public static final void event(String cls, Map<String,String> labels, Object value) {
-    event(System.currentTimeMillis() * TIME_UNITS_PER_MS, Double.NaN, Double.NaN, null, cls, labels, value);
+  /**
+   * Return the histogram of the given metric, creating it if needed. The returned instance
+   * can be kept by the caller to record values without looking up the metric each time.
+   *
+   * @param cls Name of the metric class
+   * @param labels Labels of the metric
+   * @param ttl Time to live (in ms) of the metric, reset each time the histogram is retrieved - null if no ttl
+   */
+  public static synchronized final SensisionHistogram histogram(String cls, Map<String,String> labels, Long ttl) {
+    if (null == cls) {
+      throw new RuntimeException("Invalid null class name for metric");
+    }
+
+    if (labels.containsKey(null) || labels.containsValue(null)) {
+      throw new RuntimeException("Invalid null label for metric " + cls + labels);
+    }
+
+    // Hand out a detached histogram so callers need not check whether Sensision is disabled
+    if (Sensision.disable) {
+      return new SensisionHistogram(histogramPrecision);
+    }
+
+    Value container = getContainer(cls, labels, Boolean.TRUE);
+
+    if (null == container.type) {
+      // Set the value first as 'record' checks the type without holding the lock, the type being volatile
+      // the histogram is visible to the threads which see the type
+      container.value = new SensisionHistogram(histogramPrecision);
+      container.type = Value.TYPE.HISTOGRAM;
+    } else if (Value.TYPE.HISTOGRAM != container.type) {
+      throw new RuntimeException("Invalid value type for " + cls + labels + ", was " + container.type + ", is now HISTOGRAM");
+    }
+
+    container.timestamp = System.currentTimeMillis() * TIME_UNITS_PER_MS;
+
+    if (null != ttl) {
+      container.expire = System.currentTimeMillis() + ttl;
+    } else {
+      container.expire = null;
+    }
+
+    container.generation = generation.incrementAndGet();
+
+    return (SensisionHistogram) container.value;
+  }
+
+  public static final SensisionHistogram histogram(String cls, Map<String,String> labels) {
+    return histogram(cls, labels, null);
   }
 
   /**
-   * Store an event. We do not use a synchronized method, which means that if the rate of events is very important
-   * we might overwrite an event with an older one if the older one was longer to encode.
+   * Return the sketch of the given metric, creating it if needed. Sketches of the same metric
+   * emitted by different processes can be merged downstream, see QueueManager.
    *
-   * This is a risk we tolerate for now.
+   * @param cls Name of the metric class
+   * @param labels Labels of the metric
+   * @param ttl Time to live (in ms) of the metric, reset each time the sketch is retrieved - null if no ttl
    */
-  public static final void event(Long ts, Double latitude, Double longitude, Long elevation, String cls, Map<String,String> labels, Object value) {
+  public static synchronized final SensisionSketch sketch(String cls, Map<String,String> labels, Long ttl) {
+    if (null == cls) {
+      throw new RuntimeException("Invalid null class name for metric");
+    }
 
-    // Do nothing if we do not keep track of events
-    if ((0 == events.length || null == value) && null == eventsDir) {
-      return;
+    if (labels.containsKey(null) || labels.containsValue(null)) {
+      throw new RuntimeException("Invalid null label for metric " + cls + labels);
     }
 
-    //
-    // Increment event sequence
-    //
+    if (Sensision.disable) {
+      return new SensisionSketch(sketchAccuracy, sketchMaxBuckets);
+    }
 
-    long seqno = eventSequence.addAndGet(1L);
+    Value container = getContainer(cls, labels, Boolean.TRUE);
 
-    //
-    // Build event
-    //
+    if (null == container.type) {
+      // Set the value first, see histogram
+      container.value = new SensisionSketch(sketchAccuracy, sketchMaxBuckets);
+      container.type = Value.TYPE.SKETCH;
+    } else if (Value.TYPE.SKETCH != container.type) {
+      throw new RuntimeException("Invalid value type for " + cls + labels + ", was " + container.type + ", is now SKETCH");
+    }
 
-    StringBuilder sb = buildEvent(ts, latitude, longitude, elevation, cls, labels, value);
+    container.timestamp = System.currentTimeMillis() * TIME_UNITS_PER_MS;
 
-    //
-    // Store event on disk
-    //
+    if (null != ttl) {
+      container.expire = System.currentTimeMillis() + ttl;
+    } else {
+      container.expire = null;
+    }
 
-    storeEvent(sb);
+    container.generation = generation.incrementAndGet();
 
-    //
-    // Store event in history
-    //
+    return (SensisionSketch) container.value;
+  }
 
-    if (events.length > 0) {
-      //
-      // Compute array index
-      //
+  public static final SensisionSketch sketch(String cls, Map<String,String> labels) {
+    return sketch(cls, labels, null);
+  }
 
-      int idx = (int) (seqno % (long) events.length);
+  /**
+   * Record a value in the histogram of the given metric. Once the histogram exists, no lock is taken.
+   */
+  public static final void record(String cls, Map<String,String> labels, long value) {
+    Map<Map<String,String>, Value> clsValues = values.get(cls);
+    Value container = null != clsValues ? clsValues.get(labels) : null;
 
-      events[idx] = sb.toString();
+    if (null != container && Value.TYPE.HISTOGRAM == container.type) {
+      ((SensisionHistogram) container.value).record(value);
+    } else {
+      histogram(cls, labels, null).record(value);
     }
   }
 
-  private static void storeEvent(StringBuilder sb) {
-    try {
-      if (null == eventsDir) {
-        return;
-      }
-      synchronized(eventsDir) {
-        File root = new File(eventsDir);
+  public static final void event(String cls, Map<String,String> labels, Object value) {
+    event(System.currentTimeMillis() * TIME_UNITS_PER_MS, Double.NaN, Double.NaN, null, cls, labels, value);
+  }
 
-        if (!root.exists() || !root.isDirectory()) {
-          return;
-        }
+  /**
+   * Store an event. The event is encoded and handed to the events writer through a ring buffer,
+   * the caller never waits for the event to be written. Events are dropped if the ring is full.
+   *
+   * Events may be sampled or rate limited before being encoded, see SENSISION_EVENTS_RATE and
+   * SENSISION_EVENTS_SAMPLING_RATE.
+   */
+  public static final void event(Long ts, Double latitude, Double longitude, Long elevation, String cls, Map<String,String> labels, Object value) {
 
-        if (null == eventsFile) {
-          String now = Long.toHexString(Long.MAX_VALUE - System.currentTimeMillis());
-          String uuid = UUID.randomUUID().toString();
-          // End the name with a '.' so even if eventsSuffix is SENSISION_METRICS_SUFFIX it won't bother
-          eventsFile = new File(new File(eventsDir), now + "." + uuid + (null != eventsSuffix ? ("." + eventsSuffix) : ""));
-
-          try {
-            eventsWriter = new PrintWriter(eventsFile);
-          } catch (FileNotFoundException fnfe) {
-            eventsFile = null;
-            return;
-          }
-        }
-        if (null != sb && null != eventsWriter) {
-          eventsWriter.println(sb.toString());
-        }
-      }
-    } catch (Exception e) {
-      if (null != eventsWriter) {
-        eventsWriter.close();
-        eventsFile = null;
-      }
-      e.printStackTrace();
+    // Do nothing if we do not keep track of events
+    if (null == eventRing || null == value) {
+      return;
+    }
+
+    if (null != eventSampler && !eventSampler.admit(cls)) {
+      return;
     }
+
+    eventRing.offer(null != ts ? ts : System.currentTimeMillis() * TIME_UNITS_PER_MS, latitude, longitude, elevation, cls, labels, value);
   }
 
   public static void flushEvents() {
-    if (null == eventsDir) {
+    if (null == eventWriter) {
       return;
     }
-    synchronized(eventsDir) {
-      if (null != eventsWriter) {
-        eventsWriter.close();
-        eventsFile.renameTo(new File(new File(eventsDir), eventsFile.getName() + SENSISION_METRICS_SUFFIX));
-      }
-      eventsFile = null;
-      eventsWriter = null;
-    }
+    eventWriter.flush();
   }
 
   public static boolean onDisk() {
     return null != eventsDir;
   }
 
-  private static StringBuilder buildEvent(Long ts, Double latitude, Double longitude, Long elevation, String cls, Map<String,String> labels, Object value) {
+  static StringBuilder buildEvent(Long ts, Double latitude, Double longitude, Long elevation, String cls, Map<String,String> labels, Object value) {
     //
     // Build representation of event
     //
@@ -941,6 +1211,10 @@ public class Sensision {
         return Double.longBitsToDouble(((AtomicLong)container.value).get());
       case STRING:
         return container.value;
+      case HISTOGRAM:
+        return ((SensisionHistogram) container.value).snapshot();
+      case SKETCH:
+        return container.value.toString();
       default:
         return null;
     }
@@ -1258,6 +1532,20 @@ public class Sensision {
    * @throws IOException
    */
   public static final void dump(PrintWriter out, boolean useValueTimestamp, boolean openmetrics) throws IOException {
+    dump(out, useValueTimestamp, openmetrics, -1L);
+  }
+
+  /**
+   * Dump last values of the metrics modified after the given generation onto the given PrintWriter.
+   * Values from external providers are always dumped.
+   *
+   * @param out PrintWriter instance to write to.
+   * @param useValueTimestamp Whether or not we should use the timestamp associated with the value
+   * @param openmetrics Output metrics in OpenMetrics format
+   * @param since Only dump the metrics modified after this generation, use a negative value to dump all metrics
+   * @throws IOException
+   */
+  public static final void dump(PrintWriter out, boolean useValueTimestamp, boolean openmetrics, long since) throws IOException {
     List<String> classes = new ArrayList<String>(values.keySet());
 
     for (String clazz: classes) {
@@ -1269,6 +1557,10 @@ public class Sensision {
 
       List<Value> vals = new ArrayList<Value>(byClass.values());
       for (Value value: vals) {
+        // Histograms and sketches are not versioned, they are always dumped
+        if (value.generation <= since && Value.TYPE.HISTOGRAM != value.type && Value.TYPE.SKETCH != value.type) {
+          continue;
+        }
         dumpValue(out, value, useValueTimestamp, true, openmetrics);
       }
     }
@@ -1298,6 +1590,61 @@ public class Sensision {
     dump(out, true, false);
   }
 
+  /**
+   * Dump last values of the metrics modified after the given generation in the binary format.
+   * Values from external providers are always dumped. The END record is not written.
+   *
+   * @param out Writer to write to.
+   * @param useValueTimestamp Whether or not we should use the timestamp associated with the value
+   * @param since Only dump the metrics modified after this generation, use a negative value to dump all metrics
+   * @throws IOException
+   */
+  public static final void dump(SensisionBinaryFormat.Writer out, boolean useValueTimestamp, long since) throws IOException {
+    List<String> classes = new ArrayList<String>(values.keySet());
+
+    for (String clazz: classes) {
+      Map<Map<String,String>,Value> byClass = values.get(clazz);
+
+      if (null == byClass) {
+        continue;
+      }
+
+      List<Value> vals = new ArrayList<Value>(byClass.values());
+      for (Value value: vals) {
+        // Histograms and sketches are not versioned, they are always dumped
+        if (value.generation <= since && Value.TYPE.HISTOGRAM != value.type && Value.TYPE.SKETCH != value.type) {
+          continue;
+        }
+        dumpValue(out, value, useValueTimestamp);
+      }
+    }
+
+    for (Iterable<Value> provider: providers) {
+      if (null == provider) {
+        continue;
+      }
+
+      Iterator<Value> iterator = provider.iterator();
+
+      if (null == iterator) {
+        continue;
+      }
+
+      while(iterator.hasNext()) {
+        dumpValue(out, iterator.next(), useValueTimestamp);
+      }
+    }
+  }
+
+  /**
+   * Return the current modification generation of the metrics. The metrics are modified and stamped
+   * with their generation while holding the lock, so all the metrics modified up to the returned
+   * generation are already stamped and those modified later get a greater generation.
+   */
+  public static synchronized final long getGeneration() {
+    return generation.get();
+  }
+
   /**
    * Dump the current values of metrics in the events file
    *
@@ -1308,16 +1655,7 @@ public class Sensision {
     if (null == eventsDir) {
       return;
     }
-    synchronized(eventsDir) {
-      //
-      // Ensure we have a writer
-      //
-      storeEvent(null);
-
-      if (null != eventsWriter) {
-        dump(eventsWriter, useValueTimestamp, false);
-      }
-    }
+    eventWriter.dumpMetrics(useValueTimestamp);
   }
 
   /**
@@ -1329,6 +1667,142 @@ public class Sensision {
    * @throws IOException
    */
   public static final void dumpValue(PrintWriter out, Value value, boolean useValueTimestamp, boolean crlf, boolean openmetrics) throws IOException {
+    if (Value.TYPE.HISTOGRAM == value.type || (openmetrics && Value.TYPE.SKETCH == value.type)) {
+      for (Value v: expand(value)) {
+        dumpValue(out, v, true, crlf, openmetrics);
+      }
+      return;
+    }
+    dumpValue(out, value.cls, value.labels, useValueTimestamp ? value.timestamp : System.currentTimeMillis() * TIME_UNITS_PER_MS, value.latitude, value.longitude, value.elevation, unwrap(value), crlf, openmetrics);
+  }
+
+  /**
+   * Outputs a value in the binary format, applying the default labels, location and elevation
+   *
+   * @param out Writer to use
+   * @param value Value instance to output
+   * @param useValueTimestamp flag indicating whether or not we consider the Value ts or 'now'
+   * @throws IOException
+   */
+  public static final void dumpValue(SensisionBinaryFormat.Writer out, Value value, boolean useValueTimestamp) throws IOException {
+    if (null == out) {
+      return;
+    }
+
+    if (Value.TYPE.HISTOGRAM == value.type) {
+      for (Value v: expand(value)) {
+        dumpValue(out, v, true);
+      }
+      return;
+    }
+
+    Float latitude = value.latitude;
+    Float longitude = value.longitude;
+
+    if ((null == latitude || null == longitude) && null != defaultLatitude && null != defaultLongitude) {
+      latitude = defaultLatitude.floatValue();
+      longitude = defaultLongitude.floatValue();
+    }
+
+    Long elevation = null != value.elevation ? value.elevation : defaultElevation;
+
+    out.write(value.cls, value.labels, defaultLabels, useValueTimestamp ? value.timestamp : System.currentTimeMillis() * TIME_UNITS_PER_MS, latitude, longitude, elevation, unwrap(value));
+  }
+
+  /**
+   * Expand a histogram into the series it is dumped as, timestamped at the current time:
+   *
+   * cls.count, cls.sum, cls.min and cls.max
+   * cls{quantile=q} for each configured quantile
+   * cls.bucket{le=v} with the number of values less than or equal to v for the upper bound of each non empty bucket, and le=+Inf
+   *
+   * In the OpenMetrics format those series follow the naming of histograms and summaries.
+   */
+  private static final List<Value> expand(Value value) {
+    if (Value.TYPE.SKETCH == value.type) {
+      return expandSketch(value);
+    }
+
+    SensisionHistogram.Snapshot snapshot = ((SensisionHistogram) value.value).snapshot();
+
+    long now = System.currentTimeMillis() * TIME_UNITS_PER_MS;
+
+    List<Value> values = new ArrayList<Value>();
+
+    values.add(new Value(value.cls + HISTOGRAM_COUNT_SUFFIX, value.labels, now, value.latitude, value.longitude, value.elevation, snapshot.getCount()));
+    values.add(new Value(value.cls + HISTOGRAM_SUM_SUFFIX, value.labels, now, value.latitude, value.longitude, value.elevation, snapshot.getSum()));
+
+    if (0L == snapshot.getCount()) {
+      return values;
+    }
+
+    values.add(new Value(value.cls + HISTOGRAM_MIN_SUFFIX, value.labels, now, value.latitude, value.longitude, value.elevation, snapshot.getMin()));
+    values.add(new Value(value.cls + HISTOGRAM_MAX_SUFFIX, value.labels, now, value.latitude, value.longitude, value.elevation, snapshot.getMax()));
+
+    for (double q: histogramQuantiles) {
+      Map<String,String> labels = new HashMap<String,String>(value.labels);
+      labels.put(HISTOGRAM_QUANTILE_LABEL, Double.toString(q));
+      values.add(new Value(value.cls, labels, now, value.latitude, value.longitude, value.elevation, snapshot.getValueAtQuantile(q)));
+    }
+
+    if (histogramBuckets) {
+      long cumulative = 0L;
+
+      for (int i = 0; i < snapshot.getBuckets(); i++) {
+        long count = snapshot.getBucketCount(i);
+
+        if (0L == count) {
+          continue;
+        }
+
+        cumulative += count;
+
+        Map<String,String> labels = new HashMap<String,String>(value.labels);
+        labels.put(HISTOGRAM_BUCKET_LABEL, Long.toString(snapshot.getBucketHighest(i)));
+        values.add(new Value(value.cls + HISTOGRAM_BUCKET_SUFFIX, labels, now, value.latitude, value.longitude, value.elevation, cumulative));
+      }
+
+      Map<String,String> labels = new HashMap<String,String>(value.labels);
+      labels.put(HISTOGRAM_BUCKET_LABEL, "+Inf");
+      values.add(new Value(value.cls + HISTOGRAM_BUCKET_SUFFIX, labels, now, value.latitude, value.longitude, value.elevation, snapshot.getCount()));
+    }
+
+    return values;
+  }
+
+  /**
+   * Expand a sketch into the series of a summary for the formats which cannot carry sketches:
+   * cls.count, cls.sum and cls{quantile=q} for each configured quantile
+   */
+  private static final List<Value> expandSketch(Value value) {
+    SensisionSketch sketch = (SensisionSketch) value.value;
+
+    long now = System.currentTimeMillis() * TIME_UNITS_PER_MS;
+
+    List<Value> values = new ArrayList<Value>();
+
+    long count = sketch.getCount();
+
+    values.add(new Value(value.cls + HISTOGRAM_COUNT_SUFFIX, value.labels, now, value.latitude, value.longitude, value.elevation, count));
+    values.add(new Value(value.cls + HISTOGRAM_SUM_SUFFIX, value.labels, now, value.latitude, value.longitude, value.elevation, sketch.getSum()));
+
+    if (0L == count) {
+      return values;
+    }
+
+    for (double q: histogramQuantiles) {
+      Map<String,String> labels = new HashMap<String,String>(value.labels);
+      labels.put(HISTOGRAM_QUANTILE_LABEL, Double.toString(q));
+      values.add(new Value(value.cls, labels, now, value.latitude, value.longitude, value.elevation, sketch.getValueAtQuantile(q)));
+    }
+
+    return values;
+  }
+
+  /**
+   * Extract the actual value of a Value instance
+   */
+  private static final Object unwrap(Value value) {
     Object v = null;
 
     switch(value.type) {
@@ -1348,10 +1822,16 @@ public class Sensision {
         break;
       case BOOLEAN:
       case STRING:
+      case HISTOGRAM:
         v = value.value;
         break;
+      case SKETCH:
+        // Sketches are carried as their serialized form
+        v = value.value.toString();
+        break;
     }
-    dumpValue(out, value.cls, value.labels, useValueTimestamp ? value.timestamp : System.currentTimeMillis() * TIME_UNITS_PER_MS, value.latitude, value.longitude, value.elevation, v, crlf, openmetrics);
+
+    return v;
   }
 
   private static final void dumpValue(PrintWriter out, Value value) throws IOException {
@@ -1547,11 +2027,60 @@ public class Sensision {
   }
 
   public static long getCurrentEvent() {
-    return eventSequence.get();
+    if (null == eventWriter) {
+      return -1L;
+    }
+    return eventWriter.getCurrent();
   }
 
+  /**
+   * Return the events in the history, from the oldest to the most recent
+   */
   public static List<String> getEvents() {
-    return Collections.unmodifiableList(Arrays.asList(events));
+    List<String> events = new ArrayList<String>();
+    getEvents(-1L, Integer.MAX_VALUE, events);
+    return Collections.unmodifiableList(events);
+  }
+
+  /**
+   * Retrieve a consistent sequence of events from the history.
+   *
+   * @param lastevent Sequence number of the last event already known, -1 to start from the oldest event
+   * @param n Maximum number of events to retrieve
+   * @param events List to which the events are added, events which are no longer in the history are reported by gap markers
+   * @return the sequence number of the last event retrieved, -1 if there is no event
+   */
+  public static long getEvents(long lastevent, int n, List<String> events) {
+    return readEvents(lastevent, n, events).last;
+  }
+
+  static SensisionEventWriter.Cursor readEvents(long lastevent, int n, List<String> events) {
+    if (null == eventWriter) {
+      return new SensisionEventWriter.Cursor();
+    }
+    return eventWriter.read(lastevent, n, events);
+  }
+
+  /**
+   * Check if events are kept in the history
+   */
+  static boolean hasEventsHistory() {
+    return null != eventWriter && eventWriter.getHistorySize() > 0;
+  }
+
+  /**
+   * Run a callback once events following 'lastevent' are available
+   */
+  static void awaitEvents(long lastevent, Runnable callback) {
+    if (null != eventWriter) {
+      eventWriter.await(lastevent, callback);
+    }
+  }
+
+  static void cancelAwaitEvents(Runnable callback) {
+    if (null != eventWriter) {
+      eventWriter.cancel(callback);
+    }
   }
 
   public static void setInstance(String name) {
@@ -0,0 +1,541 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import io.warp10.sensision.Sensision.Value;
+
+/**
+ * Compact binary exposition format for metrics.
+ *
+ * A stream starts with a magic number and a version byte, followed by records. Each record
+ * is a type byte, the varint encoded length of its payload and the payload itself, so readers
+ * can skip the record types they do not know.
+ *
+ * STRING records add a string to the dictionary of the stream, strings are then referenced
+ * by their index in the dictionary. VALUE records contain the class and labels as dictionary
+ * references, a flags byte, the timestamp as a zigzag varint delta from the previous value,
+ * the optional location as raw float bits, the optional elevation and the value itself (zigzag
+ * varint for LONG, raw bits for DOUBLE, dictionary reference for STRING, flag for BOOLEAN).
+ * The END record marks the end of the binary section, a stream may be followed by data in the
+ * text format.
+ */
+public final class SensisionBinaryFormat {
+
+  public static final String CONTENT_TYPE = "application/x-sensision-binary";
+
+  public static final byte[] MAGIC = { 'S', 'N', 'S', 'B' };
+
+  public static final int VERSION = 1;
+
+  private static final int RECORD_END = 0;
+  private static final int RECORD_STRING = 1;
+  private static final int RECORD_VALUE = 2;
+
+  private static final int FLAG_TIMESTAMP = 0x01;
+  private static final int FLAG_LOCATION = 0x02;
+  private static final int FLAG_ELEVATION = 0x04;
+  private static final int FLAG_TYPE_SHIFT = 3;
+  private static final int FLAG_TYPE_MASK = 0x18;
+  private static final int FLAG_TRUE = 0x20;
+
+  private static final int TYPE_LONG = 0;
+  private static final int TYPE_DOUBLE = 1;
+  private static final int TYPE_BOOLEAN = 2;
+  private static final int TYPE_STRING = 3;
+
+  /**
+   * Maximum size of a record we accept to read
+   */
+  private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+  private SensisionBinaryFormat() {}
+
+  /**
+   * Check if a buffer starts with the magic number of the binary format
+   *
+   * @param buf Buffer to check
+   * @param len Number of valid bytes in the buffer
+   */
+  public static boolean isBinary(byte[] buf, int len) {
+    if (len < MAGIC.length) {
+      return false;
+    }
+    for (int i = 0; i < MAGIC.length; i++) {
+      if (MAGIC[i] != buf[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static final class Writer {
+
+    private final OutputStream out;
+
+    private final Map<String,Integer> dictionary = new HashMap<String,Integer>();
+
+    /**
+     * Buffer in which the payload of the current record is built
+     */
+    private byte[] buf = new byte[256];
+    private int len = 0;
+
+    private long lastTimestamp = 0L;
+
+    private boolean closed = false;
+
+    /**
+     * @param out OutputStream to write to, callers should provide a buffered stream
+     */
+    public Writer(OutputStream out) throws IOException {
+      this.out = out;
+      out.write(MAGIC);
+      out.write(VERSION);
+    }
+
+    /**
+     * Write a value.
+     *
+     * @param name Class name
+     * @param labels Labels of the value
+     * @param extraLabels Additional labels, only used if not in 'labels', may be null
+     * @param timestamp Timestamp, Long.MIN_VALUE if none
+     * @param latitude Latitude, null if no location
+     * @param longitude Longitude, null if no location
+     * @param elevation Elevation, null if none
+     * @param value Value, either a Number, a Boolean or a String
+     */
+    public void write(String name, Map<String,String> labels, Map<String,String> extraLabels, long timestamp, Float latitude, Float longitude, Long elevation, Object value) throws IOException {
+      //
+      // Make sure all strings are in the dictionary, this must be done prior to
+      // building the value record
+      //
+
+      int nameid = intern(name);
+
+      int nlabels = labels.size();
+
+      if (null != extraLabels) {
+        for (Entry<String,String> entry: extraLabels.entrySet()) {
+          if (!labels.containsKey(entry.getKey())) {
+            intern(entry.getKey());
+            intern(entry.getValue());
+            nlabels++;
+          }
+        }
+      }
+
+      for (Entry<String,String> entry: labels.entrySet()) {
+        intern(entry.getKey());
+        intern(entry.getValue());
+      }
+
+      int stringid = -1;
+
+      if (value instanceof String) {
+        stringid = intern((String) value);
+      }
+
+      //
+      // Build the value record
+      //
+
+      this.len = 0;
+
+      writeVarLong(nameid);
+      writeVarLong(nlabels);
+
+      if (null != extraLabels) {
+        for (Entry<String,String> entry: extraLabels.entrySet()) {
+          if (!labels.containsKey(entry.getKey())) {
+            writeVarLong(this.dictionary.get(entry.getKey()));
+            writeVarLong(this.dictionary.get(entry.getValue()));
+          }
+        }
+      }
+
+      for (Entry<String,String> entry: labels.entrySet()) {
+        writeVarLong(this.dictionary.get(entry.getKey()));
+        writeVarLong(this.dictionary.get(entry.getValue()));
+      }
+
+      int flags = 0;
+
+      if (Long.MIN_VALUE != timestamp) {
+        flags |= FLAG_TIMESTAMP;
+      }
+      if (null != latitude && null != longitude) {
+        flags |= FLAG_LOCATION;
+      }
+      if (null != elevation) {
+        flags |= FLAG_ELEVATION;
+      }
+
+      int type;
+
+      if (value instanceof Double || value instanceof Float || value instanceof BigDecimal) {
+        type = TYPE_DOUBLE;
+      } else if (value instanceof Number) {
+        type = TYPE_LONG;
+      } else if (value instanceof Boolean) {
+        type = TYPE_BOOLEAN;
+        if (Boolean.TRUE.equals(value)) {
+          flags |= FLAG_TRUE;
+        }
+      } else if (value instanceof String) {
+        type = TYPE_STRING;
+      } else {
+        throw new IOException("Invalid value type " + (null == value ? null : value.getClass()));
+      }
+
+      flags |= type << FLAG_TYPE_SHIFT;
+
+      writeByte(flags);
+
+      if (0 != (flags & FLAG_TIMESTAMP)) {
+        writeVarLong(zigzag(timestamp - this.lastTimestamp));
+        this.lastTimestamp = timestamp;
+      }
+
+      if (0 != (flags & FLAG_LOCATION)) {
+        writeInt(Float.floatToRawIntBits(latitude));
+        writeInt(Float.floatToRawIntBits(longitude));
+      }
+
+      if (0 != (flags & FLAG_ELEVATION)) {
+        writeVarLong(zigzag(elevation));
+      }
+
+      switch (type) {
+        case TYPE_LONG:
+          writeVarLong(zigzag(((Number) value).longValue()));
+          break;
+        case TYPE_DOUBLE:
+          long bits = Double.doubleToRawLongBits(((Number) value).doubleValue());
+          writeInt((int) (bits >>> 32));
+          writeInt((int) bits);
+          break;
+        case TYPE_STRING:
+          writeVarLong(stringid);
+          break;
+        default:
+          break;
+      }
+
+      flushRecord(RECORD_VALUE);
+    }
+
+    /**
+     * Write the END record. The underlying stream is not closed.
+     */
+    public void close() throws IOException {
+      if (this.closed) {
+        return;
+      }
+      this.len = 0;
+      flushRecord(RECORD_END);
+      this.out.flush();
+      this.closed = true;
+    }
+
+    private int intern(String str) throws IOException {
+      Integer id = this.dictionary.get(str);
+
+      if (null != id) {
+        return id;
+      }
+
+      id = this.dictionary.size();
+      this.dictionary.put(str, id);
+
+      byte[] utf8 = str.getBytes("UTF-8");
+
+      this.out.write(RECORD_STRING);
+      SensisionBinaryFormat.writeVarLong(this.out, utf8.length);
+      this.out.write(utf8);
+
+      return id;
+    }
+
+    private void flushRecord(int type) throws IOException {
+      this.out.write(type);
+      SensisionBinaryFormat.writeVarLong(this.out, this.len);
+      this.out.write(this.buf, 0, this.len);
+    }
+
+    private void ensure(int n) {
+      if (this.len + n > this.buf.length) {
+        byte[] newbuf = new byte[Math.max(this.buf.length * 2, this.len + n)];
+        System.arraycopy(this.buf, 0, newbuf, 0, this.len);
+        this.buf = newbuf;
+      }
+    }
+
+    private void writeByte(int b) {
+      ensure(1);
+      this.buf[this.len++] = (byte) b;
+    }
+
+    private void writeInt(int v) {
+      ensure(4);
+      this.buf[this.len++] = (byte) (v >>> 24);
+      this.buf[this.len++] = (byte) (v >>> 16);
+      this.buf[this.len++] = (byte) (v >>> 8);
+      this.buf[this.len++] = (byte) v;
+    }
+
+    private void writeVarLong(long v) {
+      ensure(10);
+      while (0 != (v & ~0x7FL)) {
+        this.buf[this.len++] = (byte) ((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+      this.buf[this.len++] = (byte) v;
+    }
+  }
+
+  public static final class Reader {
+
+    private final InputStream in;
+
+    private final List<String> dictionary = new ArrayList<String>();
+
+    private byte[] buf = new byte[256];
+    private int pos = 0;
+    private int len = 0;
+
+    private long lastTimestamp = 0L;
+
+    private boolean done = false;
+
+    /**
+     * @param in InputStream to read from, positioned at the magic number. Callers should provide a buffered stream.
+     */
+    public Reader(InputStream in) throws IOException {
+      this.in = in;
+
+      for (int i = 0; i < MAGIC.length; i++) {
+        if (MAGIC[i] != (byte) in.read()) {
+          throw new IOException("Invalid magic number.");
+        }
+      }
+
+      int version = in.read();
+
+      if (VERSION != version) {
+        throw new IOException("Unsupported version " + version);
+      }
+    }
+
+    /**
+     * Read the next value.
+     *
+     * @return the next value or null when the END record or the end of the stream was reached
+     */
+    public Value read() throws IOException {
+      while (!this.done) {
+        int type = this.in.read();
+
+        if (type < 0) {
+          this.done = true;
+          break;
+        }
+
+        long size = SensisionBinaryFormat.readVarLong(this.in);
+
+        if (size < 0 || size > MAX_RECORD_SIZE) {
+          throw new IOException("Invalid record size " + size);
+        }
+
+        readRecord((int) size);
+
+        switch (type) {
+          case RECORD_END:
+            this.done = true;
+            break;
+          case RECORD_STRING:
+            this.dictionary.add(new String(this.buf, 0, this.len, "UTF-8"));
+            break;
+          case RECORD_VALUE:
+            return decodeValue();
+          default:
+            // Skip unknown records
+            break;
+        }
+      }
+
+      return null;
+    }
+
+    private void readRecord(int size) throws IOException {
+      if (size > this.buf.length) {
+        this.buf = new byte[Math.max(size, this.buf.length * 2)];
+      }
+
+      int off = 0;
+
+      while (off < size) {
+        int n = this.in.read(this.buf, off, size - off);
+        if (n < 0) {
+          throw new EOFException("Truncated record.");
+        }
+        off += n;
+      }
+
+      this.pos = 0;
+      this.len = size;
+    }
+
+    private Value decodeValue() throws IOException {
+      String name = string(readVarLong());
+
+      long nlabels = readVarLong();
+
+      // Labels are sorted, as when parsing the text format, so deduplication works
+      Map<String,String> labels = new TreeMap<String,String>();
+
+      for (long i = 0; i < nlabels; i++) {
+        String key = string(readVarLong());
+        String val = string(readVarLong());
+        labels.put(key, val);
+      }
+
+      int flags = readByte();
+
+      long timestamp = Long.MIN_VALUE;
+      Float latitude = null;
+      Float longitude = null;
+      Long elevation = null;
+
+      if (0 != (flags & FLAG_TIMESTAMP)) {
+        timestamp = this.lastTimestamp + unzigzag(readVarLong());
+        this.lastTimestamp = timestamp;
+      }
+
+      if (0 != (flags & FLAG_LOCATION)) {
+        latitude = Float.intBitsToFloat(readInt());
+        longitude = Float.intBitsToFloat(readInt());
+      }
+
+      if (0 != (flags & FLAG_ELEVATION)) {
+        elevation = unzigzag(readVarLong());
+      }
+
+      Object value;
+
+      switch ((flags & FLAG_TYPE_MASK) >>> FLAG_TYPE_SHIFT) {
+        case TYPE_LONG:
+          value = unzigzag(readVarLong());
+          break;
+        case TYPE_DOUBLE:
+          long bits = ((long) readInt()) << 32;
+          bits |= readInt() & 0xFFFFFFFFL;
+          value = Double.longBitsToDouble(bits);
+          break;
+        case TYPE_BOOLEAN:
+          value = 0 != (flags & FLAG_TRUE);
+          break;
+        default:
+          value = string(readVarLong());
+          break;
+      }
+
+      return new Value(name, labels, timestamp, latitude, longitude, elevation, value);
+    }
+
+    private String string(long id) throws IOException {
+      if (id < 0 || id >= this.dictionary.size()) {
+        throw new IOException("Invalid string reference " + id);
+      }
+      return this.dictionary.get((int) id);
+    }
+
+    private int readByte() throws IOException {
+      if (this.pos >= this.len) {
+        throw new EOFException("Truncated value record.");
+      }
+      return this.buf[this.pos++] & 0xFF;
+    }
+
+    private int readInt() throws IOException {
+      return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+    }
+
+    private long readVarLong() throws IOException {
+      long v = 0L;
+      int shift = 0;
+
+      while (shift < 64) {
+        int b = readByte();
+        v |= ((long) (b & 0x7F)) << shift;
+        if (0 == (b & 0x80)) {
+          return v;
+        }
+        shift += 7;
+      }
+
+      throw new IOException("Invalid varint.");
+    }
+  }
+
+  private static void writeVarLong(OutputStream out, long v) throws IOException {
+    while (0 != (v & ~0x7FL)) {
+      out.write((int) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    out.write((int) v);
+  }
+
+  private static long readVarLong(InputStream in) throws IOException {
+    long v = 0L;
+    int shift = 0;
+
+    while (shift < 64) {
+      int b = in.read();
+      if (b < 0) {
+        throw new EOFException("Truncated varint.");
+      }
+      v |= ((long) (b & 0x7F)) << shift;
+      if (0 == (b & 0x80)) {
+        return v;
+      }
+      shift += 7;
+    }
+
+    throw new IOException("Invalid varint.");
+  }
+
+  private static long zigzag(long v) {
+    return (v << 1) ^ (v >> 63);
+  }
+
+  private static long unzigzag(long v) {
+    return (v >>> 1) ^ -(v & 1);
+  }
+}
@@ -36,6 +36,106 @@ public class SensisionConstants {
   
   public static final String SENSISION_LABEL_QUEUE = "queue";
 
+  /**
+   * Number of bytes committed by the ProxyPoller per tenant
+   */
+  public static final String SENSISION_CLASS_PROXY_BYTES = "sensision.proxy.bytes";
+
+  /**
+   * Number of requests rejected by the ProxyPoller because of the limits of their tenant
+   */
+  public static final String SENSISION_CLASS_PROXY_REJECTED = "sensision.proxy.rejected";
+
+  public static final String SENSISION_LABEL_TENANT = "tenant";
+
+  /**
+   * Number of events dropped before being written, per reason
+   */
+  public static final String SENSISION_CLASS_EVENTS_DROPPED = "sensision.events.dropped";
+
+  /**
+   * Number of events skipped by the per class sampling
+   */
+  public static final String SENSISION_CLASS_EVENTS_SAMPLED = "sensision.events.sampled";
+
+  /**
+   * Number of events files rotated
+   */
+  public static final String SENSISION_CLASS_EVENTS_ROTATIONS = "sensision.events.rotations";
+
+  /**
+   * Number of events files deleted to enforce the disk budget
+   */
+  public static final String SENSISION_CLASS_EVENTS_EVICTED_FILES = "sensision.events.evicted.files";
+
+  /**
+   * Number of bytes of events files deleted to enforce the disk budget
+   */
+  public static final String SENSISION_CLASS_EVENTS_EVICTED_BYTES = "sensision.events.evicted.bytes";
+
+  public static final String SENSISION_LABEL_REASON = "reason";
+
+  /**
+   * Number of values consumed by an aggregation rule of the QueueManager
+   */
+  public static final String SENSISION_CLASS_QM_AGGREGATION_IN = "sensision.qm.aggregation.in";
+
+  /**
+   * Number of values emitted by an aggregation rule of the QueueManager
+   */
+  public static final String SENSISION_CLASS_QM_AGGREGATION_OUT = "sensision.qm.aggregation.out";
+
+  /**
+   * Number of values dropped by an aggregation rule of the QueueManager because their window was already emitted
+   */
+  public static final String SENSISION_CLASS_QM_AGGREGATION_LATE = "sensision.qm.aggregation.late";
+
+  public static final String SENSISION_LABEL_RULE = "rule";
+
+  /**
+   * Number of successful polls of a JVM by the remote JMX poller
+   */
+  public static final String SENSISION_CLASS_JMXPOLLER_POLLS = "sensision.jmxpoller.polls";
+
+  /**
+   * Number of failed polls of a JVM by the remote JMX poller
+   */
+  public static final String SENSISION_CLASS_JMXPOLLER_ERRORS = "sensision.jmxpoller.errors";
+
+  /**
+   * Time spent polling a JVM by the remote JMX poller, in us
+   */
+  public static final String SENSISION_CLASS_JMXPOLLER_TIME = "sensision.jmxpoller.time.us";
+
+  /**
+   * Number of JVMs polled by the remote JMX poller
+   */
+  public static final String SENSISION_CLASS_JMXPOLLER_TARGETS = "sensision.jmxpoller.targets";
+
+  public static final String SENSISION_LABEL_TARGET = "target";
+
+  /**
+   * Number of runs of a /proc collector
+   */
+  public static final String SENSISION_CLASS_PROCPOLLER_RUNS = "sensision.procpoller.runs";
+
+  /**
+   * Number of failed runs of a /proc collector
+   */
+  public static final String SENSISION_CLASS_PROCPOLLER_ERRORS = "sensision.procpoller.errors";
+
+  /**
+   * Time spent running a /proc collector, in us
+   */
+  public static final String SENSISION_CLASS_PROCPOLLER_TIME = "sensision.procpoller.time.us";
+
+  /**
+   * Number of compilations of the scripts run by the ScriptRunner
+   */
+  public static final String SENSISION_CLASS_SCRIPTRUNNER_COMPILATIONS = "sensision.scriptrunner.compilations";
+
+  public static final String SENSISION_LABEL_COLLECTOR = "collector";
+
   /**
    * Revision
    */
@@ -0,0 +1,527 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded multi producer single consumer ring of binary event records.
+ *
+ * Slots are preallocated. A producer claims a sequence number with a CAS, copies its
+ * record in the matching slot and publishes it by stamping the slot with the sequence
+ * number. Records are dropped when the ring is full, producers never wait for the consumer.
+ *
+ * Records are self contained (no dictionary) so they can be encoded by the producers
+ * without any shared state. The encoding is:
+ *
+ * flags (1 byte), timestamp (8 bytes), latitude and longitude (8 bytes each, if FLAG_LOCATION),
+ * elevation (8 bytes, if FLAG_ELEVATION), class name, number of labels (varint), label names
+ * and values, value (8 bytes for LONG and DOUBLE, a string for STRING and NUMBER, nothing for BOOLEAN).
+ * Strings are encoded as their varint length followed by their UTF-8 bytes.
+ */
+class SensisionEventRing {
+
+  private static final int FLAG_LOCATION = 0x01;
+  private static final int FLAG_ELEVATION = 0x02;
+  private static final int FLAG_TYPE_SHIFT = 2;
+  private static final int FLAG_TYPE_MASK = 0x1C;
+  private static final int FLAG_TRUE = 0x20;
+
+  private static final int TYPE_LONG = 0;
+  private static final int TYPE_DOUBLE = 1;
+  private static final int TYPE_BOOLEAN = 2;
+  private static final int TYPE_STRING = 3;
+  // Numbers other than Long/Integer/Short/Byte/Double, stored as their string representation
+  private static final int TYPE_NUMBER = 4;
+
+  /**
+   * Record read from the ring
+   */
+  static final class Record {
+    final byte[] buf;
+    int len;
+    long seq;
+
+    Record(int size) {
+      this.buf = new byte[size];
+    }
+  }
+
+  private final int mask;
+
+  private final int slotSize;
+
+  private final byte[][] slots;
+
+  private final int[] lengths;
+
+  /**
+   * Sequence number of the record in each slot, -1 if none
+   */
+  private final AtomicLongArray published;
+
+  /**
+   * Next sequence number to claim
+   */
+  private final AtomicLong head = new AtomicLong(0L);
+
+  /**
+   * Next sequence number to consume
+   */
+  private volatile long tail = 0L;
+
+  /**
+   * Number of records dropped because the ring was full
+   */
+  private final AtomicLong dropped = new AtomicLong(0L);
+
+  /**
+   * Number of records dropped because they did not fit in a slot
+   */
+  private final AtomicLong oversized = new AtomicLong(0L);
+
+  /**
+   * Scratch buffers used by the producers to encode their records
+   */
+  private final ThreadLocal<byte[]> scratch;
+
+  /**
+   * @param capacity Number of slots, rounded up to a power of 2
+   * @param slotSize Maximum size of a record
+   */
+  SensisionEventRing(int capacity, final int slotSize) {
+    int size = 1;
+    while (size < capacity) {
+      size <<= 1;
+    }
+
+    this.mask = size - 1;
+    this.slotSize = slotSize;
+    this.slots = new byte[size][slotSize];
+    this.lengths = new int[size];
+    this.published = new AtomicLongArray(size);
+
+    for (int i = 0; i < size; i++) {
+      this.published.set(i, -1L);
+    }
+
+    this.scratch = new ThreadLocal<byte[]>() {
+      @Override
+      protected byte[] initialValue() {
+        return new byte[slotSize];
+      }
+    };
+  }
+
+  int capacity() {
+    return this.mask + 1;
+  }
+
+  long getDropped() {
+    return this.dropped.get();
+  }
+
+  long getOversized() {
+    return this.oversized.get();
+  }
+
+  /**
+   * Encode and add an event to the ring.
+   *
+   * @return the sequence number of the event or -1 if it was dropped
+   */
+  long offer(long timestamp, Double latitude, Double longitude, Long elevation, String cls, Map<String,String> labels, Object value) {
+    byte[] buf = this.scratch.get();
+
+    int len = encode(buf, timestamp, latitude, longitude, elevation, cls, labels, value);
+
+    if (len < 0) {
+      this.oversized.incrementAndGet();
+      return -1L;
+    }
+
+    return offer(buf, len);
+  }
+
+  private long offer(byte[] buf, int len) {
+    long seq;
+
+    while (true) {
+      seq = this.head.get();
+
+      if (seq - this.tail >= this.slots.length) {
+        this.dropped.incrementAndGet();
+        return -1L;
+      }
+
+      if (this.head.compareAndSet(seq, seq + 1)) {
+        break;
+      }
+    }
+
+    int idx = (int) (seq & this.mask);
+
+    System.arraycopy(buf, 0, this.slots[idx], 0, len);
+    this.lengths[idx] = len;
+    this.published.lazySet(idx, seq);
+
+    return seq;
+  }
+
+  /**
+   * Retrieve the next record. Must only be called by a single consumer at a time.
+   *
+   * @return false if the ring is empty
+   */
+  boolean poll(Record record) {
+    long seq = this.tail;
+
+    if (seq >= this.head.get()) {
+      return false;
+    }
+
+    int idx = (int) (seq & this.mask);
+
+    // The slot was claimed, wait for its producer to finish copying the record
+    while (seq != this.published.get(idx)) {
+      Thread.yield();
+    }
+
+    record.len = this.lengths[idx];
+    record.seq = seq;
+    System.arraycopy(this.slots[idx], 0, record.buf, 0, record.len);
+
+    this.tail = seq + 1;
+
+    return true;
+  }
+
+  Record newRecord() {
+    return new Record(this.slotSize);
+  }
+
+  /**
+   * Decode a record as a line in the text format
+   */
+  static StringBuilder decode(Record record) {
+    byte[] buf = record.buf;
+    int[] pos = new int[1];
+
+    int flags = buf[pos[0]++] & 0xFF;
+
+    long timestamp = getLong(buf, pos);
+
+    Double latitude = null;
+    Double longitude = null;
+    Long elevation = null;
+
+    if (0 != (flags & FLAG_LOCATION)) {
+      latitude = Double.longBitsToDouble(getLong(buf, pos));
+      longitude = Double.longBitsToDouble(getLong(buf, pos));
+    }
+
+    if (0 != (flags & FLAG_ELEVATION)) {
+      elevation = getLong(buf, pos);
+    }
+
+    String cls = getString(buf, pos);
+
+    int nlabels = (int) getVarLong(buf, pos);
+
+    Map<String,String> labels = new LinkedHashMap<String,String>();
+
+    for (int i = 0; i < nlabels; i++) {
+      String name = getString(buf, pos);
+      labels.put(name, getString(buf, pos));
+    }
+
+    Object value;
+
+    switch ((flags & FLAG_TYPE_MASK) >>> FLAG_TYPE_SHIFT) {
+      case TYPE_LONG:
+        value = getLong(buf, pos);
+        break;
+      case TYPE_DOUBLE:
+        value = Double.longBitsToDouble(getLong(buf, pos));
+        break;
+      case TYPE_BOOLEAN:
+        value = 0 != (flags & FLAG_TRUE);
+        break;
+      case TYPE_STRING:
+        value = getString(buf, pos);
+        break;
+      default:
+        // Output the representation of the number as is
+        value = new RawNumber(getString(buf, pos));
+        break;
+    }
+
+    return Sensision.buildEvent(timestamp, latitude, longitude, elevation, cls, labels, value);
+  }
+
+  /**
+   * Encode an event
+   *
+   * @return the length of the record or -1 if it did not fit in the buffer
+   */
+  private static int encode(byte[] buf, long timestamp, Double latitude, Double longitude, Long elevation, String cls, Map<String,String> labels, Object value) {
+    int flags = 0;
+
+    boolean location = null != latitude && null != longitude && Double.isFinite(latitude) && Double.isFinite(longitude);
+
+    if (location) {
+      flags |= FLAG_LOCATION;
+    }
+
+    if (null != elevation) {
+      flags |= FLAG_ELEVATION;
+    }
+
+    int type;
+
+    if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      type = TYPE_LONG;
+    } else if (value instanceof Double) {
+      type = TYPE_DOUBLE;
+    } else if (value instanceof Number) {
+      type = TYPE_NUMBER;
+    } else if (value instanceof Boolean) {
+      type = TYPE_BOOLEAN;
+      if (Boolean.TRUE.equals(value)) {
+        flags |= FLAG_TRUE;
+      }
+    } else {
+      type = TYPE_STRING;
+    }
+
+    flags |= type << FLAG_TYPE_SHIFT;
+
+    int pos = 0;
+
+    // flags + timestamp + location + elevation
+    if (buf.length < 33) {
+      return -1;
+    }
+
+    buf[pos++] = (byte) flags;
+    pos = putLong(buf, pos, timestamp);
+
+    if (location) {
+      pos = putLong(buf, pos, Double.doubleToRawLongBits(latitude));
+      pos = putLong(buf, pos, Double.doubleToRawLongBits(longitude));
+    }
+
+    if (null != elevation) {
+      pos = putLong(buf, pos, elevation);
+    }
+
+    pos = putString(buf, pos, cls);
+
+    pos = putVarLong(buf, pos, labels.size());
+
+    for (Entry<String,String> entry: labels.entrySet()) {
+      pos = putString(buf, pos, entry.getKey());
+      pos = putString(buf, pos, entry.getValue());
+    }
+
+    switch (type) {
+      case TYPE_LONG:
+        if (pos < 0 || pos + 8 > buf.length) {
+          return -1;
+        }
+        pos = putLong(buf, pos, ((Number) value).longValue());
+        break;
+      case TYPE_DOUBLE:
+        if (pos < 0 || pos + 8 > buf.length) {
+          return -1;
+        }
+        pos = putLong(buf, pos, Double.doubleToRawLongBits((Double) value));
+        break;
+      case TYPE_BOOLEAN:
+        break;
+      default:
+        pos = putString(buf, pos, value.toString());
+        break;
+    }
+
+    return pos;
+  }
+
+  private static int putLong(byte[] buf, int pos, long v) {
+    for (int i = 56; i >= 0; i -= 8) {
+      buf[pos++] = (byte) (v >>> i);
+    }
+    return pos;
+  }
+
+  private static long getLong(byte[] buf, int[] pos) {
+    long v = 0L;
+    for (int i = 0; i < 8; i++) {
+      v = (v << 8) | (buf[pos[0]++] & 0xFFL);
+    }
+    return v;
+  }
+
+  /**
+   * @return the new position or -1 if the buffer is too small
+   */
+  private static int putVarLong(byte[] buf, int pos, long v) {
+    if (pos < 0) {
+      return -1;
+    }
+    while (0 != (v & ~0x7FL)) {
+      if (pos >= buf.length) {
+        return -1;
+      }
+      buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    if (pos >= buf.length) {
+      return -1;
+    }
+    buf[pos++] = (byte) v;
+    return pos;
+  }
+
+  private static long getVarLong(byte[] buf, int[] pos) {
+    long v = 0L;
+    int shift = 0;
+    while (true) {
+      int b = buf[pos[0]++] & 0xFF;
+      v |= (long) (b & 0x7F) << shift;
+      if (0 == (b & 0x80)) {
+        return v;
+      }
+      shift += 7;
+    }
+  }
+
+  /**
+   * Encode a string as UTF-8 without allocating
+   *
+   * @return the new position or -1 if the buffer is too small
+   */
+  private static int putString(byte[] buf, int pos, String str) {
+    if (pos < 0) {
+      return -1;
+    }
+
+    if (null == str) {
+      str = "";
+    }
+
+    int n = str.length();
+    int utf8len = 0;
+
+    for (int i = 0; i < n; i++) {
+      char c = str.charAt(i);
+      if (c < 0x80) {
+        utf8len++;
+      } else if (c < 0x800) {
+        utf8len += 2;
+      } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(str.charAt(i + 1))) {
+        utf8len += 4;
+        i++;
+      } else if (Character.isSurrogate(c)) {
+        // Lone surrogates are replaced by '?' as String.getBytes would do
+        utf8len++;
+      } else {
+        utf8len += 3;
+      }
+    }
+
+    pos = putVarLong(buf, pos, utf8len);
+
+    if (pos < 0 || pos + utf8len > buf.length) {
+      return -1;
+    }
+
+    for (int i = 0; i < n; i++) {
+      char c = str.charAt(i);
+      if (c < 0x80) {
+        buf[pos++] = (byte) c;
+      } else if (c < 0x800) {
+        buf[pos++] = (byte) (0xC0 | (c >> 6));
+        buf[pos++] = (byte) (0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(str.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, str.charAt(++i));
+        buf[pos++] = (byte) (0xF0 | (cp >> 18));
+        buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+        buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+        buf[pos++] = (byte) (0x80 | (cp & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        buf[pos++] = (byte) '?';
+      } else {
+        buf[pos++] = (byte) (0xE0 | (c >> 12));
+        buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+        buf[pos++] = (byte) (0x80 | (c & 0x3F));
+      }
+    }
+
+    return pos;
+  }
+
+  private static String getString(byte[] buf, int[] pos) {
+    int len = (int) getVarLong(buf, pos);
+    String str = new String(buf, pos[0], len, StandardCharsets.UTF_8);
+    pos[0] += len;
+    return str;
+  }
+
+  /**
+   * Number whose string representation is output as is
+   */
+  static final class RawNumber extends Number {
+    private static final long serialVersionUID = 1L;
+
+    private final String repr;
+
+    RawNumber(String repr) {
+      this.repr = repr;
+    }
+
+    @Override
+    public String toString() {
+      return this.repr;
+    }
+
+    @Override
+    public int intValue() {
+      return (int) doubleValue();
+    }
+
+    @Override
+    public long longValue() {
+      return (long) doubleValue();
+    }
+
+    @Override
+    public float floatValue() {
+      return (float) doubleValue();
+    }
+
+    @Override
+    public double doubleValue() {
+      return Double.parseDouble(this.repr);
+    }
+  }
+}
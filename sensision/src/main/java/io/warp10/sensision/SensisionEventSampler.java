@@ -0,0 +1,190 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decide which events are kept before they are encoded.
+ *
+ * Each class is sampled adaptively so it emits at most a target number of events per second:
+ * at the end of each window the fraction of events kept is derived from the number of events
+ * seen during the window. The sampled events then go through a global token bucket.
+ *
+ * Rejecting an event costs a map lookup and a few atomic operations, the token bucket is
+ * not consulted again until tokens are expected to be available.
+ */
+final class SensisionEventSampler {
+
+  /**
+   * Sampling state of a class
+   */
+  private static final class State {
+    /**
+     * Number of events seen during the current window
+     */
+    private final AtomicLong seen = new AtomicLong(0L);
+
+    /**
+     * Start (in ns) of the current window
+     */
+    private final AtomicLong start;
+
+    /**
+     * One event out of 'interval' is kept
+     */
+    private volatile long interval = 1L;
+
+    private State(long now) {
+      this.start = new AtomicLong(now);
+    }
+  }
+
+  /**
+   * Number of events per class and per window to keep, 0 if classes are not sampled
+   */
+  private final double budget;
+
+  /**
+   * Duration (in ns) of a sampling window
+   */
+  private final long window;
+
+  /**
+   * Maximum number of classes tracked individually, the other ones share a common state
+   */
+  private final int maxClasses;
+
+  private final ConcurrentHashMap<String,State> states = new ConcurrentHashMap<String,State>();
+
+  private final State overflow;
+
+  /**
+   * Global rate limit, null if events are not rate limited
+   */
+  private final SensisionTokenBucket bucket;
+
+  /**
+   * Time (in ns) before which the bucket is known to be empty
+   */
+  private volatile long emptyUntil;
+
+  /**
+   * Number of events skipped by the sampling
+   */
+  private final AtomicLong sampled = new AtomicLong(0L);
+
+  /**
+   * Number of events dropped by the rate limit
+   */
+  private final AtomicLong limited = new AtomicLong(0L);
+
+  /**
+   * @param rate Maximum number of events per second, 0 for no limit
+   * @param burst Maximum number of events which can be emitted at once above the rate
+   * @param classRate Target number of events per second for each class, 0 to disable sampling
+   * @param window Duration (in ms) of the sampling windows
+   * @param maxClasses Maximum number of classes sampled individually
+   */
+  SensisionEventSampler(double rate, double burst, double classRate, long window, int maxClasses) {
+    if (window <= 0L) {
+      throw new RuntimeException("Invalid events sampling window " + window + ".");
+    }
+
+    long now = System.nanoTime();
+
+    this.bucket = rate > 0.0D ? new SensisionTokenBucket(rate, Math.max(1.0D, burst > 0.0D ? burst : rate)) : null;
+    this.emptyUntil = now;
+    this.budget = classRate > 0.0D ? classRate * window / 1000.0D : 0.0D;
+    this.window = TimeUnit.MILLISECONDS.toNanos(window);
+    this.maxClasses = maxClasses;
+    this.overflow = new State(now);
+  }
+
+  /**
+   * Check whether an event of the given class should be kept
+   */
+  boolean admit(String cls) {
+    long now = System.nanoTime();
+
+    if (this.budget > 0.0D && !sample(cls, now)) {
+      this.sampled.incrementAndGet();
+      return false;
+    }
+
+    if (null == this.bucket) {
+      return true;
+    }
+
+    if (now - this.emptyUntil < 0L) {
+      this.limited.incrementAndGet();
+      return false;
+    }
+
+    if (!this.bucket.tryConsume(1L)) {
+      this.emptyUntil = now + TimeUnit.MILLISECONDS.toNanos(Math.max(1L, this.bucket.getDelay()));
+      this.limited.incrementAndGet();
+      return false;
+    }
+
+    return true;
+  }
+
+  private boolean sample(String cls, long now) {
+    State state = this.states.get(cls);
+
+    if (null == state) {
+      if (this.states.size() < this.maxClasses) {
+        state = new State(now);
+        State previous = this.states.putIfAbsent(cls, state);
+        if (null != previous) {
+          state = previous;
+        }
+      } else {
+        state = this.overflow;
+      }
+    }
+
+    //
+    // At the end of the window, derive the sampling interval from the number of events seen
+    //
+
+    long start = state.start.get();
+
+    if (now - start >= this.window && state.start.compareAndSet(start, now)) {
+      long seen = state.seen.getAndSet(0L);
+      // Scale the count to a full window if the previous window was longer, i.e. the class was idle
+      double rate = seen * (double) this.window / (now - start);
+      state.interval = Math.max(1L, (long) Math.ceil(rate / this.budget));
+    }
+
+    long n = state.seen.incrementAndGet();
+    long interval = state.interval;
+
+    return 1L == interval || 0L == n % interval;
+  }
+
+  long getSampled() {
+    return this.sampled.get();
+  }
+
+  long getLimited() {
+    return this.limited.get();
+  }
+}
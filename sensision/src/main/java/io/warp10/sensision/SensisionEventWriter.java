@@ -0,0 +1,589 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+/**
+ * Background thread consuming the event ring.
+ *
+ * Events are decoded, stored in the history and appended in batches to the current
+ * events file. Events files are rotated by size and age, and when flushed, by renaming
+ * them with the '.metrics' suffix. When a disk budget is set, the oldest events files
+ * of the events directory are deleted so their total size stays within the budget.
+ *
+ * Everything which consumes the ring or touches the events file is done while holding
+ * the monitor of the writer, so flushes requested by other threads are consistent with
+ * the background writes.
+ *
+ * The history is a ring whose slots hold the events along with their sequence number,
+ * readers retrieve events without locking and detect the events which were overwritten
+ * before they could be read. Those are reported as gap markers.
+ */
+class SensisionEventWriter extends Thread {
+
+  /**
+   * Events files are never fsynced
+   */
+  static final String FSYNC_NONE = "none";
+
+  /**
+   * Events files are fsynced when they are closed
+   */
+  static final String FSYNC_ROTATION = "rotation";
+
+  /**
+   * Events files are fsynced after each batch of events
+   */
+  static final String FSYNC_BATCH = "batch";
+
+  /**
+   * Prefix of the lines reporting events lost from the history, followed by the
+   * sequence numbers of the first and last lost events
+   */
+  static final String GAP_MARKER = "# gap ";
+
+  /**
+   * How often (in ms) the counters are published
+   */
+  private static final long COUNTERS_PERIOD = 1000L;
+
+  /**
+   * Fraction of the disk budget at which events files are rotated when no rotation size is set
+   */
+  private static final long BUDGET_ROTATION_DIVISOR = 10L;
+
+  private final SensisionEventRing ring;
+
+  private final SensisionEventRing.Record record;
+
+  /**
+   * Sampler applied to the events before they reach the ring, null if events are not sampled
+   */
+  private final SensisionEventSampler sampler;
+
+  /**
+   * Directory where events files are created, null if events are not stored on disk
+   */
+  private final File dir;
+
+  private final String suffix;
+
+  private final String fsync;
+
+  /**
+   * Maximum size of an events file, 0 for no limit
+   */
+  private final long rotateSize;
+
+  /**
+   * Maximum age (in ms) of an events file, 0 for no limit
+   */
+  private final long rotateAge;
+
+  /**
+   * Maximum total size of the events files, 0 for no limit
+   */
+  private final long maxDisk;
+
+  /**
+   * Pattern of the names of the events files, published or not
+   */
+  private final Pattern filePattern;
+
+  /**
+   * How long to wait (in ns) when the ring is empty
+   */
+  private final long linger;
+
+  /**
+   * Event of the history along with its sequence number
+   */
+  private static final class Entry {
+    private final long seq;
+    private final String event;
+
+    private Entry(long seq, String event) {
+      this.seq = seq;
+      this.event = event;
+    }
+  }
+
+  /**
+   * Result of a read of the history
+   */
+  static final class Cursor {
+    /**
+     * Sequence number of the last event read or skipped, -1 if there is no event
+     */
+    long last = -1L;
+
+    /**
+     * Number of events which were no longer in the history
+     */
+    long lost = 0L;
+  }
+
+  /**
+   * Circular history of events
+   */
+  private final AtomicReferenceArray<Entry> history;
+
+  /**
+   * Sequence number of the last event stored in the history
+   */
+  private volatile long current = -1L;
+
+  /**
+   * Callbacks to run when new events are available
+   */
+  private final ConcurrentLinkedQueue<Runnable> waiters = new ConcurrentLinkedQueue<Runnable>();
+
+  private File file = null;
+  private FileOutputStream fos = null;
+  private OutputStream out = null;
+  private long size = 0L;
+  private long opened = 0L;
+
+  private long rotations = 0L;
+  private long evictedFiles = 0L;
+  private long evictedBytes = 0L;
+
+  /**
+   * Last published values of the counters, indexed by class and reason
+   */
+  private final Map<String,Long> published = new HashMap<String,Long>();
+
+  private long lastCounters = 0L;
+
+  SensisionEventWriter(SensisionEventRing ring, SensisionEventSampler sampler, int history, File dir, String suffix, String fsync, long rotateSize, long rotateAge, long maxDisk, long linger) {
+    this.ring = ring;
+    this.record = ring.newRecord();
+    this.sampler = sampler;
+    this.history = new AtomicReferenceArray<Entry>(history);
+    this.dir = dir;
+    this.suffix = suffix;
+    this.fsync = fsync;
+    this.rotateAge = rotateAge;
+    this.maxDisk = maxDisk;
+    this.linger = TimeUnit.MILLISECONDS.toNanos(linger);
+
+    // Without a rotation size the current file could exceed the disk budget by itself
+    if (rotateSize <= 0L && maxDisk > 0L) {
+      rotateSize = Math.max(1L, maxDisk / BUDGET_ROTATION_DIVISOR);
+    }
+
+    this.rotateSize = rotateSize;
+
+    // <reversed timestamp>.<uuid>[.<suffix>][.metrics]
+    this.filePattern = Pattern.compile("^[0-9a-f]+\\.[0-9a-f]{8}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{4}-[0-9a-f]{12}"
+        + (null != suffix ? Pattern.quote("." + suffix) : "") + "(" + Pattern.quote(Sensision.SENSISION_METRICS_SUFFIX) + ")?$");
+
+    if (!FSYNC_NONE.equals(fsync) && !FSYNC_ROTATION.equals(fsync) && !FSYNC_BATCH.equals(fsync)) {
+      throw new RuntimeException("Invalid events fsync policy '" + fsync + "'.");
+    }
+
+    this.setDaemon(true);
+    this.setName("[Sensision EventWriter]");
+    this.start();
+  }
+
+  @Override
+  public void run() {
+    while(true) {
+      boolean drained = false;
+
+      try {
+        drained = drain();
+        checkRotation();
+        publishCounters();
+      } catch (Throwable t) {
+        t.printStackTrace();
+      }
+
+      if (!drained) {
+        LockSupport.parkNanos(this.linger);
+      }
+    }
+  }
+
+  /**
+   * Consume the events available in the ring
+   *
+   * @return true if some events were consumed
+   */
+  synchronized boolean drain() {
+    boolean drained = false;
+
+    while (this.ring.poll(this.record)) {
+      drained = true;
+
+      String event = SensisionEventRing.decode(this.record).toString();
+
+      if (this.history.length() > 0) {
+        this.history.set((int) (this.record.seq % this.history.length()), new Entry(this.record.seq, event));
+      }
+      this.current = this.record.seq;
+
+      write(event);
+    }
+
+    if (drained) {
+      notifyWaiters();
+    }
+
+    if (drained && null != this.out) {
+      try {
+        this.out.flush();
+        if (FSYNC_BATCH.equals(this.fsync)) {
+          this.fos.getChannel().force(false);
+        }
+      } catch (IOException ioe) {
+        ioe.printStackTrace();
+        close(false);
+      }
+    }
+
+    return drained;
+  }
+
+  private void write(String event) {
+    if (null == this.dir) {
+      return;
+    }
+
+    try {
+      if (null == this.out && !open()) {
+        return;
+      }
+
+      byte[] bytes = event.getBytes(StandardCharsets.UTF_8);
+      this.out.write(bytes);
+      this.out.write('\n');
+      this.size += bytes.length + 1;
+
+      if (this.rotateSize > 0L && this.size >= this.rotateSize) {
+        this.out.flush();
+        close(true);
+      }
+    } catch (IOException ioe) {
+      ioe.printStackTrace();
+      close(false);
+    }
+  }
+
+  private boolean open() throws IOException {
+    if (!this.dir.exists() || !this.dir.isDirectory()) {
+      return false;
+    }
+
+    String now = Long.toHexString(Long.MAX_VALUE - System.currentTimeMillis());
+    String uuid = UUID.randomUUID().toString();
+    // End the name with a '.' so even if the suffix is SENSISION_METRICS_SUFFIX it won't bother
+    this.file = new File(this.dir, now + "." + uuid + (null != this.suffix ? ("." + this.suffix) : ""));
+    this.fos = new FileOutputStream(this.file);
+    this.out = new BufferedOutputStream(this.fos);
+    this.size = 0L;
+    this.opened = System.currentTimeMillis();
+
+    return true;
+  }
+
+  /**
+   * Close the current events file
+   *
+   * @param publish Should the file be renamed so it gets picked up
+   */
+  private void close(boolean publish) {
+    if (null == this.out) {
+      return;
+    }
+
+    try {
+      this.out.flush();
+      if (!FSYNC_NONE.equals(this.fsync)) {
+        this.fos.getChannel().force(false);
+      }
+    } catch (IOException ioe) {
+      ioe.printStackTrace();
+    }
+
+    try {
+      this.out.close();
+    } catch (IOException ioe) {
+    }
+
+    if (publish) {
+      this.file.renameTo(new File(this.dir, this.file.getName() + Sensision.SENSISION_METRICS_SUFFIX));
+      this.rotations++;
+    }
+
+    this.file = null;
+    this.fos = null;
+    this.out = null;
+
+    enforceBudget();
+  }
+
+  /**
+   * Delete the oldest events files until their total size fits in the disk budget.
+   * The current events file is never deleted.
+   */
+  private void enforceBudget() {
+    if (this.maxDisk <= 0L || null == this.dir) {
+      return;
+    }
+
+    String[] names = this.dir.list();
+
+    if (null == names) {
+      return;
+    }
+
+    long total = null != this.out ? this.size : 0L;
+
+    // Names start with the reversed timestamp, so the oldest files come last in natural order
+    Arrays.sort(names, Collections.reverseOrder());
+
+    long[] sizes = new long[names.length];
+
+    for (int i = 0; i < names.length; i++) {
+      if (!this.filePattern.matcher(names[i]).matches() || (null != this.file && this.file.getName().equals(names[i]))) {
+        sizes[i] = -1L;
+        continue;
+      }
+      sizes[i] = new File(this.dir, names[i]).length();
+      total += sizes[i];
+    }
+
+    for (int i = 0; i < names.length && total > this.maxDisk; i++) {
+      if (sizes[i] < 0L) {
+        continue;
+      }
+
+      if (new File(this.dir, names[i]).delete()) {
+        total -= sizes[i];
+        this.evictedFiles++;
+        this.evictedBytes += sizes[i];
+      }
+    }
+  }
+
+  /**
+   * Publish the counters of the events subsystem as metrics
+   */
+  private void publishCounters() {
+    long now = System.currentTimeMillis();
+
+    if (now - this.lastCounters < COUNTERS_PERIOD) {
+      return;
+    }
+
+    this.lastCounters = now;
+
+    publishCounter(SensisionConstants.SENSISION_CLASS_EVENTS_DROPPED, "full", this.ring.getDropped());
+    publishCounter(SensisionConstants.SENSISION_CLASS_EVENTS_DROPPED, "oversized", this.ring.getOversized());
+    if (null != this.sampler) {
+      publishCounter(SensisionConstants.SENSISION_CLASS_EVENTS_DROPPED, "ratelimit", this.sampler.getLimited());
+      publishCounter(SensisionConstants.SENSISION_CLASS_EVENTS_SAMPLED, null, this.sampler.getSampled());
+    }
+    publishCounter(SensisionConstants.SENSISION_CLASS_EVENTS_ROTATIONS, null, this.rotations);
+    publishCounter(SensisionConstants.SENSISION_CLASS_EVENTS_EVICTED_FILES, null, this.evictedFiles);
+    publishCounter(SensisionConstants.SENSISION_CLASS_EVENTS_EVICTED_BYTES, null, this.evictedBytes);
+  }
+
+  /**
+   * Publish a counter if it changed since it was last published
+   */
+  private void publishCounter(String cls, String reason, long value) {
+    String key = null == reason ? cls : cls + "/" + reason;
+
+    Long last = this.published.get(key);
+
+    if (null == last && 0L == value || null != last && last == value) {
+      return;
+    }
+
+    this.published.put(key, value);
+
+    Map<String,String> labels = new HashMap<String,String>();
+
+    if (null != reason) {
+      labels.put(SensisionConstants.SENSISION_LABEL_REASON, reason);
+    }
+
+    Sensision.set(cls, labels, value);
+  }
+
+  private synchronized void checkRotation() {
+    if (null != this.out && this.rotateAge > 0L && System.currentTimeMillis() - this.opened >= this.rotateAge) {
+      close(true);
+    }
+  }
+
+  long getRotations() {
+    return this.rotations;
+  }
+
+  /**
+   * Write the pending events and publish the current events file
+   */
+  synchronized void flush() {
+    drain();
+    close(true);
+  }
+
+  /**
+   * Write the current values of the metrics in the current events file
+   */
+  synchronized void dumpMetrics(boolean useValueTimestamp) throws IOException {
+    drain();
+
+    if (null == this.dir || (null == this.out && !open())) {
+      return;
+    }
+
+    PrintWriter pw = new PrintWriter(new OutputStreamWriter(this.out, StandardCharsets.UTF_8));
+    Sensision.dump(pw, useValueTimestamp, false);
+    pw.flush();
+  }
+
+  /**
+   * Retrieve the events following a cursor from the history.
+   *
+   * When events following the cursor are no longer in the history, a gap marker reporting
+   * the lost events is added in their place. A cursor beyond the most recent event, typically
+   * obtained from a previous instance, is considered as the start of the history.
+   *
+   * @param after Sequence number of the last event already known, -1 to start from the oldest event
+   * @param n Maximum number of events to retrieve
+   * @param events List to which the events and gap markers are added
+   */
+  Cursor read(long after, int n, List<String> events) {
+    Cursor cursor = new Cursor();
+
+    int size = this.history.length();
+    long cur = this.current;
+
+    if (0 == size || cur < 0L) {
+      return cursor;
+    }
+
+    long seq = after + 1;
+
+    // Start from the oldest event still in the history, there is no gap to report
+    if (after < 0L || after > cur) {
+      seq = Math.max(0L, cur - size + 1);
+    }
+
+    while (seq <= cur && n > 0) {
+      Entry entry = this.history.get((int) (seq % size));
+
+      if (null != entry && entry.seq == seq) {
+        events.add(entry.event);
+        seq++;
+        n--;
+        continue;
+      }
+
+      if (null != entry && entry.seq < seq) {
+        // Cannot happen as slots are filled before 'current' is updated
+        break;
+      }
+
+      //
+      // The event was overwritten, skip to the oldest event still in the history
+      //
+
+      long oldest = Math.max(0L, this.current - size + 1);
+
+      if (oldest <= seq) {
+        oldest = seq + 1;
+      }
+
+      events.add(GAP_MARKER + seq + " " + (oldest - 1));
+      cursor.lost += oldest - seq;
+      seq = oldest;
+      cur = Math.max(cur, this.current);
+    }
+
+    cursor.last = seq - 1;
+
+    return cursor;
+  }
+
+  /**
+   * Run a callback once events following a cursor are available. The callback is run by the
+   * writer thread and must not block. It may be run immediately if such events already exist.
+   */
+  void await(long after, final Runnable callback) {
+    this.waiters.add(callback);
+
+    // Events may have arrived before the callback was registered, a cursor beyond
+    // the most recent event is answered immediately as reads restart from the oldest event
+    if (this.current != after) {
+      if (this.waiters.remove(callback)) {
+        callback.run();
+      }
+    }
+  }
+
+  /**
+   * Remove a callback registered with 'await'
+   */
+  void cancel(Runnable callback) {
+    this.waiters.remove(callback);
+  }
+
+  private void notifyWaiters() {
+    Runnable callback;
+
+    while (null != (callback = this.waiters.poll())) {
+      try {
+        callback.run();
+      } catch (Throwable t) {
+        t.printStackTrace();
+      }
+    }
+  }
+
+  long getCurrent() {
+    return this.current;
+  }
+
+  int getHistorySize() {
+    return this.history.length();
+  }
+}
@@ -0,0 +1,342 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Histogram of non negative long values with log-linear buckets.
+ *
+ * Values below 2^precision each have their own bucket, above that every power of two is split
+ * into 2^precision buckets, so the relative error on a value is at most 2^-precision. The number
+ * of buckets only depends on the precision and the highest trackable value, larger values are
+ * counted in the last bucket.
+ *
+ * Recording is lock free, threads record into one of a fixed number of stripes chosen by their id,
+ * the stripes are allocated on first use. Histograms with the same precision can be merged.
+ */
+public class SensisionHistogram {
+
+  /**
+   * Maximum number of stripes
+   */
+  private static final int MAX_STRIPES = 8;
+
+  /**
+   * Offsets of the statistics stored after the buckets in each stripe
+   */
+  private static final int COUNT = 0;
+  private static final int SUM = 1;
+  private static final int MIN = 2;
+  private static final int MAX = 3;
+
+  private final int precision;
+
+  /**
+   * Number of buckets
+   */
+  private final int buckets;
+
+  private final int mask;
+
+  private final AtomicReferenceArray<AtomicLongArray> stripes;
+
+  /**
+   * @param precision Number of bits of precision of the buckets, from 1 to 12
+   * @param highest Highest trackable value
+   */
+  public SensisionHistogram(int precision, long highest) {
+    if (precision < 1 || precision > 12) {
+      throw new IllegalArgumentException("Precision must be between 1 and 12.");
+    }
+
+    if (highest < 1L) {
+      throw new IllegalArgumentException("Highest trackable value must be positive.");
+    }
+
+    this.precision = precision;
+    this.buckets = index(precision, highest) + 1;
+
+    int n = Math.min(MAX_STRIPES, Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors())));
+    this.mask = n - 1;
+    this.stripes = new AtomicReferenceArray<AtomicLongArray>(n);
+  }
+
+  public SensisionHistogram(int precision) {
+    this(precision, Long.MAX_VALUE);
+  }
+
+  /**
+   * Index of the bucket of a value
+   */
+  static int index(int precision, long value) {
+    if (value < (1L << precision)) {
+      return (int) value;
+    }
+
+    int shift = 63 - Long.numberOfLeadingZeros(value) - precision;
+
+    return (shift << precision) + (int) (value >>> shift);
+  }
+
+  /**
+   * Highest value counted in a bucket
+   */
+  static long highest(int precision, int index) {
+    if (index < (1 << precision)) {
+      return index;
+    }
+
+    int shift = (index >>> precision) - 1;
+    long mantissa = index - ((long) shift << precision);
+
+    return ((mantissa + 1L) << shift) - 1L;
+  }
+
+  private AtomicLongArray stripe() {
+    int idx = (int) Thread.currentThread().getId() & this.mask;
+
+    AtomicLongArray stripe = this.stripes.get(idx);
+
+    if (null == stripe) {
+      stripe = new AtomicLongArray(this.buckets + 4);
+      stripe.set(this.buckets + MIN, Long.MAX_VALUE);
+      stripe.set(this.buckets + MAX, Long.MIN_VALUE);
+
+      if (!this.stripes.compareAndSet(idx, null, stripe)) {
+        stripe = this.stripes.get(idx);
+      }
+    }
+
+    return stripe;
+  }
+
+  /**
+   * Record a value, negative values are recorded as 0
+   */
+  public void record(long value) {
+    record(value, 1L);
+  }
+
+  /**
+   * Record a value several times
+   */
+  public void record(long value, long count) {
+    if (count <= 0L) {
+      return;
+    }
+
+    if (value < 0L) {
+      value = 0L;
+    }
+
+    AtomicLongArray stripe = stripe();
+
+    stripe.addAndGet(Math.min(this.buckets - 1, index(this.precision, value)), count);
+    stripe.addAndGet(this.buckets + COUNT, count);
+    stripe.addAndGet(this.buckets + SUM, value * count);
+
+    long min = stripe.get(this.buckets + MIN);
+    while (value < min && !stripe.compareAndSet(this.buckets + MIN, min, value)) {
+      min = stripe.get(this.buckets + MIN);
+    }
+
+    long max = stripe.get(this.buckets + MAX);
+    while (value > max && !stripe.compareAndSet(this.buckets + MAX, max, value)) {
+      max = stripe.get(this.buckets + MAX);
+    }
+  }
+
+  /**
+   * Add the content of a snapshot to this histogram
+   */
+  public void add(Snapshot snapshot) {
+    if (snapshot.precision != this.precision) {
+      throw new IllegalArgumentException("Cannot merge histograms with different precisions.");
+    }
+
+    if (0L == snapshot.count) {
+      return;
+    }
+
+    AtomicLongArray stripe = stripe();
+
+    for (int i = 0; i < snapshot.counts.length; i++) {
+      if (0L != snapshot.counts[i]) {
+        stripe.addAndGet(Math.min(this.buckets - 1, i), snapshot.counts[i]);
+      }
+    }
+
+    stripe.addAndGet(this.buckets + COUNT, snapshot.count);
+    stripe.addAndGet(this.buckets + SUM, snapshot.sum);
+
+    long min = stripe.get(this.buckets + MIN);
+    while (snapshot.min < min && !stripe.compareAndSet(this.buckets + MIN, min, snapshot.min)) {
+      min = stripe.get(this.buckets + MIN);
+    }
+
+    long max = stripe.get(this.buckets + MAX);
+    while (snapshot.max > max && !stripe.compareAndSet(this.buckets + MAX, max, snapshot.max)) {
+      max = stripe.get(this.buckets + MAX);
+    }
+  }
+
+  public int getPrecision() {
+    return this.precision;
+  }
+
+  /**
+   * Return a copy of the current content of the histogram. Records which are concurrent with
+   * the snapshot may only be partially reflected in it.
+   */
+  public Snapshot snapshot() {
+    Snapshot snapshot = new Snapshot(this.precision, this.buckets);
+
+    for (int s = 0; s < this.stripes.length(); s++) {
+      AtomicLongArray stripe = this.stripes.get(s);
+
+      if (null == stripe) {
+        continue;
+      }
+
+      for (int i = 0; i < this.buckets; i++) {
+        snapshot.counts[i] += stripe.get(i);
+      }
+
+      snapshot.count += stripe.get(this.buckets + COUNT);
+      snapshot.sum += stripe.get(this.buckets + SUM);
+      snapshot.min = Math.min(snapshot.min, stripe.get(this.buckets + MIN));
+      snapshot.max = Math.max(snapshot.max, stripe.get(this.buckets + MAX));
+    }
+
+    return snapshot;
+  }
+
+  /**
+   * Immutable content of a histogram
+   */
+  public static final class Snapshot {
+    private final int precision;
+    private final long[] counts;
+    private long count = 0L;
+    private long sum = 0L;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+
+    private Snapshot(int precision, int buckets) {
+      this.precision = precision;
+      this.counts = new long[buckets];
+    }
+
+    public long getCount() {
+      return this.count;
+    }
+
+    public long getSum() {
+      return this.sum;
+    }
+
+    /**
+     * @return the smallest recorded value, Long.MAX_VALUE if the histogram is empty
+     */
+    public long getMin() {
+      return this.min;
+    }
+
+    /**
+     * @return the largest recorded value, Long.MIN_VALUE if the histogram is empty
+     */
+    public long getMax() {
+      return this.max;
+    }
+
+    public double getMean() {
+      return 0L == this.count ? 0.0D : (double) this.sum / this.count;
+    }
+
+    /**
+     * Return the value below which the given fraction of the recorded values fall, with the
+     * relative precision of the histogram.
+     *
+     * @param q Quantile, between 0.0 and 1.0
+     */
+    public long getValueAtQuantile(double q) {
+      if (0L == this.count) {
+        return 0L;
+      }
+
+      long rank = Math.max(1L, (long) Math.ceil(Math.min(1.0D, Math.max(0.0D, q)) * this.count));
+      long seen = 0L;
+
+      for (int i = 0; i < this.counts.length; i++) {
+        seen += this.counts[i];
+        if (seen >= rank) {
+          return Math.max(this.min, Math.min(this.max, highest(this.precision, i)));
+        }
+      }
+
+      return this.max;
+    }
+
+    /**
+     * Number of buckets, including empty ones
+     */
+    public int getBuckets() {
+      return this.counts.length;
+    }
+
+    /**
+     * Number of values counted in a bucket
+     */
+    public long getBucketCount(int bucket) {
+      return this.counts[bucket];
+    }
+
+    /**
+     * Highest value counted in a bucket
+     */
+    public long getBucketHighest(int bucket) {
+      return highest(this.precision, bucket);
+    }
+
+    /**
+     * Merge two snapshots of histograms with the same precision
+     */
+    public Snapshot merge(Snapshot other) {
+      if (other.precision != this.precision) {
+        throw new IllegalArgumentException("Cannot merge histograms with different precisions.");
+      }
+
+      Snapshot merged = new Snapshot(this.precision, Math.max(this.counts.length, other.counts.length));
+
+      for (int i = 0; i < this.counts.length; i++) {
+        merged.counts[i] += this.counts[i];
+      }
+      for (int i = 0; i < other.counts.length; i++) {
+        merged.counts[i] += other.counts[i];
+      }
+
+      merged.count = this.count + other.count;
+      merged.sum = this.sum + other.sum;
+      merged.min = Math.min(this.min, other.min);
+      merged.max = Math.max(this.max, other.max);
+
+      return merged;
+    }
+  }
+}
@@ -33,6 +33,17 @@ public class SensisionHttpJMXAgent extends SensisionJMXPoller {
       public void dumpMetrics(PrintWriter out, boolean useValueTimestamp, boolean openmetrics) throws IOException {
         self.dump(out, openmetrics);
       }
+
+      @Override
+      public void dumpMetrics(PrintWriter out, boolean useValueTimestamp, boolean openmetrics, long since) throws IOException {
+        // MBeans attributes are not tracked by generation, always dump them all
+        self.dump(out, openmetrics);
+      }
+
+      @Override
+      protected boolean isBinarySupported() {
+        return false;
+      }
     };
   }
 }
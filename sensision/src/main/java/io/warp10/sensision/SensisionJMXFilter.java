@@ -0,0 +1,266 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Include/exclude filter of the JMX poller.
+ *
+ * A filter is a comma separated list of URL encoded rules. A rule starting with '!' excludes
+ * the values it matches, otherwise it includes them. The rest of the rule is either '~' followed
+ * by a regular expression, or a literal value optionally preceded by '='. The first matching rule
+ * decides, if no rule matches the value is excluded if there are inclusion rules, included otherwise.
+ *
+ * Literal rules and regular expressions made of a literal followed by '.*' are merged into a trie,
+ * so a value is checked against all of them in a single pass. The other regular expressions are
+ * only evaluated if they precede the first rule matched in the trie. Decisions are memoized.
+ */
+final class SensisionJMXFilter {
+
+  /**
+   * Maximum number of memoized decisions
+   */
+  private static final int MAX_CACHED = 100000;
+
+  private static final class Node {
+    private Map<Character,Node> children = null;
+
+    /**
+     * Index of the first rule matching the values ending at this node
+     */
+    private int exact = Integer.MAX_VALUE;
+
+    /**
+     * Index of the first rule matching the values starting with the path to this node
+     */
+    private int prefix = Integer.MAX_VALUE;
+  }
+
+  private final Node root = new Node();
+
+  /**
+   * Patterns of all the rules, used for the values the trie cannot handle
+   */
+  private final Pattern[] patterns;
+
+  /**
+   * Flags indicating which rules are exclusions
+   */
+  private final boolean[] exclusions;
+
+  /**
+   * Indices of the rules which are true regular expressions, in increasing order
+   */
+  private final int[] regexps;
+
+  private final boolean hasIncludes;
+
+  private final Map<String,Boolean> decisions = new ConcurrentHashMap<String,Boolean>();
+
+  SensisionJMXFilter(String spec) {
+    String[] rules = spec.split(",");
+
+    this.patterns = new Pattern[rules.length];
+    this.exclusions = new boolean[rules.length];
+
+    List<Integer> regexps = new ArrayList<Integer>();
+    boolean hasIncludes = false;
+
+    for (int i = 0; i < rules.length; i++) {
+      String rule = rules[i];
+
+      try {
+        rule = URLDecoder.decode(rule, "UTF-8");
+      } catch (UnsupportedEncodingException uee) {
+      }
+
+      if (rule.startsWith("!")) {
+        this.exclusions[i] = true;
+        rule = rule.substring(1);
+      } else {
+        hasIncludes = true;
+      }
+
+      if (rule.startsWith("~")) {
+        String regexp = rule.substring(1);
+        this.patterns[i] = Pattern.compile(regexp);
+
+        String literal = literal(regexp);
+
+        if (null != literal) {
+          insert(literal, i, false);
+        } else {
+          literal = literal(regexp.endsWith(".*") ? regexp.substring(0, regexp.length() - 2) : null);
+          if (null != literal) {
+            insert(literal, i, true);
+          } else {
+            regexps.add(i);
+          }
+        }
+      } else {
+        if (rule.startsWith("=")) {
+          rule = rule.substring(1);
+        }
+        this.patterns[i] = Pattern.compile(Pattern.quote(rule));
+        insert(rule, i, false);
+      }
+    }
+
+    this.hasIncludes = hasIncludes;
+    this.regexps = new int[regexps.size()];
+    for (int i = 0; i < this.regexps.length; i++) {
+      this.regexps[i] = regexps.get(i);
+    }
+  }
+
+  private void insert(String literal, int rule, boolean prefix) {
+    Node node = this.root;
+
+    for (int i = 0; i < literal.length(); i++) {
+      if (null == node.children) {
+        node.children = new HashMap<Character,Node>();
+      }
+      Character c = literal.charAt(i);
+      Node child = node.children.get(c);
+      if (null == child) {
+        child = new Node();
+        node.children.put(c, child);
+      }
+      node = child;
+    }
+
+    // Only the first rule matters for a given path
+    if (prefix) {
+      node.prefix = Math.min(node.prefix, rule);
+    } else {
+      node.exact = Math.min(node.exact, rule);
+    }
+  }
+
+  /**
+   * Return the string matched by a regular expression if it only matches one, null otherwise
+   */
+  static String literal(String regexp) {
+    if (null == regexp) {
+      return null;
+    }
+
+    StringBuilder sb = new StringBuilder(regexp.length());
+
+    for (int i = 0; i < regexp.length(); i++) {
+      char c = regexp.charAt(i);
+
+      if ('\\' == c) {
+        if (i + 1 == regexp.length()) {
+          return null;
+        }
+        c = regexp.charAt(++i);
+        // Escaped letters and digits are character classes, back references or quotes
+        if (Character.isLetterOrDigit(c)) {
+          return null;
+        }
+        sb.append(c);
+      } else if (".[]{}()*+?^$|".indexOf(c) >= 0) {
+        return null;
+      } else {
+        sb.append(c);
+      }
+    }
+
+    return sb.toString();
+  }
+
+  /**
+   * Check whether a value is selected by the filter
+   */
+  boolean accept(String value) {
+    Boolean decision = this.decisions.get(value);
+
+    if (null != decision) {
+      return decision;
+    }
+
+    boolean accept = decide(value);
+
+    if (this.decisions.size() < MAX_CACHED) {
+      this.decisions.put(value, accept);
+    }
+
+    return accept;
+  }
+
+  private boolean decide(String value) {
+    int first = Integer.MAX_VALUE;
+
+    // '.' does not match line terminators so prefix rules cannot be used for such values
+    if (hasLineTerminator(value)) {
+      for (int i = 0; i < this.patterns.length; i++) {
+        if (this.patterns[i].matcher(value).matches()) {
+          first = i;
+          break;
+        }
+      }
+    } else {
+      Node node = this.root;
+
+      for (int i = 0; i < value.length() && null != node; i++) {
+        first = Math.min(first, node.prefix);
+        node = null == node.children ? null : node.children.get(value.charAt(i));
+      }
+
+      if (null != node) {
+        first = Math.min(first, Math.min(node.prefix, node.exact));
+      }
+
+      for (int idx: this.regexps) {
+        if (idx >= first) {
+          break;
+        }
+        if (this.patterns[idx].matcher(value).matches()) {
+          first = idx;
+          break;
+        }
+      }
+    }
+
+    if (Integer.MAX_VALUE != first) {
+      return !this.exclusions[first];
+    }
+
+    // If there were some include rules, reject the value since none matched,
+    // otherwise there were only exclusions and none matched, so accept it
+    return !this.hasIncludes;
+  }
+
+  private static boolean hasLineTerminator(String value) {
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if ('\n' == c || '\r' == c || '\u0085' == c || '\u2028' == c || '\u2029' == c) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
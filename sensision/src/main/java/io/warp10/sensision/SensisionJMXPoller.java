@@ -16,30 +16,40 @@
 
 package io.warp10.sensision;
 
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.lang.instrument.Instrumentation;
 import java.lang.management.ManagementFactory;
 import java.net.URLDecoder;
-import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
+import javax.management.Attribute;
 import javax.management.InstanceNotFoundException;
 import javax.management.IntrospectionException;
+import javax.management.JMException;
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanInfo;
 import javax.management.MBeanServer;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
 import javax.management.MBeanServerFactory;
+import javax.management.MBeanServerNotification;
 import javax.management.MalformedObjectNameException;
-import javax.management.ObjectInstance;
+import javax.management.Notification;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.ReflectionException;
 import javax.management.openmbean.CompositeData;
@@ -51,34 +61,69 @@ import javax.management.openmbean.TabularData;
 
 /**
  * Java Agent which reads JMX MBeans and produces Sensision metrics accordingly
+ *
+ * By default the MBeans are sampled each time metrics are dumped. If the system property
+ * sensision.jmx.interval is set, they are sampled in the background at that interval (in ms)
+ * and dumps return the last samples. Property sensision.jmx.interval.mbeans can set specific
+ * intervals for some MBeans, it is a comma separated list of INTERVAL@REGEXP, the first regexp
+ * matching the canonical name of an MBean determines its interval. Items can be URL encoded.
  */
 public class SensisionJMXPoller {
 
   private static final String SENSISION_JMX_METRICS_PREFIX = "jmx.";
 
   /**
-   * Array of patterns to match MBean classes which should be included
+   * Default sampling interval in ms, 0 to sample the MBeans on each dump
    */
-  private Pattern[] includedMBeans;
+  private final long interval;
 
   /**
-   * Array of patterns to match MBean classes which should be excluded
+   * Patterns of the names of the MBeans with a specific sampling interval
    */
-  private Pattern[] excludedMBeans;
+  private final List<Pattern> intervalPatterns = new ArrayList<Pattern>();
 
   /**
-   * Array of patterns to match name of metrics which should be included
+   * Sampling intervals of the MBeans matching intervalPatterns, in ms
    */
-  private Pattern[] includedMetrics;
+  private final List<Long> intervals = new ArrayList<Long>();
 
   /**
-   * Array of patterns to match name of metrics which should be excluded
+   * Thread sampling the MBeans in the background, null if they are sampled on each dump
    */
-  private Pattern[] excludedMetrics;
+  private final Thread sampler;
+
+  /**
+   * Filter of the MBean classes, null to include all classes
+   */
+  private SensisionJMXFilter mbeans;
+
+  /**
+   * Filter of the metric names, null to include all metrics
+   */
+  private SensisionJMXFilter metrics;
+
+  /**
+   * Labels added to all the metrics
+   */
+  private final Map<String,String> labels = new HashMap<String,String>();
 
   public SensisionJMXPoller(String agentArgs, Instrumentation instrumentation) {
+    this(agentArgs, Long.parseLong(System.getProperty(Sensision.SENSISION_JMX_INTERVAL, "0")), System.getProperty(Sensision.SENSISION_JMX_INTERVAL_MBEANS), null);
+  }
+
+  /**
+   * @param agentArgs Filters of the MBeans and of the metrics, as given to the agent
+   * @param interval Default sampling interval in ms, 0 to sample the MBeans on each dump
+   * @param intervals Specific sampling intervals, as INTERVAL@REGEXP,... or null
+   * @param labels Labels to add to all the metrics or null
+   */
+  SensisionJMXPoller(String agentArgs, long interval, String intervals, Map<String,String> labels) {
     String[] tokens = null;
 
+    if (null != labels) {
+      this.labels.putAll(labels);
+    }
+
     if (null != agentArgs) {
       tokens = agentArgs.split(":");
     } else {
@@ -87,309 +132,743 @@ public class SensisionJMXPoller {
 
     for (String token: tokens) {
       if (token.startsWith("metrics=")) {
-        String[] subtokens = token.substring(8).split(",");
+        this.metrics = new SensisionJMXFilter(token.substring(8));
+      } else if (token.startsWith("mbeans=")) {
+        this.mbeans = new SensisionJMXFilter(token.substring(7));
+      }
+    }
 
-        includedMetrics = new Pattern[subtokens.length];
-        excludedMetrics = new Pattern[subtokens.length];
+    this.interval = interval;
 
-        int i = 0;
-        for (String subtoken: subtokens) {
-          try {
-            subtoken = URLDecoder.decode(subtoken, "UTF-8");
-          } catch (UnsupportedEncodingException uee) {
-          }
-          if (subtoken.startsWith("!")) {
-            // Skip slot in includedMetrics as this subtoken is an exclusion
-            includedMetrics[i] = null;
-            if (subtoken.startsWith("~")) {
-              excludedMetrics[i] = Pattern.compile(subtoken.substring(1));
-            } else if (subtoken.startsWith("=")) {
-              excludedMetrics[i] = Pattern.compile(Pattern.quote(subtoken.substring(1)));
-            } else {
-              excludedMetrics[i] = Pattern.compile(Pattern.quote(subtoken));
-            }
-          } else {
-            // Skip slot in excludedMetrics as this subtoken is an inclusion
-            excludedMetrics[i] = null;
-            if (subtoken.startsWith("~")) {
-              includedMetrics[i] = Pattern.compile(subtoken.substring(1));
-            } else if (subtoken.startsWith("=")) {
-              includedMetrics[i] = Pattern.compile(Pattern.quote(subtoken.substring(1)));
-            } else {
-              includedMetrics[i] = Pattern.compile(Pattern.quote(subtoken));
-            }
-          }
-          i++;
+    long tick = this.interval;
+
+    if (null != intervals) {
+      for (String item: intervals.split(",")) {
+        if ("".equals(item.trim())) {
+          continue;
         }
-      } else if (token.startsWith("mbeans=")) {
-        String[] subtokens = token.substring(7).split(",");
+        try {
+          item = URLDecoder.decode(item.trim(), "UTF-8");
+        } catch (UnsupportedEncodingException uee) {
+        }
+        int at = item.indexOf('@');
+        if (at <= 0) {
+          throw new RuntimeException("Invalid MBean sampling interval '" + item + "', expected INTERVAL@REGEXP.");
+        }
+        long itv = Long.parseLong(item.substring(0, at));
+        this.intervals.add(itv);
+        this.intervalPatterns.add(Pattern.compile(item.substring(at + 1)));
+        if (itv > 0L) {
+          tick = Math.min(tick, itv);
+        }
+      }
+    }
 
-        includedMBeans = new Pattern[subtokens.length];
-        excludedMBeans = new Pattern[subtokens.length];
+    if (this.interval > 0L) {
+      final SensisionJMXPoller self = this;
+      final long period = tick;
 
-        int i = 0;
+      this.sampler = new Thread() {
+        @Override
+        public void run() {
+          while (true) {
+            long now = System.currentTimeMillis();
 
-        for (String subtoken: subtokens) {
-          try {
-            subtoken = URLDecoder.decode(subtoken, "UTF-8");
-          } catch (UnsupportedEncodingException uee) {
-          }
-          if (subtoken.startsWith("!")) {
-            // Skip slot in includedMBeans as this subtoken is an exclusion
-            includedMBeans[i] = null;
-            if (subtoken.startsWith("~")) {
-              excludedMBeans[i] = Pattern.compile(subtoken.substring(1));
-            } else if (subtoken.startsWith("=")) {
-              excludedMBeans[i] = Pattern.compile(Pattern.quote(subtoken.substring(1)));
-            } else {
-              excludedMBeans[i] = Pattern.compile(Pattern.quote(subtoken));
+            try {
+              self.sample(now);
+            } catch (Throwable t) {
             }
-          } else {
-            // Skip slot in excludedMBeans as this subtoken is an inclusion
-            excludedMBeans[i] = null;
-            if (subtoken.startsWith("~")) {
-              includedMBeans[i] = Pattern.compile(subtoken.substring(1));
-            } else if (subtoken.startsWith("=")) {
-              includedMBeans[i] = Pattern.compile(Pattern.quote(subtoken.substring(1)));
-            } else {
-              includedMBeans[i] = Pattern.compile(Pattern.quote(subtoken));
+
+            long delay = period - (System.currentTimeMillis() - now);
+
+            if (delay > 0L) {
+              try {
+                Thread.sleep(delay);
+              } catch (InterruptedException ie) {
+              }
             }
           }
-          i++;
         }
+      };
 
-      }
+      this.sampler.setDaemon(true);
+      this.sampler.setName("[Sensision JMXPoller (" + this.interval + ")]");
+      this.sampler.start();
+    } else {
+      this.sampler = null;
     }
   }
 
-  private boolean checkPatterns(String value, Pattern[] included, Pattern[] excluded) {
+  private static boolean accept(SensisionJMXFilter filter, String value) {
+    return null == filter || filter.accept(value);
+  }
 
-    if (null == included || null == excluded) {
-      return true;
+  /**
+   * Scrape plan of an MBean, built once from its MBeanInfo
+   */
+  private static final class Plan {
+    /**
+     * Labels of the metrics of the MBean
+     */
+    private final Map<String,String> labels = new HashMap<String,String>();
+
+    /**
+     * Encoded labels, including the enclosing braces
+     */
+    private String block;
+
+    /**
+     * Names of the attributes to fetch, empty if the MBean is excluded
+     */
+    private String[] attributes;
+
+    /**
+     * Types of the attributes
+     */
+    private String[] types;
+
+    /**
+     * Metric names of the attributes
+     */
+    private String[] metrics;
+
+    /**
+     * Sampling interval of the MBean, in ms
+     */
+    private long interval;
+
+    /**
+     * Time (in ms) after which the MBean should be sampled again
+     */
+    private long next;
+
+    /**
+     * Time (in time units) of the last sampling
+     */
+    private volatile long timestamp;
+
+    /**
+     * Samples of the last sampling, null if the MBean was never sampled
+     */
+    private volatile List<Sample> samples;
+  }
+
+  /**
+   * Value of an attribute, or of an item of a composite or tabular attribute
+   */
+  private static final class Sample {
+    private final String name;
+    private final Map<String,String> labels;
+    private final Object value;
+
+    /**
+     * Encoded name, set when the sample is first rendered
+     */
+    private String encoded;
+
+    private Sample(String name, Map<String,String> labels, Object value) {
+      this.name = name;
+      this.labels = labels;
+      this.value = value;
     }
+  }
 
-    boolean hasIncludes = false;
+  /**
+   * MBeans of a server and their plans, kept up to date by the registration notifications
+   * sent by the server delegate.
+   */
+  private static final class Catalog implements NotificationListener {
+    private final MBeanServerConnection server;
 
-    for (int i = 0; i < included.length; i++) {
-      if (null != included[i]) {
-        hasIncludes = true;
-        // Return true if we have a match
-        if (included[i].matcher(value).matches()) {
-          return true;
-        }
-      } else if (null != excluded[i]) {
-        if (excluded[i].matcher(value).matches()) {
-          return false;
+    private final Set<ObjectName> names = Collections.newSetFromMap(new ConcurrentHashMap<ObjectName,Boolean>());
+
+    private final Map<ObjectName,Plan> plans = new ConcurrentHashMap<ObjectName,Plan>();
+
+    /**
+     * Flag indicating whether we receive the registration notifications, if not the names are queried on each dump
+     */
+    private boolean listening = false;
+
+    private Catalog(MBeanServerConnection server) throws IOException {
+      this.server = server;
+
+      // Listen before querying the names so no registration is missed
+      try {
+        server.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, null, null);
+        this.listening = true;
+      } catch (InstanceNotFoundException infe) {
+      }
+
+      refresh();
+    }
+
+    private void refresh() throws IOException {
+      try {
+        this.names.addAll(this.server.queryNames(new ObjectName("*:*"), null));
+      } catch (MalformedObjectNameException mone) {
+      }
+    }
+
+    private void forget(ObjectName name) {
+      this.names.remove(name);
+      this.plans.remove(name);
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+      if (!(notification instanceof MBeanServerNotification)) {
+        return;
+      }
+
+      ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+
+      if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType())) {
+        // The plan is built lazily on the next dump
+        this.plans.remove(name);
+        this.names.add(name);
+      } else if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType())) {
+        forget(name);
+      }
+    }
+
+    private void close() {
+      if (this.listening) {
+        try {
+          this.server.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+        } catch (JMException jme) {
+        } catch (IOException ioe) {
         }
       }
     }
+  }
 
-    // If there were some include clauses, return false if none matched
-    // otherwise there were only exclusions and none matched, so return true
-    if (hasIncludes) {
-      return false;
-    } else {
-      return true;
+  /**
+   * Size above which rendered metrics are written to the output
+   */
+  private static final int FLUSH_SIZE = 16384;
+
+  /**
+   * Per thread buffer the metrics are rendered into
+   */
+  private static final class Buffer {
+    private StringBuilder sb = new StringBuilder(FLUSH_SIZE * 2);
+    private char[] chars = new char[FLUSH_SIZE * 2];
+
+    private void flush(PrintWriter pw) {
+      int len = this.sb.length();
+
+      if (len > this.chars.length) {
+        this.chars = new char[len];
+      }
+
+      this.sb.getChars(0, len, this.chars, 0);
+      pw.write(this.chars, 0, len);
+      this.sb.setLength(0);
+
+      // Do not retain the memory used by exceptionally large values
+      if (this.chars.length > FLUSH_SIZE * 16) {
+        this.sb = new StringBuilder(FLUSH_SIZE * 2);
+        this.chars = new char[FLUSH_SIZE * 2];
+      }
     }
   }
 
+  private static final ThreadLocal<Buffer> BUFFERS = new ThreadLocal<Buffer>() {
+    @Override
+    protected Buffer initialValue() {
+      return new Buffer();
+    }
+  };
+
   /**
-   * Dump metrics to a PrintWriter
+   * Types of attributes which never produce any metric
    */
-  void dump(PrintWriter pw, boolean openmetrics) {
+  private static final Set<String> SKIPPED_TYPES = new HashSet<String>();
+
+  static {
+    SKIPPED_TYPES.add("short");
+    SKIPPED_TYPES.add("byte");
+    SKIPPED_TYPES.add("char");
+    SKIPPED_TYPES.add("void");
+    SKIPPED_TYPES.add("java.lang.Long");
+    SKIPPED_TYPES.add("java.lang.Integer");
+    SKIPPED_TYPES.add("java.lang.Short");
+    SKIPPED_TYPES.add("java.lang.Byte");
+    SKIPPED_TYPES.add("java.lang.Double");
+    SKIPPED_TYPES.add("java.lang.Float");
+    SKIPPED_TYPES.add("java.lang.Boolean");
+    SKIPPED_TYPES.add("java.lang.Character");
+    SKIPPED_TYPES.add("javax.management.ObjectName");
+  }
 
-    Set<MBeanServer> servers = new HashSet<MBeanServer>();
+  /**
+   * Catalogs of the known MBeanServer instances
+   */
+  private final Map<MBeanServerConnection,Catalog> catalogs = new ConcurrentHashMap<MBeanServerConnection,Catalog>();
+
+  /**
+   * Build the scrape plan of an MBean
+   *
+   * @return the plan or null if the MBean no longer exists
+   */
+  private Plan plan(MBeanServerConnection server, ObjectName name) throws IOException {
+    Plan plan = new Plan();
+    plan.attributes = new String[0];
+
+    MBeanInfo info = null;
+
+    try {
+      info = server.getMBeanInfo(name);
+    } catch (InstanceNotFoundException infe) {
+      return null;
+    } catch (IntrospectionException ie) {
+      return plan;
+    } catch (ReflectionException re) {
+      return plan;
+    }
+
+    plan.interval = this.interval;
+
+    String canonicalName = name.getCanonicalName();
+
+    for (int i = 0; i < this.intervalPatterns.size(); i++) {
+      if (this.intervalPatterns.get(i).matcher(canonicalName).matches()) {
+        plan.interval = this.intervals.get(i);
+        break;
+      }
+    }
+
+    String className = info.getClassName();
+
+    if (null == className || !accept(this.mbeans, className)) {
+      return plan;
+    }
 
     //
-    // Retrieve all MBeanServer instances
+    // Since there may be multiple instances of the same MBean class, we need to find an id for this
+    // particular instance. As the call to queryNames returns a set, we can assume that the hashcodes
+    // differ in all instances.
     //
 
-    servers.add(ManagementFactory.getPlatformMBeanServer());
-    servers.addAll(MBeanServerFactory.findMBeanServer(null));
+    plan.labels.putAll(this.labels);
+    plan.labels.put("jmx.domain", name.getDomain());
+    plan.labels.put("jmx.hashcode", Integer.toHexString(name.hashCode()));
+
+    //
+    // Extract the property lists of the MBean and store them as labels
+    //
+
+    Hashtable<String,String> props = name.getKeyPropertyList();
+
+    for (String propname: props.keySet()) {
+      plan.labels.put("jmx." + propname, props.get(propname));
+    }
+
+    plan.block = block(plan.labels);
+
+    List<String> attributes = new ArrayList<String>();
+    List<String> types = new ArrayList<String>();
+    List<String> metrics = new ArrayList<String>();
+
+    for (MBeanAttributeInfo attr: info.getAttributes()) {
+      String type = attr.getType();
+
+      if (!attr.isReadable() || null == type || SKIPPED_TYPES.contains(type) || (type.startsWith("[") && !"[Ljava.lang.String;".equals(type))) {
+        continue;
+      }
 
-    for (MBeanServer server: servers) {
       //
-      // Extract all MBeans
+      // Build the metric name as PREFIX + <className> + ":" + <attributeName>
       //
 
-      Collection<ObjectName> names;
+      String metricName = SENSISION_JMX_METRICS_PREFIX + className + ":" + attr.getName();
+
+      //
+      // Attributes of scalar types produce a single metric, check its name now
+      //
 
+      if (isScalar(type) && !accept(this.metrics, metricName)) {
+        continue;
+      }
+
+      attributes.add(attr.getName());
+      types.add(type);
+      metrics.add(metricName);
+    }
+
+    plan.attributes = attributes.toArray(new String[attributes.size()]);
+    plan.types = types.toArray(new String[types.size()]);
+    plan.metrics = metrics.toArray(new String[metrics.size()]);
+
+    return plan;
+  }
+
+  private static boolean isScalar(String type) {
+    return "long".equals(type) || "int".equals(type) || "double".equals(type) || "float".equals(type)
+        || "boolean".equals(type) || "java.lang.String".equals(type) || "[Ljava.lang.String;".equals(type);
+  }
+
+  /**
+   * Dump metrics to a PrintWriter
+   */
+  void dump(PrintWriter pw, boolean openmetrics) {
+    if (null == this.sampler) {
       try {
-        names = server.queryNames(new ObjectName("*:*"), null);
-      } catch (MalformedObjectNameException mone) {
-        return;
+        sample(System.currentTimeMillis());
+      } catch (IOException ioe) {
+        // Only remote servers may fail, dump what was sampled
       }
+    }
 
-      //
-      // Loop over the retrieved MBeans
-      //
+    render(pw, openmetrics);
+  }
 
-      for (ObjectName name: names) {
-        MBeanInfo info = null;
-        ObjectInstance instance = null;
+  /**
+   * Write the last samples of the MBeans to a PrintWriter
+   */
+  void render(PrintWriter pw, boolean openmetrics) {
+    Buffer buffer = BUFFERS.get();
+    buffer.sb.setLength(0);
 
-        try {
-          info = server.getMBeanInfo(name);
-          instance = server.getObjectInstance(name);
-        } catch (IntrospectionException ie) {
-        } catch (ReflectionException re) {
-        } catch (InstanceNotFoundException infe) {
-        } finally {
-          if (null == info || null == instance) {
-            continue;
-          }
+    for (Catalog catalog: this.catalogs.values()) {
+      for (ObjectName name: catalog.names) {
+        Plan plan = catalog.plans.get(name);
+
+        if (null == plan) {
+          continue;
         }
 
-        String className = info.getClassName();
+        List<Sample> samples = plan.samples;
 
-        if (!checkPatterns(className, includedMBeans, excludedMBeans)) {
+        if (null == samples) {
+          continue;
+        }
+
+        if (openmetrics) {
+          for (Sample sample: samples) {
+            OpenMetrics.dump(pw, sample.name, sample.labels, null, sample.value);
+          }
           continue;
         }
 
         //
-        // Fill labels for the attribute
+        // Samples of a tabular row share the same labels, encode them once per row
         //
 
-        Map<String,String> labels = new HashMap<String, String>();
+        Map<String,String> labels = plan.labels;
+        String block = plan.block;
 
-        //
-        // Since there may be multiple instances of the same MBean class, we need to find an id for this
-        // particular instance. As the call to queryNames returns a set, we can assume that the hashcodes
-        // differ in all instances.
-        //
+        for (Sample sample: samples) {
+          if (sample.labels != labels) {
+            labels = sample.labels;
+            block = block(labels);
+          }
 
-        labels.put("jmx.domain", name.getDomain());
-        labels.put("jmx.hashcode", Integer.toHexString(name.hashCode()));
+          dumpMetric(buffer.sb, sample, block, plan.timestamp);
 
-        //
-        // Extract the property lists of the MBean and store them as labels
-        //
+          if (buffer.sb.length() >= FLUSH_SIZE) {
+            buffer.flush(pw);
+          }
+        }
+      }
+    }
+
+    buffer.flush(pw);
+  }
 
-        Hashtable<String,String> props = name.getKeyPropertyList();
+  /**
+   * Sample the MBeans whose sampling interval has elapsed
+   *
+   * @param now Current time in ms
+   * @throws IOException if a remote server could not be reached
+   */
+  void sample(long now) throws IOException {
+
+    Collection<? extends MBeanServerConnection> servers = getServers();
+
+    //
+    // Forget the servers which were released
+    //
+
+    Iterator<Entry<MBeanServerConnection,Catalog>> iter = this.catalogs.entrySet().iterator();
+
+    while (iter.hasNext()) {
+      Entry<MBeanServerConnection,Catalog> entry = iter.next();
+      if (!servers.contains(entry.getKey())) {
+        entry.getValue().close();
+        iter.remove();
+      }
+    }
+
+    for (MBeanServerConnection server: servers) {
+      Catalog catalog = this.catalogs.get(server);
+
+      if (null == catalog) {
+        synchronized(this.catalogs) {
+          catalog = this.catalogs.get(server);
+          if (null == catalog) {
+            catalog = new Catalog(server);
+            this.catalogs.put(server, catalog);
+          }
+        }
+      } else if (!catalog.listening) {
+        catalog.refresh();
+      }
+
+      //
+      // Loop over the known MBeans
+      //
+
+      for (ObjectName name: catalog.names) {
+        Plan plan = catalog.plans.get(name);
 
-        for (String propname: props.keySet()) {
-          labels.put("jmx." + propname, props.get(propname));
+        if (null == plan) {
+          plan = plan(server, name);
+
+          if (null == plan) {
+            catalog.forget(name);
+            continue;
+          }
+
+          catalog.plans.put(name, plan);
         }
 
-        MBeanAttributeInfo[] attrinfo = info.getAttributes();
+        if (0 == plan.attributes.length) {
+          continue;
+        }
+
+        if (null != plan.samples && now < plan.next) {
+          continue;
+        }
 
         //
-        // Loop over the MBean attributes
+        // Fetch all the attributes at once, the ones which could not be read are omitted
         //
 
-        for (MBeanAttributeInfo attr: attrinfo) {
+        List<Attribute> values;
+
+        try {
+          values = server.getAttributes(name, plan.attributes).asList();
+        } catch (InstanceNotFoundException infe) {
+          catalog.forget(name);
+          continue;
+        } catch (IOException ioe) {
+          throw ioe;
+        } catch (Exception e) {
+          continue;
+        }
+
+        List<Sample> samples = new ArrayList<Sample>(values.size());
+
+        int idx = 0;
+
+        for (Attribute attribute: values) {
+          idx = indexOf(plan.attributes, attribute.getName(), idx);
+
+          if (idx < 0) {
+            idx = 0;
+            continue;
+          }
 
           try {
-            Object value = server.getAttribute(name, attr.getName());
-
-            //
-            // Build the metric name as PREFIX + <className> + ":" + <attributeName>
-
-            StringBuilder sb = new StringBuilder(SENSISION_JMX_METRICS_PREFIX);
-            sb.append(className);
-            sb.append(":");
-            sb.append(attr.getName());
-
-            String metricName = sb.toString();
-
-            if ("long".equals(attr.getType()) || "int".equals(attr.getType())) {
-              dumpMetric(pw, metricName, labels, ((Number) value).longValue(), openmetrics);
-            } else if ("double".equals(attr.getType()) || "float".equals(attr.getType())) {
-              dumpMetric(pw, metricName, labels, ((Number) value).doubleValue(), openmetrics);
-            } else if ("java.lang.String".equals(attr.getType())) {
-              dumpMetric(pw, metricName, labels, value.toString(), openmetrics);
-            } else if ("boolean".equals(attr.getType())) {
-              dumpMetric(pw, metricName, labels, ((Boolean) value).booleanValue(), openmetrics);
-            } else if ("[Ljava.lang.String;".equals(attr.getType())) {
-              sb.append(":stringlist");
-
-              sb.setLength(0);
-              for (String s: (String[]) value) {
-                if (sb.length() > 0) {
-                  sb.append(",");
-                }
-                sb.append(s);
-              }
-              dumpMetric(pw, metricName, labels, sb.toString(), openmetrics);
-            } else if (value instanceof TabularData) {
-              TabularData td = (TabularData) value;
-              dumpTabularData(pw, metricName, labels, td, openmetrics);
-            } else if (value instanceof javax.management.openmbean.CompositeData || "javax.management.openmbean.CompositeData".equals(attr.getType())) {
-              CompositeData cd = (CompositeData) value;
-              dumpCompositeData(pw, metricName, labels, cd, openmetrics);
-            } else {
-            }
+            collectAttribute(samples, plan.metrics[idx], plan.types[idx], plan.labels, attribute.getValue());
           } catch (Exception e) {}
         }
+
+        plan.timestamp = now * Sensision.TIME_UNITS_PER_MS;
+        plan.next = now + plan.interval;
+        plan.samples = samples;
       }
     }
   }
 
   /**
-   * Write a single metric to an output PrintWriter
-   *
-   * @param pw
-   * @param name
-   * @param labels
-   * @param value
+   * Return the servers whose MBeans should be sampled, the local ones by default
    */
-  private final void dumpMetric(PrintWriter pw, String name, Map<String,String> labels, Object value, boolean openmetrics) {
+  protected Collection<? extends MBeanServerConnection> getServers() throws IOException {
+    Set<MBeanServer> servers = new HashSet<MBeanServer>();
 
-    if (!checkPatterns(name, includedMetrics, excludedMetrics)) {
-      return;
+    //
+    // Retrieve all MBeanServer instances
+    //
+
+    servers.add(ManagementFactory.getPlatformMBeanServer());
+    servers.addAll(MBeanServerFactory.findMBeanServer(null));
+
+    return servers;
+  }
+
+  /**
+   * Stop listening to the servers and forget their MBeans
+   */
+  void close() {
+    Iterator<Catalog> iter = this.catalogs.values().iterator();
+
+    while (iter.hasNext()) {
+      iter.next().close();
+      iter.remove();
     }
+  }
 
-    if (openmetrics) {
-      OpenMetrics.dump(pw, name, labels, null, value);
+  /**
+   * Return the index of an attribute in a plan, starting the search at 'from' since
+   * the attributes are usually returned in the requested order.
+   */
+  private static int indexOf(String[] attributes, String name, int from) {
+    for (int i = 0; i < attributes.length; i++) {
+      int idx = (from + i) % attributes.length;
+      if (attributes[idx].equals(name)) {
+        return idx;
+      }
+    }
+    return -1;
+  }
+
+  private final void collectAttribute(List<Sample> samples, String metricName, String type, Map<String,String> labels, Object value) {
+    if ("long".equals(type) || "int".equals(type)) {
+      collectMetric(samples, metricName, labels, ((Number) value).longValue());
+    } else if ("double".equals(type) || "float".equals(type)) {
+      collectMetric(samples, metricName, labels, ((Number) value).doubleValue());
+    } else if ("java.lang.String".equals(type)) {
+      collectMetric(samples, metricName, labels, value.toString());
+    } else if ("boolean".equals(type)) {
+      collectMetric(samples, metricName, labels, ((Boolean) value).booleanValue());
+    } else if ("[Ljava.lang.String;".equals(type)) {
+      StringBuilder sb = new StringBuilder();
+      for (String s: (String[]) value) {
+        if (sb.length() > 0) {
+          sb.append(",");
+        }
+        sb.append(s);
+      }
+      collectMetric(samples, metricName, labels, sb.toString());
+    } else if (value instanceof TabularData) {
+      TabularData td = (TabularData) value;
+      collectTabularData(samples, metricName, labels, td);
+    } else if (value instanceof javax.management.openmbean.CompositeData || "javax.management.openmbean.CompositeData".equals(type)) {
+      CompositeData cd = (CompositeData) value;
+      collectCompositeData(samples, metricName, labels, cd);
+    }
+  }
+
+  /**
+   * Add a sample if its name is selected by the metrics patterns
+   */
+  private final void collectMetric(List<Sample> samples, String name, Map<String,String> labels, Object value) {
+    if (!accept(this.metrics, name)) {
       return;
     }
 
+    samples.add(new Sample(name, labels, value));
+  }
+
+  /**
+   * Render a sample in the Sensision format
+   *
+   * @param sb StringBuilder to append the sample to
+   * @param sample Sample to render
+   * @param block Encoded labels of the sample, including the enclosing braces
+   * @param timestamp Timestamp of the sample
+   */
+  private static void dumpMetric(StringBuilder sb, Sample sample, String block, long timestamp) {
+    sb.append(timestamp);
+    sb.append('/');
+    Sensision.addDefaultLocation(sb);
+    sb.append('/');
+    Sensision.addDefaultElevation(sb);
+    sb.append(' ');
+
+    if (null == sample.encoded) {
+      int len = sb.length();
+      encode(sb, sample.name);
+      sample.encoded = sb.substring(len);
+    } else {
+      sb.append(sample.encoded);
+    }
+
+    sb.append(block);
+    sb.append(' ');
+
+    Object value = sample.value;
+
+    if (value instanceof Long) {
+      sb.append(((Long) value).longValue());
+    } else if (value instanceof Double) {
+      sb.append(((Double) value).doubleValue());
+    } else if (value instanceof Boolean) {
+      sb.append(((Boolean) value) ? 'T' : 'F');
+    } else {
+      sb.append('\'');
+      encode(sb, value.toString());
+      sb.append('\'');
+    }
+
+    sb.append("\r\n");
+  }
+
+  /**
+   * Encode labels as {key=value,...}
+   */
+  private static String block(Map<String,String> labels) {
     StringBuilder sb = new StringBuilder();
 
-    try {
-      sb.append(System.currentTimeMillis() * Sensision.TIME_UNITS_PER_MS);
-      sb.append("/");
-      Sensision.addDefaultLocation(sb);
-      sb.append("/");
-      Sensision.addDefaultLocation(sb);
-      sb.append(" ");
-      sb.append(URLEncoder.encode(name, "UTF-8").replaceAll("\\{", "%7B").replaceAll("\\}", "%7D"));
-      sb.append("{");
-      boolean first = true;
-      for (Entry<String,String> entry: labels.entrySet()) {
-        if (!first) {
-          sb.append(",");
-        }
-        sb.append(URLEncoder.encode(entry.getKey(), "UTF-8").replaceAll("\\{", "%7B").replaceAll("\\}", "%7D").replaceAll(",", "%2C"));
-        sb.append("=");
-        sb.append(URLEncoder.encode(entry.getValue(), "UTF-8").replaceAll("\\{", "%7B").replaceAll("\\}", "%7D").replaceAll(",", "%2C"));
-        first = false;
+    sb.append('{');
+    boolean first = true;
+    for (Entry<String,String> entry: labels.entrySet()) {
+      if (!first) {
+        sb.append(',');
       }
-      sb.append("} ");
-
-      if (value instanceof Long) {
-        sb.append(Long.toString((Long) value));
-      } else if (value instanceof Double) {
-        sb.append(Double.toString((Double) value));
-      } else if (value instanceof Boolean) {
-        sb.append(((Boolean) value) ? "T" : "F");
+      encode(sb, entry.getKey());
+      sb.append('=');
+      encode(sb, entry.getValue());
+      first = false;
+    }
+    sb.append('}');
+
+    return sb.toString();
+  }
+
+  /**
+   * Append a string encoded like URLEncoder does in UTF-8, which also encodes the
+   * characters with a special meaning in the Sensision format, without allocating.
+   */
+  static void encode(StringBuilder sb, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || '.' == c || '-' == c || '*' == c || '_' == c) {
+        sb.append(c);
+      } else if (' ' == c) {
+        sb.append('+');
+      } else if (c < 0x80) {
+        percent(sb, c);
+      } else if (c < 0x800) {
+        percent(sb, 0xC0 | (c >> 6));
+        percent(sb, 0x80 | (c & 0x3F));
+      } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int cp = Character.toCodePoint(c, s.charAt(++i));
+        percent(sb, 0xF0 | (cp >> 18));
+        percent(sb, 0x80 | ((cp >> 12) & 0x3F));
+        percent(sb, 0x80 | ((cp >> 6) & 0x3F));
+        percent(sb, 0x80 | (cp & 0x3F));
+      } else if (Character.isSurrogate(c)) {
+        // Malformed surrogates are replaced by '?' when encoded in UTF-8
+        percent(sb, '?');
       } else {
-        sb.append("'");
-        sb.append(URLEncoder.encode(value.toString(), "UTF-8").replaceAll("'", "%27"));
-        sb.append("'");
+        percent(sb, 0xE0 | (c >> 12));
+        percent(sb, 0x80 | ((c >> 6) & 0x3F));
+        percent(sb, 0x80 | (c & 0x3F));
       }
-      sb.append("\r\n");
-      pw.print(sb.toString());
-    } catch (UnsupportedEncodingException uee) {
-      // Can't happen, we're using UTF-8
     }
   }
 
-  private final void dumpMetric(PrintWriter pw, String name, Map<String,String> labels, Object value) {
-    dumpMetric(pw, name, labels, value, false);
+  private static void percent(StringBuilder sb, int b) {
+    sb.append('%');
+    sb.append(UPPERHEXDIGITS.charAt((b >> 4) & 0xF));
+    sb.append(UPPERHEXDIGITS.charAt(b & 0xF));
   }
 
-  private final void dumpTabularData(PrintWriter pw, String name, Map<String,String> labels, TabularData td, boolean openmetrics) {
+  private final void collectTabularData(List<Sample> samples, String name, Map<String,String> labels, TabularData td) {
     for (Object rowkey: td.keySet()) {
 
       if (rowkey instanceof List) {
@@ -420,11 +899,11 @@ public class SensisionJMXPoller {
                 new String[] { cd.getCompositeType().getDescription("value") },
                 new OpenType[] { cd.getCompositeType().getType("value")});
             CompositeDataSupport cds = new CompositeDataSupport(ct, values);
-            dumpCompositeData(pw, name, rowlabels, cds, openmetrics);
+            collectCompositeData(samples, name, rowlabels, cds);
           } catch (OpenDataException ode) {
           }
         } else {
-          dumpCompositeData(pw, name, rowlabels, cd, openmetrics);
+          collectCompositeData(samples, name, rowlabels, cd);
         }
       } else {
         // Weird, this should be impossible!
@@ -432,7 +911,7 @@ public class SensisionJMXPoller {
     }
   }
 
-  private final void dumpCompositeData(PrintWriter pw, String name, Map<String,String> labels, CompositeData cd, boolean openmetrics) {
+  private final void collectCompositeData(List<Sample> samples, String name, Map<String,String> labels, CompositeData cd) {
 
     StringBuilder sb = new StringBuilder(name);
 
@@ -447,24 +926,25 @@ public class SensisionJMXPoller {
       Object val = cd.get(key);
 
       if (val instanceof Long || val instanceof Integer || val instanceof Short || val instanceof Byte) {
-        dumpMetric(pw, sb.toString(), labels, ((Number) val).longValue(), openmetrics);
+        collectMetric(samples, sb.toString(), labels, ((Number) val).longValue());
       } else if (val instanceof Double || val instanceof Float) {
-        dumpMetric(pw, sb.toString(), labels, ((Number) val).doubleValue(), openmetrics);
+        collectMetric(samples, sb.toString(), labels, ((Number) val).doubleValue());
       } else if (val instanceof Boolean) {
-        dumpMetric(pw, sb.toString(), labels, ((Boolean) val).booleanValue(), openmetrics);
+        collectMetric(samples, sb.toString(), labels, ((Boolean) val).booleanValue());
       } else if (val instanceof String) {
-        dumpMetric(pw, sb.toString(), labels, val.toString(), openmetrics);
+        collectMetric(samples, sb.toString(), labels, val.toString());
       } else if (val instanceof TabularData) {
-        dumpTabularData(pw, sb.toString(), labels, (TabularData) val, openmetrics);
+        collectTabularData(samples, sb.toString(), labels, (TabularData) val);
       } else if (val instanceof CompositeData) {
-        dumpCompositeData(pw, sb.toString(), labels, (CompositeData) val, openmetrics);
+        collectCompositeData(samples, sb.toString(), labels, (CompositeData) val);
       } else {
-        dumpMetric(pw, sb.toString(), labels, val.toString(), openmetrics);
+        collectMetric(samples, sb.toString(), labels, val.toString());
       }
     }
   }
 
   private static final String HEXDIGITS = "0123456789abcdef";
+  private static final String UPPERHEXDIGITS = "0123456789ABCDEF";
   private final String hex(byte[] bytes) {
 
     StringBuilder sb = new StringBuilder();
@@ -19,20 +19,30 @@ package io.warp10.sensision;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
-import org.eclipse.jetty.server.bio.SocketConnector;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.AbstractHandler;
-import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.server.handler.gzip.GzipHandler;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 public class SensisionMetricsServer extends Thread {
@@ -42,13 +52,63 @@ public class SensisionMetricsServer extends Thread {
    */
   private int port;
 
+  /**
+   * Type of connector, only 'nio' is supported. The property is ignored, a 'nio' connector
+   * is used even when 'bio' is requested.
+   */
   public static final String SENSISION_SERVER_CONNECTOR = "sensision.server.connector";
 
+  /**
+   * Number of acceptor threads, -1 to let Jetty decide
+   */
+  public static final String SENSISION_SERVER_ACCEPTORS = "sensision.server.acceptors";
+
+  /**
+   * Number of selector threads, -1 to let Jetty decide
+   */
+  public static final String SENSISION_SERVER_SELECTORS = "sensision.server.selectors";
+
+  /**
+   * Maximum number of threads of the server
+   */
+  public static final String SENSISION_SERVER_MAXTHREADS = "sensision.server.maxthreads";
+
+  /**
+   * Set to 'false' to disable gzip compression of the responses
+   */
+  public static final String SENSISION_SERVER_GZIP = "sensision.server.gzip";
+
+  private static final String DEFAULT_SERVER_ACCEPTORS = "1";
+  private static final String DEFAULT_SERVER_SELECTORS = "1";
+  private static final String DEFAULT_SERVER_MAXTHREADS = "16";
+  private static final String DEFAULT_SERVER_GZIP = "true";
+
+  /**
+   * Maximum time (in ms) given to a client to read a dump
+   */
+  private static final long ASYNC_TIMEOUT = 60000L;
+
+  private static final int WRITE_CHUNK_SIZE = 65536;
+
+  /**
+   * Maximum time (in ms) a client may wait for new events
+   */
+  private static final long MAX_EVENTS_WAIT = 300000L;
+
   public static final String SENSISION_SERVER_BINDALL = "sensision.server.bindall";
 
   public static final String SENSISION_SERVER_LASTEVENT_PARAM = "lastevent";
   public static final String SENSISION_SERVER_EVENTS_PARAM = "events";
   public static final String SENSISION_SERVER_PEEK_PARAM = "peek";
+  public static final String SENSISION_SERVER_SINCE_PARAM = "since";
+  public static final String SENSISION_SERVER_UUID_PARAM = "uuid";
+  public static final String SENSISION_SERVER_FORMAT_PARAM = "format";
+  public static final String SENSISION_SERVER_FORMAT_BINARY = "binary";
+
+  /**
+   * Time (in ms) to wait for events following 'lastevent' if there are none yet
+   */
+  public static final String SENSISION_SERVER_WAIT_PARAM = "wait";
 
   private static final class MetricsHandler extends AbstractHandler {
 
@@ -63,18 +123,39 @@ public class SensisionMetricsServer extends Thread {
       if ("/metrics".equals(target)) {
         String valuets = request.getParameter("valuets");
 
-        response.setContentType("text/plain;charset=utf-8");
+        boolean binary = server.isBinarySupported() && isBinaryRequested(request);
+
+        response.setContentType(binary ? SensisionBinaryFormat.CONTENT_TYPE : "text/plain;charset=utf-8");
         if (null != System.getProperty(Sensision.SENSISION_HTTP_NOKEEPALIVE)) {
           response.setHeader("Connection", "close");
         }
         response.setHeader(Sensision.HTTP_HEADER_UUID, Sensision.getUUID());
         response.setHeader(Sensision.HTTP_HEADER_TIMESTAMP, Long.toHexString(Long.MAX_VALUE - Sensision.getStartTime()));
+        long since = getSince(request);
+        // Retrieve the generation prior to dumping, the metrics modified while dumping get a greater
+        // generation and are dumped again by the next request
+        response.setHeader(Sensision.HTTP_HEADER_GENERATION, Long.toString(Sensision.getGeneration()));
         response.setStatus(HttpServletResponse.SC_OK);
         baseRequest.setHandled(true);
 
-        PrintWriter out = response.getWriter();
+        //
+        // Render the metrics in memory and write them asynchronously so slow
+        // clients do not hold a thread
+        //
 
-        server.dumpMetrics(out, null != valuets, false);
+        Chunks chunks = new Chunks();
+
+        if (binary) {
+          SensisionBinaryFormat.Writer writer = new SensisionBinaryFormat.Writer(chunks);
+          server.dumpMetrics(writer, null != valuets, since);
+          writer.close();
+        } else {
+          PrintWriter out = new PrintWriter(new OutputStreamWriter(chunks, StandardCharsets.UTF_8));
+          server.dumpMetrics(out, null != valuets, false, since);
+          out.close();
+        }
+
+        writeAsync(request, response, chunks);
       } else if ("/openmetrics".equals(target)) {
         String valuets = request.getParameter("valuets");
 
@@ -84,12 +165,19 @@ public class SensisionMetricsServer extends Thread {
         }
         response.setHeader(Sensision.HTTP_HEADER_UUID, Sensision.getUUID());
         response.setHeader(Sensision.HTTP_HEADER_TIMESTAMP, Long.toHexString(Long.MAX_VALUE - Sensision.getStartTime()));
+        long since = getSince(request);
+        // Retrieve the generation prior to dumping, the metrics modified while dumping get a greater
+        // generation and are dumped again by the next request
+        response.setHeader(Sensision.HTTP_HEADER_GENERATION, Long.toString(Sensision.getGeneration()));
         response.setStatus(HttpServletResponse.SC_OK);
         baseRequest.setHandled(true);
 
-        PrintWriter out = response.getWriter();
+        Chunks chunks = new Chunks();
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(chunks, StandardCharsets.UTF_8));
+        server.dumpMetrics(out, null != valuets, true, since);
+        out.close();
 
-        server.dumpMetrics(out, null != valuets, true);
+        writeAsync(request, response, chunks);
       } else if ("/events".equals(target)) {
 
         boolean onDisk = Sensision.onDisk();
@@ -108,6 +196,19 @@ public class SensisionMetricsServer extends Thread {
             nevents = Integer.parseInt(request.getParameter(SENSISION_SERVER_EVENTS_PARAM));
           }
 
+          // The cursor was obtained from a previous instance, start from the oldest event
+          String uuid = request.getParameter(SENSISION_SERVER_UUID_PARAM);
+
+          if (null != uuid && !uuid.equals(Sensision.getUUID())) {
+            lastevent = -1L;
+          }
+
+          long wait = 0L;
+
+          if (null != request.getParameter(SENSISION_SERVER_WAIT_PARAM)) {
+            wait = Math.min(MAX_EVENTS_WAIT, Long.parseLong(request.getParameter(SENSISION_SERVER_WAIT_PARAM)));
+          }
+
           response.setContentType("text/plain;charset=utf-8");
           if (null != System.getProperty(Sensision.SENSISION_HTTP_NOKEEPALIVE)) {
             response.setHeader("Connection", "close");
@@ -117,7 +218,11 @@ public class SensisionMetricsServer extends Thread {
           response.setStatus(HttpServletResponse.SC_OK);
           baseRequest.setHandled(true);
 
-          server.dumpEvents(response, lastevent, nevents);
+          if (wait > 0L && Sensision.hasEventsHistory() && lastevent == Sensision.getCurrentEvent()) {
+            awaitEvents(server, request, response, lastevent, nevents, wait);
+          } else {
+            server.dumpEvents(response, lastevent, nevents);
+          }
         } else {
           //
           // We're not having a peek, flush the events File
@@ -133,6 +238,200 @@ public class SensisionMetricsServer extends Thread {
     }
   }
 
+  /**
+   * Respond with the events following 'lastevent' as soon as there are some, or with
+   * no events once 'wait' ms have elapsed. No thread is held while waiting.
+   */
+  private static void awaitEvents(final SensisionMetricsServer server, HttpServletRequest request, final HttpServletResponse response, final long lastevent, final int n, long wait) {
+    final AsyncContext async = request.startAsync();
+    async.setTimeout(wait);
+
+    final AtomicBoolean done = new AtomicBoolean(false);
+
+    final Runnable respond = new Runnable() {
+      @Override
+      public void run() {
+        if (!done.compareAndSet(false, true)) {
+          return;
+        }
+        try {
+          server.dumpEvents(response, lastevent, n);
+        } catch (IOException ioe) {
+        } finally {
+          try {
+            async.complete();
+          } catch (IllegalStateException ise) {
+          }
+        }
+      }
+    };
+
+    // Run by the events writer, hand the response over to a server thread
+    final Runnable wakeup = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          async.start(respond);
+        } catch (IllegalStateException ise) {
+          // The request already timed out
+        }
+      }
+    };
+
+    async.addListener(new AsyncListener() {
+      @Override
+      public void onTimeout(AsyncEvent event) throws IOException {
+        Sensision.cancelAwaitEvents(wakeup);
+        respond.run();
+      }
+
+      @Override
+      public void onError(AsyncEvent event) throws IOException {
+        Sensision.cancelAwaitEvents(wakeup);
+        done.set(true);
+      }
+
+      @Override
+      public void onComplete(AsyncEvent event) throws IOException {}
+
+      @Override
+      public void onStartAsync(AsyncEvent event) throws IOException {}
+    });
+
+    Sensision.awaitEvents(lastevent, wakeup);
+  }
+
+  /**
+   * Output stream buffering the rendered metrics in fixed size chunks, so they are neither copied
+   * when the buffer grows nor when they are written, and each chunk can be released once written.
+   *
+   * The whole dump is still rendered in memory before being written, as the metrics cannot be
+   * rendered incrementally while the client reads them.
+   */
+  private static final class Chunks extends OutputStream {
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+    private byte[] current = null;
+    private int offset = WRITE_CHUNK_SIZE;
+    private long size = 0L;
+
+    @Override
+    public void write(int b) throws IOException {
+      if (WRITE_CHUNK_SIZE == offset) {
+        next();
+      }
+      current[offset++] = (byte) b;
+      size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      while (len > 0) {
+        if (WRITE_CHUNK_SIZE == offset) {
+          next();
+        }
+        int n = Math.min(len, WRITE_CHUNK_SIZE - offset);
+        System.arraycopy(b, off, current, offset, n);
+        offset += n;
+        off += n;
+        len -= n;
+        size += n;
+      }
+    }
+
+    private void next() {
+      current = new byte[WRITE_CHUNK_SIZE];
+      offset = 0;
+      chunks.add(current);
+    }
+  }
+
+  /**
+   * Write a response body asynchronously, only writing when the client can accept data
+   */
+  private static void writeAsync(HttpServletRequest request, HttpServletResponse response, final Chunks content) throws IOException {
+    response.setContentLengthLong(content.size);
+
+    final AsyncContext async = request.startAsync();
+    async.setTimeout(ASYNC_TIMEOUT);
+
+    final ServletOutputStream out = response.getOutputStream();
+
+    out.setWriteListener(new WriteListener() {
+      private int idx = 0;
+
+      @Override
+      public void onWritePossible() throws IOException {
+        while (out.isReady()) {
+          if (idx >= content.chunks.size()) {
+            async.complete();
+            return;
+          }
+
+          byte[] chunk = content.chunks.get(idx);
+          int len = idx == content.chunks.size() - 1 ? content.offset : WRITE_CHUNK_SIZE;
+
+          // Release the chunk, the output stream keeps a reference to it until it is written
+          content.chunks.set(idx++, null);
+
+          out.write(chunk, 0, len);
+        }
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        async.complete();
+      }
+    });
+  }
+
+  /**
+   * Check if the binary format was requested, either via the 'format' parameter or the Accept header
+   */
+  private static boolean isBinaryRequested(HttpServletRequest request) {
+    String format = request.getParameter(SENSISION_SERVER_FORMAT_PARAM);
+
+    if (null != format) {
+      return SENSISION_SERVER_FORMAT_BINARY.equals(format);
+    }
+
+    String accept = request.getHeader("Accept");
+
+    return null != accept && accept.contains(SensisionBinaryFormat.CONTENT_TYPE);
+  }
+
+  /**
+   * Extract the generation after which modified metrics should be dumped.
+   *
+   * A full dump is done (-1 is returned) if the parameter is absent or invalid, if the
+   * uuid parameter does not match ours or if the generation is in the future, i.e. the
+   * caller last polled a previous instance.
+   */
+  private static long getSince(HttpServletRequest request) {
+    String since = request.getParameter(SENSISION_SERVER_SINCE_PARAM);
+
+    if (null == since) {
+      return -1L;
+    }
+
+    String uuid = request.getParameter(SENSISION_SERVER_UUID_PARAM);
+
+    if (null != uuid && !Sensision.getUUID().equals(uuid)) {
+      return -1L;
+    }
+
+    try {
+      long generation = Long.parseLong(since);
+
+      if (generation > Sensision.getGeneration()) {
+        return -1L;
+      }
+
+      return generation;
+    } catch (NumberFormatException nfe) {
+      return -1L;
+    }
+  }
+
   public SensisionMetricsServer() {
 
     if (Sensision.disable) {
@@ -153,41 +452,34 @@ public class SensisionMetricsServer extends Thread {
   @Override
   public void run() {
 
-    Server server = new Server();
-
-    QueuedThreadPool pool = new QueuedThreadPool();
+    QueuedThreadPool pool = new QueuedThreadPool(Integer.parseInt(System.getProperty(SENSISION_SERVER_MAXTHREADS, DEFAULT_SERVER_MAXTHREADS)));
     pool.setDaemon(true);
 
-    server.setThreadPool(pool);
+    Server server = new Server(pool);
     server.setStopAtShutdown(true);
 
-    String conn = System.getProperty(SENSISION_SERVER_CONNECTOR, "nio");
-
     boolean bindall = "true".equals(System.getProperty(SENSISION_SERVER_BINDALL));
 
-    if ("bio".equals(conn)) {
-      SocketConnector connector = new SocketConnector();
-      if (bindall) {
-        connector.setHost(null);
-      } else {
-        connector.setHost("127.0.0.1");
-      }
-      connector.setPort(this.port);
-      connector.setAcceptors(1);
-      server.setConnectors(new Connector[] { connector });
+    int acceptors = Integer.parseInt(System.getProperty(SENSISION_SERVER_ACCEPTORS, DEFAULT_SERVER_ACCEPTORS));
+    int selectors = Integer.parseInt(System.getProperty(SENSISION_SERVER_SELECTORS, DEFAULT_SERVER_SELECTORS));
+
+    ServerConnector connector = new ServerConnector(server, acceptors, selectors);
+    if (bindall) {
+      connector.setHost(null);
     } else {
-      SelectChannelConnector connector = new SelectChannelConnector();
-      if (bindall) {
-        connector.setHost(null);
-      } else {
-        connector.setHost("127.0.0.1");
-      }
-      connector.setPort(this.port);
-      connector.setAcceptors(1);
-      server.setConnectors(new Connector[] { connector });
+      connector.setHost("127.0.0.1");
+    }
+    connector.setPort(this.port);
+    server.setConnectors(new Connector[] { connector });
+
+    if ("true".equals(System.getProperty(SENSISION_SERVER_GZIP, DEFAULT_SERVER_GZIP))) {
+      // Responses are compressed for clients which accept gzip
+      GzipHandler gzip = new GzipHandler();
+      gzip.setHandler(new MetricsHandler(this));
+      server.setHandler(gzip);
+    } else {
+      server.setHandler(new MetricsHandler(this));
     }
-
-    server.setHandler(new MetricsHandler(this));
     try {
       server.start();
     } catch (Exception e) {
@@ -199,7 +491,7 @@ public class SensisionMetricsServer extends Thread {
     //
 
     //this.port = ((ServerSocketChannel) server.getConnectors()[0].getTransport()).socket().getLocalPort();
-    this.port = server.getConnectors()[0].getLocalPort();
+    this.port = connector.getLocalPort();
 
     this.setName("[Sensision MetricsServer (" + this.port + ")]");
 
@@ -283,51 +575,44 @@ public class SensisionMetricsServer extends Thread {
     Sensision.dump(out, useValueTimestamp, openmetrics);
   }
 
-  /**
-   * We do not synchronize this method with the 'event' one in Sensision so as to not
-   * slow down event storage when dumping events.
-   */
-  public void dumpEvents(HttpServletResponse response, long lastevent, int n) throws IOException {
-    //
-    // Determine start offset to display
-    //
+  public void dumpMetrics(PrintWriter out, boolean useValueTimestamp, boolean openmetrics, long since) throws IOException {
+    Sensision.dump(out, useValueTimestamp, openmetrics, since);
+  }
 
-    List<String> events = Sensision.getEvents();
+  public void dumpMetrics(SensisionBinaryFormat.Writer out, boolean useValueTimestamp, long since) throws IOException {
+    Sensision.dump(out, useValueTimestamp, since);
+  }
 
-    long curevent = Sensision.getCurrentEvent();
+  /**
+   * Can the metrics be dumped in the binary format, the text format is used otherwise
+   */
+  protected boolean isBinarySupported() {
+    return true;
+  }
 
-    if (0 == events.size() || -1 == curevent || n <= 0) {
+  /**
+   * Output the events of the history following 'lastevent'. The events are retrieved as a consistent
+   * sequence, events which are no longer in the history are reported by gap markers.
+   */
+  public void dumpEvents(HttpServletResponse response, long lastevent, int n) throws IOException {
+    if (n <= 0 || !Sensision.hasEventsHistory()) {
       return;
     }
 
-    // Shift lastevent to be closer to the current event if
-    // it has already been overwritten
-    if (lastevent >= 0L) {
-      lastevent = Math.max(Math.max(lastevent, curevent - events.size()), -1L);
-    } else {
-      lastevent = Math.max(curevent - events.size(), -1L);
-    }
-
-    // Adjust n
-    if (n > events.size()) {
-      n = events.size();
-    }
+    List<String> events = new ArrayList<String>();
 
-    response.setHeader(Sensision.HTTP_HEADER_LASTEVENT, Long.toString(Math.min(curevent, lastevent + events.size())));
+    SensisionEventWriter.Cursor cursor = Sensision.readEvents(lastevent, n, events);
 
-    PrintWriter out = response.getWriter();
+    response.setHeader(Sensision.HTTP_HEADER_LASTEVENT, Long.toString(cursor.last));
 
-    while(n > 0 && lastevent < Sensision.getCurrentEvent()) {
-      // Increment the event number we will display next
-      lastevent++;
+    if (cursor.lost > 0L) {
+      response.setHeader(Sensision.HTTP_HEADER_EVENTSLOST, Long.toString(cursor.lost));
+    }
 
-      // Adjust lastevent to take into consideration the possible arrival of new events
-      lastevent = Math.max(Sensision.getCurrentEvent() - events.size() + 1, lastevent);
+    PrintWriter out = response.getWriter();
 
-      // Account for cycle
-      int idx = (int) (lastevent % events.size());
-      out.println(events.get(idx));
-      n--;
+    for (String event: events) {
+      out.println(event);
     }
   }
 }
@@ -0,0 +1,465 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * Quantile sketch with a bounded relative error, in the spirit of DDSketch.
+ *
+ * A value v is counted in the bucket ceil(log(v) / log(gamma)) with gamma = (1 + a) / (1 - a),
+ * so any quantile is returned with a relative error of at most a. Sketches with the same relative
+ * accuracy can be merged without any loss, which makes it possible to compute quantiles across
+ * processes. When a sketch spans more than its maximum number of buckets, its lowest buckets are
+ * collapsed, degrading the accuracy of the lowest quantiles only.
+ *
+ * Sketches are exposed as STRING values prefixed with PREFIX and followed by their base64url encoding,
+ * which contains no character altered by the encoding of the Sensision format.
+ */
+public class SensisionSketch {
+
+  public static final String PREFIX = "dds.";
+
+  public static final double DEFAULT_ACCURACY = 0.01D;
+
+  public static final int DEFAULT_MAXBUCKETS = 2048;
+
+  /**
+   * Version of the serialization, version 1 did not contain the maximum number of buckets
+   */
+  private static final byte VERSION = 2;
+
+  /**
+   * Values whose magnitude is below this one are counted as zero
+   */
+  private static final double MIN_INDEXABLE = 1.0E-9D;
+
+  /**
+   * Dense range of bucket counts
+   */
+  private static final class Store {
+    private long[] counts = new long[0];
+
+    /**
+     * Index of the bucket counts[0] is the count of
+     */
+    private int offset = 0;
+
+    private long total = 0L;
+
+    private void add(int index, long count, int maxBuckets) {
+      if (0 == this.counts.length) {
+        this.counts = new long[16];
+        this.offset = index - 8;
+      }
+
+      if (index < this.offset || index >= this.offset + this.counts.length) {
+        int lowest = Math.min(index, this.offset + lowestNonEmpty());
+        int highest = Math.max(index, this.offset + highestNonEmpty());
+
+        // Collapse the lowest buckets so the range fits
+        if (highest - lowest + 1 > maxBuckets) {
+          lowest = highest - maxBuckets + 1;
+          if (index < lowest) {
+            index = lowest;
+          }
+        }
+
+        resize(lowest, highest);
+      }
+
+      this.counts[index - this.offset] += count;
+      this.total += count;
+    }
+
+    private int lowestNonEmpty() {
+      for (int i = 0; i < this.counts.length; i++) {
+        if (0L != this.counts[i]) {
+          return i;
+        }
+      }
+      return this.counts.length - 1;
+    }
+
+    private int highestNonEmpty() {
+      for (int i = this.counts.length - 1; i >= 0; i--) {
+        if (0L != this.counts[i]) {
+          return i;
+        }
+      }
+      return 0;
+    }
+
+    /**
+     * Reallocate the counts so they cover [lowest,highest], adding the counts below 'lowest' to it
+     */
+    private void resize(int lowest, int highest) {
+      int size = Math.max(16, Integer.highestOneBit(highest - lowest + 1) << 1);
+      long[] counts = new long[size];
+      // Leave room on both sides
+      int offset = lowest - (size - (highest - lowest + 1)) / 2;
+
+      for (int i = 0; i < this.counts.length; i++) {
+        if (0L == this.counts[i]) {
+          continue;
+        }
+        int index = Math.max(lowest, this.offset + i);
+        counts[index - offset] += this.counts[i];
+      }
+
+      this.counts = counts;
+      this.offset = offset;
+    }
+  }
+
+  private final double accuracy;
+
+  private final double logGamma;
+
+  /**
+   * Maximum number of buckets, widened when merging a sketch with more buckets
+   */
+  private int maxBuckets;
+
+  private final Store positive = new Store();
+
+  private final Store negative = new Store();
+
+  private long zero = 0L;
+
+  private double sum = 0.0D;
+
+  private double min = Double.POSITIVE_INFINITY;
+
+  private double max = Double.NEGATIVE_INFINITY;
+
+  /**
+   * @param accuracy Relative accuracy of the quantiles, strictly between 0 and 1
+   * @param maxBuckets Maximum number of buckets for the positive and for the negative values
+   */
+  public SensisionSketch(double accuracy, int maxBuckets) {
+    if (!(accuracy > 0.0D && accuracy < 1.0D)) {
+      throw new IllegalArgumentException("Accuracy must be between 0 and 1.");
+    }
+
+    if (maxBuckets < 16) {
+      throw new IllegalArgumentException("Sketches need at least 16 buckets.");
+    }
+
+    this.accuracy = accuracy;
+    this.logGamma = Math.log((1.0D + accuracy) / (1.0D - accuracy));
+    this.maxBuckets = maxBuckets;
+  }
+
+  public SensisionSketch() {
+    this(DEFAULT_ACCURACY, DEFAULT_MAXBUCKETS);
+  }
+
+  public double getAccuracy() {
+    return this.accuracy;
+  }
+
+  private int index(double value) {
+    return (int) Math.ceil(Math.log(value) / this.logGamma);
+  }
+
+  /**
+   * Value representing a bucket, within the relative accuracy of all the values counted in it
+   */
+  private double value(int index) {
+    return 2.0D * Math.exp(index * this.logGamma) / (1.0D + Math.exp(this.logGamma));
+  }
+
+  public void record(double value) {
+    record(value, 1L);
+  }
+
+  public synchronized void record(double value, long count) {
+    if (count <= 0L || Double.isNaN(value) || Double.isInfinite(value)) {
+      return;
+    }
+
+    if (value > MIN_INDEXABLE) {
+      this.positive.add(index(value), count, this.maxBuckets);
+    } else if (value < -MIN_INDEXABLE) {
+      this.negative.add(index(-value), count, this.maxBuckets);
+    } else {
+      this.zero += count;
+    }
+
+    this.sum += value * count;
+    this.min = Math.min(this.min, value);
+    this.max = Math.max(this.max, value);
+  }
+
+  /**
+   * Merge another sketch into this one
+   */
+  public void merge(SensisionSketch other) {
+    if (other == this) {
+      return;
+    }
+
+    if (other.accuracy != this.accuracy) {
+      throw new IllegalArgumentException("Cannot merge sketches with different accuracies.");
+    }
+
+    SensisionSketch copy;
+
+    synchronized(other) {
+      copy = other.copy();
+    }
+
+    synchronized(this) {
+      // Keep the widest range so merging never collapses the buckets of the other sketch
+      this.maxBuckets = Math.max(this.maxBuckets, copy.maxBuckets);
+      merge(this.positive, copy.positive);
+      merge(this.negative, copy.negative);
+      this.zero += copy.zero;
+      this.sum += copy.sum;
+      this.min = Math.min(this.min, copy.min);
+      this.max = Math.max(this.max, copy.max);
+    }
+  }
+
+  private void merge(Store into, Store from) {
+    for (int i = 0; i < from.counts.length; i++) {
+      if (0L != from.counts[i]) {
+        into.add(from.offset + i, from.counts[i], this.maxBuckets);
+      }
+    }
+  }
+
+  private SensisionSketch copy() {
+    SensisionSketch copy = new SensisionSketch(this.accuracy, this.maxBuckets);
+    merge(copy.positive, this.positive);
+    merge(copy.negative, this.negative);
+    copy.zero = this.zero;
+    copy.sum = this.sum;
+    copy.min = this.min;
+    copy.max = this.max;
+    return copy;
+  }
+
+  public synchronized long getCount() {
+    return this.negative.total + this.zero + this.positive.total;
+  }
+
+  public synchronized double getSum() {
+    return this.sum;
+  }
+
+  /**
+   * @return the smallest recorded value, NaN if the sketch is empty
+   */
+  public synchronized double getMin() {
+    return 0L == getCount() ? Double.NaN : this.min;
+  }
+
+  /**
+   * @return the largest recorded value, NaN if the sketch is empty
+   */
+  public synchronized double getMax() {
+    return 0L == getCount() ? Double.NaN : this.max;
+  }
+
+  /**
+   * Return the value at the given quantile, within the relative accuracy of the sketch
+   *
+   * @param q Quantile, between 0.0 and 1.0
+   * @return the value at the quantile, NaN if the sketch is empty
+   */
+  public synchronized double getValueAtQuantile(double q) {
+    long count = getCount();
+
+    if (0L == count) {
+      return Double.NaN;
+    }
+
+    long rank = (long) (Math.min(1.0D, Math.max(0.0D, q)) * (count - 1L));
+
+    return Math.max(this.min, Math.min(this.max, valueAtRank(rank)));
+  }
+
+  private double valueAtRank(long rank) {
+    long seen = 0L;
+
+    // Negative values, from the most negative one
+    for (int i = this.negative.counts.length - 1; i >= 0; i--) {
+      seen += this.negative.counts[i];
+      if (seen > rank) {
+        return -value(this.negative.offset + i);
+      }
+    }
+
+    seen += this.zero;
+    if (seen > rank) {
+      return 0.0D;
+    }
+
+    for (int i = 0; i < this.positive.counts.length; i++) {
+      seen += this.positive.counts[i];
+      if (seen > rank) {
+        return value(this.positive.offset + i);
+      }
+    }
+
+    return this.max;
+  }
+
+  /**
+   * Serialize the sketch as PREFIX followed by the base64url encoding of
+   * version, accuracy, maximum number of buckets, zero count, sum, min, max, positive buckets, negative buckets.
+   *
+   * Buckets are encoded as their number followed by pairs of (zig-zag index delta, count) varints.
+   */
+  @Override
+  public synchronized String toString() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    out.write(VERSION);
+    writeDouble(out, this.accuracy);
+    writeVarLong(out, this.maxBuckets);
+    writeVarLong(out, this.zero);
+    writeDouble(out, this.sum);
+    writeDouble(out, this.min);
+    writeDouble(out, this.max);
+    writeStore(out, this.positive);
+    writeStore(out, this.negative);
+
+    return PREFIX + Base64.getUrlEncoder().withoutPadding().encodeToString(out.toByteArray());
+  }
+
+  /**
+   * Parse a serialized sketch
+   *
+   * @return the sketch or null if the string is not a valid sketch
+   */
+  public static SensisionSketch parse(String str) {
+    if (null == str || !str.startsWith(PREFIX)) {
+      return null;
+    }
+
+    try {
+      ByteBuffer in = ByteBuffer.wrap(Base64.getUrlDecoder().decode(str.substring(PREFIX.length())));
+
+      byte version = in.get();
+
+      if (1 != version && VERSION != version) {
+        return null;
+      }
+
+      double accuracy = in.getDouble();
+      long maxBuckets = 1 == version ? DEFAULT_MAXBUCKETS : readVarLong(in);
+
+      if (maxBuckets > Integer.MAX_VALUE) {
+        return null;
+      }
+
+      SensisionSketch sketch = new SensisionSketch(accuracy, (int) maxBuckets);
+      sketch.zero = readVarLong(in);
+      sketch.sum = in.getDouble();
+      sketch.min = in.getDouble();
+      sketch.max = in.getDouble();
+      readStore(in, sketch, sketch.positive);
+      readStore(in, sketch, sketch.negative);
+
+      return sketch;
+    } catch (RuntimeException re) {
+      // Invalid base64, truncated buffer, invalid accuracy or number of buckets
+      return null;
+    }
+  }
+
+  private static void writeStore(ByteArrayOutputStream out, Store store) {
+    int n = 0;
+    for (long count: store.counts) {
+      if (0L != count) {
+        n++;
+      }
+    }
+
+    writeVarLong(out, n);
+
+    int last = 0;
+
+    for (int i = 0; i < store.counts.length; i++) {
+      if (0L == store.counts[i]) {
+        continue;
+      }
+      int index = store.offset + i;
+      writeVarLong(out, zigzag(index - last));
+      writeVarLong(out, store.counts[i]);
+      last = index;
+    }
+  }
+
+  private static void readStore(ByteBuffer in, SensisionSketch sketch, Store store) {
+    long n = readVarLong(in);
+    int index = 0;
+
+    for (long i = 0; i < n; i++) {
+      index += (int) unzigzag(readVarLong(in));
+      long count = readVarLong(in);
+      if (count < 0L) {
+        throw new IllegalArgumentException();
+      }
+      store.add(index, count, sketch.maxBuckets);
+    }
+  }
+
+  private static long zigzag(long v) {
+    return (v << 1) ^ (v >> 63);
+  }
+
+  private static long unzigzag(long v) {
+    return (v >>> 1) ^ -(v & 1L);
+  }
+
+  private static void writeVarLong(ByteArrayOutputStream out, long v) {
+    while ((v & ~0x7FL) != 0L) {
+      out.write((int) ((v & 0x7FL) | 0x80L));
+      v >>>= 7;
+    }
+    out.write((int) v);
+  }
+
+  private static long readVarLong(ByteBuffer in) {
+    long v = 0L;
+    int shift = 0;
+
+    while (shift < 64) {
+      byte b = in.get();
+      v |= (long) (b & 0x7F) << shift;
+      if (0 == (b & 0x80)) {
+        return v;
+      }
+      shift += 7;
+    }
+
+    throw new IllegalArgumentException("Malformed varint.");
+  }
+
+  private static void writeDouble(ByteArrayOutputStream out, double d) {
+    long bits = Double.doubleToRawLongBits(d);
+    for (int i = 56; i >= 0; i -= 8) {
+      out.write((int) (bits >>> i));
+    }
+  }
+}
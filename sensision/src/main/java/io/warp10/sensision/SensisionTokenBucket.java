@@ -0,0 +1,95 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+/**
+ * Token bucket refilled at a constant rate up to a maximum capacity.
+ *
+ * Tokens can either be acquired only if available ({@link #tryConsume(long)}) or
+ * consumed unconditionally ({@link #consume(long)}), in which case the bucket may
+ * go into debt until it is refilled.
+ */
+public class SensisionTokenBucket {
+
+  /**
+   * Number of tokens added per second
+   */
+  private final double rate;
+
+  /**
+   * Maximum number of tokens in the bucket
+   */
+  private final double capacity;
+
+  private double tokens;
+
+  private long last;
+
+  public SensisionTokenBucket(double rate, double capacity) {
+    if (rate <= 0.0D || capacity <= 0.0D) {
+      throw new IllegalArgumentException("Rate and capacity must be positive.");
+    }
+
+    this.rate = rate;
+    this.capacity = capacity;
+    this.tokens = capacity;
+    this.last = System.nanoTime();
+  }
+
+  private void refill() {
+    long now = System.nanoTime();
+    this.tokens = Math.min(this.capacity, this.tokens + (now - this.last) * this.rate / 1000000000.0D);
+    this.last = now;
+  }
+
+  /**
+   * Consume tokens if they are available.
+   *
+   * @return true if the tokens were consumed
+   */
+  public synchronized boolean tryConsume(long n) {
+    refill();
+
+    if (this.tokens < n) {
+      return false;
+    }
+
+    this.tokens -= n;
+    return true;
+  }
+
+  /**
+   * Consume tokens whether they are available or not.
+   */
+  public synchronized void consume(long n) {
+    refill();
+    this.tokens -= n;
+  }
+
+  /**
+   * Return the delay (in ms) after which at least one token will be available.
+   */
+  public synchronized long getDelay() {
+    refill();
+
+    if (this.tokens >= 1.0D) {
+      return 0L;
+    }
+
+    return (long) Math.ceil((1.0D - this.tokens) * 1000.0D / this.rate);
+  }
+}
@@ -0,0 +1,244 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Push based gzip decoder, used to decompress data as it is received without
+ * blocking on an InputStream. Concatenated gzip members are supported.
+ */
+class StreamingGunzip {
+
+  /**
+   * Receives decompressed data
+   */
+  interface Sink {
+    void write(byte[] buf, int off, int len) throws IOException;
+  }
+
+  private static final int STATE_HEADER = 0;
+  private static final int STATE_BODY = 1;
+  private static final int STATE_TRAILER = 2;
+
+  /**
+   * Maximum size of a gzip member header (extra field, file name and comment)
+   */
+  private static final int MAX_HEADER_SIZE = 131072;
+
+  private static final int FHCRC = 0x02;
+  private static final int FEXTRA = 0x04;
+  private static final int FNAME = 0x08;
+  private static final int FCOMMENT = 0x10;
+
+  private int state = STATE_HEADER;
+
+  /**
+   * Header or trailer bytes received so far
+   */
+  private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+
+  private final Inflater inflater = new Inflater(true);
+
+  private final CRC32 crc = new CRC32();
+
+  private long size = 0L;
+
+  private final byte[] out = new byte[8192];
+
+  private final Sink sink;
+
+  StreamingGunzip(Sink sink) {
+    this.sink = sink;
+  }
+
+  /**
+   * Decompress some data, decompressed data is handed to the sink.
+   */
+  void feed(byte[] buf, int off, int len) throws IOException {
+    while (len > 0) {
+      switch (this.state) {
+        case STATE_HEADER:
+          this.pending.write(buf[off]);
+          off++;
+          len--;
+
+          if (this.pending.size() > MAX_HEADER_SIZE) {
+            throw new IOException("Invalid gzip header.");
+          }
+
+          if (isHeaderComplete(this.pending.toByteArray())) {
+            this.pending.reset();
+            this.inflater.reset();
+            this.crc.reset();
+            this.size = 0L;
+            this.state = STATE_BODY;
+          }
+          break;
+
+        case STATE_BODY:
+          this.inflater.setInput(buf, off, len);
+
+          try {
+            while (true) {
+              int n = this.inflater.inflate(this.out);
+
+              if (n > 0) {
+                this.crc.update(this.out, 0, n);
+                this.size += n;
+                this.sink.write(this.out, 0, n);
+                continue;
+              }
+
+              if (this.inflater.finished() || this.inflater.needsInput()) {
+                break;
+              }
+
+              if (this.inflater.needsDictionary()) {
+                throw new IOException("Invalid gzip stream, preset dictionary required.");
+              }
+            }
+          } catch (DataFormatException dfe) {
+            throw new IOException("Invalid gzip stream.", dfe);
+          }
+
+          if (this.inflater.finished()) {
+            int remaining = this.inflater.getRemaining();
+            off += len - remaining;
+            len = remaining;
+            this.state = STATE_TRAILER;
+          } else {
+            off += len;
+            len = 0;
+          }
+          break;
+
+        case STATE_TRAILER:
+          this.pending.write(buf[off]);
+          off++;
+          len--;
+
+          if (8 == this.pending.size()) {
+            byte[] trailer = this.pending.toByteArray();
+            long crc32 = readUInt32(trailer, 0);
+            long isize = readUInt32(trailer, 4);
+
+            if (crc32 != this.crc.getValue() || isize != (this.size & 0xFFFFFFFFL)) {
+              throw new IOException("Corrupt gzip stream.");
+            }
+
+            this.pending.reset();
+            this.state = STATE_HEADER;
+          }
+          break;
+
+        default:
+          throw new IOException("Invalid state.");
+      }
+    }
+  }
+
+  /**
+   * Signal the end of the compressed data
+   *
+   * @throws IOException if the stream was truncated
+   */
+  void finish() throws IOException {
+    this.inflater.end();
+
+    if (STATE_HEADER != this.state || 0 != this.pending.size()) {
+      throw new IOException("Truncated gzip stream.");
+    }
+  }
+
+  /**
+   * Release the native resources of the decoder
+   */
+  void end() {
+    this.inflater.end();
+  }
+
+  /**
+   * Check if a gzip member header is complete.
+   *
+   * @throws IOException if the header is invalid
+   */
+  private static boolean isHeaderComplete(byte[] header) throws IOException {
+    if (header.length >= 1 && (byte) 0x1f != header[0]) {
+      throw new IOException("Not in gzip format.");
+    }
+    if (header.length >= 2 && (byte) 0x8b != header[1]) {
+      throw new IOException("Not in gzip format.");
+    }
+    if (header.length >= 3 && 8 != header[2]) {
+      throw new IOException("Unsupported gzip compression method.");
+    }
+
+    // ID1 ID2 CM FLG MTIME(4) XFL OS
+    if (header.length < 10) {
+      return false;
+    }
+
+    int flags = header[3] & 0xFF;
+    int idx = 10;
+
+    if (0 != (flags & FEXTRA)) {
+      if (header.length < idx + 2) {
+        return false;
+      }
+      int xlen = (header[idx] & 0xFF) | ((header[idx + 1] & 0xFF) << 8);
+      idx += 2 + xlen;
+    }
+
+    if (0 != (flags & FNAME)) {
+      idx = skipZeroTerminated(header, idx);
+      if (idx < 0) {
+        return false;
+      }
+    }
+
+    if (0 != (flags & FCOMMENT)) {
+      idx = skipZeroTerminated(header, idx);
+      if (idx < 0) {
+        return false;
+      }
+    }
+
+    if (0 != (flags & FHCRC)) {
+      idx += 2;
+    }
+
+    return header.length >= idx;
+  }
+
+  private static int skipZeroTerminated(byte[] buf, int idx) {
+    while (idx < buf.length) {
+      if (0 == buf[idx++]) {
+        return idx;
+      }
+    }
+    return -1;
+  }
+
+  private static long readUInt32(byte[] buf, int off) {
+    return (buf[off] & 0xFFL) | ((buf[off + 1] & 0xFFL) << 8) | ((buf[off + 2] & 0xFFL) << 16) | ((buf[off + 3] & 0xFFL) << 24);
+  }
+}
@@ -0,0 +1,394 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+/**
+ * Hashed timing wheel used to schedule the periodic tasks of the Sensision
+ * service (HTTP polls, scripts, ...).
+ *
+ * Insertion and expiration are O(1), tasks are handed to the wheel via a lock free
+ * queue and only the ticker thread touches the buckets.
+ *
+ * Periodic tasks are rescheduled relative to their previous deadline and not to
+ * the time they actually ran, so they do not drift. Tasks should be cheap, typically
+ * they only submit the actual work to an executor.
+ */
+public class TimingWheel extends Thread {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(TimingWheel.class);
+
+  private static final String DEFAULT_SCHEDULER_TICK = "10";
+  private static final String DEFAULT_SCHEDULER_WHEELSIZE = "512";
+
+  /**
+   * Wheel shared by the components of the Sensision service
+   */
+  private static TimingWheel instance = null;
+
+  /**
+   * Handle on a scheduled task
+   */
+  public static final class Timeout {
+
+    private final TimingWheel wheel;
+
+    private final Runnable task;
+
+    /**
+     * Period in ms, 0 for one shot tasks
+     */
+    private final long period;
+
+    /**
+     * Maximum random delay in ms added to each run
+     */
+    private final long jitter;
+
+    /**
+     * Nominal time of the next run, without jitter
+     */
+    private long nominal;
+
+    /**
+     * Tick at which the task should next expire
+     */
+    private long deadline;
+
+    /**
+     * Number of wheel rotations left before the task expires
+     */
+    private long rounds;
+
+    private Timeout prev;
+    private Timeout next;
+    private int bucket = -1;
+
+    private volatile boolean cancelled = false;
+
+    private Timeout(TimingWheel wheel, Runnable task, long nominal, long period, long jitter) {
+      this.wheel = wheel;
+      this.task = task;
+      this.nominal = nominal;
+      this.period = period;
+      this.jitter = jitter;
+    }
+
+    /**
+     * Cancel the task, it will not be run again.
+     */
+    public void cancel() {
+      this.cancelled = true;
+      this.wheel.cancelled.add(this);
+    }
+
+    public boolean isCancelled() {
+      return this.cancelled;
+    }
+
+    public long getPeriod() {
+      return this.period;
+    }
+  }
+
+  /**
+   * Duration of a tick in ms
+   */
+  private final long tick;
+
+  /**
+   * Buckets of the wheel, each one is a doubly linked list of Timeout
+   */
+  private final Timeout[] buckets;
+
+  private final int mask;
+
+  /**
+   * Tasks waiting to be inserted in the wheel
+   */
+  private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<Timeout>();
+
+  /**
+   * Tasks waiting to be removed from the wheel
+   */
+  private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+
+  private final Random random = new Random();
+
+  /**
+   * Time origin of the wheel (in ns, from System.nanoTime), ticks are computed relative to it
+   * so the wheel is not affected by wall clock adjustments.
+   */
+  private final long origin;
+
+  /**
+   * Last tick which was processed
+   */
+  private long current = 0L;
+
+  /**
+   * @param tick Duration of a tick in ms
+   * @param size Number of buckets, will be rounded up to a power of 2
+   */
+  public TimingWheel(long tick, int size) {
+    if (tick <= 0) {
+      throw new RuntimeException("Invalid scheduler tick " + tick);
+    }
+
+    int n = 1;
+    while (n < size) {
+      n <<= 1;
+    }
+
+    this.tick = tick;
+    this.buckets = new Timeout[n];
+    this.mask = n - 1;
+    this.origin = System.nanoTime();
+
+    this.setDaemon(true);
+    this.setName("[Sensision TimingWheel (" + tick + "ms x " + n + ")]");
+    this.start();
+  }
+
+  /**
+   * Return the wheel shared by the Sensision service components, creating it if needed.
+   */
+  public static synchronized TimingWheel getInstance(Properties config) {
+    if (null == instance) {
+      long tick = Long.valueOf(config.getProperty(Sensision.SENSISION_SCHEDULER_TICK, DEFAULT_SCHEDULER_TICK));
+      int size = Integer.valueOf(config.getProperty(Sensision.SENSISION_SCHEDULER_WHEELSIZE, DEFAULT_SCHEDULER_WHEELSIZE));
+      instance = new TimingWheel(tick, size);
+    }
+    return instance;
+  }
+
+  /**
+   * Run a task once after a delay.
+   *
+   * @param task Task to run, should be cheap as it is run by the ticker thread
+   * @param delay Delay in ms
+   */
+  public Timeout schedule(Runnable task, long delay) {
+    Timeout timeout = new Timeout(this, task, System.currentTimeMillis() + Math.max(0L, delay), 0L, 0L);
+    arm(timeout);
+    return timeout;
+  }
+
+  /**
+   * Run a task periodically.
+   *
+   * @param task Task to run, should be cheap as it is run by the ticker thread
+   * @param delay Delay in ms before the first run
+   * @param period Period in ms between two runs
+   * @param jitter Maximum random delay in ms added to each run, 0 for none
+   */
+  public Timeout schedule(Runnable task, long delay, long period, long jitter) {
+    if (period <= 0) {
+      throw new RuntimeException("Invalid period " + period);
+    }
+    Timeout timeout = new Timeout(this, task, System.currentTimeMillis() + Math.max(0L, delay), period, Math.max(0L, jitter));
+    arm(timeout);
+    return timeout;
+  }
+
+  /**
+   * Compute the delay before the next occurrence of the phase of a periodic task.
+   *
+   * The phase is an offset within the period derived from a hash of the task identity,
+   * so tasks with the same period are spread evenly across it and keep the same phase
+   * across restarts. Phases are aligned on the wall clock.
+   *
+   * @param identity Identity of the task (target, script path, ...)
+   * @param period Period of the task in ms
+   * @return The delay in ms before the next run
+   */
+  public static long phase(String identity, long period) {
+    if (period <= 0) {
+      return 0L;
+    }
+
+    long hash = Hashing.murmur3_32().hashString(identity, Charsets.UTF_8).asInt() & 0xFFFFFFFFL;
+    long offset = hash % period;
+
+    long now = System.currentTimeMillis();
+    long next = now - (now % period) + offset;
+
+    if (next < now) {
+      next += period;
+    }
+
+    return next - now;
+  }
+
+  public long getTick() {
+    return this.tick;
+  }
+
+  private void arm(Timeout timeout) {
+    long when = timeout.nominal;
+
+    if (timeout.jitter > 0) {
+      synchronized(this.random) {
+        when += (long) (this.random.nextDouble() * timeout.jitter);
+      }
+    }
+
+    //
+    // Convert the wall clock time to a tick, rounding up so a task never runs early
+    //
+
+    long elapsed = (System.nanoTime() - this.origin) / 1000000L + (when - System.currentTimeMillis());
+    timeout.deadline = (elapsed + this.tick - 1) / this.tick;
+    this.pending.add(timeout);
+  }
+
+  @Override
+  public void run() {
+    while(true) {
+      //
+      // Wait for the next tick. Ticks are computed from the origin so sleep
+      // inaccuracies do not accumulate.
+      //
+
+      long next = (this.current + 1) * this.tick * 1000000L;
+      long elapsed = System.nanoTime() - this.origin;
+
+      if (elapsed < next) {
+        LockSupport.parkNanos(next - elapsed);
+        continue;
+      }
+
+      long target = elapsed / (this.tick * 1000000L);
+
+      removeCancelled();
+      insertPending();
+
+      //
+      // Process all the ticks we went through
+      //
+
+      while (this.current < target) {
+        this.current++;
+        expire(this.current);
+      }
+    }
+  }
+
+  private void insertPending() {
+    while(true) {
+      Timeout timeout = this.pending.poll();
+
+      if (null == timeout) {
+        break;
+      }
+
+      if (timeout.cancelled) {
+        continue;
+      }
+
+      // Deadlines in the past expire at the next tick
+      long deadline = Math.max(timeout.deadline, this.current + 1);
+
+      int idx = (int) (deadline & this.mask);
+      timeout.rounds = (deadline - (this.current + 1)) / this.buckets.length;
+      timeout.bucket = idx;
+      timeout.prev = null;
+      timeout.next = this.buckets[idx];
+      if (null != timeout.next) {
+        timeout.next.prev = timeout;
+      }
+      this.buckets[idx] = timeout;
+    }
+  }
+
+  private void removeCancelled() {
+    while(true) {
+      Timeout timeout = this.cancelled.poll();
+
+      if (null == timeout) {
+        break;
+      }
+
+      unlink(timeout);
+    }
+  }
+
+  private void unlink(Timeout timeout) {
+    if (-1 == timeout.bucket) {
+      return;
+    }
+    if (null != timeout.prev) {
+      timeout.prev.next = timeout.next;
+    } else {
+      this.buckets[timeout.bucket] = timeout.next;
+    }
+    if (null != timeout.next) {
+      timeout.next.prev = timeout.prev;
+    }
+    timeout.prev = null;
+    timeout.next = null;
+    timeout.bucket = -1;
+  }
+
+  private void expire(long tick) {
+    Timeout timeout = this.buckets[(int) (tick & this.mask)];
+
+    while (null != timeout) {
+      Timeout next = timeout.next;
+
+      if (timeout.rounds > 0) {
+        timeout.rounds--;
+      } else {
+        unlink(timeout);
+
+        if (!timeout.cancelled) {
+          try {
+            timeout.task.run();
+          } catch (Throwable t) {
+            LOGGER.error("Caught exception while running scheduled task", t);
+          }
+
+          if (timeout.period > 0 && !timeout.cancelled) {
+            //
+            // Compute the next run from the previous nominal time so the task does not drift.
+            // If we are late by more than a period, skip the missed runs.
+            //
+
+            long now = System.currentTimeMillis();
+            timeout.nominal += timeout.period;
+            if (timeout.nominal <= now) {
+              timeout.nominal += ((now - timeout.nominal) / timeout.period + 1) * timeout.period;
+            }
+            arm(timeout);
+          }
+        }
+      }
+
+      timeout = next;
+    }
+  }
+}
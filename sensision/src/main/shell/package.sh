@@ -59,8 +59,8 @@ cp ../../etc/sensision-tokengen.mc2 ${SENSISION_HOME}/templates/sensision-tokeng
 # Copy jar
 cp ../build/libs/sensision-service-${VERSION}.jar ${SENSISION_HOME}/bin/sensision-${VERSION}.jar
 
-# Copy procDump tool
-cp ../../procDump/procDump ${SENSISION_HOME}/bin/procDump
+# Build procDump tool from source, the committed binary predates the framed and serve modes
+${CC:-cc} -O2 -Wall -o ${SENSISION_HOME}/bin/procDump ../../procDump/procDump.c || exit 1
 
 # Fix permissions
 chmod 755 ${SENSISION_HOME}/bin
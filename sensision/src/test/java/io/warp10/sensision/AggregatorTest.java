@@ -0,0 +1,197 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.warp10.sensision.Sensision.Value;
+
+public class AggregatorTest {
+
+  private static final long MINUTE = 60000L * Sensision.TIME_UNITS_PER_MS;
+  private static final long SECOND = 1000L * Sensision.TIME_UNITS_PER_MS;
+
+  @Test
+  public void testDownsamplingAndRollup() throws Exception {
+    Properties props = new Properties();
+    props.setProperty("sensision.qm.aggregate.proc.selector", "^linux\\.proc\\..*");
+    props.setProperty("sensision.qm.aggregate.proc.functions", "min,max,mean,count");
+    props.setProperty("sensision.qm.aggregate.proc.drop", "cpu");
+
+    Aggregator aggregator = new Aggregator(props);
+
+    long base = 100L * MINUTE;
+
+    for (int cpu = 0; cpu < 2; cpu++) {
+      for (int i = 0; i < 6; i++) {
+        Map<String,String> labels = new HashMap<String,String>();
+        labels.put("cpu", Integer.toString(cpu));
+        labels.put("host", "h");
+        Assert.assertTrue(aggregator.offer(new Value("linux.proc.stat.cpu", labels, base + i * 10L * SECOND, null, null, null, (long) (cpu * 10 + i)), base));
+      }
+    }
+
+    Assert.assertFalse(aggregator.offer(new Value("other", new HashMap<String,String>(), base, null, null, null, 1L), base));
+
+    // The window is not over yet
+    Assert.assertTrue(aggregator.flush(base + MINUTE, false).isEmpty());
+
+    List<Value> values = aggregator.flush(base + 2L * MINUTE, false);
+
+    Assert.assertEquals(4, values.size());
+
+    Map<String,Object> results = new HashMap<String,Object>();
+    for (Value value: values) {
+      Assert.assertEquals(base, value.timestamp);
+      Assert.assertFalse(value.labels.containsKey("cpu"));
+      results.put(value.cls, value.value);
+    }
+
+    Assert.assertEquals(0L, results.get("linux.proc.stat.cpu:min"));
+    Assert.assertEquals(15L, results.get("linux.proc.stat.cpu:max"));
+    Assert.assertEquals(7.5D, results.get("linux.proc.stat.cpu:mean"));
+    Assert.assertEquals(12L, results.get("linux.proc.stat.cpu:count"));
+
+    // Late values are dropped
+    Map<String,String> labels = new HashMap<String,String>();
+    labels.put("cpu", "1");
+    labels.put("host", "h");
+    Assert.assertTrue(aggregator.offer(new Value("linux.proc.stat.cpu", labels, base, null, null, null, 1L), base));
+    Assert.assertTrue(aggregator.flush(base + 2L * MINUTE, true).isEmpty());
+  }
+
+  @Test
+  public void testRollback() throws Exception {
+    Properties props = new Properties();
+    props.setProperty("sensision.qm.aggregate.proc.selector", "^linux\\.proc\\..*");
+    props.setProperty("sensision.qm.aggregate.proc.functions", "sum,count");
+
+    Aggregator aggregator = new Aggregator(props);
+
+    long base = 100L * MINUTE;
+    Value value = new Value("linux.proc.loadavg", new HashMap<String,String>(), base, null, null, null, 3L);
+
+    Assert.assertTrue(aggregator.accepts(value));
+    Assert.assertFalse(aggregator.accepts(new Value("other", new HashMap<String,String>(), base, null, null, null, 1L)));
+
+    aggregator.offer(value, base);
+
+    Assert.assertEquals(2, aggregator.flush(base + 2L * MINUTE, false).size());
+
+    // The values of the flushed windows could not be queued, they are flushed again
+    aggregator.rollback();
+
+    List<Value> values = aggregator.flush(base + 2L * MINUTE, false);
+
+    Assert.assertEquals(2, values.size());
+    for (Value v: values) {
+      Assert.assertEquals(v.cls.endsWith(":sum") ? 3L : 1L, v.value);
+    }
+
+    Assert.assertTrue(aggregator.flush(base + 2L * MINUTE, false).isEmpty());
+  }
+
+  @Test
+  public void testRate() throws Exception {
+    Properties props = new Properties();
+    props.setProperty("sensision.qm.aggregate.net.selector", "^net\\..*");
+    props.setProperty("sensision.qm.aggregate.net.rate", "true");
+
+    Aggregator aggregator = new Aggregator(props);
+
+    long base = 100L * MINUTE;
+    Map<String,String> labels = new HashMap<String,String>();
+
+    long[] counter = new long[] { 1000L, 2000L, 4000L, 10L, 1010L };
+
+    for (int i = 0; i < counter.length; i++) {
+      aggregator.offer(new Value("net.bytes", labels, base + i * 10L * SECOND, null, null, null, counter[i]), base);
+    }
+
+    List<Value> values = aggregator.flush(base, true);
+
+    Assert.assertEquals(1, values.size());
+    Assert.assertEquals("net.bytes", values.get(0).cls);
+    // 100/s, 200/s then 100/s, the reset being skipped
+    Assert.assertEquals(400.0D / 3.0D, (Double) values.get(0).value, 1.0E-9D);
+  }
+
+  @Test
+  public void testSketches() throws Exception {
+    Properties props = new Properties();
+    props.setProperty("sensision.qm.aggregate.latency.selector", "^latency$");
+    props.setProperty("sensision.qm.aggregate.latency.functions", "min,max");
+    props.setProperty("sensision.qm.aggregate.latency.drop", "host");
+
+    Aggregator aggregator = new Aggregator(props);
+
+    long base = 100L * MINUTE;
+
+    // Two hosts, each emitting a sketch every 30s, merged in a single sketch for the window
+    for (int host = 0; host < 2; host++) {
+      for (int i = 0; i < 2; i++) {
+        SensisionSketch sketch = new SensisionSketch();
+        for (int j = 1; j <= 100; j++) {
+          sketch.record(host * 1000 + i * 100 + j);
+        }
+
+        Map<String,String> labels = new HashMap<String,String>();
+        labels.put("host", "h" + host);
+        Value value = new Value("latency", labels, base + i * 30L * SECOND, null, null, null, sketch.toString());
+        Assert.assertTrue(aggregator.accepts(value));
+        Assert.assertTrue(aggregator.offer(value, base));
+      }
+    }
+
+    // Sketches with another accuracy cannot be merged with the others
+    SensisionSketch other = new SensisionSketch(0.05D, SensisionSketch.DEFAULT_MAXBUCKETS);
+    other.record(1.0D);
+    Assert.assertTrue(aggregator.offer(new Value("latency", new HashMap<String,String>(), base, null, null, null, other.toString()), base));
+
+    // Invalid sketches are routed as is
+    Assert.assertFalse(aggregator.accepts(new Value("latency", new HashMap<String,String>(), base, null, null, null, SensisionSketch.PREFIX + "!")));
+
+    List<Value> values = aggregator.flush(base + 2L * MINUTE, false);
+
+    Assert.assertEquals(2, values.size());
+
+    SensisionSketch merged = null;
+
+    for (Value value: values) {
+      Assert.assertEquals("latency", value.cls);
+      Assert.assertEquals(base, value.timestamp);
+      Assert.assertTrue(value.labels.isEmpty());
+      SensisionSketch sketch = SensisionSketch.parse((String) value.value);
+      if (SensisionSketch.DEFAULT_ACCURACY == sketch.getAccuracy()) {
+        merged = sketch;
+      }
+    }
+
+    Assert.assertEquals(400L, merged.getCount());
+    Assert.assertEquals(1.0D, merged.getMin(), 0.0D);
+    Assert.assertEquals(1200.0D, merged.getMax(), 0.0D);
+
+    // A single sketch is emitted per window
+    Assert.assertTrue(aggregator.flush(base + 3L * MINUTE, true).isEmpty());
+  }
+}
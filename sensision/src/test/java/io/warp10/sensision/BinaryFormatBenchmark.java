@@ -0,0 +1,114 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.warp10.sensision.Sensision.Value;
+
+/**
+ * Compare the cost of dumping and parsing metrics in the text and binary formats.
+ *
+ * Usage: BinaryFormatBenchmark [number of series] [number of iterations]
+ */
+public class BinaryFormatBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    int nseries = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+    int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+    //
+    // Generate series with a typical shape, a few classes and labels
+    //
+
+    List<Value> values = new ArrayList<Value>();
+
+    long now = System.currentTimeMillis() * Sensision.TIME_UNITS_PER_MS;
+
+    for (int i = 0; i < nseries; i++) {
+      Map<String,String> labels = new HashMap<String,String>();
+      labels.put("host", "host-" + (i % 16) + ".example.com");
+      labels.put("path", "/api/v0/endpoint/" + (i % 100));
+      labels.put("status", Integer.toString(200 + (i % 5)));
+      Object value = 0 == i % 2 ? (Object) Long.valueOf(i * 1000L) : (Object) Double.valueOf(i / 7.0D);
+      values.add(new Value("sensision.benchmark.class" + (i % 20), labels, now + i, null, null, null, value));
+    }
+
+    byte[] text = null;
+    byte[] binary = null;
+
+    for (int round = 0; round < 2; round++) {
+      // First round is a warmup
+      boolean report = 1 == round;
+
+      long dumpText = 0L;
+      long parseText = 0L;
+      long dumpBinary = 0L;
+      long parseBinary = 0L;
+
+      for (int it = 0; it < iterations; it++) {
+        long nano = System.nanoTime();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(out, "UTF-8"));
+        for (Value value: values) {
+          Sensision.dumpValue(pw, value, true, true, false);
+        }
+        pw.close();
+        text = out.toByteArray();
+        dumpText += System.nanoTime() - nano;
+
+        nano = System.nanoTime();
+        MetricsReader reader = new MetricsReader(new ByteArrayInputStream(text));
+        while (null != reader.next()) {
+        }
+        reader.close();
+        parseText += System.nanoTime() - nano;
+
+        nano = System.nanoTime();
+        out = new ByteArrayOutputStream();
+        SensisionBinaryFormat.Writer writer = new SensisionBinaryFormat.Writer(out);
+        for (Value value: values) {
+          Sensision.dumpValue(writer, value, true);
+        }
+        writer.close();
+        binary = out.toByteArray();
+        dumpBinary += System.nanoTime() - nano;
+
+        nano = System.nanoTime();
+        reader = new MetricsReader(new ByteArrayInputStream(binary));
+        while (null != reader.next()) {
+        }
+        reader.close();
+        parseBinary += System.nanoTime() - nano;
+      }
+
+      if (report) {
+        long n = (long) nseries * iterations;
+        System.out.println("series=" + nseries + " iterations=" + iterations);
+        System.out.println("text   bytes=" + text.length + " dump=" + (dumpText / n) + "ns/value parse=" + (parseText / n) + "ns/value");
+        System.out.println("binary bytes=" + binary.length + " dump=" + (dumpBinary / n) + "ns/value parse=" + (parseBinary / n) + "ns/value");
+      }
+    }
+  }
+}
@@ -0,0 +1,149 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import static io.warp10.sensision.ProcTestUtils.find;
+import static io.warp10.sensision.ProcTestUtils.write;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.warp10.sensision.Sensision.Value;
+
+public class ProcCollectorTest {
+
+  @Test
+  public void testStat() throws Exception {
+    File root = Files.createTempDirectory("proc").toFile();
+    write(root, "stat",
+        "cpu  100 2 30 4000 5 6 7 0 0 0\n"
+        + "cpu0 50 1 15 2000 2 3 4 0 0 0\n"
+        + "intr 1000 12 0 0 7 \n"
+        + "ctxt 123456\n"
+        + "btime 1690000000\n"
+        + "processes 4242\n"
+        + "procs_running 1\n"
+        + "softirq 77 0 70 7\n");
+
+    List<Value> values = new ArrayList<Value>();
+    new ProcCollector(root).collect(ProcCollector.STAT, 42L, values);
+
+    Assert.assertEquals(100L, find(values, "linux.proc.stat.userhz.user", "cpu", "cpu").value);
+    Assert.assertEquals(7L, find(values, "linux.proc.stat.userhz.softirq", "cpu", "cpu").value);
+    Assert.assertEquals(2000L, find(values, "linux.proc.stat.userhz.idle", "cpu", "cpu0").value);
+    Assert.assertEquals(1000L, find(values, "linux.proc.stat.interrupts", "irq", "all").value);
+    Assert.assertEquals(12L, find(values, "linux.proc.stat.interrupts", "irq", "0").value);
+    Assert.assertEquals(7L, find(values, "linux.proc.stat.interrupts", "irq", "3").value);
+    // Interrupts which did not occur are skipped
+    Assert.assertNull(find(values, "linux.proc.stat.interrupts", "irq", "1"));
+    Assert.assertEquals(70L, find(values, "linux.proc.stat.softirqs", "irq", "1").value);
+    Assert.assertEquals(123456L, find(values, "linux.proc.stat.ctxt").value);
+    Assert.assertEquals(1690000000L, find(values, "linux.proc.stat.btime").value);
+    Assert.assertEquals(4242L, find(values, "linux.proc.stat.processes").value);
+    Assert.assertEquals(2 * 7 + 3 + 3 + 3, values.size());
+    Assert.assertEquals(42L, values.get(0).timestamp);
+  }
+
+  @Test
+  public void testMeminfoLoadavg() throws Exception {
+    File root = Files.createTempDirectory("proc").toFile();
+    write(root, "meminfo",
+        "MemTotal:       16318412 kB\n"
+        + "Active(anon):     123 kB\n"
+        + "HugePages_Total:       0\n");
+    write(root, "loadavg", "0.52 1.25 2.00 3/1234 56789\n");
+
+    List<Value> values = new ArrayList<Value>();
+    ProcCollector collector = new ProcCollector(root);
+    collector.collect(ProcCollector.MEMINFO, 0L, values);
+    collector.collect(ProcCollector.LOADAVG, 0L, values);
+
+    Assert.assertEquals(16318412L * 1024L, find(values, "linux.proc.meminfo.MemTotal").value);
+    Assert.assertEquals(123L * 1024L, find(values, "linux.proc.meminfo.Active(anon)").value);
+    Assert.assertEquals(0L, find(values, "linux.proc.meminfo.HugePages_Total").value);
+    Assert.assertEquals(0.52D, find(values, "linux.proc.loadavg.1").value);
+    Assert.assertEquals(2.0D, find(values, "linux.proc.loadavg.15").value);
+    Assert.assertEquals(3L, find(values, "linux.proc.loadavg.running").value);
+    Assert.assertEquals(1234L, find(values, "linux.proc.loadavg.total").value);
+    Assert.assertEquals(56789L, find(values, "linux.proc.loadavg.highestpid").value);
+  }
+
+  @Test
+  public void testDiskstatsNetDev() throws Exception {
+    File root = Files.createTempDirectory("proc").toFile();
+    write(root, "diskstats",
+        "   8       0 sda 1 2 3 4 5 6 7 8 9 10 11\n"
+        + "   8       1 sda1 1 2 3 4\n"
+        + "   8      16 sdb 1 2 3 4 5 6 7 8 9 10 11 0 0 0 0 0 0\n"
+        + "   3       0 1000 hda 21 22 23 24 25 26 27 28 29 30 31\n");
+    write(root, "net/dev",
+        "Inter-|   Receive                                                |  Transmit\n"
+        + " face |bytes    packets errs drop fifo frame compressed multicast|bytes    packets errs drop fifo colls carrier compressed\n"
+        + "    lo: 100 2 0 0 0 0 0 0 100 2 0 0 0 0 0 0\n"
+        + "  eth0:5000 50 1 2 3 4 5 6 7000 70 7 8 9 10 11 12\n");
+
+    List<Value> values = new ArrayList<Value>();
+    ProcCollector collector = new ProcCollector(root);
+    collector.collect(ProcCollector.DISKSTATS, 0L, values);
+
+    Assert.assertEquals(3 * 11, values.size());
+    Value v = find(values, "linux.proc.diskstats.io.ms.weighted", "device", "sda");
+    Assert.assertEquals(11L, v.value);
+    Assert.assertEquals("8", v.labels.get("major"));
+    Assert.assertEquals("0", v.labels.get("minor"));
+    Assert.assertEquals(1L, find(values, "linux.proc.diskstats.reads.completed", "device", "sdb").value);
+    Assert.assertEquals(21L, find(values, "linux.proc.diskstats.reads.completed", "device", "hda").value);
+    Assert.assertNull(find(values, "linux.proc.diskstats.reads.completed", "device", "sda1"));
+
+    values.clear();
+    collector.collect(ProcCollector.NETDEV, 0L, values);
+
+    Assert.assertEquals(2 * 16, values.size());
+    Assert.assertEquals(100L, find(values, "linux.proc.net.dev.receive.bytes", "iface", "lo").value);
+    Assert.assertEquals(5000L, find(values, "linux.proc.net.dev.receive.bytes", "iface", "eth0").value);
+    Assert.assertEquals(12L, find(values, "linux.proc.net.dev.transmit.compressed", "iface", "eth0").value);
+  }
+
+  @Test
+  public void testLabelsCached() throws Exception {
+    File root = Files.createTempDirectory("proc").toFile();
+    write(root, "net/dev", "  eth0: 1 2 3 4 5 6 7 8 9 10 11 12 13 14 15 16\n");
+
+    ProcCollector collector = new ProcCollector(root);
+    List<Value> first = new ArrayList<Value>();
+    List<Value> second = new ArrayList<Value>();
+
+    collector.collect(ProcCollector.NETDEV, 0L, first);
+    collector.rotate();
+    collector.collect(ProcCollector.NETDEV, 0L, second);
+
+    Assert.assertSame(first.get(0).labels, second.get(0).labels);
+  }
+
+  @Test(expected = NumberFormatException.class)
+  public void testMalformed() throws Exception {
+    File root = Files.createTempDirectory("proc").toFile();
+    write(root, "loadavg", "0.52 1.25 2.00 x/1234 56789\n");
+
+    new ProcCollector(root).collect(ProcCollector.LOADAVG, 0L, new ArrayList<Value>());
+  }
+}
@@ -0,0 +1,122 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import static io.warp10.sensision.ProcTestUtils.write;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.warp10.sensision.Sensision.Value;
+
+public class ProcPidCollectorTest {
+
+  /**
+   * Write /proc/[pid]/stat, starttime being in clock ticks after boot
+   */
+  private static void stat(File root, int pid, String comm, int pgrp, long utime, long starttime) throws IOException {
+    write(root, pid + "/stat", pid + " (" + comm + ") S 1 " + pgrp + " " + pgrp + " 0 -1 4194560 10 20 1 2 "
+        + utime + " 5 0 0 20 0 7 0 " + starttime + " 123456 789 18446744073709551615\n");
+  }
+
+  private static Value find(List<Value> values, String cls, String pid) {
+    return ProcTestUtils.find(values, cls, "pid", pid);
+  }
+
+  private static Properties config(File root) {
+    Properties config = new Properties();
+    config.setProperty(Sensision.SENSISION_PROCPOLLER_PID_AGE, "60000");
+    config.setProperty(Sensision.SENSISION_PROCPOLLER_PID_PROCDUMP, new File(root, "none").getAbsolutePath());
+    return config;
+  }
+
+  @Test
+  public void testCollect() throws Exception {
+    File root = Files.createTempDirectory("proc").toFile();
+    // Booted 1000s ago
+    write(root, "uptime", "1000.00 3000.00\n");
+    // Started 100s after boot, its name contains spaces and parentheses
+    stat(root, 42, "a (b) c", 42, 300, 10000);
+    // Too young
+    stat(root, 43, "young", 43, 0, 99000);
+    // Excluded process group
+    stat(root, 44, "init", 1, 0, 1);
+    write(root, "self/stat", "not a pid\n");
+
+    long now = 2000000000000L;
+    List<Value> values = new ArrayList<Value>();
+    new ProcPidCollector(root, config(root)).collect(now * Sensision.TIME_UNITS_PER_MS, values);
+
+    Assert.assertEquals(15, values.size());
+    Assert.assertEquals("a (b) c", values.get(0).labels.get("name"));
+    Assert.assertEquals("S", find(values, "linux.proc.pid.state", "42").value);
+    Assert.assertEquals(300L, find(values, "linux.proc.pid.utime", "42").value);
+    Assert.assertEquals(7L, find(values, "linux.proc.pid.nthreads", "42").value);
+    Assert.assertEquals(789L, find(values, "linux.proc.pid.rss", "42").value);
+    Assert.assertEquals(now - 900000L, find(values, "linux.proc.pid.starttime", "42").value);
+  }
+
+  @Test
+  public void testSensisionId() throws Exception {
+    File root = Files.createTempDirectory("proc").toFile();
+    write(root, "uptime", "1000.00 3000.00\n");
+    stat(root, 42, "java", 42, 1, 100);
+    write(root, "42/environ", "PATH=/bin\0SENSISIONID_OTHER=x\0SENSISIONID=warp10\0");
+    stat(root, 43, "java", 43, 1, 100);
+    write(root, "43/environ", "PATH=/bin\0");
+
+    Properties config = config(root);
+    config.setProperty(Sensision.SENSISION_PROCPOLLER_PID_SENSISIONIDONLY, "true");
+    config.setProperty(Sensision.SENSISION_PROCPOLLER_PID_VERBOSE, "true");
+
+    ProcPidCollector collector = new ProcPidCollector(root, config);
+    long now = System.currentTimeMillis() * Sensision.TIME_UNITS_PER_MS;
+
+    List<Value> values = new ArrayList<Value>();
+    collector.collect(now, values);
+
+    Assert.assertEquals(15, values.size());
+    Value utime = find(values, "linux.proc.pid.utime", "warp10");
+    Assert.assertEquals("42", utime.labels.get("pgrp"));
+
+    // The environment is only read when the process is first seen
+    write(root, "42/environ", "SENSISIONID=other\0");
+    stat(root, 42, "java", 42, 2, 100);
+
+    values.clear();
+    collector.collect(now, values);
+
+    Assert.assertEquals(2L, find(values, "linux.proc.pid.utime", "warp10").value);
+    Assert.assertSame(utime.labels, find(values, "linux.proc.pid.utime", "warp10").labels);
+
+    // A process reusing the pid is a new process
+    stat(root, 42, "java", 42, 3, 200);
+
+    values.clear();
+    collector.collect(now, values);
+
+    Assert.assertEquals(3L, find(values, "linux.proc.pid.utime", "other").value);
+    Assert.assertNull(find(values, "linux.proc.pid.utime", "warp10"));
+  }
+}
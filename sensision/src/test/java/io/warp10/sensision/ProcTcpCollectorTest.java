@@ -0,0 +1,107 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import static io.warp10.sensision.ProcTestUtils.write;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.warp10.sensision.Sensision.Value;
+
+public class ProcTcpCollectorTest {
+
+  private static final String HEADER = "  sl  local_address rem_address   st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode\n";
+
+  private static final String HEADER6 = "  sl  local_address                         remote_address                        st tx_queue rx_queue tr tm->when retrnsmt   uid  timeout inode\n";
+
+  private static String socket(int sl, String src, String dst, String state, int uid) {
+    return String.format("%4d: %s %s %s 00000000:00000000 00:00000000 00000000 %5d        0 %d 1 0000000000000000 100 0 0 10 0\n",
+        sl, src, dst, state, uid, 1000 + sl);
+  }
+
+  private static Value find(List<Value> values, String state, String endpoint, String service, String user) {
+    return ProcTestUtils.find(values, "linux.proc.net.tcp", "state", state, "endpoint", endpoint, "service", service, "user", user);
+  }
+
+  @Test
+  public void testCollect() throws Exception {
+    File root = Files.createTempDirectory("proc").toFile();
+    write(root, "passwd", "root:x:0:0:root:/root:/bin/bash\nzk:x:1001:1001:Zoo Keeper:/home/zk:/bin/sh\nkafka:x:1002:1002::/home/kafka:/bin/sh\n");
+
+    StringBuilder tcp = new StringBuilder(HEADER);
+    // zookeeper listening on all addresses
+    tcp.append(socket(0, "00000000:0885", "00000000:0000", "0A", 1001));
+    // Many established connections from 172.20.0.5 to kafka on 8.8.8.8, larger than the reader buffer
+    for (int i = 1; i <= 1000; i++) {
+      tcp.append(socket(i, "050014AC:" + String.format("%04X", 30000 + i), "08080808:2384", "01", 1002));
+    }
+    // 172.32.0.5 is not an RFC1918 address
+    tcp.append(socket(1001, "050020AC:0016", "08080808:C350", "01", 0));
+    write(root, "net/tcp", tcp.toString());
+
+    // ssh from an IPv4 mapped 192.168.1.2 to 8.8.4.4
+    write(root, "net/tcp6", HEADER6
+        + socket(0, "0000000000000000FFFF00000201A8C0:0016", "0000000000000000FFFF000004040808:D431", "01", 0));
+
+    Properties config = new Properties();
+    config.setProperty(Sensision.SENSISION_PROCPOLLER_NET_TCP_PASSWD, new File(root, "passwd").getAbsolutePath());
+
+    ProcTcpCollector collector = new ProcTcpCollector(root, config);
+
+    List<Value> values = new ArrayList<Value>();
+    collector.collect(0L, values);
+
+    Assert.assertEquals(4, values.size());
+    Assert.assertEquals(1L, find(values, "listen", "internal", "zookeeper", "zk").value);
+    Assert.assertEquals(1000L, find(values, "established", "internal", "kafka", "kafka").value);
+    Assert.assertEquals(1L, find(values, "established", "external", "ssh", "other").value);
+    Assert.assertEquals(1L, find(values, "established", "internal", "ssh", "other").value);
+
+    // Counters are reset and labels reused from one run to the next
+    values.clear();
+    collector.collect(0L, values);
+
+    Assert.assertEquals(4, values.size());
+    Value listen = find(values, "listen", "internal", "zookeeper", "zk");
+    Assert.assertEquals(1L, listen.value);
+
+    values.clear();
+    collector.collect(0L, values);
+    Assert.assertSame(listen.labels, find(values, "listen", "internal", "zookeeper", "zk").labels);
+  }
+
+  @Test
+  public void testIsInternal() {
+    // Addresses are in the byte order of /proc/net/tcp
+    Assert.assertTrue(ProcTcpCollector.isInternal(0x0100007F));
+    Assert.assertTrue(ProcTcpCollector.isInternal(0x0101010A));
+    Assert.assertTrue(ProcTcpCollector.isInternal(0x000010AC));
+    Assert.assertTrue(ProcTcpCollector.isInternal(0x00001FAC));
+    Assert.assertFalse(ProcTcpCollector.isInternal(0x00000FAC));
+    Assert.assertFalse(ProcTcpCollector.isInternal(0x000020AC));
+    Assert.assertTrue(ProcTcpCollector.isInternal(0x0000A8C0));
+    Assert.assertFalse(ProcTcpCollector.isInternal(0x0000A9C0));
+    Assert.assertFalse(ProcTcpCollector.isInternal(0x08080808));
+  }
+}
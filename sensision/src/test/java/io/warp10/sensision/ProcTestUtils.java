@@ -0,0 +1,69 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import io.warp10.sensision.Sensision.Value;
+
+/**
+ * Helpers shared by the tests of the proc collectors
+ */
+final class ProcTestUtils {
+
+  private ProcTestUtils() {}
+
+  /**
+   * Write a file of a fake proc filesystem, creating its parent directories
+   */
+  static void write(File root, String name, String content) throws IOException {
+    File file = new File(root, name);
+    file.getParentFile().mkdirs();
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Return the first value of the given class with the given labels, null if there is none
+   *
+   * @param labels Names and values of the labels the value must have
+   */
+  static Value find(List<Value> values, String cls, String... labels) {
+    for (Value v: values) {
+      if (!cls.equals(v.cls)) {
+        continue;
+      }
+
+      boolean match = true;
+
+      for (int i = 0; i < labels.length / 2; i++) {
+        if (!labels[i * 2 + 1].equals(v.labels.get(labels[i * 2]))) {
+          match = false;
+          break;
+        }
+      }
+
+      if (match) {
+        return v;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,86 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.warp10.sensision.Sensision.Value;
+
+public class SensisionBinaryFormatTest {
+  @Test
+  public void testRoundTrip() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    SensisionBinaryFormat.Writer writer = new SensisionBinaryFormat.Writer(out);
+
+    Map<String,String> labels = new HashMap<String,String>();
+    labels.put("host", "h{1}, 'a b'");
+
+    Map<String,String> extra = new HashMap<String,String>();
+    extra.put("host", "ignored");
+    extra.put("dc", "paris");
+
+    writer.write("class.long", labels, extra, 1000000L, null, null, null, -42L);
+    writer.write("class.double", labels, null, 999999L, 48.5F, -4.25F, -10L, Math.PI);
+    writer.write("class.string", labels, null, Long.MIN_VALUE, null, null, null, "x'y\nz");
+    writer.write("class.boolean", new HashMap<String,String>(), null, 2000000L, null, null, 100L, true);
+    writer.close();
+
+    // Text may follow the binary section
+    out.write("1000// text{} 42\r\n".getBytes("UTF-8"));
+
+    MetricsReader reader = new MetricsReader(new ByteArrayInputStream(out.toByteArray()));
+
+    Value value = reader.next();
+    Assert.assertEquals("class.long", value.cls);
+    Assert.assertEquals("h{1}, 'a b'", value.labels.get("host"));
+    Assert.assertEquals("paris", value.labels.get("dc"));
+    Assert.assertEquals(2, value.labels.size());
+    Assert.assertEquals(1000000L, value.timestamp);
+    Assert.assertEquals(-42L, value.value);
+
+    value = reader.next();
+    Assert.assertEquals("class.double", value.cls);
+    Assert.assertEquals(1, value.labels.size());
+    Assert.assertEquals(999999L, value.timestamp);
+    Assert.assertEquals(48.5F, value.latitude, 0.0F);
+    Assert.assertEquals(-4.25F, value.longitude, 0.0F);
+    Assert.assertEquals(-10L, value.elevation.longValue());
+    Assert.assertEquals(Math.PI, (Double) value.value, 0.0D);
+
+    value = reader.next();
+    Assert.assertEquals(Long.MIN_VALUE, value.timestamp);
+    Assert.assertEquals("x'y\nz", value.value);
+
+    value = reader.next();
+    Assert.assertEquals(Boolean.TRUE, value.value);
+    Assert.assertEquals(2000000L, value.timestamp);
+    Assert.assertEquals(100L, value.elevation.longValue());
+
+    value = reader.next();
+    Assert.assertEquals("text", value.cls);
+    Assert.assertEquals(42L, value.value);
+
+    Assert.assertNull(reader.next());
+    reader.close();
+  }
+}
@@ -0,0 +1,215 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SensisionEventRingTest {
+  @Test
+  public void testEncoding() throws Exception {
+    SensisionEventRing ring = new SensisionEventRing(16, 1024);
+    SensisionEventRing.Record record = ring.newRecord();
+
+    Map<String,String> labels = new LinkedHashMap<String,String>();
+    labels.put("b", "\u00e9,{}");
+    labels.put("a", "\ud83d\ude00 x");
+
+    Object[] values = new Object[] { 42L, 42, -1.5D, 1.1F, new BigDecimal("3.14159"), true, false, "it's a {test}" };
+
+    for (Object value: values) {
+      Assert.assertTrue(ring.offer(123456L, 48.0D, -4.5D, 12L, "class name", labels, value) >= 0);
+      Assert.assertTrue(ring.poll(record));
+      Assert.assertEquals(Sensision.buildEvent(123456L, 48.0D, -4.5D, 12L, "class name", labels, value).toString(), SensisionEventRing.decode(record).toString());
+    }
+
+    // Without location nor elevation
+    Assert.assertTrue(ring.offer(1L, Double.NaN, Double.NaN, null, "foo", new LinkedHashMap<String,String>(), 1L) >= 0);
+    Assert.assertTrue(ring.poll(record));
+    Assert.assertEquals("1// foo{} 1", SensisionEventRing.decode(record).toString());
+
+    Assert.assertFalse(ring.poll(record));
+  }
+
+  @Test
+  public void testDropAndOversized() throws Exception {
+    SensisionEventRing ring = new SensisionEventRing(4, 64);
+    Map<String,String> labels = new LinkedHashMap<String,String>();
+
+    for (int i = 0; i < 6; i++) {
+      ring.offer(i, null, null, null, "foo", labels, i);
+    }
+
+    Assert.assertEquals(2L, ring.getDropped());
+
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      sb.append('x');
+    }
+
+    Assert.assertEquals(-1L, ring.offer(0L, null, null, null, sb.toString(), labels, 0L));
+    Assert.assertEquals(1L, ring.getOversized());
+  }
+
+  @Test
+  public void testConcurrentProducers() throws Exception {
+    final SensisionEventRing ring = new SensisionEventRing(1024, 128);
+    final int producers = 4;
+    final int events = 50000;
+
+    Thread[] threads = new Thread[producers];
+
+    for (int t = 0; t < producers; t++) {
+      final int id = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          Map<String,String> labels = new LinkedHashMap<String,String>();
+          labels.put("producer", Integer.toString(id));
+          int i = 0;
+          while (i < events) {
+            if (ring.offer(i, null, null, null, "foo", labels, (long) i) >= 0) {
+              i++;
+            } else {
+              Thread.yield();
+            }
+          }
+        }
+      };
+      threads[t].start();
+    }
+
+    SensisionEventRing.Record record = ring.newRecord();
+    Set<String> seen = new HashSet<String>();
+    long expected = 0L;
+
+    while (expected < (long) producers * events) {
+      if (!ring.poll(record)) {
+        Thread.yield();
+        continue;
+      }
+      Assert.assertEquals(expected, record.seq);
+      Assert.assertTrue(seen.add(SensisionEventRing.decode(record).toString()));
+      expected++;
+    }
+
+    for (Thread thread: threads) {
+      thread.join();
+    }
+
+    Assert.assertEquals(producers * events, seen.size());
+  }
+
+  @Test
+  public void testWriterDiskBudget() throws Exception {
+    File dir = Files.createTempDirectory("sensision-events").toFile();
+
+    try {
+      SensisionEventRing ring = new SensisionEventRing(4096, 128);
+      SensisionEventWriter writer = new SensisionEventWriter(ring, null, 16, dir, null, SensisionEventWriter.FSYNC_NONE, 1000L, 0L, 3000L, 1L);
+
+      Map<String,String> labels = new LinkedHashMap<String,String>();
+
+      for (int i = 0; i < 1000; i++) {
+        Assert.assertTrue(ring.offer(i, null, null, null, "foo", labels, (long) i) >= 0);
+      }
+
+      writer.flush();
+
+      long total = 0L;
+      for (File file: dir.listFiles()) {
+        Assert.assertTrue(file.getName().endsWith(Sensision.SENSISION_METRICS_SUFFIX));
+        total += file.length();
+      }
+
+      Assert.assertTrue("Disk budget exceeded " + total, total > 0L && total <= 3000L);
+      Assert.assertTrue(writer.getRotations() > 3L);
+
+      // The history contains the last events
+      List<String> events = new ArrayList<String>();
+      Assert.assertEquals(999L, writer.read(-1L, 100, events).last);
+      Assert.assertEquals(16, events.size());
+      Assert.assertEquals("999// foo{} 999", events.get(15));
+    } finally {
+      for (File file: dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void testCursorGap() throws Exception {
+    File dir = Files.createTempDirectory("sensision-events").toFile();
+
+    try {
+      SensisionEventRing ring = new SensisionEventRing(64, 128);
+      SensisionEventWriter writer = new SensisionEventWriter(ring, null, 8, dir, null, SensisionEventWriter.FSYNC_NONE, 0L, 0L, 0L, 1L);
+
+      Map<String,String> labels = new LinkedHashMap<String,String>();
+
+      for (int i = 0; i < 4; i++) {
+        ring.offer(i, null, null, null, "foo", labels, (long) i);
+      }
+      writer.drain();
+
+      // Exactly the events after the cursor
+      List<String> events = new ArrayList<String>();
+      SensisionEventWriter.Cursor cursor = writer.read(1L, 100, events);
+      Assert.assertEquals(3L, cursor.last);
+      Assert.assertEquals(0L, cursor.lost);
+      Assert.assertEquals(2, events.size());
+      Assert.assertEquals("2// foo{} 2", events.get(0));
+
+      // Nothing new
+      events.clear();
+      Assert.assertEquals(3L, writer.read(3L, 100, events).last);
+      Assert.assertTrue(events.isEmpty());
+
+      // Lap the cursor
+      for (int i = 4; i < 20; i++) {
+        ring.offer(i, null, null, null, "foo", labels, (long) i);
+      }
+      writer.drain();
+
+      events.clear();
+      cursor = writer.read(3L, 100, events);
+      Assert.assertEquals(19L, cursor.last);
+      Assert.assertEquals(8L, cursor.lost);
+      Assert.assertEquals(SensisionEventWriter.GAP_MARKER + "4 11", events.get(0));
+      Assert.assertEquals("12// foo{} 12", events.get(1));
+      Assert.assertEquals(9, events.size());
+
+      writer.flush();
+    } finally {
+      for (File file: dir.listFiles()) {
+        file.delete();
+      }
+      dir.delete();
+    }
+  }
+}
@@ -0,0 +1,63 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SensisionEventSamplerTest {
+  @Test
+  public void testAdaptiveSampling() throws Exception {
+    // 100 events per second per class, i.e. 5 per 50ms window
+    SensisionEventSampler sampler = new SensisionEventSampler(0.0D, 0.0D, 100.0D, 50L, 16);
+
+    // The first window keeps everything
+    Assert.assertEquals(100, admit(sampler, "noisy", 100));
+    Assert.assertEquals(3, admit(sampler, "quiet", 3));
+
+    Thread.sleep(80L);
+
+    // The noisy class is now sampled, the quiet one is not
+    int kept = admit(sampler, "noisy", 100);
+    Assert.assertTrue("Kept " + kept, kept > 0 && kept <= 25);
+    Assert.assertEquals(3, admit(sampler, "quiet", 3));
+
+    Assert.assertEquals(100 - kept, sampler.getSampled());
+    Assert.assertEquals(0L, sampler.getLimited());
+  }
+
+  @Test
+  public void testRateLimit() throws Exception {
+    SensisionEventSampler sampler = new SensisionEventSampler(1.0D, 5.0D, 0.0D, 1000L, 16);
+
+    int kept = admit(sampler, "foo", 100);
+
+    Assert.assertEquals(5, kept);
+    Assert.assertEquals(95L, sampler.getLimited());
+    Assert.assertEquals(0L, sampler.getSampled());
+  }
+
+  private static int admit(SensisionEventSampler sampler, String cls, int n) {
+    int kept = 0;
+    for (int i = 0; i < n; i++) {
+      if (sampler.admit(cls)) {
+        kept++;
+      }
+    }
+    return kept;
+  }
+}
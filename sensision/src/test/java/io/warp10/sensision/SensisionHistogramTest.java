@@ -0,0 +1,146 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SensisionHistogramTest {
+  @Test
+  public void testBuckets() throws Exception {
+    int precision = 5;
+
+    // Each value falls in a bucket whose highest value is within the precision
+    Random rnd = new Random(42L);
+    for (int i = 0; i < 100000; i++) {
+      long value = (rnd.nextLong() >>> 1) >>> rnd.nextInt(63);
+      int index = SensisionHistogram.index(precision, value);
+      long highest = SensisionHistogram.highest(precision, index);
+      Assert.assertTrue(value <= highest);
+      Assert.assertTrue(highest - value <= value >>> precision);
+      if (index > 0) {
+        Assert.assertTrue(value > SensisionHistogram.highest(precision, index - 1));
+      }
+    }
+
+    Assert.assertEquals(Long.MAX_VALUE, SensisionHistogram.highest(precision, SensisionHistogram.index(precision, Long.MAX_VALUE)));
+  }
+
+  @Test
+  public void testQuantiles() throws Exception {
+    SensisionHistogram histogram = new SensisionHistogram(7);
+
+    Random rnd = new Random(42L);
+    long[] values = new long[100000];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = (long) Math.exp(rnd.nextGaussian() * 2.0D + 10.0D);
+      histogram.record(values[i]);
+    }
+    Arrays.sort(values);
+
+    SensisionHistogram.Snapshot snapshot = histogram.snapshot();
+
+    Assert.assertEquals(values.length, snapshot.getCount());
+    Assert.assertEquals(values[0], snapshot.getMin());
+    Assert.assertEquals(values[values.length - 1], snapshot.getMax());
+
+    for (double q: new double[] { 0.01D, 0.5D, 0.9D, 0.99D, 0.999D }) {
+      long exact = values[(int) Math.ceil(q * values.length) - 1];
+      long estimate = snapshot.getValueAtQuantile(q);
+      Assert.assertTrue(q + ": " + estimate + " vs " + exact, Math.abs(estimate - exact) <= exact / 128.0D + 1.0D);
+    }
+  }
+
+  @Test
+  public void testMergeAndConcurrency() throws Exception {
+    final SensisionHistogram histogram = new SensisionHistogram(5);
+    final int n = 100000;
+
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final long offset = t * 1000L;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < n; i++) {
+            histogram.record(offset + i % 1000);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread: threads) {
+      thread.join();
+    }
+
+    SensisionHistogram.Snapshot snapshot = histogram.snapshot();
+    Assert.assertEquals(4L * n, snapshot.getCount());
+    Assert.assertEquals(0L, snapshot.getMin());
+    Assert.assertEquals(3999L, snapshot.getMax());
+
+    SensisionHistogram other = new SensisionHistogram(5);
+    other.record(10000L, 10L);
+
+    SensisionHistogram.Snapshot merged = snapshot.merge(other.snapshot());
+    Assert.assertEquals(4L * n + 10L, merged.getCount());
+    Assert.assertEquals(10000L, merged.getMax());
+
+    other.add(snapshot);
+    Assert.assertEquals(merged.getSum(), other.snapshot().getSum());
+    Assert.assertEquals(merged.getValueAtQuantile(0.5D), other.snapshot().getValueAtQuantile(0.5D));
+  }
+
+  @Test
+  public void testDump() throws Exception {
+    Map<String,String> labels = new HashMap<String,String>();
+    labels.put("type", "SensisionHistogramTest");
+
+    for (int i = 1; i <= 100; i++) {
+      Sensision.record("test.latency", labels, i);
+    }
+
+    StringWriter sw = new StringWriter();
+    PrintWriter pw = new PrintWriter(sw);
+    Sensision.dump(pw, true, false);
+    pw.flush();
+    String dump = sw.toString();
+
+    Assert.assertTrue(dump.contains(" test.latency.count{type=SensisionHistogramTest} 100\r\n"));
+    Assert.assertTrue(dump.contains(" test.latency.sum{type=SensisionHistogramTest} 5050\r\n"));
+    Assert.assertTrue(dump.contains(" test.latency.max{type=SensisionHistogramTest} 100\r\n"));
+    Assert.assertTrue(dump.contains(" test.latency.bucket{le=%2BInf,type=SensisionHistogramTest} 100\r\n") || dump.contains(" test.latency.bucket{type=SensisionHistogramTest,le=%2BInf} 100\r\n"));
+
+    sw = new StringWriter();
+    pw = new PrintWriter(sw);
+    Sensision.dump(pw, true, true);
+    pw.flush();
+    dump = sw.toString();
+
+    Assert.assertTrue(dump.contains("test_latency_count{type=\"SensisionHistogramTest\"} 100 "));
+    Assert.assertTrue(dump.contains("le=\"+Inf\""));
+    Assert.assertTrue(dump.contains("quantile=\"0.99\""));
+
+    Assert.assertTrue(Sensision.clear("test.latency", labels));
+  }
+}
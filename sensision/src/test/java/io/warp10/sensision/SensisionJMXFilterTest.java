@@ -0,0 +1,130 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SensisionJMXFilterTest {
+
+  @Test
+  public void testLiteral() {
+    Assert.assertEquals("java.lang.Memory", SensisionJMXFilter.literal("java\\.lang\\.Memory"));
+    Assert.assertEquals("kafka", SensisionJMXFilter.literal("kafka"));
+    Assert.assertNull(SensisionJMXFilter.literal("java.lang"));
+    Assert.assertNull(SensisionJMXFilter.literal("a\\d"));
+    Assert.assertNull(SensisionJMXFilter.literal("(a|b)"));
+  }
+
+  @Test
+  public void testExclusions() {
+    SensisionJMXFilter filter = new SensisionJMXFilter("!~.*State,!=Foo,!Bar");
+
+    Assert.assertTrue(filter.accept("jmx.Probe:Count"));
+    Assert.assertFalse(filter.accept("jmx.Probe:State"));
+    Assert.assertFalse(filter.accept("Foo"));
+    Assert.assertFalse(filter.accept("Bar"));
+    Assert.assertTrue(filter.accept("Foobar"));
+  }
+
+  @Test
+  public void testOrder() {
+    SensisionJMXFilter filter = new SensisionJMXFilter("!~kafka\\.log\\..*,~kafka\\..*");
+
+    Assert.assertFalse(filter.accept("kafka.log.Size"));
+    Assert.assertTrue(filter.accept("kafka.server.Requests"));
+    Assert.assertFalse(filter.accept("java.lang.Memory"));
+
+    filter = new SensisionJMXFilter("~kafka\\..*,!kafka.log.Size");
+
+    Assert.assertTrue(filter.accept("kafka.log.Size"));
+
+    // A regular expression preceding a prefix rule takes precedence
+    filter = new SensisionJMXFilter("!~kafka\\.[a-z]*\\.Size,~kafka\\..*");
+
+    Assert.assertFalse(filter.accept("kafka.log.Size"));
+    Assert.assertTrue(filter.accept("kafka.log.Count"));
+  }
+
+  @Test
+  public void testLineTerminators() {
+    SensisionJMXFilter filter = new SensisionJMXFilter("~a.*");
+
+    Assert.assertTrue(filter.accept("ab"));
+    Assert.assertFalse(filter.accept("a\nb"));
+  }
+
+  @Test
+  public void testEquivalence() {
+    String[] specs = new String[] {
+      "~ab.*,!~a.*,b",
+      "!~a[ab]b,~a.*,!=ba",
+      "!~.*b,~b.*,~a",
+      "=ab,!~[ab]*a,~.*",
+    };
+
+    Random rnd = new Random(42L);
+
+    for (String spec: specs) {
+      SensisionJMXFilter filter = new SensisionJMXFilter(spec);
+      String[] rules = spec.split(",");
+
+      for (int i = 0; i < 2000; i++) {
+        StringBuilder sb = new StringBuilder();
+        int len = rnd.nextInt(5);
+        for (int j = 0; j < len; j++) {
+          sb.append(rnd.nextBoolean() ? 'a' : 'b');
+        }
+        String value = sb.toString();
+
+        Assert.assertEquals(spec + " " + value, reference(rules, value), filter.accept(value));
+      }
+    }
+  }
+
+  /**
+   * Evaluate the rules one by one
+   */
+  private static boolean reference(String[] rules, String value) {
+    boolean hasIncludes = false;
+
+    for (String rule: rules) {
+      boolean exclusion = rule.startsWith("!");
+      if (exclusion) {
+        rule = rule.substring(1);
+      } else {
+        hasIncludes = true;
+      }
+
+      Pattern pattern;
+      if (rule.startsWith("~")) {
+        pattern = Pattern.compile(rule.substring(1));
+      } else {
+        pattern = Pattern.compile(Pattern.quote(rule.startsWith("=") ? rule.substring(1) : rule));
+      }
+
+      if (pattern.matcher(value).matches()) {
+        return !exclusion;
+      }
+    }
+
+    return !hasIncludes;
+  }
+}
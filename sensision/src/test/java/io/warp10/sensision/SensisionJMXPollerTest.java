@@ -0,0 +1,213 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.net.URLEncoder;
+import java.util.Random;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SensisionJMXPollerTest {
+
+  public interface ProbeMBean {
+    long getCount();
+    String getState();
+    int[] getSlots();
+  }
+
+  public static class Probe implements ProbeMBean {
+    private volatile long count;
+
+    public Probe(long count) {
+      this.count = count;
+    }
+
+    @Override
+    public long getCount() {
+      return this.count;
+    }
+
+    @Override
+    public String getState() {
+      return "up";
+    }
+
+    @Override
+    public int[] getSlots() {
+      return new int[] { 1, 2 };
+    }
+  }
+
+  @Test
+  public void testRegistrations() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName first = new ObjectName("io.warp10.sensision.test:type=Probe,name=first");
+    ObjectName second = new ObjectName("io.warp10.sensision.test:type=Probe,name=second");
+
+    SensisionJMXPoller poller = new SensisionJMXPoller("mbeans=~.*JMXPollerTest.*:metrics=~.*Count", null);
+
+    server.registerMBean(new Probe(42L), first);
+
+    try {
+      String dump = dump(poller);
+      Assert.assertEquals(dump, "42", count(dump, "first"));
+      Assert.assertFalse(dump, dump.contains("Slots"));
+      Assert.assertFalse(dump, dump.contains("State"));
+      Assert.assertNull(dump, count(dump, "second"));
+
+      // Registered after the first dump, only known through the notifications
+      server.registerMBean(new Probe(7L), second);
+
+      dump = dump(poller);
+      Assert.assertEquals(dump, "42", count(dump, "first"));
+      Assert.assertEquals(dump, "7", count(dump, "second"));
+
+      server.unregisterMBean(first);
+
+      dump = dump(poller);
+      Assert.assertNull(dump, count(dump, "first"));
+      Assert.assertEquals(dump, "7", count(dump, "second"));
+    } finally {
+      if (server.isRegistered(first)) {
+        server.unregisterMBean(first);
+      }
+      if (server.isRegistered(second)) {
+        server.unregisterMBean(second);
+      }
+    }
+  }
+
+  @Test
+  public void testMBeanInterval() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName cached = new ObjectName("io.warp10.sensision.test:type=Probe,name=cached");
+    ObjectName live = new ObjectName("io.warp10.sensision.test:type=Probe,name=live");
+
+    SensisionJMXPoller poller;
+
+    System.setProperty(Sensision.SENSISION_JMX_INTERVAL_MBEANS, "3600000@io%2Ewarp10%2Esensision%2Etest:name=cached%2C.*");
+
+    try {
+      poller = new SensisionJMXPoller("mbeans=~.*JMXPollerTest.*", null);
+    } finally {
+      System.clearProperty(Sensision.SENSISION_JMX_INTERVAL_MBEANS);
+    }
+
+    Probe cachedProbe = new Probe(1L);
+    Probe liveProbe = new Probe(1L);
+
+    server.registerMBean(cachedProbe, cached);
+    server.registerMBean(liveProbe, live);
+
+    try {
+      String dump = dump(poller);
+      Assert.assertEquals(dump, "1", count(dump, "cached"));
+      Assert.assertEquals(dump, "1", count(dump, "live"));
+
+      cachedProbe.count = 2L;
+      liveProbe.count = 2L;
+
+      // Only the MBean without a specific interval is sampled again
+      dump = dump(poller);
+      Assert.assertEquals(dump, "1", count(dump, "cached"));
+      Assert.assertEquals(dump, "2", count(dump, "live"));
+    } finally {
+      server.unregisterMBean(cached);
+      server.unregisterMBean(live);
+    }
+  }
+
+  @Test
+  public void testEncode() throws Exception {
+    Random rnd = new Random(42L);
+
+    for (int i = 0; i < 10000; i++) {
+      StringBuilder sb = new StringBuilder();
+      int len = rnd.nextInt(8);
+      for (int j = 0; j < len; j++) {
+        switch (rnd.nextInt(4)) {
+          case 0:
+            sb.append((char) rnd.nextInt(0x80));
+            break;
+          case 1:
+            sb.append((char) rnd.nextInt(0x800));
+            break;
+          case 2:
+            sb.appendCodePoint(0x10000 + rnd.nextInt(0x10000));
+            break;
+          default:
+            sb.append((char) rnd.nextInt(0x10000));
+        }
+      }
+      String str = sb.toString();
+
+      StringBuilder encoded = new StringBuilder();
+      SensisionJMXPoller.encode(encoded, str);
+
+      Assert.assertEquals(URLEncoder.encode(str, "UTF-8"), encoded.toString());
+    }
+  }
+
+  @Test
+  public void testDefaultElevation() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName probe = new ObjectName("io.warp10.sensision.test:type=Probe,name=elevation");
+
+    SensisionJMXPoller poller = new SensisionJMXPoller("mbeans=~.*JMXPollerTest.*:metrics=~.*Count", null);
+
+    server.registerMBean(new Probe(3L), probe);
+
+    Long elevation = Sensision.defaultElevation;
+    Sensision.defaultElevation = 1234L;
+
+    try {
+      String dump = dump(poller);
+      Assert.assertEquals(dump, "3", count(dump, "elevation"));
+      Assert.assertTrue(dump, dump.matches("(?s)[0-9]+//1234 jmx\\.io\\.warp10\\.sensision\\.SensisionJMXPollerTest%24Probe%3ACount\\{.*"));
+    } finally {
+      Sensision.defaultElevation = elevation;
+      server.unregisterMBean(probe);
+    }
+  }
+
+  /**
+   * Return the value of the Count metric of a probe, null if it was not dumped
+   */
+  private static String count(String dump, String probe) {
+    for (String line: dump.split("\r\n")) {
+      if (line.contains("Probe%3ACount{") && line.matches(".*[{,]jmx\\.name=" + probe + "[,}].*")) {
+        return line.substring(line.lastIndexOf(' ') + 1);
+      }
+    }
+    return null;
+  }
+
+  private static String dump(SensisionJMXPoller poller) {
+    StringWriter sw = new StringWriter();
+    PrintWriter pw = new PrintWriter(sw);
+    poller.dump(pw, false);
+    pw.flush();
+    return sw.toString();
+  }
+}
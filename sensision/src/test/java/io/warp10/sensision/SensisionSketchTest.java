@@ -0,0 +1,135 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import io.warp10.sensision.Sensision.Value;
+
+public class SensisionSketchTest {
+  @Test
+  public void testMergedQuantiles() throws Exception {
+    Random rnd = new Random(42L);
+
+    // Three processes with different latency distributions
+    SensisionSketch[] sketches = new SensisionSketch[3];
+    double[] values = new double[30000];
+
+    for (int s = 0; s < sketches.length; s++) {
+      sketches[s] = new SensisionSketch();
+      for (int i = 0; i < 10000; i++) {
+        double value = Math.exp(rnd.nextGaussian() + s * 2.0D);
+        values[s * 10000 + i] = value;
+        sketches[s].record(value);
+      }
+    }
+
+    Arrays.sort(values);
+
+    // Merge the serialized sketches, as the aggregation rules would
+    SensisionSketch merged = SensisionSketch.parse(sketches[0].toString());
+    merged.merge(SensisionSketch.parse(sketches[1].toString()));
+    merged.merge(SensisionSketch.parse(sketches[2].toString()));
+
+    Assert.assertEquals(values.length, merged.getCount());
+    Assert.assertEquals(values[0], merged.getMin(), 0.0D);
+    Assert.assertEquals(values[values.length - 1], merged.getMax(), 0.0D);
+
+    for (double q: new double[] { 0.0D, 0.1D, 0.5D, 0.9D, 0.99D, 0.999D, 1.0D }) {
+      double exact = values[(int) (q * (values.length - 1))];
+      double estimate = merged.getValueAtQuantile(q);
+      Assert.assertEquals(q + ": " + estimate + " vs " + exact, exact, estimate, exact * SensisionSketch.DEFAULT_ACCURACY * 1.0001D);
+    }
+  }
+
+  @Test
+  public void testSerialization() throws Exception {
+    SensisionSketch sketch = new SensisionSketch(0.02D, 64);
+
+    for (int i = -1000; i <= 1000; i++) {
+      sketch.record(i * 0.5D);
+    }
+
+    String str = sketch.toString();
+    Assert.assertTrue(str.startsWith(SensisionSketch.PREFIX));
+    Assert.assertTrue(str.length() < 512);
+
+    SensisionSketch parsed = SensisionSketch.parse(str);
+    Assert.assertEquals(str, parsed.toString());
+    Assert.assertEquals(sketch.getCount(), parsed.getCount());
+    Assert.assertEquals(sketch.getValueAtQuantile(0.25D), parsed.getValueAtQuantile(0.25D), 0.0D);
+    Assert.assertEquals(0.0D, parsed.getValueAtQuantile(0.5D), 0.0D);
+
+    Assert.assertNull(SensisionSketch.parse(SensisionSketch.PREFIX + "AAAA"));
+    Assert.assertNull(SensisionSketch.parse(SensisionSketch.PREFIX + "!"));
+    Assert.assertNull(SensisionSketch.parse("foo"));
+
+    // The serialized form is left untouched by the Sensision format
+    Map<String,String> labels = new HashMap<String,String>();
+    StringWriter sw = new StringWriter();
+    PrintWriter pw = new PrintWriter(sw);
+    Sensision.dumpValue(pw, new Value("foo", labels, 1L, null, null, null, str), true, false, false);
+    pw.flush();
+
+    Value value = Sensision.parseMetric(sw.toString());
+    Assert.assertEquals(str, value.value);
+  }
+
+  @Test
+  public void testCollapse() throws Exception {
+    SensisionSketch sketch = new SensisionSketch(0.01D, 128);
+
+    for (int i = 0; i < 10000; i++) {
+      sketch.record(Math.pow(1.5D, i % 100));
+    }
+
+    // The buckets only span a factor of about 13, the highest quantiles are still accurate
+    double p99 = sketch.getValueAtQuantile(0.99D);
+    Assert.assertEquals(Math.pow(1.5D, 98), p99, Math.pow(1.5D, 98) * 0.0101D);
+    Assert.assertEquals(10000L, sketch.getCount());
+  }
+
+  @Test
+  public void testWideSketch() throws Exception {
+    // 1.5^0 to 1.5^199 span about 8000 buckets, more than the default maximum
+    SensisionSketch sketch = new SensisionSketch(0.01D, 16384);
+
+    for (int i = 0; i < 200; i++) {
+      sketch.record(Math.pow(1.5D, i));
+    }
+
+    // The width of the sketch survives serialization and merging into a narrower sketch
+    SensisionSketch narrow = new SensisionSketch();
+    narrow.record(1.0D);
+    narrow.merge(SensisionSketch.parse(sketch.toString()));
+
+    SensisionSketch parsed = SensisionSketch.parse(narrow.toString());
+
+    Assert.assertEquals(201L, parsed.getCount());
+    Assert.assertEquals(1.5D, parsed.getValueAtQuantile(0.01D), 1.5D * 0.0101D);
+    // The median of 1, 1 and 1.5^1 to 1.5^199
+    Assert.assertEquals(Math.pow(1.5D, 99), parsed.getValueAtQuantile(0.5D), Math.pow(1.5D, 99) * 0.0101D);
+  }
+}
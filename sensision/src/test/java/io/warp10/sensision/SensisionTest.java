@@ -16,6 +16,8 @@
 
 package io.warp10.sensision;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -61,4 +63,28 @@ public class SensisionTest {
   public void testOpenMetricsLabelSanitization() {
     Assert.assertEquals("\\\\hello\\nworld \\\"hi\\\"", OpenMetrics.sanitizeLabelValue("\\hello\nworld \"hi\""));
   }
+
+  @Test
+  public void testDumpSince() throws Exception {
+    Map<String,String> labels = new HashMap<String,String>();
+
+    Sensision.set("delta.static", labels, 1L);
+    long generation = Sensision.getGeneration();
+    Sensision.update("delta.updated", labels, 1L);
+
+    StringWriter sw = new StringWriter();
+    Sensision.dump(new PrintWriter(sw), true, false, generation);
+    String dump = sw.toString();
+
+    Assert.assertFalse(dump.contains("delta.static"));
+    Assert.assertTrue(dump.contains("delta.updated"));
+
+    sw = new StringWriter();
+    Sensision.dump(new PrintWriter(sw), true, false, Sensision.getGeneration());
+    Assert.assertFalse(sw.toString().contains("delta."));
+
+    sw = new StringWriter();
+    Sensision.dump(new PrintWriter(sw), true, false);
+    Assert.assertTrue(sw.toString().contains("delta.static"));
+  }
  }
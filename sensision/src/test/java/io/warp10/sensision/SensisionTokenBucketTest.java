@@ -0,0 +1,39 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SensisionTokenBucketTest {
+  @Test
+  public void testBucket() throws Exception {
+    SensisionTokenBucket bucket = new SensisionTokenBucket(100.0D, 10.0D);
+
+    Assert.assertTrue(bucket.tryConsume(10));
+    Assert.assertFalse(bucket.tryConsume(10));
+
+    // Go into debt, the delay should account for it
+    bucket.consume(40);
+    long delay = bucket.getDelay();
+    Assert.assertTrue("Unexpected delay " + delay, delay > 300L && delay <= 410L);
+
+    Thread.sleep(delay + 20L);
+    Assert.assertEquals(0L, bucket.getDelay());
+    Assert.assertTrue(bucket.tryConsume(1));
+  }
+}
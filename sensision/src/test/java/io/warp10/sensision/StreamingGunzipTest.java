@@ -0,0 +1,89 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StreamingGunzipTest {
+  @Test
+  public void testConcatenatedMembers() throws Exception {
+    Random rnd = new Random(42L);
+
+    byte[] first = new byte[100000];
+    rnd.nextBytes(first);
+    byte[] second = "1000// foo{} 42\n".getBytes("UTF-8");
+
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    compressed.write(gzip(first));
+    compressed.write(gzip(second));
+
+    byte[] gz = compressed.toByteArray();
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    StreamingGunzip gunzip = new StreamingGunzip(new StreamingGunzip.Sink() {
+      @Override
+      public void write(byte[] buf, int off, int len) throws IOException {
+        out.write(buf, off, len);
+      }
+    });
+
+    // Feed the data in small irregular chunks
+    int off = 0;
+    while (off < gz.length) {
+      int len = Math.min(gz.length - off, 1 + rnd.nextInt(37));
+      gunzip.feed(gz, off, len);
+      off += len;
+    }
+
+    gunzip.finish();
+
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    expected.write(first);
+    expected.write(second);
+
+    Assert.assertTrue(Arrays.equals(expected.toByteArray(), out.toByteArray()));
+  }
+
+  @Test(expected = IOException.class)
+  public void testTruncated() throws Exception {
+    byte[] gz = gzip("1000// foo{} 42\n".getBytes("UTF-8"));
+
+    StreamingGunzip gunzip = new StreamingGunzip(new StreamingGunzip.Sink() {
+      @Override
+      public void write(byte[] buf, int off, int len) throws IOException {}
+    });
+
+    gunzip.feed(gz, 0, gz.length - 4);
+    gunzip.finish();
+  }
+
+  private static byte[] gzip(byte[] data) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    GZIPOutputStream out = new GZIPOutputStream(baos);
+    out.write(data);
+    out.close();
+    return baos.toByteArray();
+  }
+}
@@ -0,0 +1,97 @@
+//
+//   Copyright 2018-2023  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.sensision;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TimingWheelTest {
+  @Test
+  public void testOneShot() throws Exception {
+    // Use a small wheel so the delay spans several rotations
+    TimingWheel wheel = new TimingWheel(5L, 8);
+
+    final CountDownLatch latch = new CountDownLatch(1);
+    long start = System.currentTimeMillis();
+
+    wheel.schedule(new Runnable() {
+      @Override
+      public void run() {
+        latch.countDown();
+      }
+    }, 200L);
+
+    Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+    Assert.assertTrue(System.currentTimeMillis() - start >= 200L);
+  }
+
+  @Test
+  public void testPeriodicAndCancel() throws Exception {
+    TimingWheel wheel = new TimingWheel(5L, 16);
+
+    final AtomicInteger runs = new AtomicInteger(0);
+
+    TimingWheel.Timeout timeout = wheel.schedule(new Runnable() {
+      @Override
+      public void run() {
+        runs.incrementAndGet();
+      }
+    }, 0L, 50L, 0L);
+
+    Thread.sleep(525L);
+    timeout.cancel();
+
+    int count = runs.get();
+    Assert.assertTrue("Unexpected number of runs " + count, count >= 8 && count <= 12);
+
+    Thread.sleep(200L);
+    Assert.assertEquals(count, runs.get());
+  }
+
+  @Test
+  public void testPhase() throws Exception {
+    long period = 60000L;
+
+    //
+    // Phases should be stable and spread across the period
+    //
+
+    int[] slots = new int[10];
+
+    for (int i = 0; i < 1000; i++) {
+      long now = System.currentTimeMillis();
+      long delay = TimingWheel.phase("http:" + (10000 + i), period);
+      Assert.assertTrue(delay >= 0 && delay < period);
+      slots[(int) (((now + delay) % period) * slots.length / period)]++;
+    }
+
+    for (int slot: slots) {
+      Assert.assertTrue("Unbalanced phases " + slot, slot > 50 && slot < 150);
+    }
+
+    long now = System.currentTimeMillis();
+    long p1 = (now + TimingWheel.phase("script.groovy", period)) % period;
+    now = System.currentTimeMillis();
+    long p2 = (now + TimingWheel.phase("script.groovy", period)) % period;
+    // Allow for the clock moving between the two calls
+    Assert.assertTrue(Math.abs(p1 - p2) <= 1);
+  }
+}